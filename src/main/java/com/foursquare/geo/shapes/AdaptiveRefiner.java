@@ -0,0 +1,146 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which mixed cells of loaded values to split into finer sub-cells while lookups
+ * run. Attach it with {@link SimplifiedShapefileGeo#refining}. Like {@link LookupProfiler},
+ * it times one in every sampleInterval lookups, and adds the time of those in mixed
+ * cells to the cell's estimated cost. Once a cell's cost passes the threshold, the cell
+ * is split on the executor, and the split cell replaces it without blocking lookups.
+ * Lookup cost so follows where lookups actually fall, rather than the fixed levels of
+ * the index.
+ */
+public class AdaptiveRefiner {
+  static final int DefaultSampleInterval = 64;
+  static final long DefaultCostThresholdNanos = 50000000;
+  static final int DefaultGridSize = 8;
+  static final int DefaultMaxRefinedCells = 1024;
+
+  private final Executor executor;
+  private final int sampleInterval;
+  private final long costThresholdNanos;
+  private final int gridSize;
+  private final int maxRefinedCells;
+  private final ConcurrentMap<CellLocation, LongAdder> costs = new ConcurrentHashMap<CellLocation, LongAdder>();
+  private final Set<CellLocation> refining = ConcurrentHashMap.newKeySet();
+  /* Cells being split or already split, which maxRefinedCells bounds */
+  private final AtomicInteger reservedCells = new AtomicInteger();
+  private final AtomicInteger refinedCells = new AtomicInteger();
+
+  /**
+   * @param executor the executor to split cells on
+   */
+  public AdaptiveRefiner(Executor executor) {
+    this(executor, DefaultSampleInterval, DefaultCostThresholdNanos, DefaultGridSize, DefaultMaxRefinedCells);
+  }
+
+  /**
+   * @param executor the executor to split cells on
+   * @param sampleInterval one in this many lookups is timed on average, or all when 1
+   * @param costThresholdNanos the estimated total lookup time, in nanoseconds, after which a cell is split
+   * @param gridSize the number of sub-cells along each side of a split cell
+   * @param maxRefinedCells the most cells to split, bounding the memory used
+   */
+  public AdaptiveRefiner(
+    Executor executor,
+    int sampleInterval,
+    long costThresholdNanos,
+    int gridSize,
+    int maxRefinedCells
+  ) {
+    if (sampleInterval < 1) {
+      throw new IllegalArgumentException("sampleInterval must be positive, but is " + sampleInterval);
+    }
+    if (gridSize < 2) {
+      throw new IllegalArgumentException("gridSize must be at least 2, but is " + gridSize);
+    }
+    this.executor = executor;
+    this.sampleInterval = sampleInterval;
+    this.costThresholdNanos = costThresholdNanos;
+    this.gridSize = gridSize;
+    this.maxRefinedCells = maxRefinedCells;
+  }
+
+  /**
+   * The number of cells split so far
+   */
+  public int refinedCells() {
+    return refinedCells.get();
+  }
+
+  Executor executor() {
+    return executor;
+  }
+
+  int gridSize() {
+    return gridSize;
+  }
+
+  /**
+   * Whether to sample the current lookup
+   */
+  boolean sample() {
+    return sampleInterval == 1 || ThreadLocalRandom.current().nextInt(sampleInterval) == 0;
+  }
+
+  /**
+   * Records a sampled lookup in a mixed cell
+   * @param location the cell the lookup was resolved in
+   * @param nanos the time taken to resolve the lookup within the cell
+   * @return true once for a cell that should now be split, which must then be passed to
+   * {@link #finished}, whether or not it is split
+   */
+  boolean record(CellLocation location, long nanos) {
+    LongAdder cost = costs.get(location);
+    if (cost == null) {
+      LongAdder newCost = new LongAdder();
+      cost = costs.putIfAbsent(location, newCost);
+      if (cost == null) {
+        cost = newCost;
+      }
+    }
+    cost.add(nanos);
+    if (cost.sum() * sampleInterval < costThresholdNanos || reservedCells.get() >= maxRefinedCells) {
+      return false;
+    }
+    if (!refining.add(location)) {
+      return false;
+    }
+    int reserved;
+    do {
+      reserved = reservedCells.get();
+      if (reserved >= maxRefinedCells) {
+        refining.remove(location);
+        return false;
+      }
+    } while (!reservedCells.compareAndSet(reserved, reserved + 1));
+    costs.remove(location);
+    return true;
+  }
+
+  /**
+   * Ends the split of a cell that {@link #record} returned true for
+   * @param location the cell
+   * @param refined whether the split cell replaced the original. If not, the cell no
+   *                longer counts towards maxRefinedCells, and may be split again.
+   */
+  void finished(CellLocation location, boolean refined) {
+    if (refined) {
+      refinedCells.incrementAndGet();
+    } else {
+      reservedCells.decrementAndGet();
+    }
+    refining.remove(location);
+  }
+}
@@ -0,0 +1,490 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateArrays;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The features of a cell, stored as shared arcs in the manner of TopoJSON. Each border
+ * between two features is stored once, as an arc running between the vertices where
+ * the features bordering it change, and each ring of a feature is a list of arcs, each
+ * followed forwards or backwards. Coordinates are packed into a single array.
+ * A coordinate is located by counting, for each arc, the crossings of a ray from the
+ * coordinate, and toggling the parity of each feature using the arc. The first feature
+ * with odd parity covers the coordinate. Feature geometries are rebuilt from the arcs
+ * the first time they are asked for, and kept.
+ */
+class ArcIndexedValues extends SimplifiedShapefileGeo.MixedIndexedValues {
+  private final CellLocation location;
+  private final GeometryFactory geometryFactory;
+  private final List<Map.Entry<String, Object>> labelEntries;
+  private final boolean[] isMultiPolygon;
+  /* Per feature: the number of polygons, then for each polygon the number of rings, then
+   * for each ring the number of arcs followed by the arc references. A reference of ~id
+   * follows the arc backwards. */
+  private final int[][] featureRings;
+  /* x and y of each arc's coordinates, one arc after another */
+  private final double[] coords;
+  /* The index of the first coordinate of each arc, and the number of coordinates at the end */
+  private final int[] arcStarts;
+  /* minX, minY, maxX and maxY of each arc */
+  private final double[] arcBounds;
+  /* The features using each arc, once for each use, from arcUseStarts[arc] to arcUseStarts[arc + 1] */
+  private final int[] arcUseStarts;
+  private final int[] arcUses;
+  /* The features with their rebuilt geometries, or null until asked for */
+  private volatile List<FeatureEntry> featureEntries;
+
+  /**
+   * An undirected segment, identifying the rings it borders
+   */
+  private static class SegmentKey {
+    private final Coordinate p0;
+    private final Coordinate p1;
+
+    public SegmentKey(Coordinate a, Coordinate b) {
+      if (a.compareTo(b) <= 0) {
+        p0 = a;
+        p1 = b;
+      } else {
+        p0 = b;
+        p1 = a;
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof SegmentKey)) {
+        return false;
+      }
+      SegmentKey other = (SegmentKey) o;
+      return p0.equals2D(other.p0) && p1.equals2D(other.p1);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * p0.hashCode() + p1.hashCode();
+    }
+  }
+
+  /**
+   * A directed segment, identifying the arc starting with it
+   */
+  private static class DirectedKey {
+    private final Coordinate p0;
+    private final Coordinate p1;
+
+    public DirectedKey(Coordinate p0, Coordinate p1) {
+      this.p0 = p0;
+      this.p1 = p1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof DirectedKey)) {
+        return false;
+      }
+      DirectedKey other = (DirectedKey) o;
+      return p0.equals2D(other.p0) && p1.equals2D(other.p1);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * p0.hashCode() + p1.hashCode();
+    }
+  }
+
+  /**
+   * Builds the arcs shared by the rings of the features
+   */
+  private static class ArcBuilder {
+    private final List<Coordinate[]> rings = new ArrayList<Coordinate[]>();
+    private final Map<SegmentKey, List<Integer>> segmentRings = new HashMap<SegmentKey, List<Integer>>();
+    private final Map<Coordinate, Set<SegmentKey>> vertexSegments = new HashMap<Coordinate, Set<SegmentKey>>();
+    private final Map<DirectedKey, Integer> arcIds = new HashMap<DirectedKey, Integer>();
+    private final List<Coordinate[]> arcs = new ArrayList<Coordinate[]>();
+
+    /**
+     * Adds a ring
+     * @return the ring's id
+     */
+    public int addRing(Coordinate[] ring) {
+      int ringId = rings.size();
+      Coordinate[] open = Arrays.copyOf(ring, ring.length - 1);
+      rings.add(open);
+      for (int idx = 0; idx < open.length; ++idx) {
+        SegmentKey segment = new SegmentKey(open[idx], open[(idx + 1) % open.length]);
+        List<Integer> ringIds = segmentRings.get(segment);
+        if (ringIds == null) {
+          ringIds = new ArrayList<Integer>(2);
+          segmentRings.put(segment, ringIds);
+        }
+        ringIds.add(ringId);
+        addVertexSegment(segment.p0, segment);
+        addVertexSegment(segment.p1, segment);
+      }
+      return ringId;
+    }
+
+    private void addVertexSegment(Coordinate vertex, SegmentKey segment) {
+      Set<SegmentKey> segments = vertexSegments.get(vertex);
+      if (segments == null) {
+        segments = new HashSet<SegmentKey>(4);
+        vertexSegments.put(vertex, segments);
+      }
+      segments.add(segment);
+    }
+
+    private boolean isJunction(Coordinate[] ring, int idx) {
+      if (vertexSegments.get(ring[idx]).size() > 2) {
+        return true;
+      }
+      Coordinate prev = ring[(idx + ring.length - 1) % ring.length];
+      Coordinate next = ring[(idx + 1) % ring.length];
+      List<Integer> before = segmentRings.get(new SegmentKey(prev, ring[idx]));
+      List<Integer> after = segmentRings.get(new SegmentKey(ring[idx], next));
+      return !new HashSet<Integer>(before).equals(new HashSet<Integer>(after));
+    }
+
+    /**
+     * Splits a ring into arcs at its junctions
+     * @return the references to the ring's arcs, in order
+     */
+    public List<Integer> ringArcs(int ringId) {
+      Coordinate[] ring = rings.get(ringId);
+      List<Integer> junctions = new ArrayList<Integer>();
+      for (int idx = 0; idx < ring.length; ++idx) {
+        if (isJunction(ring, idx)) {
+          junctions.add(idx);
+        }
+      }
+      if (junctions.isEmpty()) {
+        // A ring bordering the same rings throughout is a single arc, starting at its least vertex
+        int least = 0;
+        for (int idx = 1; idx < ring.length; ++idx) {
+          if (ring[idx].compareTo(ring[least]) < 0) {
+            least = idx;
+          }
+        }
+        junctions.add(least);
+      }
+      List<Integer> arcRefs = new ArrayList<Integer>(junctions.size());
+      for (int idx = 0; idx < junctions.size(); ++idx) {
+        int start = junctions.get(idx);
+        int end = junctions.get((idx + 1) % junctions.size());
+        int length = (end - start + ring.length - 1) % ring.length + 2;
+        Coordinate[] piece = new Coordinate[length];
+        for (int offset = 0; offset < length; ++offset) {
+          piece[offset] = ring[(start + offset) % ring.length];
+        }
+        arcRefs.add(arcRef(piece));
+      }
+      return arcRefs;
+    }
+
+    private int arcRef(Coordinate[] piece) {
+      Integer forward = arcIds.get(new DirectedKey(piece[0], piece[1]));
+      if (forward != null && arcs.get(forward).length == piece.length) {
+        return forward;
+      }
+      Integer backward = arcIds.get(new DirectedKey(piece[piece.length - 1], piece[piece.length - 2]));
+      if (backward != null && arcs.get(backward).length == piece.length) {
+        return ~backward;
+      }
+      int arcId = arcs.size();
+      arcs.add(piece);
+      arcIds.put(new DirectedKey(piece[0], piece[1]), arcId);
+      return arcId;
+    }
+
+    public List<Coordinate[]> arcs() {
+      return arcs;
+    }
+  }
+
+  private ArcIndexedValues(
+    CellLocation location,
+    GeometryFactory geometryFactory,
+    List<Map.Entry<String, Object>> labelEntries,
+    boolean[] isMultiPolygon,
+    int[][] featureRings,
+    List<Coordinate[]> arcs
+  ) {
+    this.location = location;
+    this.geometryFactory = geometryFactory;
+    this.labelEntries = labelEntries;
+    this.isMultiPolygon = isMultiPolygon;
+    this.featureRings = featureRings;
+
+    int numCoords = 0;
+    for (Coordinate[] arc: arcs) {
+      numCoords += arc.length;
+    }
+    coords = new double[numCoords * 2];
+    arcStarts = new int[arcs.size() + 1];
+    arcBounds = new double[arcs.size() * 4];
+    int coordIdx = 0;
+    for (int arcId = 0; arcId < arcs.size(); ++arcId) {
+      arcStarts[arcId] = coordIdx;
+      Envelope envelope = new Envelope();
+      for (Coordinate coord: arcs.get(arcId)) {
+        coords[coordIdx * 2] = coord.x;
+        coords[coordIdx * 2 + 1] = coord.y;
+        envelope.expandToInclude(coord);
+        ++coordIdx;
+      }
+      arcBounds[arcId * 4] = envelope.getMinX();
+      arcBounds[arcId * 4 + 1] = envelope.getMinY();
+      arcBounds[arcId * 4 + 2] = envelope.getMaxX();
+      arcBounds[arcId * 4 + 3] = envelope.getMaxY();
+    }
+    arcStarts[arcs.size()] = coordIdx;
+
+    List<List<Integer>> uses = new ArrayList<List<Integer>>(arcs.size());
+    for (int arcId = 0; arcId < arcs.size(); ++arcId) {
+      uses.add(new ArrayList<Integer>(2));
+    }
+    int numUses = 0;
+    for (int feature = 0; feature < featureRings.length; ++feature) {
+      int[] rings = featureRings[feature];
+      int pos = 1;
+      for (int polygon = 0; polygon < rings[0]; ++polygon) {
+        int numRings = rings[pos++];
+        for (int ring = 0; ring < numRings; ++ring) {
+          int numArcs = rings[pos++];
+          for (int arc = 0; arc < numArcs; ++arc) {
+            int arcRef = rings[pos++];
+            uses.get(arcRef < 0 ? ~arcRef : arcRef).add(feature);
+            ++numUses;
+          }
+        }
+      }
+    }
+    arcUseStarts = new int[arcs.size() + 1];
+    arcUses = new int[numUses];
+    int useIdx = 0;
+    for (int arcId = 0; arcId < arcs.size(); ++arcId) {
+      arcUseStarts[arcId] = useIdx;
+      for (int feature: uses.get(arcId)) {
+        arcUses[useIdx++] = feature;
+      }
+    }
+    arcUseStarts[arcs.size()] = useIdx;
+  }
+
+  /**
+   * Stores the features of a cell as shared arcs
+   * @param featureEntries the features, all of the same cell
+   * @return the arcs, or null if a feature is not polygonal
+   */
+  static ArcIndexedValues fromFeatures(List<FeatureEntry> featureEntries) {
+    if (featureEntries.isEmpty()) {
+      return null;
+    }
+    ArcBuilder builder = new ArcBuilder();
+    List<List<List<Integer>>> featureRingIds = new ArrayList<List<List<Integer>>>();
+    boolean[] isMultiPolygon = new boolean[featureEntries.size()];
+    List<Map.Entry<String, Object>> labelEntries = new ArrayList<Map.Entry<String, Object>>();
+    for (int feature = 0; feature < featureEntries.size(); ++feature) {
+      FeatureEntry featureEntry = featureEntries.get(feature);
+      Geometry geometry = featureEntry.geometry;
+      if (!(geometry instanceof Polygon || geometry instanceof MultiPolygon)) {
+        return null;
+      }
+      isMultiPolygon[feature] = geometry instanceof MultiPolygon;
+      labelEntries.add(featureEntry.getLabelEntry());
+      List<List<Integer>> polygons = new ArrayList<List<Integer>>();
+      for (int idx = 0; idx < geometry.getNumGeometries(); ++idx) {
+        Polygon polygon = (Polygon) geometry.getGeometryN(idx);
+        List<Integer> ringIds = new ArrayList<Integer>();
+        for (int ring = -1; ring < polygon.getNumInteriorRing(); ++ring) {
+          Coordinate[] ringCoords = CoordinateArrays.removeRepeatedPoints(
+            (ring < 0 ? polygon.getExteriorRing() : polygon.getInteriorRingN(ring)).getCoordinates()
+          );
+          if (ringCoords.length < 4) {
+            return null;
+          }
+          ringIds.add(builder.addRing(ringCoords));
+        }
+        polygons.add(ringIds);
+      }
+      featureRingIds.add(polygons);
+    }
+
+    int[][] featureRings = new int[featureEntries.size()][];
+    for (int feature = 0; feature < featureRings.length; ++feature) {
+      List<Integer> encoded = new ArrayList<Integer>();
+      List<List<Integer>> polygons = featureRingIds.get(feature);
+      encoded.add(polygons.size());
+      for (List<Integer> ringIds: polygons) {
+        encoded.add(ringIds.size());
+        for (int ringId: ringIds) {
+          List<Integer> arcRefs = builder.ringArcs(ringId);
+          encoded.add(arcRefs.size());
+          encoded.addAll(arcRefs);
+        }
+      }
+      featureRings[feature] = new int[encoded.size()];
+      for (int idx = 0; idx < featureRings[feature].length; ++idx) {
+        featureRings[feature][idx] = encoded.get(idx);
+      }
+    }
+    return new ArcIndexedValues(
+      featureEntries.get(0).location,
+      featureEntries.get(0).geometry.getFactory(),
+      labelEntries,
+      isMultiPolygon,
+      featureRings,
+      builder.arcs()
+    );
+  }
+
+  /**
+   * The number of arcs, each shared by the features bordering it
+   */
+  int numArcs() {
+    return arcStarts.length - 1;
+  }
+
+  /**
+   * The number of coordinates stored for all arcs
+   */
+  int numCoordinates() {
+    return arcStarts[arcStarts.length - 1];
+  }
+
+  @Override
+  public Object labelForCoordinate(Coordinate coordinate) {
+    double x = coordinate.x;
+    double y = coordinate.y;
+    boolean[] parity = new boolean[featureRings.length];
+    // Points on a border are covered by the first feature using it
+    int borderFeature = featureRings.length;
+    for (int arcId = 0; arcId < numArcs(); ++arcId) {
+      if (y < arcBounds[arcId * 4 + 1] || y > arcBounds[arcId * 4 + 3] || x > arcBounds[arcId * 4 + 2]) {
+        continue;
+      }
+      int crossings = CrossingKernel.crossings(coords, arcStarts[arcId], arcStarts[arcId + 1], x, y);
+      if (crossings == CrossingKernel.OnBoundary) {
+        borderFeature = Math.min(borderFeature, arcUses[arcUseStarts[arcId]]);
+        continue;
+      }
+      if (crossings % 2 == 1) {
+        for (int use = arcUseStarts[arcId]; use < arcUseStarts[arcId + 1]; ++use) {
+          parity[arcUses[use]] = !parity[arcUses[use]];
+        }
+      }
+    }
+    for (int feature = 0; feature < parity.length; ++feature) {
+      if (parity[feature] || feature == borderFeature) {
+        return labelEntries.get(feature).getValue();
+      }
+    }
+    return null;
+  }
+
+  private Coordinate[] ringCoordinates(int[] rings, int pos, int numArcs) {
+    List<Coordinate> ring = new ArrayList<Coordinate>();
+    for (int arc = 0; arc < numArcs; ++arc) {
+      int arcRef = rings[pos + arc];
+      int arcId = arcRef < 0 ? ~arcRef : arcRef;
+      int length = arcStarts[arcId + 1] - arcStarts[arcId];
+      // Each arc starts where the last ended
+      for (int offset = arc == 0 ? 0 : 1; offset < length; ++offset) {
+        int idx = arcStarts[arcId] + (arcRef < 0 ? length - 1 - offset : offset);
+        ring.add(new Coordinate(coords[idx * 2], coords[idx * 2 + 1]));
+      }
+    }
+    return ring.toArray(new Coordinate[ring.size()]);
+  }
+
+  private Geometry featureGeometry(int feature) {
+    int[] rings = featureRings[feature];
+    Polygon[] polygons = new Polygon[rings[0]];
+    int pos = 1;
+    for (int polygon = 0; polygon < polygons.length; ++polygon) {
+      int numRings = rings[pos++];
+      LinearRing shell = null;
+      LinearRing[] holes = new LinearRing[numRings - 1];
+      for (int ring = 0; ring < numRings; ++ring) {
+        int numArcs = rings[pos++];
+        LinearRing linearRing = geometryFactory.createLinearRing(ringCoordinates(rings, pos, numArcs));
+        pos += numArcs;
+        if (ring == 0) {
+          shell = linearRing;
+        } else {
+          holes[ring - 1] = linearRing;
+        }
+      }
+      polygons[polygon] = geometryFactory.createPolygon(shell, holes);
+    }
+    if (isMultiPolygon[feature]) {
+      return geometryFactory.createMultiPolygon(polygons);
+    }
+    return polygons[0];
+  }
+
+  /**
+   * The features, with their geometries rebuilt from the arcs
+   */
+  @Override
+  List<FeatureEntry> featureEntries() {
+    List<FeatureEntry> entries = featureEntries;
+    if (entries == null) {
+      // Racing builds are harmless, as each builds the same features
+      List<FeatureEntry> builtEntries = new ArrayList<FeatureEntry>(featureRings.length);
+      for (int feature = 0; feature < featureRings.length; ++feature) {
+        builtEntries.add(new FeatureEntry(location, labelEntries.get(feature), false, featureGeometry(feature)));
+      }
+      entries = Collections.unmodifiableList(builtEntries);
+      featureEntries = entries;
+    }
+    return entries;
+  }
+
+  @Override
+  Map<Object, Envelope> labelEnvelopes() {
+    Map<Object, Envelope> labelEnvelopes = new LinkedHashMap<Object, Envelope>();
+    for (int feature = 0; feature < featureRings.length; ++feature) {
+      Object label = labelEntries.get(feature).getValue();
+      Envelope envelope = labelEnvelopes.get(label);
+      if (envelope == null) {
+        envelope = new Envelope();
+        labelEnvelopes.put(label, envelope);
+      }
+      int[] rings = featureRings[feature];
+      int pos = 1;
+      for (int polygon = 0; polygon < rings[0]; ++polygon) {
+        int numRings = rings[pos++];
+        for (int ring = 0; ring < numRings; ++ring) {
+          int numArcs = rings[pos++];
+          for (int arc = 0; arc < numArcs; ++arc) {
+            int arcRef = rings[pos++];
+            int arcId = arcRef < 0 ? ~arcRef : arcRef;
+            envelope.expandToInclude(arcBounds[arcId * 4], arcBounds[arcId * 4 + 1]);
+            envelope.expandToInclude(arcBounds[arcId * 4 + 2], arcBounds[arcId * 4 + 3]);
+          }
+        }
+      }
+    }
+    return labelEnvelopes;
+  }
+}
@@ -0,0 +1,447 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking lookups of {@link IndexedValues}, for callers such as event loops that
+ * must not run lookups themselves. Lookups run on the given executor, in batches of
+ * coordinates that are sorted by cell when the index's reference is known, so that
+ * lookups in the same cell run together.
+ * Single lookups return futures, and are batched with any others waiting.
+ * {@link #processor} instead labels a stream of coordinates, asking its source for no
+ * more coordinates than its subscriber has asked labels for.
+ */
+public class AsyncIndexedValues {
+  static final int DefaultBatchSize = 256;
+
+  private final IndexedValues indexedValues;
+  private final CellLocationReference reference;
+  private final Executor executor;
+  private final int batchSize;
+  private final Queue<PendingLookup> pendingLookups = new ConcurrentLinkedQueue<PendingLookup>();
+  private final AtomicBoolean draining = new AtomicBoolean();
+
+  /**
+   * A coordinate together with its label
+   */
+  public static class LabeledCoordinate {
+    public final Coordinate coordinate;
+    /**
+     * The label, or null if not found
+     */
+    public final Object label;
+
+    public LabeledCoordinate(Coordinate coordinate, Object label) {
+      this.coordinate = coordinate;
+      this.label = label;
+    }
+
+    @Override
+    public String toString() {
+      return "LC " + coordinate + ": " + label;
+    }
+  }
+
+  private static class PendingLookup {
+    public final Coordinate coordinate;
+    public final CompletableFuture<Object> label;
+
+    public PendingLookup(Coordinate coordinate, CompletableFuture<Object> label) {
+      this.coordinate = coordinate;
+      this.label = label;
+    }
+  }
+
+  /**
+   * Sorts batches by the cells of the values, when they are indexed by cell
+   * @param indexedValues the values to look up
+   * @param executor the executor to look up on
+   */
+  public AsyncIndexedValues(IndexedValues indexedValues, Executor executor) {
+    this(indexedValues, null, executor, DefaultBatchSize);
+  }
+
+  /**
+   * @param indexedValues the values to look up
+   * @param reference the reference to sort batches by cell in, or null for the reference
+   *                  the values are indexed by, if any
+   * @param executor the executor to look up on
+   * @param batchSize the most coordinates looked up in one task
+   */
+  public AsyncIndexedValues(
+    IndexedValues indexedValues,
+    CellLocationReference reference,
+    Executor executor,
+    int batchSize
+  ) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be positive, but is " + batchSize);
+    }
+    this.indexedValues = indexedValues;
+    this.reference = reference != null ? reference : BaseIndexedValues.cellReference(indexedValues);
+    this.executor = executor;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Looks up the labels of coordinates, in cell order when the reference is known
+   * @return the labels, in the order of the coordinates
+   */
+  Object[] labels(List<Coordinate> coordinates) {
+    Object[] labels = new Object[coordinates.size()];
+    List<Integer> order = new ArrayList<Integer>(coordinates.size());
+    for (int idx = 0; idx < coordinates.size(); ++idx) {
+      order.add(idx);
+    }
+    if (reference != null && coordinates.size() > 1) {
+      final CellLocation[] locations = new CellLocation[coordinates.size()];
+      for (int idx = 0; idx < locations.length; ++idx) {
+        locations[idx] = CellLocation.fromCoordinate(reference, coordinates.get(idx));
+      }
+      Collections.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return locations[a].compareTo(locations[b]);
+        }
+      });
+    }
+    for (int idx: order) {
+      labels[idx] = indexedValues.labelForCoordinate(coordinates.get(idx));
+    }
+    return labels;
+  }
+
+  /**
+   * Looks up the label of a coordinate, batched with other waiting lookups
+   * @param coordinate the coordinate
+   * @return the label, or null if not found
+   */
+  public CompletableFuture<Object> labelForCoordinate(Coordinate coordinate) {
+    CompletableFuture<Object> label = new CompletableFuture<Object>();
+    pendingLookups.add(new PendingLookup(coordinate, label));
+    scheduleLookups();
+    return label;
+  }
+
+  /**
+   * Looks up the labels of coordinates as a single batch
+   * @param coordinates the coordinates
+   * @return the labels, in the order of the coordinates
+   */
+  public CompletableFuture<List<Object>> labelsForCoordinates(final List<Coordinate> coordinates) {
+    return CompletableFuture.supplyAsync(new Supplier<List<Object>>() {
+      @Override
+      public List<Object> get() {
+        return Arrays.asList(labels(coordinates));
+      }
+    }, executor);
+  }
+
+  private void scheduleLookups() {
+    if (!draining.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          drainLookups();
+        }
+      });
+    } catch (RejectedExecutionException ree) {
+      draining.set(false);
+      for (PendingLookup lookup = pendingLookups.poll(); lookup != null; lookup = pendingLookups.poll()) {
+        lookup.label.completeExceptionally(ree);
+      }
+    }
+  }
+
+  private void drainLookups() {
+    List<PendingLookup> batch = new ArrayList<PendingLookup>(batchSize);
+    do {
+      batch.clear();
+      for (PendingLookup lookup = pendingLookups.poll(); lookup != null; lookup = pendingLookups.poll()) {
+        batch.add(lookup);
+        if (batch.size() >= batchSize) {
+          break;
+        }
+      }
+      List<Coordinate> coordinates = new ArrayList<Coordinate>(batch.size());
+      for (PendingLookup lookup: batch) {
+        coordinates.add(lookup.coordinate);
+      }
+      Object[] labels;
+      try {
+        labels = labels(coordinates);
+      } catch (RuntimeException re) {
+        // Look up one at a time, so only the failed lookups fail
+        for (PendingLookup lookup: batch) {
+          try {
+            lookup.label.complete(indexedValues.labelForCoordinate(lookup.coordinate));
+          } catch (RuntimeException lookupException) {
+            lookup.label.completeExceptionally(lookupException);
+          }
+        }
+        continue;
+      }
+      for (int idx = 0; idx < labels.length; ++idx) {
+        batch.get(idx).label.complete(labels[idx]);
+      }
+    } while (!batch.isEmpty());
+    draining.set(false);
+    // Lookups added after the last poll, but before draining was cleared, would otherwise wait
+    if (!pendingLookups.isEmpty()) {
+      scheduleLookups();
+    }
+  }
+
+  /**
+   * Creates a processor that labels a stream of coordinates in order. It requests
+   * coordinates from its source only as its subscriber requests labels, buffering at most
+   * two batches, and labels them on the executor. It accepts a single subscriber.
+   * @return the processor
+   */
+  public LabelFlow.Processor<Coordinate, LabeledCoordinate> processor() {
+    return new LabelProcessor();
+  }
+
+  /**
+   * All signals are handled by a drain loop on the executor, which runs on one thread
+   * at a time, so items are emitted in order and signals are never concurrent.
+   */
+  private class LabelProcessor implements LabelFlow.Processor<Coordinate, LabeledCoordinate> {
+    private final AtomicReference<LabelFlow.Subscription> upstream = new AtomicReference<LabelFlow.Subscription>();
+    private final AtomicReference<LabelFlow.Subscriber<? super LabeledCoordinate>> downstream =
+      new AtomicReference<LabelFlow.Subscriber<? super LabeledCoordinate>>();
+    private final Queue<Coordinate> inbox = new ConcurrentLinkedQueue<Coordinate>();
+    private final AtomicInteger inboxSize = new AtomicInteger();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger signals = new AtomicInteger();
+    private volatile boolean upstreamDone;
+    private volatile Throwable upstreamError;
+    private volatile Throwable invalidRequest;
+    private volatile boolean cancelled;
+    private volatile RejectedExecutionException rejected;
+    // Only read and written by the drain loop
+    private boolean terminated;
+    private boolean upstreamCancelled;
+
+    @Override
+    public void onSubscribe(LabelFlow.Subscription subscription) {
+      if (!upstream.compareAndSet(null, subscription)) {
+        subscription.cancel();
+        return;
+      }
+      signal();
+    }
+
+    @Override
+    public void onNext(Coordinate coordinate) {
+      if (coordinate == null) {
+        throw new NullPointerException("Coordinates must not be null");
+      }
+      inbox.add(coordinate);
+      inboxSize.incrementAndGet();
+      requested.decrementAndGet();
+      signal();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      upstreamError = throwable;
+      upstreamDone = true;
+      signal();
+    }
+
+    @Override
+    public void onComplete() {
+      upstreamDone = true;
+      signal();
+    }
+
+    @Override
+    public void subscribe(LabelFlow.Subscriber<? super LabeledCoordinate> subscriber) {
+      if (!downstream.compareAndSet(null, subscriber)) {
+        subscriber.onSubscribe(new LabelFlow.Subscription() {
+          @Override
+          public void request(long n) {
+
+          }
+
+          @Override
+          public void cancel() {
+
+          }
+        });
+        subscriber.onError(new IllegalStateException("A label processor has only one subscriber"));
+        return;
+      }
+      subscriber.onSubscribe(new LabelFlow.Subscription() {
+        @Override
+        public void request(long n) {
+          if (n <= 0) {
+            invalidRequest = new IllegalArgumentException("Requested " + n + " labels, which is not positive");
+          } else {
+            long current;
+            long next;
+            do {
+              current = demand.get();
+              next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!demand.compareAndSet(current, next));
+          }
+          signal();
+        }
+
+        @Override
+        public void cancel() {
+          cancelled = true;
+          signal();
+        }
+      });
+      signal();
+    }
+
+    private void signal() {
+      if (signals.getAndIncrement() != 0) {
+        return;
+      }
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            drain();
+          }
+        });
+      } catch (RejectedExecutionException ree) {
+        // Fail the stream on this thread, still holding the drain loop
+        rejected = ree;
+        drain();
+      }
+    }
+
+    private void drain() {
+      int missed = 1;
+      do {
+        drainOnce();
+        missed = signals.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    private void terminate(LabelFlow.Subscriber<? super LabeledCoordinate> subscriber, Throwable error) {
+      terminated = true;
+      LabelFlow.Subscription subscription = upstream.get();
+      if (subscription != null && !upstreamDone) {
+        subscription.cancel();
+      }
+      inbox.clear();
+      if (subscriber != null) {
+        if (error != null) {
+          subscriber.onError(error);
+        } else {
+          subscriber.onComplete();
+        }
+      }
+    }
+
+    /**
+     * Fails the stream once the executor rejects it. The upstream may subscribe, and the
+     * subscriber may arrive, after the rejection, so each is handled as it appears.
+     */
+    private void drainRejected(
+      LabelFlow.Subscriber<? super LabeledCoordinate> subscriber,
+      LabelFlow.Subscription subscription
+    ) {
+      if (subscription != null && !upstreamCancelled) {
+        upstreamCancelled = true;
+        subscription.cancel();
+      }
+      if (subscriber != null && !terminated) {
+        terminated = true;
+        inbox.clear();
+        subscriber.onError(rejected);
+      }
+    }
+
+    private void drainOnce() {
+      LabelFlow.Subscriber<? super LabeledCoordinate> subscriber = downstream.get();
+      LabelFlow.Subscription subscription = upstream.get();
+      if (rejected != null && !cancelled) {
+        drainRejected(subscriber, subscription);
+        return;
+      }
+      if (terminated) {
+        return;
+      }
+      if (cancelled) {
+        terminated = true;
+        if (subscription != null) {
+          subscription.cancel();
+        }
+        inbox.clear();
+        return;
+      }
+      if (invalidRequest != null) {
+        terminate(subscriber, invalidRequest);
+        return;
+      }
+      if (subscriber == null) {
+        return;
+      }
+
+      while (demand.get() > 0 && inboxSize.get() > 0 && !cancelled) {
+        int size = (int) Math.min(Math.min(demand.get(), batchSize), inboxSize.get());
+        List<Coordinate> batch = new ArrayList<Coordinate>(size);
+        for (int idx = 0; idx < size; ++idx) {
+          batch.add(inbox.poll());
+        }
+        inboxSize.addAndGet(-size);
+        Object[] labels;
+        try {
+          labels = labels(batch);
+        } catch (RuntimeException re) {
+          terminate(subscriber, re);
+          return;
+        }
+        for (int idx = 0; idx < labels.length; ++idx) {
+          demand.decrementAndGet();
+          subscriber.onNext(new LabeledCoordinate(batch.get(idx), labels[idx]));
+        }
+      }
+      if (cancelled) {
+        return;
+      }
+
+      if (upstreamDone && inboxSize.get() == 0) {
+        terminate(subscriber, upstreamError);
+        return;
+      }
+      // Ask for as many coordinates as labels are wanted, less those already buffered or on their way
+      long wanted = Math.min(demand.get(), 2L * batchSize) - inboxSize.get() - requested.get();
+      if (subscription != null && !upstreamDone && wanted > 0) {
+        requested.addAndGet(wanted);
+        subscription.request(wanted);
+      }
+    }
+  }
+}
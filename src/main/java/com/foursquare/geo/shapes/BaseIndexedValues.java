@@ -2,6 +2,7 @@
 
 package com.foursquare.geo.shapes;
 
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
 import com.vividsolutions.jts.geom.Coordinate;
 
 import java.util.List;
@@ -28,14 +29,112 @@ public abstract class BaseIndexedValues implements IndexedValues {
       return labelFilter.filterLabelForCoordinate(coordinate, next);
     }
 
+    @Override
+    public LabelDistance labelDistanceForCoordinate(Coordinate coordinate) {
+      LabelDistance labelDistance = next.labelDistanceForCoordinate(coordinate);
+      // Filter the already resolved label, rather than looking it up again
+      Object label = labelFilter.filterLabelForCoordinate(
+        coordinate,
+        new ResolvedIndexedValues(labelDistance.label, next)
+      );
+      return new LabelDistance(label, labelDistance.distance, labelDistance.exact);
+    }
+
     @Override
     public List<FeatureEntry> colocatedFeatures(Coordinate coordinate) {
       return next.colocatedFeatures(coordinate);
     }
+
+    @Override
+    public LabelCoverage labelCoverage(Object label) {
+      return next.labelCoverage(label);
+    }
+
+    @Override
+    IndexedValues profiled(LookupProfiler profiler) {
+      return new FilteredIndexedValues(labelFilter, profiled(next, profiler));
+    }
+
+    @Override
+    IndexedValues refining(AdaptiveRefiner refiner) {
+      return new FilteredIndexedValues(labelFilter, refining(next, refiner));
+    }
+
+    @Override
+    CellLocationReference cellReference() {
+      return cellReference(next);
+    }
+  }
+
+  /**
+   * Presents a label that has already been looked up to a filter
+   */
+  private static class ResolvedIndexedValues extends BaseIndexedValues {
+    private final Object label;
+    private final IndexedValues indexedValues;
+
+    public ResolvedIndexedValues(Object label, IndexedValues indexedValues) {
+      this.label = label;
+      this.indexedValues = indexedValues;
+    }
+
+    @Override
+    public Object labelForCoordinate(Coordinate coordinate) {
+      return label;
+    }
+
+    @Override
+    public List<FeatureEntry> colocatedFeatures(Coordinate coordinate) {
+      return indexedValues.colocatedFeatures(coordinate);
+    }
   }
 
   @Override
   public IndexedValues with(LabelFilter filter) {
     return new FilteredIndexedValues(filter, this);
   }
+
+  /**
+   * A view of these values whose lookups are sampled by a profiler
+   * @throws IllegalArgumentException if the values are not indexed by cell
+   */
+  IndexedValues profiled(LookupProfiler profiler) {
+    throw new IllegalArgumentException("Only values indexed by cell can be profiled");
+  }
+
+  static IndexedValues profiled(IndexedValues indexedValues, LookupProfiler profiler) {
+    if (!(indexedValues instanceof BaseIndexedValues)) {
+      throw new IllegalArgumentException("Only values indexed by cell can be profiled");
+    }
+    return ((BaseIndexedValues) indexedValues).profiled(profiler);
+  }
+
+  /**
+   * A view of these values whose mixed cells are refined as lookups run
+   * @throws IllegalArgumentException if the values are not indexed by cell
+   */
+  IndexedValues refining(AdaptiveRefiner refiner) {
+    throw new IllegalArgumentException("Only values indexed by cell can be refined");
+  }
+
+  /**
+   * The reference of the cells these values are indexed by, or null if not indexed by cell
+   */
+  CellLocationReference cellReference() {
+    return null;
+  }
+
+  /**
+   * The reference of the cells values are indexed by, or null if not indexed by cell
+   */
+  static CellLocationReference cellReference(IndexedValues indexedValues) {
+    return indexedValues instanceof BaseIndexedValues ? ((BaseIndexedValues) indexedValues).cellReference() : null;
+  }
+
+  static IndexedValues refining(IndexedValues indexedValues, AdaptiveRefiner refiner) {
+    if (!(indexedValues instanceof BaseIndexedValues)) {
+      throw new IllegalArgumentException("Only values indexed by cell can be refined");
+    }
+    return ((BaseIndexedValues) indexedValues).refining(refiner);
+  }
 }
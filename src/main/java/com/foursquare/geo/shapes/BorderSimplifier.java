@@ -0,0 +1,231 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.operation.linemerge.LineMerger;
+import com.vividsolutions.jts.operation.polygonize.Polygonizer;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Simplifies the borders between labels within a mixed cell, so that labels sharing a
+ * border keep sharing it once simplified. The borders are noded into edges between the
+ * points where three or more labels meet, or where a border meets the cell's edge, and
+ * the edges are simplified together without crossing one another. The simplified edges
+ * are then polygonized, and each face takes the label of the original geometry
+ * containing it. Points on the cell's edge never move, so cells still tile.
+ * The tolerance is capped at a fraction of the cell's size, so small cells are not
+ * simplified beyond their own scale.
+ * Cells whose labels are not all polygonal, or whose labels overlap, keep their borders,
+ * as their faces cannot be given a single label.
+ */
+class BorderSimplifier {
+  static final Logger logger = LoggerFactory.getLogger(BorderSimplifier.class);
+  /* Approximate meters per degree of latitude */
+  static final double MetersPerDegree = 111320;
+  /* Largest tolerance, as a fraction of the shorter side of a cell */
+  static final double MaxCellFraction = 0.1;
+  /* The label of a face covered by more than one label */
+  private static final Object OverlappingLabels = new Object();
+  private final double tolerance;
+
+  /**
+   * @param tolerance the largest distance a border may move, in units of the coordinate reference system
+   */
+  public BorderSimplifier(double tolerance) {
+    if (!(tolerance > 0)) {
+      throw new IllegalArgumentException("Border tolerance must be positive, not " + tolerance);
+    }
+    this.tolerance = tolerance;
+  }
+
+  /**
+   * Creates a simplifier for coordinates in degrees, with a tolerance in meters.
+   * Degrees of longitude are shorter than degrees of latitude away from the equator,
+   * so borders move less than this in the east-west direction.
+   */
+  public static BorderSimplifier fromMeters(double meters) {
+    return new BorderSimplifier(meters / MetersPerDegree);
+  }
+
+  /**
+   * The tolerance used for a cell
+   */
+  public double tolerance(CellLocation location) {
+    Envelope envelope = location.envelope();
+    return Math.min(tolerance, MaxCellFraction * Math.min(envelope.getWidth(), envelope.getHeight()));
+  }
+
+  /**
+   * Simplifies the borders between the labeled geometries of a cell, which should not overlap
+   * @param geometryFactory the factory for simplified geometries
+   * @param location the cell holding the geometries
+   * @param labeledGeoms the geometries, with one geometry for each label
+   * @return the simplified geometries by label, or the original geometries if their
+   * borders cannot be simplified, such as when a geometry is not polygonal
+   */
+  public List<ImmutablePair<Object, Geometry>> simplify(
+    GeometryFactory geometryFactory,
+    CellLocation location,
+    List<ImmutablePair<Object, Geometry>> labeledGeoms
+  ) {
+    if (labeledGeoms.size() < 2) {
+      return labeledGeoms;
+    }
+    for (ImmutablePair<Object, Geometry> labeledGeom: labeledGeoms) {
+      Geometry geometry = labeledGeom.getRight();
+      if (!(geometry instanceof Polygon || geometry instanceof MultiPolygon)) {
+        logger.debug("Keeping borders of cell {}: {} is a {}", location, labeledGeom.getLeft(), geometry.getGeometryType());
+        return labeledGeoms;
+      }
+    }
+    try {
+      List<ImmutablePair<Object, Geometry>> simplified = simplifyBorders(geometryFactory, location, labeledGeoms);
+      if (simplified != null) {
+        return simplified;
+      }
+    } catch (TopologyException te) {
+      SimplificationReport.topologyFallback();
+      logger.debug("Keeping borders of cell {}: {}", location, te.getMessage());
+    } catch (IllegalArgumentException iae) {
+      SimplificationReport.topologyFallback();
+      logger.debug("Keeping borders of cell {}: {}", location, iae.getMessage());
+    }
+    return labeledGeoms;
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<ImmutablePair<Object, Geometry>> simplifyBorders(
+    GeometryFactory geometryFactory,
+    CellLocation location,
+    List<ImmutablePair<Object, Geometry>> labeledGeoms
+  ) {
+    Envelope envelope = location.envelope();
+    int numPoints = 0;
+    List<Geometry> boundaries = new ArrayList<Geometry>();
+    for (ImmutablePair<Object, Geometry> labeledGeom: labeledGeoms) {
+      numPoints += labeledGeom.getRight().getNumPoints();
+      boundaries.add(labeledGeom.getRight().getBoundary());
+    }
+    // The whole edge of the cell is fixed, including where no label covers it, so that
+    // borders cannot be simplified onto the cell's edge across uncovered water
+    boundaries.add(geometryFactory.toGeometry(envelope).getBoundary());
+    // Unioning the boundaries nodes them, and removes the duplicate of each shared border
+    Geometry noded = geometryFactory.buildGeometry(boundaries).union();
+    LineMerger merger = new LineMerger();
+    merger.add(noded);
+
+    List<LineString> edges = new ArrayList<LineString>();
+    for (LineString merged: (Collection<LineString>) merger.getMergedLineStrings()) {
+      splitEdge(geometryFactory, merged, envelope, edges);
+    }
+
+    Geometry simplifiedEdges = TopologyPreservingSimplifier.simplify(
+      geometryFactory.buildGeometry(edges),
+      tolerance(location)
+    );
+    Polygonizer polygonizer = new Polygonizer();
+    polygonizer.add(simplifiedEdges);
+
+    List<ImmutablePair<Object, Geometry>> labeledFaces = new ArrayList<ImmutablePair<Object, Geometry>>();
+    int simplifiedPoints = 0;
+    for (Polygon face: (Collection<Polygon>) polygonizer.getPolygons()) {
+      Object label = faceLabel(face, labeledGeoms);
+      if (label == OverlappingLabels) {
+        logger.debug("Keeping borders of cell {}: labels overlap", location);
+        return null;
+      }
+      if (label != null) {
+        labeledFaces.add(ImmutablePair.of(label, (Geometry) face));
+        simplifiedPoints += face.getNumPoints();
+      }
+    }
+    if (labeledFaces.isEmpty() || simplifiedPoints >= numPoints) {
+      return null;
+    }
+    List<ImmutablePair<Object, Geometry>> simplified = SimplifierUtils.unionByLabel(geometryFactory, labeledFaces);
+    logger.debug("Simplified borders of cell {} from {} to {} points", location, numPoints, simplifiedPoints);
+    return simplified;
+  }
+
+  private static boolean onEdge(Coordinate coord, Envelope envelope) {
+    return coord.x == envelope.getMinX() || coord.x == envelope.getMaxX() ||
+      coord.y == envelope.getMinY() || coord.y == envelope.getMaxY();
+  }
+
+  /**
+   * Splits an edge at its points on the cell's edge, so they are kept when simplified.
+   * Closed edges are split into thirds, so they cannot collapse when simplified.
+   */
+  private static void splitEdge(GeometryFactory geometryFactory, LineString edge, Envelope envelope, List<LineString> edges) {
+    Coordinate[] coords = edge.getCoordinates();
+    List<Integer> splits = new ArrayList<Integer>();
+    splits.add(0);
+    for (int idx = 1; idx < coords.length - 1; ++idx) {
+      if (onEdge(coords[idx], envelope)) {
+        splits.add(idx);
+      }
+    }
+    if (splits.size() == 1 && edge.isClosed() && coords.length > 4) {
+      splits.add(coords.length / 3);
+      splits.add(2 * coords.length / 3);
+    }
+    splits.add(coords.length - 1);
+    for (int idx = 1; idx < splits.size(); ++idx) {
+      edges.add(geometryFactory.createLineString(
+        Arrays.copyOfRange(coords, splits.get(idx - 1), splits.get(idx) + 1)
+      ));
+    }
+  }
+
+  /**
+   * The label of the original geometry containing a face, or else of the geometry
+   * overlapping it most, or null if the face was not covered by any label.
+   * A face inside the geometries of two labels is {@link #OverlappingLabels}, as
+   * giving it either label would move the other's border.
+   */
+  private static Object faceLabel(Polygon face, List<ImmutablePair<Object, Geometry>> labeledGeoms) {
+    Geometry interiorPoint = face.getInteriorPoint();
+    Object coveringLabel = null;
+    for (ImmutablePair<Object, Geometry> labeledGeom: labeledGeoms) {
+      if (labeledGeom.getRight().covers(interiorPoint)) {
+        if (coveringLabel != null) {
+          return OverlappingLabels;
+        }
+        coveringLabel = labeledGeom.getLeft();
+      }
+    }
+    if (coveringLabel != null) {
+      return coveringLabel;
+    }
+    Object label = null;
+    double maxArea = face.getArea() / 2;
+    for (ImmutablePair<Object, Geometry> labeledGeom: labeledGeoms) {
+      Geometry geometry = labeledGeom.getRight();
+      if (geometry.getEnvelopeInternal().intersects(face.getEnvelopeInternal())) {
+        double area = geometry.intersection(face).getArea();
+        if (area > maxArea) {
+          label = labeledGeom.getLeft();
+          maxArea = area;
+        }
+      }
+    }
+    return label;
+  }
+}
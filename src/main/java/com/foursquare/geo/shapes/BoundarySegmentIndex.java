@@ -0,0 +1,107 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineSegment;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import java.util.List;
+
+/**
+ * A spatial index of the label boundary segments within a single cell.
+ * Segments that run along the cell's edges are artifacts of splitting
+ * features into cells, and are not indexed.
+ */
+class BoundarySegmentIndex {
+  /* Relative tolerance for deciding that a vertex lies on a cell edge */
+  static final double EdgeTolerance = 0.000000001;
+  /* The first search radius, as a fraction of the maximum distance of interest */
+  static final double InitialRadiusFraction = 1.0 / 16;
+
+  private final STRtree segments;
+  private final int size;
+
+  public BoundarySegmentIndex(List<FeatureEntry> featureEntries, Envelope cellEnvelope) {
+    this.segments = new STRtree();
+    int count = 0;
+    for (FeatureEntry featureEntry: featureEntries) {
+      Geometry boundary = featureEntry.geometry.getBoundary();
+      for (int i = 0; i < boundary.getNumGeometries(); ++i) {
+        Coordinate[] coords = boundary.getGeometryN(i).getCoordinates();
+        for (int j = 1; j < coords.length; ++j) {
+          if (!isCellEdge(cellEnvelope, coords[j - 1], coords[j])) {
+            LineSegment segment = new LineSegment(coords[j - 1], coords[j]);
+            segments.insert(new Envelope(segment.p0, segment.p1), segment);
+            ++count;
+          }
+        }
+      }
+    }
+    this.size = count;
+    // Build eagerly, so the index is immutable once published
+    if (count > 0) {
+      segments.build();
+    }
+  }
+
+  private static boolean onEdge(double value, double edge) {
+    return Math.abs(value - edge) <= EdgeTolerance * Math.max(1.0, Math.abs(edge));
+  }
+
+  private static boolean isCellEdge(Envelope cellEnvelope, Coordinate p0, Coordinate p1) {
+    return (onEdge(p0.x, cellEnvelope.getMinX()) && onEdge(p1.x, cellEnvelope.getMinX())) ||
+      (onEdge(p0.x, cellEnvelope.getMaxX()) && onEdge(p1.x, cellEnvelope.getMaxX())) ||
+      (onEdge(p0.y, cellEnvelope.getMinY()) && onEdge(p1.y, cellEnvelope.getMinY())) ||
+      (onEdge(p0.y, cellEnvelope.getMaxY()) && onEdge(p1.y, cellEnvelope.getMaxY()));
+  }
+
+  /**
+   * The distance from the coordinate to the inside edges of the envelope
+   * @param envelope the cell envelope
+   * @param coordinate a coordinate within the envelope
+   * @return the distance, or 0 if the coordinate is outside
+   */
+  public static double distanceToEdge(Envelope envelope, Coordinate coordinate) {
+    double distance = Math.min(
+      Math.min(coordinate.x - envelope.getMinX(), envelope.getMaxX() - coordinate.x),
+      Math.min(coordinate.y - envelope.getMinY(), envelope.getMaxY() - coordinate.y)
+    );
+    return Math.max(0, distance);
+  }
+
+  /**
+   * Finds the distance to the nearest boundary segment, searching in
+   * growing envelopes around the coordinate, up to maxDistance.
+   * @param coordinate the query point
+   * @param maxDistance the largest distance of interest
+   * @return the distance to the nearest segment, or a value greater than
+   * maxDistance if there is no segment that close.
+   */
+  @SuppressWarnings("unchecked")
+  public double distance(Coordinate coordinate, double maxDistance) {
+    double best = Double.POSITIVE_INFINITY;
+    if (size == 0) {
+      return best;
+    }
+    double radius = Math.max(maxDistance * InitialRadiusFraction, Double.MIN_NORMAL);
+    while (true) {
+      Envelope searchEnvelope = new Envelope(
+        coordinate.x - radius,
+        coordinate.x + radius,
+        coordinate.y - radius,
+        coordinate.y + radius
+      );
+      for (LineSegment segment: (List<LineSegment>) segments.query(searchEnvelope)) {
+        best = Math.min(best, segment.distance(coordinate));
+      }
+      // Any segment closer than radius intersects the search envelope
+      if (best <= radius || radius >= maxDistance) {
+        return best;
+      }
+      radius = Math.min(radius * 4, maxDistance);
+    }
+  }
+}
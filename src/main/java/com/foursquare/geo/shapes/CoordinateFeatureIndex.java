@@ -0,0 +1,295 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the vertices of labeled features to the features and labels they belong to,
+ * in primitive arrays rather than boxed coordinates and lists. Vertices are kept in an
+ * open-addressing table keyed on their x and y. Each vertex heads two linked lists of
+ * int entries: the ids of its features, and the distinct ids of their labels.
+ * Once built, the index may be read concurrently.
+ */
+class CoordinateFeatureIndex {
+  static final int InitialCapacity = 1024;
+  static final int NoEntry = -1;
+
+  private final List<FeatureEntry> features = new ArrayList<FeatureEntry>();
+  private final List<Geometry> geometries = new ArrayList<Geometry>();
+  private final List<Object> labels = new ArrayList<Object>();
+  private final Map<Object, Integer> labelIds = new HashMap<Object, Integer>();
+
+  // The vertex table, with mask + 1 slots of which size are used
+  private double[] xs;
+  private double[] ys;
+  private int[] firstFeatures;
+  private int[] firstLabels;
+  private int mask;
+  private int size;
+
+  // Entries of the feature and label lists
+  private int[] featureIds;
+  private int[] nextFeatures;
+  private int numFeatureEntries;
+  private int[] entryLabelIds;
+  private int[] nextLabels;
+  private int numLabelEntries;
+
+  public CoordinateFeatureIndex() {
+    allocate(InitialCapacity);
+    featureIds = new int[InitialCapacity];
+    nextFeatures = new int[InitialCapacity];
+    entryLabelIds = new int[InitialCapacity];
+    nextLabels = new int[InitialCapacity];
+  }
+
+  private void allocate(int capacity) {
+    xs = new double[capacity];
+    ys = new double[capacity];
+    firstFeatures = new int[capacity];
+    firstLabels = new int[capacity];
+    Arrays.fill(firstFeatures, NoEntry);
+    mask = capacity - 1;
+  }
+
+  private static int hash(double x, double y) {
+    // Adding 0.0 maps -0.0 to 0.0, which compare equal
+    long bits = Double.doubleToLongBits(x + 0.0) * 31 + Double.doubleToLongBits(y + 0.0);
+    bits ^= bits >>> 33;
+    bits *= 0xff51afd7ed558ccdL;
+    bits ^= bits >>> 33;
+    return (int) bits;
+  }
+
+  /**
+   * The slot of a vertex, or of the empty slot where it would be inserted
+   */
+  private int probe(double x, double y) {
+    int slot = hash(x, y) & mask;
+    while (firstFeatures[slot] != NoEntry && (xs[slot] != x || ys[slot] != y)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void grow() {
+    double[] oldXs = xs;
+    double[] oldYs = ys;
+    int[] oldFirstFeatures = firstFeatures;
+    int[] oldFirstLabels = firstLabels;
+    allocate(oldXs.length * 2);
+    for (int idx = 0; idx < oldXs.length; ++idx) {
+      if (oldFirstFeatures[idx] != NoEntry) {
+        int slot = probe(oldXs[idx], oldYs[idx]);
+        xs[slot] = oldXs[idx];
+        ys[slot] = oldYs[idx];
+        firstFeatures[slot] = oldFirstFeatures[idx];
+        firstLabels[slot] = oldFirstLabels[idx];
+      }
+    }
+  }
+
+  private int internLabel(Object label) {
+    Integer labelId = labelIds.get(label);
+    if (labelId == null) {
+      labelId = labels.size();
+      labels.add(label);
+      labelIds.put(label, labelId);
+    }
+    return labelId;
+  }
+
+  /**
+   * Adds the vertices of a labeled feature
+   * @param feature the feature
+   */
+  public void add(FeatureEntry feature) {
+    add(feature, feature.geometry);
+  }
+
+  /**
+   * Adds vertices of a labeled feature, such as those of its clipped geometry
+   * @param feature the feature
+   * @param geometry the geometry whose vertices belong to the feature
+   */
+  public void add(FeatureEntry feature, Geometry geometry) {
+    int featureId = features.size();
+    features.add(feature);
+    geometries.add(geometry);
+    int labelId = internLabel(feature.getLabel());
+    for (Coordinate coord: geometry.getCoordinates()) {
+      if ((size + 1) * 2 > xs.length) {
+        grow();
+      }
+      int slot = probe(coord.x, coord.y);
+      if (firstFeatures[slot] == NoEntry) {
+        xs[slot] = coord.x;
+        ys[slot] = coord.y;
+        firstLabels[slot] = NoEntry;
+        ++size;
+      } else if (featureIds[firstFeatures[slot]] == featureId) {
+        // Rings repeat their first vertex, and features are added one at a time
+        continue;
+      }
+      firstFeatures[slot] = addFeatureEntry(featureId, firstFeatures[slot]);
+      if (!hasLabel(slot, labelId)) {
+        firstLabels[slot] = addLabelEntry(labelId, firstLabels[slot]);
+      }
+    }
+  }
+
+  private int addFeatureEntry(int featureId, int next) {
+    if (numFeatureEntries == featureIds.length) {
+      featureIds = Arrays.copyOf(featureIds, numFeatureEntries * 2);
+      nextFeatures = Arrays.copyOf(nextFeatures, numFeatureEntries * 2);
+    }
+    featureIds[numFeatureEntries] = featureId;
+    nextFeatures[numFeatureEntries] = next;
+    return numFeatureEntries++;
+  }
+
+  private int addLabelEntry(int labelId, int next) {
+    if (numLabelEntries == entryLabelIds.length) {
+      entryLabelIds = Arrays.copyOf(entryLabelIds, numLabelEntries * 2);
+      nextLabels = Arrays.copyOf(nextLabels, numLabelEntries * 2);
+    }
+    entryLabelIds[numLabelEntries] = labelId;
+    nextLabels[numLabelEntries] = next;
+    return numLabelEntries++;
+  }
+
+  /**
+   * The number of distinct vertices
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Finds a vertex
+   * @param coord the vertex
+   * @return its slot, or {@link #NoEntry} if no feature has the vertex
+   */
+  public int find(Coordinate coord) {
+    int slot = probe(coord.x, coord.y);
+    return firstFeatures[slot] == NoEntry ? NoEntry : slot;
+  }
+
+  /**
+   * The first feature entry of a vertex
+   * @param slot the vertex slot, or {@link #NoEntry}
+   * @return the entry, or {@link #NoEntry}
+   */
+  public int firstFeature(int slot) {
+    return slot == NoEntry ? NoEntry : firstFeatures[slot];
+  }
+
+  public int nextFeature(int entry) {
+    return nextFeatures[entry];
+  }
+
+  public int featureId(int entry) {
+    return featureIds[entry];
+  }
+
+  public FeatureEntry feature(int featureId) {
+    return features.get(featureId);
+  }
+
+  /**
+   * The geometry whose vertices were added for a feature
+   */
+  public Geometry geometry(int featureId) {
+    return geometries.get(featureId);
+  }
+
+  public int numFeatures() {
+    return features.size();
+  }
+
+  /**
+   * The first label entry of a vertex
+   * @param slot the vertex slot, or {@link #NoEntry}
+   * @return the entry, or {@link #NoEntry}
+   */
+  public int firstLabel(int slot) {
+    return slot == NoEntry ? NoEntry : firstLabels[slot];
+  }
+
+  public int nextLabel(int entry) {
+    return nextLabels[entry];
+  }
+
+  public int labelId(int entry) {
+    return entryLabelIds[entry];
+  }
+
+  public Object label(int labelId) {
+    return labels.get(labelId);
+  }
+
+  /**
+   * Whether a feature with a label has a vertex
+   * @param slot the vertex slot, or {@link #NoEntry}
+   * @param labelId the label id
+   */
+  public boolean hasLabel(int slot, int labelId) {
+    for (int entry = firstLabel(slot); entry != NoEntry; entry = nextLabels[entry]) {
+      if (entryLabelIds[entry] == labelId) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A label of the features of both vertices
+   * @return the first label id of the first vertex shared by the second, or {@link #NoEntry}
+   */
+  public int commonLabel(int slot, int otherSlot) {
+    if (otherSlot == NoEntry) {
+      return NoEntry;
+    }
+    for (int entry = firstLabel(slot); entry != NoEntry; entry = nextLabels[entry]) {
+      if (hasLabel(otherSlot, entryLabelIds[entry])) {
+        return entryLabelIds[entry];
+      }
+    }
+    return NoEntry;
+  }
+
+  /**
+   * A label of the features of all vertices
+   * @param slots the vertex slots, any of which may be {@link #NoEntry}
+   * @return the first label id of the first vertex shared by all others, or {@link #NoEntry}
+   */
+  public int commonLabel(int[] slots) {
+    for (int entry = firstLabel(slots[0]); entry != NoEntry; entry = nextLabels[entry]) {
+      boolean common = true;
+      for (int idx = 1; idx < slots.length && common; ++idx) {
+        common = hasLabel(slots[idx], entryLabelIds[entry]);
+      }
+      if (common) {
+        return entryLabelIds[entry];
+      }
+    }
+    return NoEntry;
+  }
+
+  /**
+   * Any label of the features of a vertex
+   * @return the first label id, or {@link #NoEntry}
+   */
+  public int anyLabel(int slot) {
+    int entry = firstLabel(slot);
+    return entry == NoEntry ? NoEntry : entryLabelIds[entry];
+  }
+}
@@ -0,0 +1,377 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.algorithm.RayCrossingCounter;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges polygons that form a coverage, sharing edges without overlapping, by
+ * cancelling the edges they share and joining the remaining edges into rings.
+ * This avoids the general overlay of {@link Geometry#union()}. Vertices of one
+ * polygon lying on an edge of another, such as where a cell edge meets a
+ * neighbor's coastline, split that edge so the shared parts still cancel.
+ * Inputs that are not a clean coverage are detected, and left to the caller
+ * to union by overlay.
+ */
+class CoverageDissolver {
+  /* Distance, relative to the magnitude of the coordinates, within which a vertex lies on an edge */
+  static final double OnEdgeTolerance = 0.000000000001;
+
+  private final GeometryFactory geometryFactory;
+  private final List<Coordinate> vertices = new ArrayList<Coordinate>();
+  private final Map<Coordinate, Integer> vertexIds = new HashMap<Coordinate, Integer>();
+  // Directed edges that are not cancelled by their reverse, keyed by their vertex ids
+  private Set<Long> edges = new LinkedHashSet<Long>();
+  private boolean overlapping = false;
+
+  private CoverageDissolver(GeometryFactory geometryFactory) {
+    this.geometryFactory = geometryFactory;
+  }
+
+  /**
+   * Dissolves a coverage of polygons
+   * @param geometryFactory the factory for the dissolved geometry
+   * @param geometries the polygons or multi-polygons
+   * @return the dissolved geometry, or null if the geometries are not a clean coverage
+   */
+  public static Geometry dissolve(GeometryFactory geometryFactory, List<Geometry> geometries) {
+    CoverageDissolver dissolver = new CoverageDissolver(geometryFactory);
+    for (Geometry geometry: geometries) {
+      if (!dissolver.addPolygons(geometry)) {
+        return null;
+      }
+    }
+    if (dissolver.overlapping) {
+      return null;
+    }
+    dissolver.splitEdgesAtVertices();
+    if (dissolver.overlapping) {
+      return null;
+    }
+    Geometry dissolved = dissolver.buildPolygons();
+    if (dissolved == null || !dissolved.isValid()) {
+      return null;
+    }
+    return dissolved;
+  }
+
+  private static long edgeKey(int from, int to) {
+    return ((long) from << 32) | (to & 0xffffffffL);
+  }
+
+  private static int from(long edge) {
+    return (int) (edge >>> 32);
+  }
+
+  private static int to(long edge) {
+    return (int) edge;
+  }
+
+  private int vertexId(Coordinate coord) {
+    Integer id = vertexIds.get(coord);
+    if (id == null) {
+      id = vertices.size();
+      vertices.add(coord);
+      vertexIds.put(coord, id);
+    }
+    return id;
+  }
+
+  private void addEdge(int from, int to) {
+    if (from == to) {
+      return;
+    }
+    // An edge shared by two polygons of a coverage is traversed once in each direction
+    if (!edges.remove(edgeKey(to, from)) && !edges.add(edgeKey(from, to))) {
+      overlapping = true;
+    }
+  }
+
+  /**
+   * Adds the rings of polygons, with shells counter-clockwise and holes clockwise
+   * @return false if the geometry is not polygonal
+   */
+  private boolean addPolygons(Geometry geometry) {
+    for (int i = 0; i < geometry.getNumGeometries(); ++i) {
+      Geometry part = geometry.getGeometryN(i);
+      if (part.isEmpty()) {
+        continue;
+      } else if (!(part instanceof Polygon)) {
+        return false;
+      }
+      Polygon polygon = (Polygon) part;
+      addRing(polygon.getExteriorRing().getCoordinates(), true);
+      for (int j = 0; j < polygon.getNumInteriorRing(); ++j) {
+        addRing(polygon.getInteriorRingN(j).getCoordinates(), false);
+      }
+    }
+    return true;
+  }
+
+  private void addRing(Coordinate[] coords, boolean shell) {
+    if (coords.length < 4) {
+      return;
+    }
+    boolean reverse = CGAlgorithms.isCCW(coords) != shell;
+    int previous = vertexId(coords[reverse ? coords.length - 1 : 0]);
+    for (int idx = 1; idx < coords.length; ++idx) {
+      int vertex = vertexId(coords[reverse ? coords.length - 1 - idx : idx]);
+      addEdge(previous, vertex);
+      previous = vertex;
+    }
+  }
+
+  /**
+   * Splits the remaining edges at the remaining vertices that lie on them, and
+   * cancels the edges again
+   */
+  @SuppressWarnings("unchecked")
+  private void splitEdgesAtVertices() {
+    STRtree edgeVertices = new STRtree();
+    Set<Integer> indexed = new LinkedHashSet<Integer>();
+    for (long edge: edges) {
+      indexed.add(from(edge));
+      indexed.add(to(edge));
+    }
+    if (indexed.isEmpty()) {
+      return;
+    }
+    for (int vertex: indexed) {
+      edgeVertices.insert(new Envelope(vertices.get(vertex)), vertex);
+    }
+
+    Set<Long> unsplitEdges = edges;
+    edges = new LinkedHashSet<Long>();
+    for (long edge: unsplitEdges) {
+      final Coordinate a = vertices.get(from(edge));
+      final Coordinate b = vertices.get(to(edge));
+      double tolerance = OnEdgeTolerance * Math.max(1, Math.max(
+        Math.max(Math.abs(a.x), Math.abs(a.y)),
+        Math.max(Math.abs(b.x), Math.abs(b.y))
+      ));
+      Envelope edgeEnvelope = new Envelope(a, b);
+      edgeEnvelope.expandBy(tolerance);
+      List<Integer> onEdge = new ArrayList<Integer>();
+      for (Integer vertex: (List<Integer>) edgeVertices.query(edgeEnvelope)) {
+        if (vertex != from(edge) && vertex != to(edge) && isOnEdge(vertices.get(vertex), a, b, tolerance)) {
+          onEdge.add(vertex);
+        }
+      }
+      if (onEdge.isEmpty()) {
+        addEdge(from(edge), to(edge));
+        continue;
+      }
+      Collections.sort(onEdge, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer v, Integer w) {
+          return Double.compare(vertices.get(v).distance(a), vertices.get(w).distance(a));
+        }
+      });
+      int previous = from(edge);
+      for (int vertex: onEdge) {
+        addEdge(previous, vertex);
+        previous = vertex;
+      }
+      addEdge(previous, to(edge));
+    }
+  }
+
+  private static boolean isOnEdge(Coordinate p, Coordinate a, Coordinate b, double tolerance) {
+    double dx = b.x - a.x;
+    double dy = b.y - a.y;
+    double lengthSquared = dx * dx + dy * dy;
+    double t = ((p.x - a.x) * dx + (p.y - a.y) * dy) / lengthSquared;
+    if (t <= 0 || t >= 1) {
+      return false;
+    }
+    double cross = dx * (p.y - a.y) - dy * (p.x - a.x);
+    return cross * cross <= tolerance * tolerance * lengthSquared;
+  }
+
+  private double angle(int from, int to) {
+    Coordinate a = vertices.get(from);
+    Coordinate b = vertices.get(to);
+    return Math.atan2(b.y - a.y, b.x - a.x);
+  }
+
+  /**
+   * The outgoing edge that continues the boundary of the face to the left of an
+   * incoming edge: the first clockwise from the reverse of the incoming edge.
+   */
+  private long nextEdge(long incoming, List<Long> outgoing) {
+    if (outgoing.size() == 1) {
+      return outgoing.get(0);
+    }
+    double reverseAngle = angle(to(incoming), from(incoming));
+    long next = outgoing.get(0);
+    double minTurn = Double.MAX_VALUE;
+    for (long edge: outgoing) {
+      double turn = reverseAngle - angle(from(edge), to(edge));
+      while (turn <= 0) {
+        turn += 2 * Math.PI;
+      }
+      if (turn < minTurn) {
+        minTurn = turn;
+        next = edge;
+      }
+    }
+    return next;
+  }
+
+  /**
+   * Walks the remaining edges into rings, splits rings where they touch themselves,
+   * and nests holes in the smallest shell containing them
+   * @return the polygons, or null if the edges do not form rings
+   */
+  @SuppressWarnings("unchecked")
+  private Geometry buildPolygons() {
+    Map<Integer, List<Long>> outgoing = new HashMap<Integer, List<Long>>();
+    for (long edge: edges) {
+      List<Long> vertexEdges = outgoing.get(from(edge));
+      if (vertexEdges == null) {
+        vertexEdges = new ArrayList<Long>(1);
+        outgoing.put(from(edge), vertexEdges);
+      }
+      vertexEdges.add(edge);
+    }
+
+    List<Coordinate[]> shells = new ArrayList<Coordinate[]>();
+    List<Coordinate[]> holes = new ArrayList<Coordinate[]>();
+    Set<Long> used = new LinkedHashSet<Long>();
+    for (long start: edges) {
+      if (used.contains(start)) {
+        continue;
+      }
+      List<Integer> walk = new ArrayList<Integer>();
+      long edge = start;
+      do {
+        used.add(edge);
+        walk.add(from(edge));
+        edge = nextEdge(edge, outgoing.get(to(edge)));
+        if (edge != start && used.contains(edge)) {
+          return null;
+        }
+      } while (edge != start);
+
+      for (List<Integer> loop: splitLoops(walk)) {
+        if (loop.size() < 3) {
+          return null;
+        }
+        Coordinate[] ring = new Coordinate[loop.size() + 1];
+        for (int idx = 0; idx < loop.size(); ++idx) {
+          ring[idx] = vertices.get(loop.get(idx));
+        }
+        ring[loop.size()] = ring[0];
+        if (CGAlgorithms.isCCW(ring)) {
+          shells.add(ring);
+        } else {
+          holes.add(ring);
+        }
+      }
+    }
+    if (shells.isEmpty()) {
+      return null;
+    }
+
+    STRtree shellIndex = new STRtree();
+    List<List<LinearRing>> shellHoles = new ArrayList<List<LinearRing>>(shells.size());
+    for (int idx = 0; idx < shells.size(); ++idx) {
+      shellIndex.insert(envelope(shells.get(idx)), idx);
+      shellHoles.add(new ArrayList<LinearRing>());
+    }
+    for (Coordinate[] hole: holes) {
+      Envelope holeEnvelope = envelope(hole);
+      int containingShell = -1;
+      double containingArea = Double.MAX_VALUE;
+      for (Integer idx: (List<Integer>) shellIndex.query(holeEnvelope)) {
+        Coordinate[] shell = shells.get(idx);
+        double area = Math.abs(CGAlgorithms.signedArea(shell));
+        if (area < containingArea && envelope(shell).covers(holeEnvelope) && contains(shell, hole)) {
+          containingShell = idx;
+          containingArea = area;
+        }
+      }
+      if (containingShell < 0) {
+        return null;
+      }
+      shellHoles.get(containingShell).add(geometryFactory.createLinearRing(hole));
+    }
+
+    List<Polygon> polygons = new ArrayList<Polygon>(shells.size());
+    for (int idx = 0; idx < shells.size(); ++idx) {
+      List<LinearRing> polygonHoles = shellHoles.get(idx);
+      polygons.add(geometryFactory.createPolygon(
+        geometryFactory.createLinearRing(shells.get(idx)),
+        polygonHoles.toArray(new LinearRing[polygonHoles.size()])
+      ));
+    }
+    return geometryFactory.buildGeometry(polygons);
+  }
+
+  /**
+   * Splits a closed walk into simple loops at the vertices it visits more than once
+   */
+  private static List<List<Integer>> splitLoops(List<Integer> walk) {
+    List<List<Integer>> loops = new ArrayList<List<Integer>>();
+    List<Integer> path = new ArrayList<Integer>(walk.size());
+    Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+    for (int vertex: walk) {
+      Integer position = positions.get(vertex);
+      if (position != null) {
+        List<Integer> tail = path.subList(position, path.size());
+        loops.add(new ArrayList<Integer>(tail));
+        Iterator<Integer> it = tail.iterator();
+        it.next(); // The repeated vertex stays on the path
+        while (it.hasNext()) {
+          positions.remove(it.next());
+          it.remove();
+        }
+      } else {
+        positions.put(vertex, path.size());
+        path.add(vertex);
+      }
+    }
+    loops.add(path);
+    return loops;
+  }
+
+  private static Envelope envelope(Coordinate[] ring) {
+    Envelope envelope = new Envelope();
+    for (Coordinate coord: ring) {
+      envelope.expandToInclude(coord);
+    }
+    return envelope;
+  }
+
+  /**
+   * Whether a hole lies within a shell, by the first of its vertices not on the shell
+   */
+  private static boolean contains(Coordinate[] shell, Coordinate[] hole) {
+    for (Coordinate coord: hole) {
+      int location = RayCrossingCounter.locatePointInRing(coord, shell);
+      if (location != Location.BOUNDARY) {
+        return location == Location.INTERIOR;
+      }
+    }
+    return false;
+  }
+}
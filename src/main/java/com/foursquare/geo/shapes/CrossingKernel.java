@@ -0,0 +1,106 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.vividsolutions.jts.algorithm.RobustDeterminant;
+
+/**
+ * Counts the crossings of the segments of a packed polyline by the ray from a point
+ * towards positive x, with the semantics of {@link com.vividsolutions.jts.algorithm.RayCrossingCounter}.
+ * Coordinates are packed as x and y pairs, as in {@link com.vividsolutions.jts.geom.impl.PackedCoordinateSequence}.
+ * The fast path evaluates every segment with the same few floating point operations and
+ * no data-dependent branches, so the loop pipelines and unrolls well. Only when a segment
+ * passes too close to the point for the plain determinant to be trusted is the polyline
+ * counted again with robust determinants.
+ */
+final class CrossingKernel {
+  /* Relative bound on the rounding error of the plain 2x2 determinant */
+  static final double DeterminantErrorBound = 1e-12;
+  /* Returned when the point lies on the polyline */
+  static final int OnBoundary = -1;
+
+  private CrossingKernel() {
+
+  }
+
+  /**
+   * Counts the crossings of a polyline by the ray from a point
+   * @param coords packed x and y coordinates
+   * @param from the index of the polyline's first coordinate
+   * @param to one past the index of the polyline's last coordinate
+   * @param x the x of the point
+   * @param y the y of the point
+   * @return the number of crossings, or {@link #OnBoundary} if the point is on the polyline
+   */
+  static int crossings(double[] coords, int from, int to, double x, double y) {
+    int count = 0;
+    boolean uncertain = false;
+    double x1 = coords[from * 2] - x;
+    double y1 = coords[from * 2 + 1] - y;
+    for (int idx = from + 1; idx < to; ++idx) {
+      double x2 = coords[idx * 2] - x;
+      double y2 = coords[idx * 2 + 1] - y;
+      double left = x1 * y2;
+      double right = x2 * y1;
+      double det = left - right;
+      boolean straddles = (y1 > 0) != (y2 > 0);
+      // The ray crosses a straddling segment when the point is left of it, going upwards
+      count += straddles & ((det > 0) == (y2 > y1)) & (det != 0) ? 1 : 0;
+      uncertain |= (straddles | y2 == 0) & Math.abs(det) <= DeterminantErrorBound * (Math.abs(left) + Math.abs(right));
+      x1 = x2;
+      y1 = y2;
+    }
+    return uncertain ? robustCrossings(coords, from, to, x, y) : count;
+  }
+
+  /**
+   * Counts crossings with robust determinants, detecting points on the polyline
+   * @see #crossings
+   */
+  static int robustCrossings(double[] coords, int from, int to, double x, double y) {
+    int count = 0;
+    for (int idx = from + 1; idx < to; ++idx) {
+      int crossing = segmentCrossing(
+        coords[idx * 2 - 2], coords[idx * 2 - 1],
+        coords[idx * 2], coords[idx * 2 + 1],
+        x, y
+      );
+      if (crossing == OnBoundary) {
+        return OnBoundary;
+      }
+      count += crossing;
+    }
+    return count;
+  }
+
+  /**
+   * Counts the crossing of a segment, as {@link com.vividsolutions.jts.algorithm.RayCrossingCounter} does.
+   * Only the segment's second point is tested for equality with the point, as the first
+   * is the second point of the preceding segment.
+   * @return 1 if the ray crosses the segment, 0 if not, or {@link #OnBoundary} if the point is on the segment
+   */
+  private static int segmentCrossing(double x1, double y1, double x2, double y2, double x, double y) {
+    if (x1 < x && x2 < x) {
+      return 0;
+    }
+    if (x == x2 && y == y2) {
+      return OnBoundary;
+    }
+    if (y1 == y && y2 == y) {
+      double minX = Math.min(x1, x2);
+      double maxX = Math.max(x1, x2);
+      return x >= minX && x <= maxX ? OnBoundary : 0;
+    }
+    if ((y1 > y && y2 <= y) || (y2 > y && y1 <= y)) {
+      int sign = RobustDeterminant.signOfDet2x2(x1 - x, y1 - y, x2 - x, y2 - y);
+      if (sign == 0) {
+        return OnBoundary;
+      }
+      if (y2 < y1) {
+        sign = -sign;
+      }
+      return sign > 0 ? 1 : 0;
+    }
+    return 0;
+  }
+}
@@ -7,8 +7,10 @@ import com.foursquare.geo.shapes.indexing.CellLocationReference;
 import com.vividsolutions.jts.geom.Geometry;
 import org.opengis.feature.simple.SimpleFeature;
 
+import java.io.IOException;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -56,6 +58,55 @@ class FeatureEntryFactory {
     }
   }
 
+  /**
+   * Converts features to feature entries as they are iterated, rather than all at once
+   * @param features the features
+   * @return the feature entries
+   */
+  public Iterable<FeatureEntry> lazyFeatureEntries(final Iterable<SimpleFeature> features) {
+    return new Iterable<FeatureEntry>() {
+      @Override
+      public Iterator<FeatureEntry> iterator() {
+        final Iterator<SimpleFeature> featureIterator = features.iterator();
+        return new Iterator<FeatureEntry>() {
+          @Override
+          public boolean hasNext() {
+            return featureIterator.hasNext();
+          }
+
+          @Override
+          public FeatureEntry next() {
+            return featureEntry(featureIterator.next());
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Reads the features of a source as they are iterated
+   * @param source the source
+   * @return the feature entries
+   * @throws IOException if the source cannot be opened
+   */
+  public Iterable<FeatureEntry> lazyFeatureEntries(FeatureEntrySource source) throws IOException {
+    return source.featureEntries(this);
+  }
+
+  /**
+   * Reads all features of a source
+   * @param source the source
+   * @return the feature entries
+   * @throws IOException if the source cannot be opened
+   */
+  public List<FeatureEntry> featureEntries(FeatureEntrySource source) throws IOException {
+    List<FeatureEntry> featureEntries = new ArrayList<FeatureEntry>();
+    for (FeatureEntry featureEntry: source.featureEntries(this)) {
+      featureEntries.add(featureEntry);
+    }
+    return featureEntries;
+  }
+
   public List<FeatureEntry> featureEntries(Iterable<SimpleFeature> features) {
     List<FeatureEntry> featureEntries = new ArrayList<FeatureEntry>();
     for(SimpleFeature feature: features) {
@@ -0,0 +1,191 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of {@link FeatureEntry}s, for spilling
+ * intermediate features to disk. Each record holds the cell location,
+ * the label entry, the weak label flag, and the geometry as WKB.
+ * Coordinates are kept at full precision.
+ */
+class FeatureEntryIO {
+  private static final byte NullLabel = 0;
+  private static final byte StringLabel = 1;
+  private static final byte IntegerLabel = 2;
+  private static final byte LongLabel = 3;
+  private static final byte DoubleLabel = 4;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /* Decodes without rounding coordinates to the precision model of the reference */
+  private static final GeometryFactory FullPrecisionFactory = new GeometryFactory();
+
+  private FeatureEntryIO() {
+
+  }
+
+  /**
+   * Writes a string as its length in bytes followed by its UTF-8 bytes. Unlike
+   * {@link DataOutput#writeUTF}, strings of any length can be written.
+   * @param out the output
+   * @param value the string
+   * @throws IOException if the string cannot be written
+   */
+  static void writeString(DataOutput out, String value) throws IOException {
+    byte[] bytes = value.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by {@link #writeString}
+   * @param in the input
+   * @return the string
+   * @throws IOException if the string cannot be read
+   */
+  static String readString(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Unexpected string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Writes a label value, preserving its type
+   * @param out the output
+   * @param label the label, which must be null, a String, Integer, Long, or Double
+   * @throws IOException if the label cannot be written
+   * @throws IllegalArgumentException if the label is of another type
+   */
+  static void writeLabel(DataOutput out, Object label) throws IOException {
+    if (label == null) {
+      out.writeByte(NullLabel);
+    } else if (label instanceof String) {
+      out.writeByte(StringLabel);
+      writeString(out, (String) label);
+    } else if (label instanceof Integer) {
+      out.writeByte(IntegerLabel);
+      out.writeInt((Integer) label);
+    } else if (label instanceof Long) {
+      out.writeByte(LongLabel);
+      out.writeLong((Long) label);
+    } else if (label instanceof Double) {
+      out.writeByte(DoubleLabel);
+      out.writeDouble((Double) label);
+    } else {
+      throw new IllegalArgumentException("Cannot write label of " + label.getClass());
+    }
+  }
+
+  /**
+   * Reads a label value written by {@link #writeLabel}
+   * @param in the input
+   * @return the label
+   * @throws IOException if the label cannot be read
+   */
+  static Object readLabel(DataInput in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case NullLabel:
+        return null;
+      case StringLabel:
+        return readString(in);
+      case IntegerLabel:
+        return in.readInt();
+      case LongLabel:
+        return in.readLong();
+      case DoubleLabel:
+        return in.readDouble();
+      default:
+        throw new IOException("Unexpected label type " + type);
+    }
+  }
+
+  /**
+   * Writes a geometry as length-prefixed WKB
+   * @param out the output
+   * @param geometry the geometry
+   * @throws IOException if the geometry cannot be written
+   */
+  static void writeGeometry(DataOutput out, Geometry geometry) throws IOException {
+    byte[] wkb = new WKBWriter().write(geometry);
+    out.writeInt(wkb.length);
+    out.write(wkb);
+  }
+
+  /**
+   * Reads a geometry written by {@link #writeGeometry}
+   * @param in the input
+   * @param geometryFactory the factory of the returned geometry. Its precision model is not applied.
+   * @return the geometry
+   * @throws IOException if the geometry cannot be read
+   */
+  static Geometry readGeometry(DataInput in, GeometryFactory geometryFactory) throws IOException {
+    byte[] wkb = new byte[in.readInt()];
+    in.readFully(wkb);
+    try {
+      Geometry geometry = new WKBReader(FullPrecisionFactory).read(wkb);
+      return geometryFactory.createGeometry(geometry);
+    } catch (ParseException pe) {
+      throw new IOException("Cannot read geometry", pe);
+    }
+  }
+
+  /**
+   * Writes a feature entry
+   * @param out the output
+   * @param featureEntry the feature entry
+   * @throws IOException if the entry cannot be written
+   */
+  public static void write(DataOutput out, FeatureEntry featureEntry) throws IOException {
+    writeString(out, featureEntry.location.attributeValue().toString());
+    writeString(out, featureEntry.getLabelEntry().getKey());
+    writeLabel(out, featureEntry.getLabel());
+    out.writeBoolean(featureEntry.isWeakLabel());
+    writeGeometry(out, featureEntry.geometry);
+  }
+
+  /**
+   * Reads a feature entry written by {@link #write}
+   * @param in the input
+   * @param reference the reference of the entry's location
+   * @return the feature entry, or null at the end of the input
+   * @throws IOException if the entry cannot be read
+   */
+  public static FeatureEntry read(DataInput in, CellLocationReference reference) throws IOException {
+    String attributeValue;
+    try {
+      attributeValue = readString(in);
+    } catch (EOFException eof) {
+      return null;
+    }
+    CellLocation location = attributeValue.isEmpty() ?
+      new CellLocation(reference) :
+      CellLocation.fromAttributeValue(reference, attributeValue);
+    Map.Entry<String, Object> labelEntry = new AbstractMap.SimpleImmutableEntry<String, Object>(
+      readString(in),
+      readLabel(in)
+    );
+    boolean isWeakLabel = in.readBoolean();
+    Geometry geometry = readGeometry(in, reference.getGeometryFactory());
+    return new FeatureEntry(location, labelEntry, isWeakLabel, geometry);
+  }
+}
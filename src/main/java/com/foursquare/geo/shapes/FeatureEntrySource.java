@@ -0,0 +1,42 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.type.FeatureType;
+
+import java.io.IOException;
+
+/**
+ * An input of labeled features for the simplifier, such as a Shapefile or a
+ * file of WKB records
+ * @see FeatureEntryFactory#featureEntries(FeatureEntrySource)
+ */
+interface FeatureEntrySource {
+  /**
+   * The bounds of the features
+   * @return the bounds, with the coordinate reference system if known
+   * @throws IOException if the source cannot be read
+   */
+  ReferencedEnvelope bounds() throws IOException;
+
+  /**
+   * The schema whose geometry descriptor a simplified Shapefile is written with
+   * @return the schema
+   * @throws IOException if the source cannot be read
+   */
+  FeatureType schema() throws IOException;
+
+  /**
+   * The features, read as they are iterated
+   * @param featureEntryFactory the factory of the entries
+   * @return the feature entries. Each iteration reads the source again.
+   * @throws IOException if the source cannot be opened
+   */
+  Iterable<FeatureEntry> featureEntries(FeatureEntryFactory featureEntryFactory) throws IOException;
+
+  /**
+   * Releases any resources held by the source
+   */
+  void close();
+}
@@ -0,0 +1,157 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups features by cell location, keeping a bounded number of coordinates
+ * in memory. When the bound is exceeded, buffered features are appended to
+ * a spill file per cell. Features of a cell are returned in the order they
+ * were added.
+ */
+class FeaturePartitioner implements Closeable {
+  static final Logger logger = LoggerFactory.getLogger(FeaturePartitioner.class);
+
+  private final CellLocationReference reference;
+  private final File spillDirectory;
+  private final long maxBufferedCoordinates;
+  private final Map<CellLocation, List<FeatureEntry>> buffers;
+  private final Map<CellLocation, File> spillFiles;
+  private long bufferedCoordinates;
+
+  /**
+   * Creates a partitioner
+   * @param reference the location reference of the features
+   * @param spillDirectory an existing directory for spill files
+   * @param maxBufferedCoordinates the number of coordinates to hold in memory before spilling
+   */
+  public FeaturePartitioner(CellLocationReference reference, File spillDirectory, long maxBufferedCoordinates) {
+    this.reference = reference;
+    this.spillDirectory = spillDirectory;
+    this.maxBufferedCoordinates = maxBufferedCoordinates;
+    this.buffers = new HashMap<CellLocation, List<FeatureEntry>>();
+    this.spillFiles = new HashMap<CellLocation, File>();
+    this.bufferedCoordinates = 0;
+  }
+
+  /**
+   * Adds a feature to the partition of its location
+   * @param featureEntry the feature
+   * @throws IOException if spilling fails
+   */
+  public void add(FeatureEntry featureEntry) throws IOException {
+    List<FeatureEntry> buffer = buffers.get(featureEntry.location);
+    if (buffer == null) {
+      buffer = new ArrayList<FeatureEntry>();
+      buffers.put(featureEntry.location, buffer);
+    }
+    buffer.add(featureEntry);
+    bufferedCoordinates += featureEntry.geometry.getNumPoints();
+    if (bufferedCoordinates > maxBufferedCoordinates) {
+      spill();
+    }
+  }
+
+  private void spill() throws IOException {
+    logger.info("Spilling {} coordinates of {} cells to {}", bufferedCoordinates, buffers.size(), spillDirectory);
+    for (Map.Entry<CellLocation, List<FeatureEntry>> buffer: buffers.entrySet()) {
+      if (buffer.getValue().isEmpty()) {
+        continue;
+      }
+      File spillFile = spillFiles.get(buffer.getKey());
+      if (spillFile == null) {
+        spillFile = File.createTempFile("partition", ".bin", spillDirectory);
+        spillFiles.put(buffer.getKey(), spillFile);
+      }
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(spillFile, true))
+      );
+      try {
+        for (FeatureEntry featureEntry: buffer.getValue()) {
+          FeatureEntryIO.write(out, featureEntry);
+        }
+      } finally {
+        out.close();
+      }
+      buffer.getValue().clear();
+    }
+    bufferedCoordinates = 0;
+  }
+
+  /**
+   * The locations that have features, in {@link CellLocation} order
+   * @return the locations
+   */
+  public List<CellLocation> locations() {
+    List<CellLocation> locations = new ArrayList<CellLocation>(buffers.keySet());
+    Collections.sort(locations);
+    return locations;
+  }
+
+  /**
+   * Removes and returns the features of a location, reading back any spilled features
+   * @param location the location
+   * @return the features, in the order they were added
+   * @throws IOException if the spill file cannot be read
+   */
+  public List<FeatureEntry> remove(CellLocation location) throws IOException {
+    List<FeatureEntry> featureEntries = new ArrayList<FeatureEntry>();
+    File spillFile = spillFiles.remove(location);
+    if (spillFile != null) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+      try {
+        FeatureEntry featureEntry;
+        while ((featureEntry = FeatureEntryIO.read(in, reference)) != null) {
+          featureEntries.add(featureEntry);
+        }
+      } finally {
+        in.close();
+      }
+      if (!spillFile.delete()) {
+        logger.warn("Failed to delete {}", spillFile);
+      }
+    }
+    List<FeatureEntry> buffer = buffers.remove(location);
+    if (buffer != null) {
+      for (FeatureEntry featureEntry: buffer) {
+        bufferedCoordinates -= featureEntry.geometry.getNumPoints();
+      }
+      featureEntries.addAll(buffer);
+    }
+    return featureEntries;
+  }
+
+  /**
+   * Discards remaining features and deletes the spill files
+   */
+  @Override
+  public void close() {
+    for (File spillFile: spillFiles.values()) {
+      if (!spillFile.delete()) {
+        logger.warn("Failed to delete {}", spillFile);
+      }
+    }
+    spillFiles.clear();
+    buffers.clear();
+    bufferedCoordinates = 0;
+  }
+}
@@ -0,0 +1,172 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateList;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.geom.util.PolygonExtracter;
+import com.vividsolutions.jts.precision.GeometryPrecisionReducer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Snaps output vertices to a regular grid, then drops the repeated and collinear vertices
+ * this leaves behind. Each vertex is rounded to its nearest grid point. Polygons that become
+ * invalid through rounding are repaired, which can move their edges off those shared with
+ * other features, and are counted as topology fallbacks. Parts narrower than the grid
+ * collapse and are removed.
+ */
+class GridSnapper {
+  private static final Logger logger = LoggerFactory.getLogger(GridSnapper.class);
+  private final double gridSize;
+  private final GeometryPrecisionReducer pointwiseReducer;
+  private final GeometryPrecisionReducer reducer;
+
+  /**
+   * @param gridSize the spacing of the grid, in units of the coordinate reference system
+   */
+  public GridSnapper(double gridSize) {
+    if (!(gridSize > 0)) {
+      throw new IllegalArgumentException("Grid size must be positive, not " + gridSize);
+    }
+    this.gridSize = gridSize;
+    PrecisionModel precisionModel = new PrecisionModel(1 / gridSize);
+    pointwiseReducer = new GeometryPrecisionReducer(precisionModel);
+    pointwiseReducer.setPointwise(true);
+    reducer = new GeometryPrecisionReducer(precisionModel);
+    reducer.setRemoveCollapsedComponents(true);
+  }
+
+  public double gridSize() {
+    return gridSize;
+  }
+
+  /**
+   * Snaps the polygons of a geometry to the grid
+   * @param geometry the geometry
+   * @return the snapped polygons, which may be empty if all collapsed
+   */
+  @SuppressWarnings("unchecked")
+  public Geometry snap(Geometry geometry) {
+    Geometry reduced = pointwiseReducer.reduce(geometry);
+    if (!reduced.isValid()) {
+      SimplificationReport.topologyFallback();
+      reduced = reducer.reduce(geometry);
+    }
+    GeometryFactory geometryFactory = geometry.getFactory();
+    List<Polygon> polygons = new ArrayList<Polygon>();
+    for (Polygon polygon: (List<Polygon>) PolygonExtracter.getPolygons(reduced)) {
+      LinearRing shell = withoutCollinear(polygon.getExteriorRing(), geometryFactory);
+      if (shell == null) {
+        continue;
+      }
+      List<LinearRing> holes = new ArrayList<LinearRing>();
+      for (int idx = 0; idx < polygon.getNumInteriorRing(); ++idx) {
+        LinearRing hole = withoutCollinear(polygon.getInteriorRingN(idx), geometryFactory);
+        if (hole != null) {
+          holes.add(hole);
+        }
+      }
+      polygons.add(geometryFactory.createPolygon(shell, holes.toArray(new LinearRing[holes.size()])));
+    }
+    if (polygons.size() == 1) {
+      return polygons.get(0);
+    }
+    return geometryFactory.createMultiPolygon(polygons.toArray(new Polygon[polygons.size()]));
+  }
+
+  /**
+   * Removes repeated vertices and vertices on the line through their neighbors
+   * @return the ring, or null if fewer than three distinct vertices remain
+   */
+  static LinearRing withoutCollinear(LineString ring, GeometryFactory geometryFactory) {
+    Coordinate[] coords = ring.getCoordinates();
+    // The closing coordinate repeats the first
+    CoordinateList open = new CoordinateList();
+    for (int idx = 0; idx < coords.length - 1; ++idx) {
+      open.add(coords[idx], false);
+    }
+    if (open.size() > 1 && open.getCoordinate(0).equals2D(open.getCoordinate(open.size() - 1))) {
+      open.remove(open.size() - 1);
+    }
+    // Removing a vertex can make its neighbor collinear, so repeat until nothing changes
+    boolean removed = true;
+    while (removed && open.size() >= 3) {
+      removed = false;
+      for (int idx = 0; idx < open.size() && open.size() >= 3; ) {
+        Coordinate prev = open.getCoordinate((idx + open.size() - 1) % open.size());
+        Coordinate next = open.getCoordinate((idx + 1) % open.size());
+        if (CGAlgorithms.computeOrientation(prev, open.getCoordinate(idx), next) == CGAlgorithms.COLLINEAR) {
+          open.remove(idx);
+          removed = true;
+        } else {
+          ++idx;
+        }
+      }
+    }
+    if (open.size() < 3) {
+      return null;
+    }
+    open.closeRing();
+    return geometryFactory.createLinearRing(open.toCoordinateArray());
+  }
+
+  /**
+   * Snaps features as they are read. Features whose polygons all collapse are dropped.
+   * @param features the features
+   * @return the snapped features
+   */
+  public Iterable<FeatureEntry> snapping(final Iterable<FeatureEntry> features) {
+    return new Iterable<FeatureEntry>() {
+      @Override
+      public Iterator<FeatureEntry> iterator() {
+        final Iterator<FeatureEntry> iterator = features.iterator();
+        return new Iterator<FeatureEntry>() {
+          private FeatureEntry next;
+
+          @Override
+          public boolean hasNext() {
+            while (next == null && iterator.hasNext()) {
+              FeatureEntry featureEntry = iterator.next();
+              Geometry snapped = snap(featureEntry.geometry);
+              if (snapped.isEmpty()) {
+                logger.debug("Dropping {}, which collapsed on the grid", featureEntry);
+                SimplificationReport.droppedGeometry(featureEntry.geometry);
+              } else {
+                next = featureEntry.sibling(featureEntry.getLabel(), featureEntry.isWeakLabel(), snapped);
+              }
+            }
+            return next != null;
+          }
+
+          @Override
+          public FeatureEntry next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            FeatureEntry featureEntry = next;
+            next = null;
+            return featureEntry;
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,233 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Rebuilds a simplified Shapefile after a change to its original features, by
+ * simplifying only the top-level cells touched by added or removed features.
+ * Features are compared by a hash of their label and geometry. Other attributes
+ * are not tracked, as the simplified Shapefile keeps only the label. The previous
+ * simplified features of all other cells are kept as they are.
+ */
+public class IncrementalSimplifier {
+  static final Logger logger = LoggerFactory.getLogger(IncrementalSimplifier.class);
+  private static final long FnvOffsetBasis = 0xcbf29ce484222325L;
+  private static final long FnvPrime = 0x100000001b3L;
+
+  private IncrementalSimplifier() {
+
+  }
+
+  /**
+   * A 64-bit FNV-1a hash of a feature's label and geometry
+   */
+  static long featureHash(FeatureEntry featureEntry) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      FeatureEntryIO.writeLabel(out, featureEntry.getLabel());
+      FeatureEntryIO.writeGeometry(out, featureEntry.geometry);
+      out.close();
+    } catch (IOException ioe) {
+      throw new IllegalArgumentException("Cannot hash feature " + featureEntry, ioe);
+    }
+    long hash = FnvOffsetBasis;
+    for (byte b: bytes.toByteArray()) {
+      hash ^= b & 0xff;
+      hash *= FnvPrime;
+    }
+    return hash;
+  }
+
+  private static void addTopLevelCells(CellLocationReference reference, Envelope envelope, Set<CellLocation> cells) {
+    Envelope referenceEnvelope = reference.getEnvelope();
+    int levelSize = reference.getLevelSize(0);
+    double cellWidth = reference.getCellWidth(1);
+    double cellHeight = reference.getCellHeight(1);
+    int minX = cellIndex((envelope.getMinX() - referenceEnvelope.getMinX()) / cellWidth, levelSize);
+    int maxX = cellIndex((envelope.getMaxX() - referenceEnvelope.getMinX()) / cellWidth, levelSize);
+    int minY = cellIndex((envelope.getMinY() - referenceEnvelope.getMinY()) / cellHeight, levelSize);
+    int maxY = cellIndex((envelope.getMaxY() - referenceEnvelope.getMinY()) / cellHeight, levelSize);
+    CellLocation root = new CellLocation(reference);
+    for (int longIdx = minX; longIdx <= maxX; ++longIdx) {
+      for (int latIdx = minY; latIdx <= maxY; ++latIdx) {
+        cells.add(root.child(longIdx, latIdx));
+      }
+    }
+  }
+
+  private static int cellIndex(double position, int levelSize) {
+    return Math.max(0, Math.min(levelSize - 1, (int) Math.floor(position)));
+  }
+
+  /**
+   * The top-level cells, with the cells surrounding each
+   */
+  static Set<CellLocation> withNeighbourCells(CellLocationReference reference, Set<CellLocation> cells) {
+    double halfWidth = reference.getCellWidth(1) / 2;
+    double halfHeight = reference.getCellHeight(1) / 2;
+    Set<CellLocation> neighbourCells = new TreeSet<CellLocation>(cells);
+    for (CellLocation cell: cells) {
+      Envelope envelope = new Envelope(cell.envelope());
+      // Half a cell reaches each neighbour without reaching the cells beyond
+      envelope.expandBy(halfWidth, halfHeight);
+      addTopLevelCells(reference, envelope, neighbourCells);
+    }
+    return neighbourCells;
+  }
+
+  /**
+   * Finds the top-level cells touched by features that were added or removed
+   * @param reference the location reference (bounding box, etc)
+   * @param previousFeatures the previous original features
+   * @param features the current original features
+   * @return the changed cells, in {@link CellLocation} order
+   */
+  public static Set<CellLocation> changedTopLevelCells(
+    CellLocationReference reference,
+    Iterable<FeatureEntry> previousFeatures,
+    Iterable<FeatureEntry> features
+  ) {
+    // The envelopes of previous features by hash, matched off against the current features
+    Map<Long, List<Envelope>> previousEnvelopes = new HashMap<Long, List<Envelope>>();
+    for (FeatureEntry feature: previousFeatures) {
+      if (feature.geometry == null) {
+        continue;
+      }
+      Long hash = featureHash(feature);
+      List<Envelope> envelopes = previousEnvelopes.get(hash);
+      if (envelopes == null) {
+        envelopes = new ArrayList<Envelope>(1);
+        previousEnvelopes.put(hash, envelopes);
+      }
+      envelopes.add(feature.geometry.getEnvelopeInternal());
+    }
+
+    Set<CellLocation> changedCells = new TreeSet<CellLocation>();
+    int numAdded = 0;
+    for (FeatureEntry feature: features) {
+      if (feature.geometry == null) {
+        continue;
+      }
+      List<Envelope> envelopes = previousEnvelopes.get(featureHash(feature));
+      if (envelopes != null && !envelopes.isEmpty()) {
+        envelopes.remove(envelopes.size() - 1);
+      } else {
+        addTopLevelCells(reference, feature.geometry.getEnvelopeInternal(), changedCells);
+        ++numAdded;
+      }
+    }
+    int numRemoved = 0;
+    for (List<Envelope> envelopes: previousEnvelopes.values()) {
+      for (Envelope envelope: envelopes) {
+        addTopLevelCells(reference, envelope, changedCells);
+        ++numRemoved;
+      }
+    }
+    logger.info(
+      "{} features added and {} removed, changing {} top-level cells",
+      numAdded,
+      numRemoved,
+      changedCells.size()
+    );
+    return changedCells;
+  }
+
+  /**
+   * Simplify the set of features, reusing the previous simplified features of unchanged cells.
+   * The output of changed cells is the same as a full simplification, except that water is
+   * labeled within each changed cell and a margin around it, as with partitioned water,
+   * rather than across all cells. As the label of water depends on the land around it, the
+   * cells surrounding changed cells are simplified again with water triangulation.
+   * @param reference the location reference (bounding box, etc), which must be the
+   *                  reference of the previous simplified features
+   * @param featureEntryFactory a factory instance for creating more features
+   * @param previousFeatures the previous original features
+   * @param features the current original features
+   * @param previousSimplified the previous simplified features
+   * @param simplifySingleLabelCells see {@link LabeledGridSimplifier#simplify(CellLocationReference, List, boolean)}
+   * @param waterTriangularization whether water was triangulated in the previous simplified features
+   * @param voronoiWater whether water was assigned to the label of its nearest coastline vertex
+   * @param numThreads the number of threads to use. 1 simplifies on the calling thread.
+   * @return a set of simplified features
+   */
+  public static List<FeatureEntry> simplify(
+    CellLocationReference reference,
+    FeatureEntryFactory featureEntryFactory,
+    Iterable<FeatureEntry> previousFeatures,
+    List<FeatureEntry> features,
+    Iterable<FeatureEntry> previousSimplified,
+    boolean simplifySingleLabelCells,
+    boolean waterTriangularization,
+    boolean voronoiWater,
+    int numThreads
+  ) {
+    Set<CellLocation> changedCells = changedTopLevelCells(reference, previousFeatures, features);
+    if (waterTriangularization && !changedCells.isEmpty()) {
+      changedCells = withNeighbourCells(reference, changedCells);
+      logger.info("Simplifying {} top-level cells with their neighbours for water", changedCells.size());
+    }
+
+    List<FeatureEntry> simplified = new ArrayList<FeatureEntry>();
+    int numKept = 0;
+    for (FeatureEntry feature: previousSimplified) {
+      boolean changed;
+      if (feature.location.level() == 0) {
+        // A feature that could not be split belongs to every cell it touches
+        Set<CellLocation> touchedCells = new TreeSet<CellLocation>();
+        addTopLevelCells(reference, feature.geometry.getEnvelopeInternal(), touchedCells);
+        touchedCells.retainAll(changedCells);
+        changed = !touchedCells.isEmpty();
+      } else {
+        changed = changedCells.contains(feature.location.ancestor(1));
+      }
+      if (!changed) {
+        simplified.add(feature);
+        ++numKept;
+      }
+    }
+    logger.info("Kept {} simplified features of unchanged cells", numKept);
+    if (changedCells.isEmpty()) {
+      return simplified;
+    }
+
+    List<FeatureEntry> cellFeatures = features;
+    if (waterTriangularization) {
+      cellFeatures = new ArrayList<FeatureEntry>(features);
+      cellFeatures.addAll(WaterDelaunayTriangulationSimplifier.simplifyCells(
+        reference,
+        featureEntryFactory,
+        features,
+        changedCells,
+        new SimplificationOptions().numThreads(numThreads).voronoiWater(voronoiWater)
+      ));
+    }
+    Map<CellLocation, List<FeatureEntry>> simplifiedCells = LabeledGridSimplifier.simplifyTopLevelCells(
+      reference,
+      cellFeatures,
+      changedCells,
+      simplifySingleLabelCells,
+      numThreads
+    );
+    for (List<FeatureEntry> cellSimplified: simplifiedCells.values()) {
+      simplified.addAll(cellSimplified);
+    }
+    return simplified;
+  }
+}
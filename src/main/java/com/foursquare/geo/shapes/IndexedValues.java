@@ -19,6 +19,20 @@ public interface IndexedValues {
    */
   Object labelForCoordinate(Coordinate coordinate);
 
+  /**
+   * retrieve a label by coordinate, along with the distance to the
+   * nearest boundary between labels. Edges introduced by splitting
+   * features into cells are not boundaries.
+   * @param coordinate a 2D point covered by the value of interest
+   * @return the label and boundary distance. The distance is exact when
+   * the boundary lies within the coordinate's cell, and otherwise a
+   * lower bound (e.g. the distance to the edge of a single-label cell).
+   * Without knowledge of the underlying geometry, the only safe lower
+   * bound is zero, which is the default.
+   */
+  default LabelDistance labelDistanceForCoordinate(Coordinate coordinate) {
+    return new LabelDistance(labelForCoordinate(coordinate), 0, false);
+  }
 
   /**
    * The list of features that all reside at the same
@@ -29,6 +43,16 @@ public interface IndexedValues {
    */
   List<FeatureEntry> colocatedFeatures(Coordinate coordinate);
 
+  /**
+   * Reverse lookup of the cells and extent covered by a label
+   * @param label the label of interest
+   * @return the coverage of the label, or null if the label
+   * is not present or the values are not indexed by cell, which is the default
+   */
+  default LabelCoverage labelCoverage(Object label) {
+    return null;
+  }
+
   /**
    * Apply a filter to get a filtered IndexedValues instance
    * @param filter the filter to apply
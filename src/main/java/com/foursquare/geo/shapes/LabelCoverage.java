@@ -0,0 +1,114 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.TopologyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The cells and extent covered by a single label of a loaded index.
+ * @see IndexedValues#labelCoverage
+ */
+public class LabelCoverage {
+  static final Logger logger = LoggerFactory.getLogger(LabelCoverage.class);
+  private final Object label;
+  private final List<CellLocation> cells;
+  private final Envelope envelope;
+  private final Map<CellLocation, IndexedValues> cellValues;
+  private final GeometryFactory geometryFactory;
+  private volatile Geometry geometry;
+
+  LabelCoverage(
+    Object label,
+    List<CellLocation> cells,
+    Envelope envelope,
+    Map<CellLocation, IndexedValues> cellValues,
+    GeometryFactory geometryFactory
+  ) {
+    this.label = label;
+    this.cells = Collections.unmodifiableList(cells);
+    this.envelope = envelope;
+    this.cellValues = cellValues;
+    this.geometryFactory = geometryFactory;
+  }
+
+  /**
+   * The label
+   * @return the label
+   */
+  public Object getLabel() {
+    return label;
+  }
+
+  /**
+   * The cells holding features with this label
+   * @return the list of cell locations
+   */
+  public List<CellLocation> getCells() {
+    return cells;
+  }
+
+  /**
+   * The merged envelope of every feature with this label
+   * @return a copy of the envelope
+   */
+  public Envelope getEnvelope() {
+    return new Envelope(envelope);
+  }
+
+  /**
+   * The full geometry of the label, reconstructed by unioning its pieces in every
+   * cell. Computed on first access. Single-label cells contribute their whole
+   * envelope, just as they answer the label for any point within them.
+   * @return the geometry
+   */
+  public Geometry geometry() {
+    Geometry unioned = geometry;
+    if (unioned == null) {
+      unioned = unionCells();
+      geometry = unioned;
+    }
+    return unioned;
+  }
+
+  private Geometry unionCells() {
+    List<Geometry> pieces = new ArrayList<Geometry>();
+    for (CellLocation location: cells) {
+      IndexedValues indexedValues = cellValues.get(location);
+      if (indexedValues instanceof SimplifiedShapefileGeo.MixedIndexedValues) {
+        List<FeatureEntry> featureEntries =
+          ((SimplifiedShapefileGeo.MixedIndexedValues) indexedValues).featureEntries();
+        for (FeatureEntry featureEntry: featureEntries) {
+          if (label.equals(featureEntry.getLabel())) {
+            pieces.add(featureEntry.geometry);
+          }
+        }
+      } else {
+        pieces.add(location.envelopeGeometry());
+      }
+    }
+    Geometry collection = geometryFactory.buildGeometry(pieces);
+    try {
+      return collection.union();
+    } catch (TopologyException te) {
+      SimplificationReport.topologyFallback();
+      logger.info("Could not union geometries for label: {} Using separate geometries.", label);
+      return collection;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LC " + label + ": " + cells.size() + " cells within " + envelope;
+  }
+}
@@ -0,0 +1,36 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+/**
+ * A label together with the distance from the queried coordinate
+ * to the nearest boundary between labels.
+ * @see IndexedValues#labelDistanceForCoordinate
+ */
+public class LabelDistance {
+  /**
+   * The label, or null if not found
+   */
+  public final Object label;
+  /**
+   * The distance, in the units of the index coordinates, to the nearest label boundary.
+   * When not {@link #exact}, a lower bound on that distance.
+   */
+  public final double distance;
+  /**
+   * Whether distance is the actual distance to the nearest boundary,
+   * rather than a lower bound derived from the cell geometry.
+   */
+  public final boolean exact;
+
+  public LabelDistance(Object label, double distance, boolean exact) {
+    this.label = label;
+    this.distance = distance;
+    this.exact = exact;
+  }
+
+  @Override
+  public String toString() {
+    return "LD " + label + " " + (exact ? "at " : "at least ") + distance;
+  }
+}
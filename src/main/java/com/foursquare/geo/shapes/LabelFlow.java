@@ -0,0 +1,54 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+/**
+ * Interfaces for streams with backpressure, with the same methods and rules as those of
+ * java.util.concurrent.Flow and Reactive Streams, for builds on Java 8. A subscriber
+ * receives no more items than it has requested, and items are never null.
+ * Adapting them to java.util.concurrent.Flow only requires forwarding each method.
+ */
+public final class LabelFlow {
+  private LabelFlow() {
+
+  }
+
+  /**
+   * A producer of items, each received by its subscribers
+   */
+  public interface Publisher<T> {
+    void subscribe(Subscriber<? super T> subscriber);
+  }
+
+  /**
+   * A receiver of items, which it asks for through its subscription
+   */
+  public interface Subscriber<T> {
+    void onSubscribe(Subscription subscription);
+
+    void onNext(T item);
+
+    void onError(Throwable throwable);
+
+    void onComplete();
+  }
+
+  /**
+   * The link between a publisher and a subscriber
+   */
+  public interface Subscription {
+    /**
+     * Asks for up to n more items
+     * @param n the number of items, which must be positive
+     */
+    void request(long n);
+
+    void cancel();
+  }
+
+  /**
+   * A stage that subscribes to one stream and publishes another
+   */
+  public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+  }
+}
@@ -6,16 +6,29 @@ import com.foursquare.geo.shapes.indexing.CellLocation;
 import com.foursquare.geo.shapes.indexing.CellLocationReference;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Simplifies a Shapefile by perfoming two actions:
@@ -27,6 +40,10 @@ import java.util.Map;
  */
 public class LabeledGridSimplifier {
   static final Logger logger = LoggerFactory.getLogger(LabeledGridSimplifier.class);
+  /* Number of input features split into top-level cells at once when partitioning */
+  static final int PartitionBatchSize = 1000;
+  /* Number of child cells overlapping a feature's envelope before the feature is prepared for covering checks */
+  static final int PreparedCellThreshold = 4;
 
   private LabeledGridSimplifier() {
 
@@ -47,12 +64,24 @@ public class LabeledGridSimplifier {
 
   // Equivalent to a "map"
   private static List<FeatureEntry> makeSubFeatures(FeatureEntry featureEntry) {
+    return makeSubFeatures(featureEntry, null);
+  }
+
+  /**
+   * Splits a feature into the child cells of its location
+   * @param featureEntry the feature
+   * @param childLocations the child cells to split into, or null for all
+   * @return the sub-features
+   */
+  private static List<FeatureEntry> makeSubFeatures(FeatureEntry featureEntry, Set<CellLocation> childLocations) {
     List<FeatureEntry> subFeatures = new ArrayList<FeatureEntry>();
-    Envelope envelope = featureEntry.location.envelope();
-    int numChildCells = featureEntry.location.reference.getLevelSize(
-      featureEntry.location.level());
-    double childWidth = envelope.getWidth() / numChildCells;
-    double childHeight = envelope.getHeight() / numChildCells;
+    CellLocation location = featureEntry.location;
+    CellLocationReference reference = location.reference;
+    GeometryFactory geometryFactory = reference.getGeometryFactory();
+    Envelope envelope = location.envelope();
+    int numChildCells = reference.getLevelSize(location.level());
+    double childWidth = reference.getCellWidth(location.level() + 1);
+    double childHeight = reference.getCellHeight(location.level() + 1);
     double startX = envelope.getMinX();
     double startY = envelope.getMinY();
 
@@ -63,28 +92,46 @@ public class LabeledGridSimplifier {
     int childCellYMin = (int) ((geomEnvelope.getMinY() - startY) / childHeight);
     int childCellYMax = Math.min(numChildCells - 1, (int) ((geomEnvelope.getMaxY() - startY) / childHeight));
 
+    // Covering checks against many cells amortize the cost of indexing the geometry
+    int numCandidateCells = (childCellXMax - childCellXMin + 1) * (childCellYMax - childCellYMin + 1);
+    PreparedGeometry preparedGeometry = numCandidateCells >= PreparedCellThreshold ?
+      PreparedGeometryFactory.prepare(featureEntry.geometry) :
+      null;
+
     try {
       // then just split geometry by the grid intersections, creating a new feature for each
       for (int longIdx = childCellXMin; longIdx <= childCellXMax; ++longIdx) {
         for (int latIdx = childCellYMin; latIdx <= childCellYMax; ++latIdx) {
-          CellLocation childLocation = featureEntry.location.child(longIdx, latIdx);
-          Geometry cellEnvelope = childLocation.envelopeGeometry();
-          if (cellEnvelope.intersects(featureEntry.geometry)) {
-              subFeatures.add(new FeatureEntry(
-                childLocation,
-                featureEntry.getLabelEntry(),
-                featureEntry.isWeakLabel(),
-                cellEnvelope.intersection(featureEntry.geometry)
-              ));
-
+          CellLocation childLocation = location.child(longIdx, latIdx);
+          if (childLocations != null && !childLocations.contains(childLocation)) {
+            continue;
+          }
+          double childMinX = startX + childWidth * longIdx;
+          double childMinY = startY + childHeight * latIdx;
+          Envelope childEnvelope = new Envelope(
+            childMinX,
+            childMinX + childWidth,
+            childMinY,
+            childMinY + childHeight
+          );
+          Geometry clipped = clipToCell(featureEntry.geometry, preparedGeometry, childEnvelope, geometryFactory);
+          if (clipped != null && !clipped.isEmpty()) {
+            subFeatures.add(new FeatureEntry(
+              childLocation,
+              featureEntry.getLabelEntry(),
+              featureEntry.isWeakLabel(),
+              clipped
+            ));
           }
         }
       }
     } catch (TopologyException te) {
+      SimplificationReport.topologyFallback();
       logger.warn("Failed to intersect geometry for entry: " + featureEntry);
       subFeatures.clear();
       subFeatures.add(featureEntry);
     } catch (IllegalArgumentException ie) {
+      SimplificationReport.topologyFallback();
       logger.warn("Failed to intersect GeometryCollection for entry: " + featureEntry);
       subFeatures.clear();
       subFeatures.add(featureEntry);
@@ -92,13 +139,49 @@ public class LabeledGridSimplifier {
     return subFeatures;
   }
 
+  /**
+   * Clips a geometry to a cell. Cells covered by the geometry are returned as
+   * rectangles, and polygons are clipped with a {@link RectangleClipper}, falling
+   * back to a general intersection for other geometries.
+   * @return the clipped geometry, or null if it does not intersect the cell
+   */
+  private static Geometry clipToCell(
+    Geometry geometry,
+    PreparedGeometry preparedGeometry,
+    Envelope cellEnvelope,
+    GeometryFactory geometryFactory
+  ) {
+    Geometry cellGeometry = null;
+    if (preparedGeometry != null) {
+      cellGeometry = geometryFactory.toGeometry(cellEnvelope);
+      if (!preparedGeometry.intersects(cellGeometry)) {
+        return null;
+      } else if (preparedGeometry.covers(cellGeometry)) {
+        return cellGeometry;
+      }
+    }
+    Geometry clipped = new RectangleClipper(cellEnvelope, geometryFactory).clip(geometry);
+    if (clipped != null) {
+      return clipped;
+    }
+    if (cellGeometry == null) {
+      cellGeometry = geometryFactory.toGeometry(cellEnvelope);
+    }
+    if (cellGeometry.intersects(geometry)) {
+      return cellGeometry.intersection(geometry);
+    }
+    return null;
+  }
+
   // Equivalent to a "reduce"
   private static SimplifiedFeatureEntries simplifySubFeatures(
     CellLocationReference reference,
     CellLocation location,
     List<FeatureEntry> coLocatedSubFeatures,
     boolean simplifySingleLabelCells,
-    boolean finalRound
+    boolean finalRound,
+    ForkJoinPool pool,
+    BorderSimplifier borderSimplifier
   ) {
     List<FeatureEntry> simplifiedSubFeatures = new ArrayList<FeatureEntry>();
 
@@ -140,7 +223,10 @@ public class LabeledGridSimplifier {
           labeledGeoms.add(ImmutablePair.of(entry.getLabel(), entry.geometry));
         }
         List<ImmutablePair<Object, Geometry>> unionedGeoms =
-          SimplifierUtils.unionByLabel(reference.getGeometryFactory(), labeledGeoms);
+          SimplifierUtils.unionByLabel(reference.getGeometryFactory(), labeledGeoms, pool);
+        if (borderSimplifier != null) {
+          unionedGeoms = borderSimplifier.simplify(reference.getGeometryFactory(), location, unionedGeoms);
+        }
         for (ImmutablePair<Object, Geometry> labeledGeom: unionedGeoms) {
           simplifiedSubFeatures.add(first.sibling(
             labeledGeom.getLeft(),
@@ -156,45 +242,166 @@ public class LabeledGridSimplifier {
     }
   }
 
+  /**
+   * A sub-feature tagged with the position of the feature it was split from,
+   * so cell groups built concurrently can be put back in input order.
+   */
+  private static class IndexedSubFeature implements Comparable<IndexedSubFeature> {
+    public final int featureIndex;
+    public final FeatureEntry subFeature;
+    public IndexedSubFeature(int featureIndex, FeatureEntry subFeature) {
+      this.featureIndex = featureIndex;
+      this.subFeature = subFeature;
+    }
+
+    @Override
+    public int compareTo(IndexedSubFeature other) {
+      return featureIndex < other.featureIndex ? -1 : (featureIndex == other.featureIndex ? 0 : 1);
+    }
+  }
+
   private static List<FeatureEntry> iterativelySimplify(
-    CellLocationReference reference,
+    final CellLocationReference reference,
     List<FeatureEntry> origFeatures,
-    boolean simplifySingleLabelCells
+    final boolean simplifySingleLabelCells,
+    int startLevel,
+    ForkJoinPool pool,
+    BorderSimplifier borderSimplifier
+  ) {
+    return iterativelySimplify(
+      reference,
+      origFeatures,
+      simplifySingleLabelCells,
+      startLevel,
+      pool,
+      null,
+      null,
+      borderSimplifier
+    );
+  }
+
+  private static List<FeatureEntry> iterativelySimplify(
+    final CellLocationReference reference,
+    List<FeatureEntry> origFeatures,
+    final boolean simplifySingleLabelCells,
+    int startLevel,
+    final ForkJoinPool pool,
+    SimplificationCheckpoint checkpoint,
+    SimplificationReport report,
+    final BorderSimplifier borderSimplifier
   ) {
     List<FeatureEntry> finalSimplified = new ArrayList<FeatureEntry>();
     List<FeatureEntry> currentFeatures = origFeatures;
 
+    if (checkpoint != null) {
+      int lastRound = checkpoint.lastRound();
+      if (lastRound >= 0) {
+        logger.info("Resuming after round {} from checkpoint", lastRound + 1);
+        try {
+          finalSimplified = checkpoint.readFinished(lastRound, reference);
+          currentFeatures = checkpoint.readRemaining(lastRound, reference);
+        } catch (IOException ioe) {
+          throw new RuntimeException("Failed to read checkpoint of round " + (lastRound + 1), ioe);
+        }
+        startLevel = lastRound + 1;
+      }
+    }
+
     int numLevels = reference.numLevels();
-    for(int iteration = 0; iteration < numLevels; iteration++) {
-      logger.info("iterativelySimplify: round {} of {}", iteration + 1, numLevels);
-      boolean finalRound = iteration == reference.numLevels() - 1;
-      Map<CellLocation, List<FeatureEntry>> subFeatures = new HashMap<CellLocation, List<FeatureEntry>>();
-      // Map feature -> subFeature
-      for (FeatureEntry feature : currentFeatures) {
-        if (SimplifierUtils.isValidGeometry(feature.geometry)) {
-          for (FeatureEntry subFeature : makeSubFeatures(feature)) {
-            if (!subFeatures.containsKey(subFeature.location)) {
-              subFeatures.put(subFeature.location, new ArrayList<FeatureEntry>());
+    for(int iteration = startLevel; iteration < numLevels; iteration++) {
+      if (startLevel == 0 || checkpoint != null) {
+        logger.info("iterativelySimplify: round {} of {}", iteration + 1, numLevels);
+      } else {
+        logger.debug("iterativelySimplify: round {} of {}", iteration + 1, numLevels);
+      }
+      final boolean finalRound = iteration == reference.numLevels() - 1;
+      SimplificationReport.Stage roundStage = report == null ? null : report.startRound("simplify", iteration);
+      final ConcurrentMap<CellLocation, Queue<IndexedSubFeature>> subFeatures =
+        new ConcurrentHashMap<CellLocation, Queue<IndexedSubFeature>>();
+      List<Integer> featureIndices = new ArrayList<Integer>(currentFeatures.size());
+      for (int idx = 0; idx < currentFeatures.size(); ++idx) {
+        featureIndices.add(idx);
+      }
+      final List<FeatureEntry> roundFeatures = currentFeatures;
+      // Map feature -> subFeature, grouping concurrently by cell
+      new ParallelMapper<Integer, Void>() {
+        @Override
+        Void apply(Integer featureIndex) {
+          FeatureEntry feature = roundFeatures.get(featureIndex);
+          if (SimplifierUtils.isValidGeometry(feature.geometry)) {
+            for (FeatureEntry subFeature : makeSubFeatures(feature)) {
+              Queue<IndexedSubFeature> colocated = subFeatures.get(subFeature.location);
+              if (colocated == null) {
+                Queue<IndexedSubFeature> newColocated = new ConcurrentLinkedQueue<IndexedSubFeature>();
+                colocated = subFeatures.putIfAbsent(subFeature.location, newColocated);
+                if (colocated == null) {
+                  colocated = newColocated;
+                }
+              }
+              colocated.add(new IndexedSubFeature(featureIndex, subFeature));
             }
-            subFeatures.get(subFeature.location).add(subFeature);
           }
+          return null;
         }
-      }
+      }.map(pool, featureIndices);
 
-      List<FeatureEntry> mustIterate = new ArrayList<FeatureEntry>();
+      // Visit cells, and the features within them, in a fixed order
+      List<CellLocation> locations = new ArrayList<CellLocation>(subFeatures.keySet());
+      Collections.sort(locations);
 
       // Reduce subFeatures -> simpleFeatures
-      for (Map.Entry<CellLocation, List<FeatureEntry>> colocatedSubFeatures : subFeatures.entrySet()) {
-        SimplifiedFeatureEntries simplified = simplifySubFeatures(
-          reference,
-          colocatedSubFeatures.getKey(),
-          colocatedSubFeatures.getValue(),
-          simplifySingleLabelCells,
-          finalRound
-        );
-        finalSimplified.addAll(simplified.finished);
+      List<SimplifiedFeatureEntries> simplifiedCells = new ParallelMapper<CellLocation, SimplifiedFeatureEntries>() {
+        @Override
+        SimplifiedFeatureEntries apply(CellLocation location) {
+          List<IndexedSubFeature> indexedSubFeatures = new ArrayList<IndexedSubFeature>(subFeatures.get(location));
+          Collections.sort(indexedSubFeatures);
+          List<FeatureEntry> colocatedSubFeatures = new ArrayList<FeatureEntry>(indexedSubFeatures.size());
+          for (IndexedSubFeature indexedSubFeature: indexedSubFeatures) {
+            colocatedSubFeatures.add(indexedSubFeature.subFeature);
+          }
+          return simplifySubFeatures(
+            reference,
+            location,
+            colocatedSubFeatures,
+            simplifySingleLabelCells,
+            finalRound,
+            pool,
+            borderSimplifier
+          );
+        }
+      }.map(pool, locations);
+
+      List<FeatureEntry> roundFinished = new ArrayList<FeatureEntry>();
+      List<FeatureEntry> mustIterate = new ArrayList<FeatureEntry>();
+      int cellsEmitted = 0;
+      int cellsCarriedOver = 0;
+      for (SimplifiedFeatureEntries simplified: simplifiedCells) {
+        roundFinished.addAll(simplified.finished);
         mustIterate.addAll(simplified.toSimplify);
+        if (!simplified.finished.isEmpty()) {
+          ++cellsEmitted;
+        }
+        if (!simplified.toSimplify.isEmpty()) {
+          ++cellsCarriedOver;
+        }
+      }
+      if (roundStage != null) {
+        roundStage.put("inputFeatures", roundFeatures.size());
+        roundStage.put("cells", locations.size());
+        roundStage.put("cellsEmitted", cellsEmitted);
+        roundStage.put("cellsCarriedOver", cellsCarriedOver);
+        roundStage.put("carriedOverFeatures", mustIterate.size());
+        roundStage.countFeatures(roundFinished);
+        roundStage.end();
       }
+      if (checkpoint != null) {
+        try {
+          checkpoint.writeRound(iteration, roundFinished, mustIterate);
+        } catch (IOException ioe) {
+          throw new RuntimeException("Failed to checkpoint round " + (iteration + 1), ioe);
+        }
+      }
+      finalSimplified.addAll(roundFinished);
       currentFeatures = mustIterate;
     }
 
@@ -219,6 +426,357 @@ public class LabeledGridSimplifier {
     List<FeatureEntry> features,
     boolean simplifySingleLabelCells
   ) {
-    return iterativelySimplify(reference, features, simplifySingleLabelCells);
+    return simplify(reference, features, simplifySingleLabelCells, new SimplificationOptions());
+  }
+
+  /**
+   * Simplify the set of features, splitting and reducing the cells of each round in parallel.
+   * The output is the same, in the same order, for any number of threads.
+   * @param reference the location reference (bounding box, etc)
+   * @param features the input set of features
+   * @param simplifySingleLabelCells see {@link #simplify(CellLocationReference, List, boolean)}
+   * @param numThreads the number of threads to use. 1 simplifies on the calling thread.
+   * @return a set of simplified features
+   */
+  public static Iterable<FeatureEntry> simplify(
+    CellLocationReference reference,
+    List<FeatureEntry> features,
+    boolean simplifySingleLabelCells,
+    int numThreads
+  ) {
+    return simplify(
+      reference,
+      features,
+      simplifySingleLabelCells,
+      new SimplificationOptions().numThreads(numThreads)
+    );
+  }
+
+  /**
+   * Simplify the set of features with the given options. If the checkpoint has completed
+   * rounds, simplification resumes after the last of them, and the input features are not
+   * used. The report records each round, and the border simplifier simplifies the borders
+   * between labels in cells that keep more than one label.
+   * @param reference the location reference (bounding box, etc)
+   * @param features the input set of features
+   * @param simplifySingleLabelCells see {@link #simplify(CellLocationReference, List, boolean)}
+   * @param options the number of threads, checkpoint, report and border simplifier
+   * @return a set of simplified features
+   */
+  static Iterable<FeatureEntry> simplify(
+    CellLocationReference reference,
+    List<FeatureEntry> features,
+    boolean simplifySingleLabelCells,
+    SimplificationOptions options
+  ) {
+    int numThreads = options.numThreads();
+    ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+    try {
+      return iterativelySimplify(
+        reference,
+        features,
+        simplifySingleLabelCells,
+        0,
+        pool,
+        options.checkpoint(),
+        options.report(),
+        options.borderSimplifier()
+      );
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Fully simplifies the features of a single cell that have not yet been reduced
+   */
+  private static List<FeatureEntry> simplifyCell(
+    CellLocationReference reference,
+    CellLocation location,
+    List<FeatureEntry> colocatedSubFeatures,
+    boolean simplifySingleLabelCells,
+    ForkJoinPool pool,
+    BorderSimplifier borderSimplifier
+  ) {
+    SimplifiedFeatureEntries simplified = simplifySubFeatures(
+      reference,
+      location,
+      colocatedSubFeatures,
+      simplifySingleLabelCells,
+      location.level() == reference.numLevels(),
+      pool,
+      borderSimplifier
+    );
+    List<FeatureEntry> cellSimplified = new ArrayList<FeatureEntry>(simplified.finished);
+    cellSimplified.addAll(iterativelySimplify(
+      reference,
+      simplified.toSimplify,
+      simplifySingleLabelCells,
+      location.level(),
+      pool,
+      borderSimplifier
+    ));
+    return cellSimplified;
+  }
+
+  private static void partitionBatch(
+    ForkJoinPool pool,
+    FeaturePartitioner partitioner,
+    List<FeatureEntry> batch
+  ) throws IOException {
+    List<List<FeatureEntry>> batchSubFeatures = new ParallelMapper<FeatureEntry, List<FeatureEntry>>() {
+      @Override
+      List<FeatureEntry> apply(FeatureEntry feature) {
+        if (SimplifierUtils.isValidGeometry(feature.geometry)) {
+          return makeSubFeatures(feature);
+        } else {
+          return Collections.emptyList();
+        }
+      }
+    }.map(pool, batch);
+    for (List<FeatureEntry> subFeatures: batchSubFeatures) {
+      for (FeatureEntry subFeature: subFeatures) {
+        partitioner.add(subFeature);
+      }
+    }
+    batch.clear();
+  }
+
+  /**
+   * Simplifies the partitioned features one top-level cell at a time
+   */
+  private static class DepthFirstIterator implements Iterator<FeatureEntry> {
+    private final CellLocationReference reference;
+    private final boolean simplifySingleLabelCells;
+    private final ForkJoinPool pool;
+    private final FeaturePartitioner partitioner;
+    private final BorderSimplifier borderSimplifier;
+    private final List<CellLocation> locations;
+    private int nextLocation;
+    private Iterator<FeatureEntry> cellFeatures;
+
+    public DepthFirstIterator(
+      CellLocationReference reference,
+      boolean simplifySingleLabelCells,
+      ForkJoinPool pool,
+      FeaturePartitioner partitioner,
+      BorderSimplifier borderSimplifier
+    ) {
+      this.reference = reference;
+      this.simplifySingleLabelCells = simplifySingleLabelCells;
+      this.pool = pool;
+      this.partitioner = partitioner;
+      this.borderSimplifier = borderSimplifier;
+      this.locations = partitioner.locations();
+      this.nextLocation = 0;
+      this.cellFeatures = Collections.<FeatureEntry>emptyList().iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!cellFeatures.hasNext()) {
+        if (nextLocation >= locations.size()) {
+          close();
+          return false;
+        }
+        CellLocation location = locations.get(nextLocation++);
+        logger.info("Simplifying top-level cell {} ({} of {})", location, nextLocation, locations.size());
+        try {
+          cellFeatures = simplifyCell(
+            reference,
+            location,
+            partitioner.remove(location),
+            simplifySingleLabelCells,
+            pool,
+            borderSimplifier
+          ).iterator();
+        } catch (IOException ioe) {
+          close();
+          throw new RuntimeException("Failed to read features of cell " + location, ioe);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public FeatureEntry next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return cellFeatures.next();
+    }
+
+    private void close() {
+      partitioner.close();
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Simplify the set of features depth-first: the input is partitioned by top-level
+   * cell, spilling to disk past a memory bound, and then each top-level cell is simplified
+   * to full depth on its own. Simplified features are produced as they are iterated,
+   * so peak memory is bounded by a single top-level cell, rather than by all features.
+   * @param reference the location reference (bounding box, etc)
+   * @param features the input set of features, which is only iterated once
+   * @param simplifySingleLabelCells see {@link #simplify(CellLocationReference, List, boolean)}
+   * @param numThreads the number of threads to use. 1 simplifies on the calling thread.
+   * @param spillDirectory an existing directory for temporary partition files
+   * @param maxBufferedCoordinates the number of partitioned coordinates to hold in memory before spilling
+   * @return a set of simplified features, in top-level cell order, which can be iterated once
+   * @throws IOException if partitioned features cannot be spilled to disk
+   */
+  public static Iterable<FeatureEntry> simplifyDepthFirst(
+    CellLocationReference reference,
+    Iterable<FeatureEntry> features,
+    boolean simplifySingleLabelCells,
+    int numThreads,
+    File spillDirectory,
+    long maxBufferedCoordinates
+  ) throws IOException {
+    return simplifyDepthFirst(
+      reference,
+      features,
+      simplifySingleLabelCells,
+      numThreads,
+      spillDirectory,
+      maxBufferedCoordinates,
+      null
+    );
+  }
+
+  /**
+   * Simplify the set of features depth-first, simplifying the borders between labels in
+   * cells that keep more than one label.
+   * @param reference the location reference (bounding box, etc)
+   * @param features the input set of features, which is only iterated once
+   * @param simplifySingleLabelCells see {@link #simplify(CellLocationReference, List, boolean)}
+   * @param numThreads the number of threads to use. 1 simplifies on the calling thread.
+   * @param spillDirectory an existing directory for temporary partition files
+   * @param maxBufferedCoordinates the number of partitioned coordinates to hold in memory before spilling
+   * @param borderSimplifier the simplifier of borders in mixed cells, or null to keep them in full
+   * @return a set of simplified features, in top-level cell order, which can be iterated once
+   * @throws IOException if partitioned features cannot be spilled to disk
+   */
+  static Iterable<FeatureEntry> simplifyDepthFirst(
+    final CellLocationReference reference,
+    Iterable<FeatureEntry> features,
+    final boolean simplifySingleLabelCells,
+    int numThreads,
+    File spillDirectory,
+    long maxBufferedCoordinates,
+    final BorderSimplifier borderSimplifier
+  ) throws IOException {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be positive, but is " + numThreads);
+    }
+    final ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+    final FeaturePartitioner partitioner = new FeaturePartitioner(reference, spillDirectory, maxBufferedCoordinates);
+    boolean partitioned = false;
+    try {
+      logger.info("Partitioning features by top-level cell");
+      List<FeatureEntry> batch = new ArrayList<FeatureEntry>(PartitionBatchSize);
+      for (FeatureEntry feature: features) {
+        batch.add(feature);
+        if (batch.size() >= PartitionBatchSize) {
+          partitionBatch(pool, partitioner, batch);
+        }
+      }
+      partitionBatch(pool, partitioner, batch);
+      partitioned = true;
+    } finally {
+      if (!partitioned) {
+        partitioner.close();
+        if (pool != null) {
+          pool.shutdown();
+        }
+      }
+    }
+
+    return new Iterable<FeatureEntry>() {
+      private boolean iterated = false;
+      @Override
+      public Iterator<FeatureEntry> iterator() {
+        if (iterated) {
+          throw new IllegalStateException("Depth-first simplified features can only be iterated once");
+        }
+        iterated = true;
+        return new DepthFirstIterator(reference, simplifySingleLabelCells, pool, partitioner, borderSimplifier);
+      }
+    };
+  }
+
+  /**
+   * Simplify the features of some top-level cells, each to full depth, ignoring
+   * the parts of features outside of them. Used to rebuild only the cells affected by a change.
+   * @param reference the location reference (bounding box, etc)
+   * @param features the input set of features
+   * @param topLevelCells the top-level cells to simplify
+   * @param simplifySingleLabelCells see {@link #simplify(CellLocationReference, List, boolean)}
+   * @param numThreads the number of threads to use. 1 simplifies on the calling thread.
+   * @return the simplified features of each cell with features, in cell order. Features that
+   * could not be split are returned under the root location.
+   */
+  static Map<CellLocation, List<FeatureEntry>> simplifyTopLevelCells(
+    CellLocationReference reference,
+    List<FeatureEntry> features,
+    final Set<CellLocation> topLevelCells,
+    boolean simplifySingleLabelCells,
+    int numThreads
+  ) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be positive, but is " + numThreads);
+    }
+    ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+    try {
+      List<List<FeatureEntry>> featureSubFeatures = new ParallelMapper<FeatureEntry, List<FeatureEntry>>() {
+        @Override
+        List<FeatureEntry> apply(FeatureEntry feature) {
+          if (SimplifierUtils.isValidGeometry(feature.geometry)) {
+            return makeSubFeatures(feature, topLevelCells);
+          } else {
+            return Collections.emptyList();
+          }
+        }
+      }.map(pool, features);
+
+      Map<CellLocation, List<FeatureEntry>> cellSubFeatures = new TreeMap<CellLocation, List<FeatureEntry>>();
+      for (List<FeatureEntry> subFeatures: featureSubFeatures) {
+        for (FeatureEntry subFeature: subFeatures) {
+          List<FeatureEntry> colocated = cellSubFeatures.get(subFeature.location);
+          if (colocated == null) {
+            colocated = new ArrayList<FeatureEntry>();
+            cellSubFeatures.put(subFeature.location, colocated);
+          }
+          colocated.add(subFeature);
+        }
+      }
+
+      Map<CellLocation, List<FeatureEntry>> simplifiedCells = new TreeMap<CellLocation, List<FeatureEntry>>();
+      for (Map.Entry<CellLocation, List<FeatureEntry>> cell: cellSubFeatures.entrySet()) {
+        if (cell.getKey().level() == 0) {
+          simplifiedCells.put(cell.getKey(), cell.getValue());
+        } else {
+          logger.info("Simplifying top-level cell {}", cell.getKey());
+          simplifiedCells.put(cell.getKey(), simplifyCell(
+            reference,
+            cell.getKey(),
+            cell.getValue(),
+            simplifySingleLabelCells,
+            pool,
+            null
+          ));
+        }
+      }
+      return simplifiedCells;
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
   }
 }
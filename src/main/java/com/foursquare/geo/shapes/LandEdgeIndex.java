@@ -0,0 +1,157 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import java.util.List;
+
+/**
+ * A spatial index of the edges of the land features of a {@link CoordinateFeatureIndex},
+ * for deciding whether a water triangle overlaps land by looking only at the land edges
+ * near the triangle. Consecutive edges of a ring are indexed together in chunks, so the
+ * tree holds far fewer items than there are edges.
+ * Once built, the index may be read concurrently.
+ */
+class LandEdgeIndex {
+  /* Number of consecutive ring edges indexed as one item */
+  static final int EdgesPerChunk = 16;
+
+  private static class EdgeChunk {
+    public final int featureId;
+    public final Coordinate[] coords;
+    public final int start;
+    public final int end;
+    public EdgeChunk(int featureId, Coordinate[] coords, int start, int end) {
+      this.featureId = featureId;
+      this.coords = coords;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private final CoordinateFeatureIndex coordIndex;
+  private final STRtree chunks;
+
+  public LandEdgeIndex(CoordinateFeatureIndex coordIndex) {
+    this.coordIndex = coordIndex;
+    this.chunks = new STRtree();
+    for (int featureId = 0; featureId < coordIndex.numFeatures(); ++featureId) {
+      Geometry geometry = coordIndex.geometry(featureId);
+      for (int i = 0; i < geometry.getNumGeometries(); ++i) {
+        Geometry part = geometry.getGeometryN(i);
+        if (part instanceof Polygon) {
+          Polygon polygon = (Polygon) part;
+          addRing(featureId, polygon.getExteriorRing());
+          for (int j = 0; j < polygon.getNumInteriorRing(); ++j) {
+            addRing(featureId, polygon.getInteriorRingN(j));
+          }
+        } else if (part instanceof LineString) {
+          addRing(featureId, (LineString) part);
+        }
+      }
+    }
+    // Build eagerly, so the index is immutable once published
+    chunks.build();
+  }
+
+  private void addRing(int featureId, LineString ring) {
+    Coordinate[] coords = ring.getCoordinates();
+    for (int start = 0; start < coords.length - 1; start += EdgesPerChunk) {
+      int end = Math.min(coords.length - 1, start + EdgesPerChunk);
+      Envelope envelope = new Envelope();
+      for (int idx = start; idx <= end; ++idx) {
+        envelope.expandToInclude(coords[idx]);
+      }
+      chunks.insert(envelope, new EdgeChunk(featureId, coords, start, end));
+    }
+  }
+
+  private static boolean intersects(Envelope envelope, Coordinate p, Coordinate q) {
+    return Math.max(p.x, q.x) >= envelope.getMinX() && Math.min(p.x, q.x) <= envelope.getMaxX() &&
+      Math.max(p.y, q.y) >= envelope.getMinY() && Math.min(p.y, q.y) <= envelope.getMaxY();
+  }
+
+  private static double cross(Coordinate u, Coordinate v, double x, double y) {
+    return (v.x - u.x) * (y - u.y) - (v.y - u.y) * (x - u.x);
+  }
+
+  /**
+   * Whether part of an edge lies strictly inside a counter-clockwise triangle, found by
+   * clipping the edge's parameter interval to the open side of each triangle edge.
+   */
+  private static boolean entersTriangle(Coordinate p, Coordinate q, Coordinate[] triangle) {
+    double tMin = 0;
+    double tMax = 1;
+    for (int i = 0; i < 3; ++i) {
+      double f0 = cross(triangle[i], triangle[i + 1], p.x, p.y);
+      double f1 = cross(triangle[i], triangle[i + 1], q.x, q.y);
+      if (f0 <= 0 && f1 <= 0) {
+        return false;
+      } else if (f0 <= 0 || f1 <= 0) {
+        double t = f0 / (f0 - f1);
+        if (f0 <= 0) {
+          tMin = Math.max(tMin, t);
+        } else {
+          tMax = Math.min(tMax, t);
+        }
+        if (tMin >= tMax) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether a triangle overlaps any of a set of features, as {@link Geometry#overlaps} would
+   * decide. For polygons, a feature overlaps a triangle exactly when the feature's boundary
+   * passes through the triangle's interior, and the feature is not within the triangle.
+   * @param featureIds the ids of the features, as in the {@link CoordinateFeatureIndex}
+   * @param numFeatures the number of ids to read from featureIds
+   * @param triangle the triangle
+   * @return true if any of the features overlaps the triangle
+   */
+  @SuppressWarnings("unchecked")
+  public boolean overlapsAny(int[] featureIds, int numFeatures, Geometry triangle) {
+    Coordinate[] coords = triangle.getCoordinates();
+    double area = cross(coords[0], coords[1], coords[2].x, coords[2].y);
+    if (area == 0) {
+      return false;
+    } else if (area < 0) {
+      coords = new Coordinate[] { coords[0], coords[2], coords[1], coords[0] };
+    }
+    Envelope triangleEnvelope = triangle.getEnvelopeInternal();
+    for (EdgeChunk chunk: (List<EdgeChunk>) chunks.query(triangleEnvelope)) {
+      if (!contains(featureIds, numFeatures, chunk.featureId)) {
+        continue;
+      }
+      for (int idx = chunk.start; idx < chunk.end; ++idx) {
+        Coordinate p = chunk.coords[idx];
+        Coordinate q = chunk.coords[idx + 1];
+        if (intersects(triangleEnvelope, p, q) && entersTriangle(p, q, coords)) {
+          Geometry land = coordIndex.feature(chunk.featureId).geometry;
+          if (!triangleEnvelope.covers(land.getEnvelopeInternal()) || !land.coveredBy(triangle)) {
+            return true;
+          }
+          break;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean contains(int[] values, int length, int value) {
+    for (int idx = 0; idx < length; ++idx) {
+      if (values[idx] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,235 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.vividsolutions.jts.geom.Envelope;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A sampling profiler of the cells hit by lookups, to find where lookups spend their time.
+ * Attach it to loaded values with {@link SimplifiedShapefileGeo#profiled}. One in every
+ * sampleInterval lookups, chosen at random, is timed and counted against the cell it was
+ * resolved in, so unsampled lookups only pay for drawing a random number. Counters are
+ * lock-free, and may be read while lookups run.
+ * The profile is exported as a JSON report, or as a GeoJSON heatmap of cell envelopes.
+ */
+public class LookupProfiler {
+  static final int DefaultSampleInterval = 64;
+
+  private final int sampleInterval;
+  private final ConcurrentMap<CellLocation, CellCounters> cells = new ConcurrentHashMap<CellLocation, CellCounters>();
+
+  private static class CellCounters {
+    public final boolean mixed;
+    public final LongAdder hits = new LongAdder();
+    public final LongAdder nanos = new LongAdder();
+
+    public CellCounters(boolean mixed) {
+      this.mixed = mixed;
+    }
+  }
+
+  /**
+   * The sampled lookups of a cell, scaled by the sample interval to estimate all lookups
+   */
+  public static class CellProfile {
+    public final CellLocation location;
+    /**
+     * Whether the cell holds more than one label, so lookups test geometries
+     */
+    public final boolean mixed;
+    /**
+     * The estimated number of lookups
+     */
+    public final long hits;
+    /**
+     * The estimated total time of lookups within the cell, in nanoseconds
+     */
+    public final long nanos;
+
+    public CellProfile(CellLocation location, boolean mixed, long hits, long nanos) {
+      this.location = location;
+      this.mixed = mixed;
+      this.hits = hits;
+      this.nanos = nanos;
+    }
+
+    @Override
+    public String toString() {
+      return "CP " + location + (mixed ? " mixed" : "") + ": " + hits + " hits, " + nanos + "ns";
+    }
+  }
+
+  public LookupProfiler() {
+    this(DefaultSampleInterval);
+  }
+
+  /**
+   * @param sampleInterval the profiler samples one in this many lookups on average, or all when 1
+   */
+  public LookupProfiler(int sampleInterval) {
+    if (sampleInterval < 1) {
+      throw new IllegalArgumentException("sampleInterval must be positive, but is " + sampleInterval);
+    }
+    this.sampleInterval = sampleInterval;
+  }
+
+  public int sampleInterval() {
+    return sampleInterval;
+  }
+
+  /**
+   * Whether to sample the current lookup
+   */
+  boolean sample() {
+    return sampleInterval == 1 || ThreadLocalRandom.current().nextInt(sampleInterval) == 0;
+  }
+
+  /**
+   * Records a sampled lookup
+   * @param location the cell the lookup was resolved in
+   * @param mixed whether the cell holds more than one label
+   * @param nanos the time taken to resolve the lookup within the cell
+   */
+  void record(CellLocation location, boolean mixed, long nanos) {
+    CellCounters counters = cells.get(location);
+    if (counters == null) {
+      CellCounters newCounters = new CellCounters(mixed);
+      counters = cells.putIfAbsent(location, newCounters);
+      if (counters == null) {
+        counters = newCounters;
+      }
+    }
+    counters.hits.increment();
+    counters.nanos.add(nanos);
+  }
+
+  /**
+   * Discards all samples
+   */
+  public void reset() {
+    cells.clear();
+  }
+
+  /**
+   * The profiles of the cells hit, the most costly first
+   */
+  public List<CellProfile> cellProfiles() {
+    List<CellProfile> profiles = new ArrayList<CellProfile>(cells.size());
+    for (Map.Entry<CellLocation, CellCounters> entry: cells.entrySet()) {
+      CellCounters counters = entry.getValue();
+      profiles.add(new CellProfile(
+        entry.getKey(),
+        counters.mixed,
+        counters.hits.sum() * sampleInterval,
+        counters.nanos.sum() * sampleInterval
+      ));
+    }
+    Collections.sort(profiles, new Comparator<CellProfile>() {
+      @Override
+      public int compare(CellProfile a, CellProfile b) {
+        if (a.nanos != b.nanos) {
+          return a.nanos > b.nanos ? -1 : 1;
+        }
+        return a.location.compareTo(b.location);
+      }
+    });
+    return profiles;
+  }
+
+  private static void appendProperties(StringBuilder json, CellProfile profile) {
+    json.append("\"cell\": ");
+    SimplificationReport.appendJson(json, profile.location.attributeValue());
+    json.append(", \"level\": ").append(profile.location.level());
+    json.append(", \"mixed\": ").append(profile.mixed);
+    json.append(", \"hits\": ").append(profile.hits);
+    json.append(", \"nanos\": ").append(profile.nanos);
+    json.append(", \"meanNanos\": ").append(profile.hits == 0 ? 0 : profile.nanos / profile.hits);
+  }
+
+  /**
+   * The profile as a JSON object, with the cells hit listed most costly first
+   */
+  public String toJson() {
+    List<CellProfile> profiles = cellProfiles();
+    long hits = 0;
+    long nanos = 0;
+    for (CellProfile profile: profiles) {
+      hits += profile.hits;
+      nanos += profile.nanos;
+    }
+    StringBuilder json = new StringBuilder();
+    json.append("{\n  \"sampleInterval\": ").append(sampleInterval);
+    json.append(",\n  \"hits\": ").append(hits);
+    json.append(",\n  \"nanos\": ").append(nanos);
+    json.append(",\n  \"cells\": [");
+    String separator = "\n";
+    for (CellProfile profile: profiles) {
+      json.append(separator).append("    {");
+      appendProperties(json, profile);
+      json.append('}');
+      separator = ",\n";
+    }
+    json.append("\n  ]\n}\n");
+    return json.toString();
+  }
+
+  /**
+   * The profile as a GeoJSON FeatureCollection, with a polygon for each cell hit
+   * and its profile as properties
+   */
+  public String toGeoJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\"type\": \"FeatureCollection\", \"features\": [");
+    String separator = "\n";
+    for (CellProfile profile: cellProfiles()) {
+      Envelope envelope = profile.location.envelope();
+      json.append(separator);
+      json.append("{\"type\": \"Feature\", \"geometry\": {\"type\": \"Polygon\", \"coordinates\": [[");
+      json.append('[').append(envelope.getMinX()).append(", ").append(envelope.getMinY()).append("], ");
+      json.append('[').append(envelope.getMaxX()).append(", ").append(envelope.getMinY()).append("], ");
+      json.append('[').append(envelope.getMaxX()).append(", ").append(envelope.getMaxY()).append("], ");
+      json.append('[').append(envelope.getMinX()).append(", ").append(envelope.getMaxY()).append("], ");
+      json.append('[').append(envelope.getMinX()).append(", ").append(envelope.getMinY()).append(']');
+      json.append("]]}, \"properties\": {");
+      appendProperties(json, profile);
+      json.append("}}");
+      separator = ",\n";
+    }
+    json.append("\n]}\n");
+    return json.toString();
+  }
+
+  private static void write(File file, String contents) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    try {
+      writer.write(contents);
+    } finally {
+      writer.close();
+    }
+  }
+
+  public void writeJson(File file) throws IOException {
+    write(file, toJson());
+  }
+
+  public void writeGeoJson(File file) throws IOException {
+    write(file, toGeoJson());
+  }
+}
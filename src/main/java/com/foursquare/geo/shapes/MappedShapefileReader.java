@@ -0,0 +1,364 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the polygons and attributes of a Shapefile by memory-mapping its .shp and .dbf
+ * files, without GeoTools features. Only the requested attributes are decoded, and rings
+ * are decoded straight into packed coordinate arrays. Records are read in order with
+ * {@link #next}; deleted records and null shapes are skipped.
+ * Polygons are assembled as GeoTools does: clockwise rings are shells, and each
+ * counter-clockwise ring is a hole of the smallest shell containing it.
+ */
+class MappedShapefileReader {
+  static final int ShpFileCode = 9994;
+  static final int ShpHeaderLength = 100;
+  static final int NullShape = 0;
+  static final int PolygonShape = 5;
+  static final int PolygonZShape = 15;
+  static final int PolygonMShape = 25;
+  static final byte DbfHeaderTerminator = 0x0d;
+  static final int DbfFieldDescriptorLength = 32;
+  static final byte DbfDeletedFlag = '*';
+
+  /* Packs the decoded rings' coordinates into flat double arrays */
+  private static final GeometryFactory PackedFactory = new GeometryFactory(
+    new PackedCoordinateSequenceFactory(PackedCoordinateSequenceFactory.DOUBLE, 2)
+  );
+
+  private final MappedByteBuffer shp;
+  private final MappedByteBuffer dbf;
+  private final Charset charset;
+  private final Envelope bounds;
+  private final List<String> fieldNames = new ArrayList<String>();
+  private final List<Character> fieldTypes = new ArrayList<Character>();
+  private final List<Integer> fieldOffsets = new ArrayList<Integer>();
+  private final List<Integer> fieldLengths = new ArrayList<Integer>();
+  private final List<Integer> fieldDecimals = new ArrayList<Integer>();
+  private final int numRecords;
+  private final int dbfHeaderLength;
+  private final int dbfRecordLength;
+
+  // The current record
+  private int recordIdx = -1;
+  private int dbfRecordOffset;
+  private Geometry geometry;
+
+  /**
+   * Maps a Shapefile
+   * @param shpFile the .shp file, next to a .dbf file of the same name
+   * @param charset the charset of the .dbf text attributes
+   * @throws IOException if the files cannot be mapped or are not polygon Shapefiles
+   */
+  public MappedShapefileReader(File shpFile, Charset charset) throws IOException {
+    this.charset = charset;
+    shp = map(shpFile);
+    dbf = map(sibling(shpFile, "dbf"));
+
+    shp.order(ByteOrder.BIG_ENDIAN);
+    if (shp.getInt(0) != ShpFileCode) {
+      throw new IOException(shpFile + " is not a Shapefile");
+    }
+    shp.order(ByteOrder.LITTLE_ENDIAN);
+    int shapeType = shp.getInt(32);
+    if (shapeType != PolygonShape && shapeType != PolygonZShape && shapeType != PolygonMShape) {
+      throw new IOException(shpFile + " has shape type " + shapeType + ", not polygons");
+    }
+    bounds = new Envelope(shp.getDouble(36), shp.getDouble(52), shp.getDouble(44), shp.getDouble(60));
+    shp.position(ShpHeaderLength);
+
+    dbf.order(ByteOrder.LITTLE_ENDIAN);
+    numRecords = dbf.getInt(4);
+    dbfHeaderLength = dbf.getShort(8) & 0xffff;
+    dbfRecordLength = dbf.getShort(10) & 0xffff;
+    // Field values follow the deletion flag of each record
+    int fieldOffset = 1;
+    for (int pos = 32; pos < dbfHeaderLength && dbf.get(pos) != DbfHeaderTerminator; pos += DbfFieldDescriptorLength) {
+      int nameLength = 0;
+      while (nameLength < 11 && dbf.get(pos + nameLength) != 0) {
+        ++nameLength;
+      }
+      fieldNames.add(decode(dbf, pos, nameLength, charset).trim());
+      fieldTypes.add(Character.toUpperCase((char) dbf.get(pos + 11)));
+      int fieldLength = dbf.get(pos + 16) & 0xff;
+      fieldOffsets.add(fieldOffset);
+      fieldLengths.add(fieldLength);
+      fieldDecimals.add(dbf.get(pos + 17) & 0xff);
+      fieldOffset += fieldLength;
+    }
+  }
+
+  private static File sibling(File file, String extension) throws FileNotFoundException {
+    String base = file.getPath().substring(0, file.getPath().length() - 3);
+    for (String candidate: new String[] { extension, extension.toUpperCase() }) {
+      File sibling = new File(base + candidate);
+      if (sibling.exists()) {
+        return sibling;
+      }
+    }
+    throw new FileNotFoundException(base + extension);
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      // The mapping stays valid after the channel is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static String decode(ByteBuffer buffer, int offset, int length, Charset charset) {
+    byte[] bytes = new byte[length];
+    for (int idx = 0; idx < length; ++idx) {
+      bytes[idx] = buffer.get(offset + idx);
+    }
+    return new String(bytes, charset);
+  }
+
+  /**
+   * The envelope of the Shapefile, from its header
+   */
+  public Envelope bounds() {
+    return bounds;
+  }
+
+  public List<String> fieldNames() {
+    return fieldNames;
+  }
+
+  /**
+   * The index of an attribute
+   * @param name the attribute name
+   * @return the index, or -1 if the Shapefile has no such attribute
+   */
+  public int fieldIndex(String name) {
+    return fieldNames.indexOf(name);
+  }
+
+  /**
+   * Moves to the next record with a polygon
+   * @return false after the last record
+   * @throws IOException if a record cannot be read
+   */
+  public boolean next() throws IOException {
+    while (++recordIdx < numRecords && shp.remaining() >= 8) {
+      shp.order(ByteOrder.BIG_ENDIAN);
+      shp.getInt(); // record number
+      int contentLength = shp.getInt() * 2;
+      int contentStart = shp.position();
+      shp.order(ByteOrder.LITTLE_ENDIAN);
+      int shapeType = shp.getInt();
+      dbfRecordOffset = dbfHeaderLength + recordIdx * dbfRecordLength;
+      boolean deleted = dbf.get(dbfRecordOffset) == DbfDeletedFlag;
+      geometry = null;
+      if (!deleted && shapeType != NullShape) {
+        geometry = readPolygons();
+      }
+      shp.position(contentStart + contentLength);
+      if (geometry != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The polygons of the current record
+   */
+  public Geometry geometry() {
+    return geometry;
+  }
+
+  private Geometry readPolygons() throws IOException {
+    shp.position(shp.position() + 32); // record bounding box
+    int numParts = shp.getInt();
+    int numPoints = shp.getInt();
+    int[] partStarts = new int[numParts + 1];
+    for (int part = 0; part < numParts; ++part) {
+      partStarts[part] = shp.getInt();
+    }
+    partStarts[numParts] = numPoints;
+
+    List<LinearRing> shells = new ArrayList<LinearRing>();
+    List<double[]> shellCoords = new ArrayList<double[]>();
+    List<LinearRing> holes = new ArrayList<LinearRing>();
+    List<double[]> holeCoords = new ArrayList<double[]>();
+    for (int part = 0; part < numParts; ++part) {
+      int length = partStarts[part + 1] - partStarts[part];
+      if (length < 0) {
+        throw new IOException("Record " + recordIdx + " has parts out of order");
+      }
+      double[] coords = new double[length * 2];
+      for (int idx = 0; idx < coords.length; ++idx) {
+        coords[idx] = shp.getDouble();
+      }
+      if (length < 4) {
+        continue;
+      }
+      LinearRing ring = PackedFactory.createLinearRing(new PackedCoordinateSequence.Double(coords, 2));
+      if (signedArea(coords) > 0) {
+        holes.add(ring);
+        holeCoords.add(coords);
+      } else {
+        shells.add(ring);
+        shellCoords.add(coords);
+      }
+    }
+    if (shells.isEmpty()) {
+      // Rings of the wrong orientation are taken as shells
+      shells = holes;
+      shellCoords = holeCoords;
+      holes = new ArrayList<LinearRing>();
+      holeCoords = new ArrayList<double[]>();
+    }
+    if (shells.isEmpty()) {
+      return null;
+    }
+
+    List<List<LinearRing>> shellHoles = new ArrayList<List<LinearRing>>();
+    for (int idx = 0; idx < shells.size(); ++idx) {
+      shellHoles.add(new ArrayList<LinearRing>());
+    }
+    for (int holeIdx = 0; holeIdx < holes.size(); ++holeIdx) {
+      LinearRing hole = holes.get(holeIdx);
+      int shellIdx = shells.size() == 1 ? 0 : containingShell(shells, shellCoords, hole, holeCoords.get(holeIdx));
+      if (shellIdx < 0) {
+        // A hole outside of every shell is a shell of its own
+        shells.add(hole);
+        shellCoords.add(holeCoords.get(holeIdx));
+        shellHoles.add(new ArrayList<LinearRing>());
+      } else {
+        shellHoles.get(shellIdx).add(hole);
+      }
+    }
+    Polygon[] polygons = new Polygon[shells.size()];
+    for (int idx = 0; idx < polygons.length; ++idx) {
+      List<LinearRing> ringHoles = shellHoles.get(idx);
+      polygons[idx] = PackedFactory.createPolygon(
+        shells.get(idx),
+        ringHoles.toArray(new LinearRing[ringHoles.size()])
+      );
+    }
+    return PackedFactory.createMultiPolygon(polygons);
+  }
+
+  /**
+   * Twice the signed area of a closed ring of x, y ordinates, which is positive when the
+   * ring is counter-clockwise
+   */
+  static double signedArea(double[] ring) {
+    double area = 0;
+    for (int idx = 0; idx + 3 < ring.length; idx += 2) {
+      area += ring[idx] * ring[idx + 3] - ring[idx + 2] * ring[idx + 1];
+    }
+    return area;
+  }
+
+  /**
+   * Locates a point against a closed ring of x, y ordinates
+   * @return 1 if the point is inside the ring, 0 if it is on the ring, or -1 if it is outside
+   */
+  static int locateInRing(double x, double y, double[] ring) {
+    boolean inside = false;
+    for (int idx = 0; idx + 3 < ring.length; idx += 2) {
+      double x1 = ring[idx];
+      double y1 = ring[idx + 1];
+      double x2 = ring[idx + 2];
+      double y2 = ring[idx + 3];
+      if ((x - x1) * (y2 - y1) == (y - y1) * (x2 - x1) &&
+        Math.min(x1, x2) <= x && x <= Math.max(x1, x2) &&
+        Math.min(y1, y2) <= y && y <= Math.max(y1, y2)) {
+        return 0;
+      }
+      if ((y1 > y) != (y2 > y) && x < x1 + (y - y1) * (x2 - x1) / (y2 - y1)) {
+        inside = !inside;
+      }
+    }
+    return inside ? 1 : -1;
+  }
+
+  /**
+   * The index of the smallest shell containing a hole, or -1
+   */
+  private static int containingShell(
+    List<LinearRing> shells,
+    List<double[]> shellCoords,
+    LinearRing hole,
+    double[] holeCoords
+  ) {
+    Envelope holeEnvelope = hole.getEnvelopeInternal();
+    int minShellIdx = -1;
+    Envelope minEnvelope = null;
+    for (int idx = 0; idx < shellCoords.size(); ++idx) {
+      Envelope shellEnvelope = shells.get(idx).getEnvelopeInternal();
+      if (!shellEnvelope.contains(holeEnvelope) ||
+        (minEnvelope != null && !minEnvelope.contains(shellEnvelope))) {
+        continue;
+      }
+      for (int coordIdx = 0; coordIdx + 1 < holeCoords.length; coordIdx += 2) {
+        int location = locateInRing(holeCoords[coordIdx], holeCoords[coordIdx + 1], shellCoords.get(idx));
+        if (location != 0) {
+          if (location > 0) {
+            minShellIdx = idx;
+            minEnvelope = shellEnvelope;
+          }
+          break;
+        }
+      }
+    }
+    return minShellIdx;
+  }
+
+  /**
+   * Decodes an attribute of the current record. Character values are trimmed, and
+   * numeric values are decoded as an Integer, Long or Double, as GeoTools would.
+   * @param field the index of the attribute
+   * @return the value, or null if it is blank
+   */
+  public Object value(int field) {
+    int offset = dbfRecordOffset + fieldOffsets.get(field);
+    String text = decode(dbf, offset, fieldLengths.get(field), charset).trim();
+    char type = fieldTypes.get(field);
+    if (type == 'C') {
+      return text;
+    } else if (text.isEmpty()) {
+      return null;
+    } else if (type == 'N' || type == 'F') {
+      try {
+        if (fieldDecimals.get(field) > 0 || type == 'F') {
+          return Double.parseDouble(text);
+        } else if (fieldLengths.get(field) < 10) {
+          return Integer.parseInt(text);
+        } else {
+          return Long.parseLong(text);
+        }
+      } catch (NumberFormatException nfe) {
+        return null;
+      }
+    } else {
+      return text;
+    }
+  }
+}
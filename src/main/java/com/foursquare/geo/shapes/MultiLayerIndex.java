@@ -0,0 +1,87 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Several layers of loaded values, such as timezones, countries and regions, looked up
+ * together. Each lookup returns the label of every layer. Layers indexed by the same
+ * cells, as when simplified with the same --bounds and level sizes, share a
+ * single probe: the coordinate's cell and its ancestors are found once, and each layer
+ * only looks them up. Other layers, and the sampled lookups of profiled or refining layers,
+ * find their own cells. Each thread reuses its probes, so lookups allocate little beyond
+ * the labels returned.
+ */
+public class MultiLayerIndex {
+  private final List<IndexedValues> layers;
+  /* The distinct references of the layers indexed by cell */
+  private final CellLocationReference[] references;
+  /* The index of each layer's reference, or -1 if it is not indexed by cell */
+  private final int[] layerReferences;
+  /* A probe of each distinct reference, for each thread */
+  private final ThreadLocal<ProbedCoordinate[]> probes;
+
+  /**
+   * @param layers the layers, in the order of the labels returned
+   */
+  public MultiLayerIndex(List<IndexedValues> layers) {
+    this.layers = Collections.unmodifiableList(new ArrayList<IndexedValues>(layers));
+    List<CellLocationReference> references = new ArrayList<CellLocationReference>();
+    layerReferences = new int[layers.size()];
+    for (int layer = 0; layer < layers.size(); ++layer) {
+      IndexedValues indexedValues = layers.get(layer);
+      CellLocationReference reference = BaseIndexedValues.cellReference(indexedValues);
+      if (reference != null && !references.contains(reference)) {
+        references.add(reference);
+      }
+      layerReferences[layer] = reference == null ? -1 : references.indexOf(reference);
+    }
+    this.references = references.toArray(new CellLocationReference[references.size()]);
+    this.probes = new ThreadLocal<ProbedCoordinate[]>() {
+      @Override
+      protected ProbedCoordinate[] initialValue() {
+        ProbedCoordinate[] probes = new ProbedCoordinate[MultiLayerIndex.this.references.length];
+        for (int idx = 0; idx < probes.length; ++idx) {
+          probes[idx] = new ProbedCoordinate(MultiLayerIndex.this.references[idx]);
+        }
+        return probes;
+      }
+    };
+  }
+
+  public List<IndexedValues> layers() {
+    return layers;
+  }
+
+  /**
+   * The number of distinct cell hierarchies probed by each lookup
+   */
+  public int numProbes() {
+    return references.length;
+  }
+
+  /**
+   * Looks up the label of each layer
+   * @param coordinate a 2D point
+   * @return the labels, in the order of the layers, with null where a layer has no label
+   */
+  public Object[] labelsForCoordinate(Coordinate coordinate) {
+    Object[] labels = new Object[layers.size()];
+    ProbedCoordinate[] probes = this.probes.get();
+    for (ProbedCoordinate probe: probes) {
+      // Cells are only found once a layer asks for them
+      probe.reset(coordinate);
+    }
+    for (int layer = 0; layer < labels.length; ++layer) {
+      int reference = layerReferences[layer];
+      labels[layer] = layers.get(layer).labelForCoordinate(reference < 0 ? coordinate : probes[reference]);
+    }
+    return labels;
+  }
+}
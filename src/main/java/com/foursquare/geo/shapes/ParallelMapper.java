@@ -0,0 +1,98 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Applies a function to every element of a list, optionally in parallel
+ * on a ForkJoinPool. Outputs are always in the order of the inputs, so
+ * results do not depend on the number of threads.
+ * @param <I> the input type
+ * @param <O> the output type
+ */
+abstract class ParallelMapper<I, O> {
+  /* Number of tasks per thread, to balance uneven work between elements */
+  static final int TasksPerThread = 8;
+
+  /**
+   * The function to apply. Must be safe to call concurrently.
+   * @param input an element of the input list
+   * @return the output for the element
+   */
+  abstract O apply(I input);
+
+  private class MapAction extends RecursiveAction {
+    private final List<I> inputs;
+    private final Object[] outputs;
+    private final int start;
+    private final int end;
+    private final int grain;
+
+    public MapAction(List<I> inputs, Object[] outputs, int start, int end, int grain) {
+      this.inputs = inputs;
+      this.outputs = outputs;
+      this.start = start;
+      this.end = end;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= grain) {
+        for (int idx = start; idx < end; ++idx) {
+          outputs[idx] = apply(inputs.get(idx));
+        }
+      } else {
+        int mid = (start + end) >>> 1;
+        invokeAll(
+          new MapAction(inputs, outputs, start, mid, grain),
+          new MapAction(inputs, outputs, mid, end, grain)
+        );
+      }
+    }
+  }
+
+  /**
+   * Runs a task in the pool, or directly when already running within the same
+   * pool so that nested parallel work does not block a worker thread. Tasks
+   * started from another pool's worker still run in the given pool.
+   * @param pool the pool
+   * @param task the task
+   * @param <T> the result type
+   * @return the task result
+   */
+  static <T> T invoke(ForkJoinPool pool, ForkJoinTask<T> task) {
+    if (ForkJoinTask.getPool() == pool) {
+      return task.invoke();
+    } else {
+      return pool.invoke(task);
+    }
+  }
+
+  /**
+   * Maps the inputs
+   * @param pool the pool to run on, or null to map on the calling thread
+   * @param inputs the inputs, which should support fast random access
+   * @return the outputs, in input order
+   */
+  @SuppressWarnings("unchecked")
+  public List<O> map(ForkJoinPool pool, List<I> inputs) {
+    if (pool == null || inputs.size() <= 1) {
+      List<O> outputs = new ArrayList<O>(inputs.size());
+      for (I input: inputs) {
+        outputs.add(apply(input));
+      }
+      return outputs;
+    }
+    Object[] outputs = new Object[inputs.size()];
+    int grain = Math.max(1, inputs.size() / (pool.getParallelism() * TasksPerThread));
+    invoke(pool, new MapAction(inputs, outputs, 0, inputs.size(), grain));
+    return (List<O>) Arrays.asList(outputs);
+  }
+}
@@ -0,0 +1,65 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * A coordinate that carries its cell and the cell's ancestors in one reference, found the
+ * first time they are asked for. Values indexed by the same cells look the cells up
+ * rather than finding them again. Probes are reused for coordinate after coordinate, so
+ * they must not be shared between threads.
+ */
+class ProbedCoordinate extends Coordinate {
+  private final CellLocationReference reference;
+  /* The cell of the coordinate, followed by its ancestors */
+  private final CellLocation[] locations;
+  private boolean probed;
+
+  public ProbedCoordinate(CellLocationReference reference) {
+    this.reference = reference;
+    this.locations = new CellLocation[reference.numLevels() + 1];
+  }
+
+  /**
+   * Moves the probe to another coordinate
+   */
+  void reset(Coordinate coordinate) {
+    x = coordinate.x;
+    y = coordinate.y;
+    z = coordinate.z;
+    probed = false;
+  }
+
+  /**
+   * Finds the cells of the coordinate, if values indexed by the reference can use them
+   * @return whether {@link #location} holds the cells in the reference
+   */
+  boolean probes(CellLocationReference reference) {
+    if (reference != this.reference && !this.reference.equals(reference)) {
+      return false;
+    }
+    if (!probed) {
+      CellLocation location = CellLocation.fromCoordinate(this.reference, this);
+      for (int idx = 0; idx < locations.length; ++idx) {
+        locations[idx] = location;
+        location = location.parent();
+      }
+      probed = true;
+    }
+    return true;
+  }
+
+  int numLocations() {
+    return locations.length;
+  }
+
+  /**
+   * The cell of the coordinate at index 0, followed by its ancestors
+   */
+  CellLocation location(int idx) {
+    return locations[idx];
+  }
+}
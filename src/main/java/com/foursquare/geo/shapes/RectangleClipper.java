@@ -0,0 +1,529 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.algorithm.RayCrossingCounter;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateArrays;
+import com.vividsolutions.jts.geom.CoordinateList;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Clips polygonal geometries to an axis-aligned rectangle, without the
+ * general overlay machinery. Each ring is cut into the chains of its
+ * coordinates that lie within the rectangle, and chains are joined into
+ * rings by walking counter-clockwise along the rectangle's edges.
+ * Degenerate inputs that cannot be clipped unambiguously are left to
+ * the caller to handle with {@link Geometry#intersection}.
+ */
+class RectangleClipper {
+  private final Envelope rectangle;
+  private final GeometryFactory geometryFactory;
+  private final double minX;
+  private final double maxX;
+  private final double minY;
+  private final double maxY;
+  private final double perimeter;
+
+  /**
+   * A run of consecutive ring coordinates within the rectangle. Open chains
+   * start and end on the rectangle's edges.
+   */
+  private static class Chain {
+    public final List<Coordinate> coords;
+    public double startPosition;
+    public double endPosition;
+    public boolean visited;
+    public Chain(List<Coordinate> coords) {
+      this.coords = coords;
+    }
+    public Coordinate start() {
+      return coords.get(0);
+    }
+    public Coordinate end() {
+      return coords.get(coords.size() - 1);
+    }
+  }
+
+  /**
+   * Thrown when the input cannot be clipped unambiguously
+   */
+  private static class DegenerateClipException extends Exception {
+    public DegenerateClipException(String message) {
+      super(message);
+    }
+  }
+
+  public RectangleClipper(Envelope rectangle, GeometryFactory geometryFactory) {
+    this.rectangle = rectangle;
+    this.geometryFactory = geometryFactory;
+    this.minX = rectangle.getMinX();
+    this.maxX = rectangle.getMaxX();
+    this.minY = rectangle.getMinY();
+    this.maxY = rectangle.getMaxY();
+    this.perimeter = 2 * (rectangle.getWidth() + rectangle.getHeight());
+  }
+
+  /**
+   * Clips a geometry to the rectangle
+   * @param geometry a Polygon or MultiPolygon
+   * @return the clipped geometry, which is empty if there is no overlap, or null
+   * if the geometry is not polygonal or cannot be clipped unambiguously
+   */
+  public Geometry clip(Geometry geometry) {
+    if (!(geometry instanceof Polygon || geometry instanceof MultiPolygon)) {
+      return null;
+    }
+    if (rectangle.covers(geometry.getEnvelopeInternal())) {
+      return geometry;
+    }
+    List<Polygon> clipped = new ArrayList<Polygon>();
+    try {
+      for (int i = 0; i < geometry.getNumGeometries(); ++i) {
+        clipPolygon((Polygon) geometry.getGeometryN(i), clipped);
+      }
+    } catch (DegenerateClipException dce) {
+      return null;
+    }
+    if (clipped.size() == 1) {
+      return clipped.get(0);
+    }
+    return geometryFactory.createMultiPolygon(clipped.toArray(new Polygon[clipped.size()]));
+  }
+
+  private void clipPolygon(Polygon polygon, List<Polygon> clipped) throws DegenerateClipException {
+    if (!rectangle.intersects(polygon.getEnvelopeInternal())) {
+      return;
+    }
+    List<Chain> openChains = new ArrayList<Chain>();
+    List<Coordinate[]> shells = new ArrayList<Coordinate[]>();
+    List<Coordinate[]> holes = new ArrayList<Coordinate[]>();
+
+    // Orient rings so that the interior of the polygon is always to the left
+    addChains(oriented(polygon.getExteriorRing().getCoordinates(), true), openChains, shells, holes);
+    for (int i = 0; i < polygon.getNumInteriorRing(); ++i) {
+      addChains(oriented(polygon.getInteriorRingN(i).getCoordinates(), false), openChains, shells, holes);
+    }
+
+    if (!openChains.isEmpty()) {
+      shells.addAll(joinChains(openChains));
+    } else if (shells.isEmpty() && coversRectangle(polygon)) {
+      shells.add(rectangleRing());
+    }
+    if (shells.isEmpty()) {
+      return;
+    }
+
+    List<List<LinearRing>> shellHoles = new ArrayList<List<LinearRing>>();
+    for (int i = 0; i < shells.size(); ++i) {
+      shellHoles.add(new ArrayList<LinearRing>());
+    }
+    for (Coordinate[] hole: holes) {
+      shellHoles.get(containingShell(shells, hole)).add(geometryFactory.createLinearRing(hole));
+    }
+    for (int i = 0; i < shells.size(); ++i) {
+      List<LinearRing> polygonHoles = shellHoles.get(i);
+      clipped.add(geometryFactory.createPolygon(
+        geometryFactory.createLinearRing(shells.get(i)),
+        polygonHoles.toArray(new LinearRing[polygonHoles.size()])
+      ));
+    }
+  }
+
+  private static Coordinate[] oriented(Coordinate[] ring, boolean counterClockwise) {
+    if (ring.length >= 4 && CGAlgorithms.isCCW(ring) != counterClockwise) {
+      ring = ring.clone();
+      CoordinateArrays.reverse(ring);
+    }
+    return ring;
+  }
+
+  private boolean inside(Coordinate coord) {
+    return coord.x >= minX && coord.x <= maxX && coord.y >= minY && coord.y <= maxY;
+  }
+
+  /**
+   * Cuts a ring into chains within the rectangle. Rings entirely within the
+   * rectangle are added to shells or holes by their orientation.
+   */
+  private void addChains(
+    Coordinate[] ring,
+    List<Chain> openChains,
+    List<Coordinate[]> shells,
+    List<Coordinate[]> holes
+  ) throws DegenerateClipException {
+    if (ring.length < 4) {
+      return;
+    }
+    List<List<Coordinate>> chains = new ArrayList<List<Coordinate>>();
+    List<Coordinate> current = null;
+    boolean broken = false;
+    double[] range = new double[2];
+    for (int i = 1; i < ring.length; ++i) {
+      Coordinate a = ring[i - 1];
+      Coordinate b = ring[i];
+      if (!clipSegment(a, b, range)) {
+        current = null;
+        broken = true;
+        continue;
+      }
+      Coordinate entry = range[0] == 0 ? a : boundaryPoint(a, b, range[0]);
+      Coordinate exit = range[1] == 1 ? b : boundaryPoint(a, b, range[1]);
+      if (range[0] != 0 || range[1] != 1) {
+        broken = true;
+      }
+      if (current == null || range[0] != 0) {
+        current = new ArrayList<Coordinate>();
+        current.add(entry);
+        chains.add(current);
+      }
+      if (!exit.equals2D(current.get(current.size() - 1))) {
+        current.add(exit);
+      }
+      if (range[1] != 1) {
+        current = null;
+      }
+    }
+
+    if (!broken) {
+      // The whole ring is within the rectangle
+      Coordinate[] closed = chains.get(0).toArray(new Coordinate[chains.get(0).size()]);
+      if (closed.length >= 4) {
+        if (CGAlgorithms.isCCW(closed)) {
+          shells.add(closed);
+        } else {
+          for (Coordinate coord: closed) {
+            if (onEdge(coord)) {
+              // The hole would touch the clipped shell
+              throw new DegenerateClipException("Hole touches the rectangle at " + coord);
+            }
+          }
+          holes.add(closed);
+        }
+      }
+      return;
+    }
+
+    // A chain running through the ring's start point continues into the first chain
+    if (current != null && chains.size() > 1 && chains.get(0).get(0).equals2D(ring[0])) {
+      List<Coordinate> first = chains.remove(0);
+      current.addAll(first.subList(1, first.size()));
+    }
+
+    for (List<Coordinate> coords: chains) {
+      for (List<Coordinate> piece: splitChain(coords)) {
+        Chain chain = new Chain(piece);
+        chain.startPosition = edgePosition(chain.start());
+        chain.endPosition = edgePosition(chain.end());
+        openChains.add(chain);
+      }
+    }
+  }
+
+  /**
+   * Removes the parts of a chain that run along the rectangle's edges with the
+   * interior of the polygon outside the rectangle, splitting the chain around them
+   */
+  private List<List<Coordinate>> splitChain(List<Coordinate> coords) throws DegenerateClipException {
+    List<List<Coordinate>> pieces = new ArrayList<List<Coordinate>>();
+    List<Coordinate> piece = new ArrayList<Coordinate>();
+    for (int i = 0; i < coords.size(); ++i) {
+      Coordinate coord = coords.get(i);
+      if (i > 0 && runsClockwiseAlongEdge(coords.get(i - 1), coord)) {
+        if (piece.size() >= 2) {
+          pieces.add(piece);
+        }
+        piece = new ArrayList<Coordinate>();
+      } else if (i > 0 && i < coords.size() - 1 && onEdge(coord) &&
+        !runsClockwiseAlongEdge(coord, coords.get(i + 1)) &&
+        isReflex(coords.get(i - 1), coord, coords.get(i + 1))) {
+        // The polygon extends outside the rectangle at a single point of its boundary
+        throw new DegenerateClipException("Reflex vertex on the rectangle at " + coord);
+      }
+      piece.add(coord);
+    }
+    if (piece.size() >= 2) {
+      pieces.add(piece);
+    }
+    return pieces;
+  }
+
+  private boolean onEdge(Coordinate coord) {
+    return inside(coord) && (coord.x == minX || coord.x == maxX || coord.y == minY || coord.y == maxY);
+  }
+
+  /**
+   * Whether the interior angle at a vertex, with the interior to the left, exceeds 180 degrees
+   */
+  private static boolean isReflex(Coordinate previous, Coordinate vertex, Coordinate next) {
+    double ux = previous.x - vertex.x;
+    double uy = previous.y - vertex.y;
+    double wx = next.x - vertex.x;
+    double wy = next.y - vertex.y;
+    return wx * uy - wy * ux < 0;
+  }
+
+  /**
+   * Liang-Barsky clipping of a segment to the closed rectangle
+   * @return false if the segment misses or only touches the rectangle, otherwise fills range
+   * with the parameters of the segment's entry and exit
+   */
+  private boolean clipSegment(Coordinate a, Coordinate b, double[] range) {
+    // Cheap rejection of segments entirely to one side of the rectangle
+    if ((a.x < minX && b.x < minX) || (a.x > maxX && b.x > maxX) ||
+      (a.y < minY && b.y < minY) || (a.y > maxY && b.y > maxY)) {
+      return false;
+    }
+    double dx = b.x - a.x;
+    double dy = b.y - a.y;
+    range[0] = 0;
+    range[1] = 1;
+    if (!clipToEdge(-dx, a.x - minX, range) || !clipToEdge(dx, maxX - a.x, range) ||
+      !clipToEdge(-dy, a.y - minY, range) || !clipToEdge(dy, maxY - a.y, range)) {
+      return false;
+    }
+    // Endpoints within the rectangle are kept exactly
+    if (range[0] > 0 && inside(a)) {
+      range[0] = 0;
+    }
+    if (range[1] < 1 && inside(b)) {
+      range[1] = 1;
+    }
+    // Segments that only touch the rectangle are skipped
+    return range[0] < range[1];
+  }
+
+  private static boolean clipToEdge(double p, double q, double[] range) {
+    if (p == 0) {
+      return q >= 0;
+    }
+    double t = q / p;
+    if (p < 0) {
+      if (t > range[1]) {
+        return false;
+      } else if (t > range[0]) {
+        range[0] = t;
+      }
+    } else {
+      if (t < range[0]) {
+        return false;
+      } else if (t < range[1]) {
+        range[1] = t;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The point at parameter t of a segment crossing the rectangle's edge, snapped exactly onto the edge
+   */
+  private Coordinate boundaryPoint(Coordinate a, Coordinate b, double t) {
+    double x = Math.max(minX, Math.min(maxX, a.x + t * (b.x - a.x)));
+    double y = Math.max(minY, Math.min(maxY, a.y + t * (b.y - a.y)));
+    double toMinX = x - minX;
+    double toMaxX = maxX - x;
+    double toMinY = y - minY;
+    double toMaxY = maxY - y;
+    double nearest = Math.min(Math.min(toMinX, toMaxX), Math.min(toMinY, toMaxY));
+    if (nearest == toMinX) {
+      x = minX;
+    } else if (nearest == toMaxX) {
+      x = maxX;
+    } else if (nearest == toMinY) {
+      y = minY;
+    } else {
+      y = maxY;
+    }
+    return new Coordinate(x, y);
+  }
+
+  /**
+   * The counter-clockwise distance along the rectangle's edges from its minimum corner
+   */
+  private double edgePosition(Coordinate coord) throws DegenerateClipException {
+    double width = maxX - minX;
+    double height = maxY - minY;
+    if (coord.y == minY) {
+      return coord.x - minX;
+    } else if (coord.x == maxX) {
+      return width + (coord.y - minY);
+    } else if (coord.y == maxY) {
+      return width + height + (maxX - coord.x);
+    } else if (coord.x == minX) {
+      return 2 * width + height + (maxY - coord.y);
+    }
+    throw new DegenerateClipException("Chain ends within the rectangle at " + coord);
+  }
+
+  /**
+   * Whether the segment lies on an edge of the rectangle, running clockwise around it
+   */
+  private boolean runsClockwiseAlongEdge(Coordinate a, Coordinate b) {
+    if (a.y == b.y && a.y == minY) {
+      return b.x < a.x;
+    } else if (a.y == b.y && a.y == maxY) {
+      return b.x > a.x;
+    } else if (a.x == b.x && a.x == maxX) {
+      return b.y < a.y;
+    } else if (a.x == b.x && a.x == minX) {
+      return b.y > a.y;
+    }
+    return false;
+  }
+
+  private Coordinate[] rectangleRing() {
+    return new Coordinate[] {
+      new Coordinate(minX, minY),
+      new Coordinate(maxX, minY),
+      new Coordinate(maxX, maxY),
+      new Coordinate(minX, maxY),
+      new Coordinate(minX, minY)
+    };
+  }
+
+  /**
+   * Whether the rectangle lies within a polygon whose boundary does not enter the rectangle.
+   * Holes within the rectangle are ignored, since they are clipped separately.
+   */
+  private boolean coversRectangle(Polygon polygon) throws DegenerateClipException {
+    Coordinate center = rectangle.centre();
+    if (locate(center, polygon.getExteriorRing().getCoordinates()) != Location.INTERIOR) {
+      return false;
+    }
+    for (int i = 0; i < polygon.getNumInteriorRing(); ++i) {
+      Geometry hole = polygon.getInteriorRingN(i);
+      if (!rectangle.covers(hole.getEnvelopeInternal()) &&
+        locate(center, hole.getCoordinates()) == Location.INTERIOR) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int locate(Coordinate coord, Coordinate[] ring) throws DegenerateClipException {
+    int location = RayCrossingCounter.locatePointInRing(coord, ring);
+    if (location == Location.BOUNDARY) {
+      throw new DegenerateClipException("Polygon boundary runs through " + coord);
+    }
+    return location;
+  }
+
+  /**
+   * Joins open chains into rings by walking counter-clockwise along the rectangle's edges
+   * from the end of each chain to the start of the next
+   */
+  private List<Coordinate[]> joinChains(List<Chain> chains) throws DegenerateClipException {
+    List<Coordinate[]> rings = new ArrayList<Coordinate[]>();
+    Coordinate[] corners = rectangleRing();
+    double[] cornerPositions = {
+      0,
+      maxX - minX,
+      (maxX - minX) + (maxY - minY),
+      2 * (maxX - minX) + (maxY - minY)
+    };
+    for (Chain first: chains) {
+      if (first.visited) {
+        continue;
+      }
+      CoordinateList ring = new CoordinateList();
+      Chain chain = first;
+      while (true) {
+        chain.visited = true;
+        ring.add(chain.coords.toArray(new Coordinate[chain.coords.size()]), false);
+        Chain next = nextChain(chains, chain.endPosition);
+        if (next.visited && next != first) {
+          throw new DegenerateClipException("Chains do not form a ring");
+        }
+        // Walk the rectangle corners between this chain's end and the next chain's start
+        double walked = ccwDistance(chain.endPosition, next.startPosition);
+        for (int offset = 1; offset <= 4; ++offset) {
+          int corner = (cornerIndex(chain.endPosition) + offset) % 4;
+          double cornerDistance = ccwDistance(chain.endPosition, cornerPositions[corner]);
+          if (cornerDistance == 0 || cornerDistance >= walked) {
+            break;
+          }
+          ring.add(corners[corner], false);
+        }
+        if (next == first) {
+          break;
+        }
+        chain = next;
+      }
+      ring.closeRing();
+      if (ring.size() >= 4) {
+        Coordinate[] coords = ring.toCoordinateArray();
+        if (CGAlgorithms.signedArea(coords) != 0) {
+          rings.add(coords);
+        }
+      }
+    }
+    return rings;
+  }
+
+  private int cornerIndex(double position) {
+    double width = maxX - minX;
+    double height = maxY - minY;
+    if (position < width) {
+      return 0;
+    } else if (position < width + height) {
+      return 1;
+    } else if (position < 2 * width + height) {
+      return 2;
+    } else {
+      return 3;
+    }
+  }
+
+  private double ccwDistance(double from, double to) {
+    double distance = to - from;
+    return distance < 0 ? distance + perimeter : distance;
+  }
+
+  private Chain nextChain(List<Chain> chains, double endPosition) throws DegenerateClipException {
+    Chain next = null;
+    double nextDistance = Double.POSITIVE_INFINITY;
+    boolean tied = false;
+    for (Chain chain: chains) {
+      double distance = ccwDistance(endPosition, chain.startPosition);
+      if (distance == 0) {
+        // The polygon touches itself on the rectangle's edge
+        throw new DegenerateClipException("Chains meet at " + endPosition + " along the rectangle");
+      }
+      if (distance < nextDistance) {
+        next = chain;
+        nextDistance = distance;
+        tied = false;
+      } else if (distance == nextDistance) {
+        tied = true;
+      }
+    }
+    if (tied) {
+      throw new DegenerateClipException("Several chains start at " + nextDistance + " along the rectangle");
+    }
+    return next;
+  }
+
+  private int containingShell(List<Coordinate[]> shells, Coordinate[] hole) throws DegenerateClipException {
+    if (shells.size() == 1) {
+      return 0;
+    }
+    for (Coordinate coord: hole) {
+      for (int i = 0; i < shells.size(); ++i) {
+        if (RayCrossingCounter.locatePointInRing(coord, shells.get(i)) == Location.INTERIOR) {
+          return i;
+        }
+      }
+    }
+    throw new DegenerateClipException("No shell contains hole");
+  }
+}
@@ -0,0 +1,190 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The features of a mixed cell, with the cell split into a finer grid of sub-cells.
+ * A sub-cell that only one label reaches, and that the label covers, holds just the
+ * label, so lookups within it test no geometry. A sub-cell no feature reaches holds no
+ * label. Other sub-cells hold the features clipped to them, or defer to the whole cell
+ * when a feature cannot be clipped exactly, such as one only touching the sub-cell.
+ * Clipping keeps the parts of a feature within a sub-cell, but drops parts that only
+ * touch its edges, so coordinates exactly on an edge between sub-cells are looked up
+ * in the whole cell.
+ */
+class RefinedIndexedValues extends SimplifiedShapefileGeo.MixedIndexedValues {
+  private final SimplifiedShapefileGeo.MixedIndexedValues cellValues;
+  private final Envelope envelope;
+  private final int gridSize;
+  /* The edges of the sub-cells, with gridSize + 1 in each direction */
+  private final double[] xEdges;
+  private final double[] yEdges;
+  /* Sub-cells by row, then column */
+  private final IndexedValues[] subCells;
+
+  private RefinedIndexedValues(
+    SimplifiedShapefileGeo.MixedIndexedValues cellValues,
+    Envelope envelope,
+    int gridSize,
+    double[] xEdges,
+    double[] yEdges,
+    IndexedValues[] subCells
+  ) {
+    this.cellValues = cellValues;
+    this.envelope = envelope;
+    this.gridSize = gridSize;
+    this.xEdges = xEdges;
+    this.yEdges = yEdges;
+    this.subCells = subCells;
+  }
+
+  private static double[] edges(double min, double max, int gridSize) {
+    double[] edges = new double[gridSize + 1];
+    for (int idx = 0; idx < gridSize; ++idx) {
+      edges[idx] = min + (max - min) * idx / gridSize;
+    }
+    edges[gridSize] = max;
+    return edges;
+  }
+
+  /**
+   * Splits a mixed cell into sub-cells
+   * @param location the cell
+   * @param cellValues the features of the cell
+   * @param gridSize the number of sub-cells along each side of the cell
+   */
+  static RefinedIndexedValues refine(
+    CellLocation location,
+    SimplifiedShapefileGeo.MixedIndexedValues cellValues,
+    int gridSize
+  ) {
+    Envelope envelope = location.envelope();
+    double[] xEdges = edges(envelope.getMinX(), envelope.getMaxX(), gridSize);
+    double[] yEdges = edges(envelope.getMinY(), envelope.getMaxY(), gridSize);
+    List<FeatureEntry> featureEntries = cellValues.featureEntries();
+    IndexedValues[] subCells = new IndexedValues[gridSize * gridSize];
+    for (int row = 0; row < gridSize; ++row) {
+      for (int column = 0; column < gridSize; ++column) {
+        Envelope subEnvelope = new Envelope(xEdges[column], xEdges[column + 1], yEdges[row], yEdges[row + 1]);
+        subCells[row * gridSize + column] = subCell(location, cellValues, featureEntries, subEnvelope);
+      }
+    }
+    return new RefinedIndexedValues(cellValues, envelope, gridSize, xEdges, yEdges, subCells);
+  }
+
+  private static IndexedValues subCell(
+    CellLocation location,
+    SimplifiedShapefileGeo.MixedIndexedValues cellValues,
+    List<FeatureEntry> featureEntries,
+    Envelope subEnvelope
+  ) {
+    GeometryFactory geometryFactory = location.reference.getGeometryFactory();
+    Geometry subGeometry = geometryFactory.toGeometry(subEnvelope);
+    List<FeatureEntry> reaching = new ArrayList<FeatureEntry>();
+    Object label = null;
+    boolean singleLabel = true;
+    for (FeatureEntry featureEntry: featureEntries) {
+      if (featureEntry.geometry.getEnvelopeInternal().intersects(subEnvelope) &&
+        featureEntry.geometry.intersects(subGeometry)) {
+        if (!reaching.isEmpty() && !Objects.equals(featureEntry.getLabel(), label)) {
+          singleLabel = false;
+        }
+        label = featureEntry.getLabel();
+        reaching.add(featureEntry);
+      }
+    }
+    if (reaching.isEmpty()) {
+      return SimplifiedShapefileGeo.SingleIndexedValue.NO_VALUE;
+    }
+    if (singleLabel) {
+      List<Geometry> geometries = new ArrayList<Geometry>();
+      for (FeatureEntry featureEntry: reaching) {
+        geometries.add(featureEntry.geometry);
+      }
+      if (geometryFactory.buildGeometry(geometries).union().covers(subGeometry)) {
+        return new SimplifiedShapefileGeo.SingleIndexedValue(label);
+      }
+    }
+
+    RectangleClipper clipper = new RectangleClipper(subEnvelope, geometryFactory);
+    SimplifiedShapefileGeo.ShapeIndexedValues clippedValues = new SimplifiedShapefileGeo.ShapeIndexedValues();
+    for (FeatureEntry featureEntry: reaching) {
+      Geometry clipped = clipper.clip(featureEntry.geometry);
+      if (clipped == null || clipped.isEmpty()) {
+        return cellValues;
+      }
+      clippedValues.add(new FeatureEntry(location, featureEntry.getLabelEntry(), featureEntry.isWeakLabel(), clipped));
+    }
+    ArcIndexedValues arcValues = ArcIndexedValues.fromFeatures(clippedValues.featureEntries());
+    return arcValues != null ? arcValues : clippedValues;
+  }
+
+  private static int subIndex(double[] edges, double value) {
+    int gridSize = edges.length - 1;
+    int idx = (int) ((value - edges[0]) / (edges[gridSize] - edges[0]) * gridSize);
+    idx = Math.max(0, Math.min(gridSize - 1, idx));
+    // Correct for rounding, so the value lies within the chosen sub-cell
+    if (value < edges[idx] && idx > 0) {
+      --idx;
+    } else if (value > edges[idx + 1] && idx < gridSize - 1) {
+      ++idx;
+    }
+    return idx;
+  }
+
+  private static boolean onInnerEdge(double[] edges, int idx, double value) {
+    return (idx > 0 && value == edges[idx]) || (idx < edges.length - 2 && value == edges[idx + 1]);
+  }
+
+  /**
+   * The number of sub-cells holding only a label or none, where lookups test no geometry
+   */
+  int numSingleSubCells() {
+    int count = 0;
+    for (IndexedValues subCell: subCells) {
+      if (subCell instanceof SimplifiedShapefileGeo.SingleIndexedValue) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public Object labelForCoordinate(Coordinate coordinate) {
+    if (!envelope.covers(coordinate)) {
+      return cellValues.labelForCoordinate(coordinate);
+    }
+    int row = subIndex(yEdges, coordinate.y);
+    int column = subIndex(xEdges, coordinate.x);
+    if (onInnerEdge(yEdges, row, coordinate.y) || onInnerEdge(xEdges, column, coordinate.x)) {
+      return cellValues.labelForCoordinate(coordinate);
+    }
+    return subCells[row * gridSize + column].labelForCoordinate(coordinate);
+  }
+
+  @Override
+  List<FeatureEntry> featureEntries() {
+    return cellValues.featureEntries();
+  }
+
+  @Override
+  Map<Object, Envelope> labelEnvelopes() {
+    return cellValues.labelEnvelopes();
+  }
+
+  @Override
+  public List<FeatureEntry> colocatedFeatures(Coordinate coordinate) {
+    return cellValues.colocatedFeatures(coordinate);
+  }
+}
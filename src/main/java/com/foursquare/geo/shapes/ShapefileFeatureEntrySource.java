@@ -0,0 +1,47 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.type.FeatureType;
+
+import java.io.IOException;
+
+/**
+ * Reads the features of a Shapefile through GeoTools
+ */
+class ShapefileFeatureEntrySource implements FeatureEntrySource {
+  private final String path;
+  private final ShapefileDataStore dataStore;
+
+  /**
+   * Opens a Shapefile
+   * @param path location of .shp file
+   * @throws IOException if there is an issue opening the file
+   */
+  public ShapefileFeatureEntrySource(String path) throws IOException {
+    this.path = path;
+    this.dataStore = ShapefileUtils.featureStore(path);
+  }
+
+  @Override
+  public ReferencedEnvelope bounds() throws IOException {
+    return dataStore.getFeatureSource().getInfo().getBounds();
+  }
+
+  @Override
+  public FeatureType schema() throws IOException {
+    return dataStore.getFeatureSource().getSchema();
+  }
+
+  @Override
+  public Iterable<FeatureEntry> featureEntries(FeatureEntryFactory featureEntryFactory) throws IOException {
+    return featureEntryFactory.lazyFeatureEntries(ShapefileUtils.featureIterator(path));
+  }
+
+  @Override
+  public void close() {
+    dataStore.dispose();
+  }
+}
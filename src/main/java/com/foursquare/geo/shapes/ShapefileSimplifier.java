@@ -3,6 +3,7 @@
 package com.foursquare.geo.shapes;
 
 import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Envelope;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
@@ -11,23 +12,27 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.geotools.data.AbstractDataStore;
-import org.geotools.data.FeatureSource;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 
 public final class ShapefileSimplifier {
+  static final long DefaultSpillThreshold = 10000000;
+
   private ShapefileSimplifier() {
 
   }
@@ -43,9 +48,156 @@ public final class ShapefileSimplifier {
     System.exit(1);
   }
 
-  public static void main(String[] args) throws IOException {
-    System.setProperty("logback.level", "info");
-    CommandLineParser parser = new GnuParser();
+  private static void endStage(SimplificationReport.Stage stage, Iterable<FeatureEntry> features) {
+    if (stage != null) {
+      if (features != null) {
+        stage.countFeatures(features);
+      }
+      stage.end();
+    }
+  }
+
+  /**
+   * Wraps features, adding each to an index as it is read
+   */
+  private static Iterable<FeatureEntry> writingToIndex(
+    final SimplifiedIndexIO.Writer indexWriter,
+    final Iterable<FeatureEntry> features
+  ) {
+    return new Iterable<FeatureEntry>() {
+      @Override
+      public Iterator<FeatureEntry> iterator() {
+        final Iterator<FeatureEntry> iterator = features.iterator();
+        return new Iterator<FeatureEntry>() {
+          @Override
+          public boolean hasNext() {
+            return iterator.hasNext();
+          }
+
+          @Override
+          public FeatureEntry next() {
+            FeatureEntry featureEntry = iterator.next();
+            try {
+              indexWriter.add(featureEntry);
+            } catch (IOException ioe) {
+              throw new RuntimeException("Failed to write feature to index", ioe);
+            }
+            return featureEntry;
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Simplifies only the cells changed since a previous simplification
+   * @return the simplified features, or null if the previous simplification used a different grid
+   */
+  private static List<FeatureEntry> simplifyIncrementally(
+    Logger logger,
+    CellLocationReference reference,
+    FeatureEntryFactory featureEntryFactory,
+    String path,
+    FeatureEntrySource source,
+    String previousPath,
+    String previousOutPath,
+    boolean simplifySingleLabelCells,
+    boolean waterTriangularization,
+    boolean voronoiWater,
+    boolean fixedBounds,
+    int numThreads
+  ) throws IOException {
+    FeatureEntrySource previousSource = openSource(previousPath);
+    ShapefileDataStore previousOutDataStore = ShapefileUtils.featureStore(previousOutPath);
+    // Fixed bounds of the grid are kept in the header of the simplified Shapefile
+    Envelope previousEnv = new Envelope(
+      fixedBounds ? previousOutDataStore.getFeatureSource().getBounds() : previousSource.bounds()
+    );
+    boolean sameLevels = previousOutDataStore.getFeatureSource().getSchema().getDescriptor(reference.attributeName()) != null;
+    previousOutDataStore.dispose();
+    if (!previousEnv.equals(new Envelope(reference.getEnvelope()))) {
+      previousSource.close();
+      logger.warn("Bounds of {} differ from the grid, simplifying all cells", fixedBounds ? previousOutPath : previousPath);
+      return null;
+    }
+    if (!sameLevels) {
+      previousSource.close();
+      logger.warn("{} has no attribute {}, simplifying all cells", previousOutPath, reference.attributeName());
+      return null;
+    }
+    logger.info("Simplifying changed cells");
+    try {
+      return IncrementalSimplifier.simplify(
+        reference,
+        featureEntryFactory,
+        featureEntryFactory.lazyFeatureEntries(previousSource),
+        featureEntryFactory.featureEntries(source),
+        featureEntryFactory.lazyFeatureEntries(ShapefileUtils.featureIterator(previousOutPath)),
+        simplifySingleLabelCells,
+        waterTriangularization,
+        voronoiWater,
+        numThreads
+      );
+    } finally {
+      previousSource.close();
+    }
+  }
+
+  /**
+   * Opens an input of features: a Shapefile, or otherwise a file of WKB records
+   * @see WkbFeatureEntrySource
+   */
+  private static FeatureEntrySource openSource(String path) throws IOException {
+    if (path.toLowerCase().endsWith(".shp")) {
+      return new ShapefileFeatureEntrySource(path);
+    } else {
+      return new WkbFeatureEntrySource(new File(path));
+    }
+  }
+
+  /**
+   * Labels the water of the whole envelope, or of each top-level cell
+   * @return the labeled water features
+   */
+  private static List<FeatureEntry> simplifyWater(
+    CellLocationReference reference,
+    FeatureEntryFactory featureEntryFactory,
+    List<FeatureEntry> featureEntries,
+    boolean partitionedWater,
+    boolean voronoiWater,
+    int numThreads,
+    SimplificationCheckpoint checkpoint
+  ) {
+    SimplificationOptions options = new SimplificationOptions()
+      .numThreads(numThreads)
+      .checkpoint(checkpoint)
+      .voronoiWater(voronoiWater);
+    if (partitionedWater) {
+      return WaterDelaunayTriangulationSimplifier.simplifyPartitioned(
+        reference,
+        featureEntryFactory,
+        featureEntries,
+        options
+      );
+    }
+    return WaterDelaunayTriangulationSimplifier.simplify(
+      reference,
+      featureEntryFactory,
+      featureEntries,
+      reference.getEnvelope(),
+      options
+    );
+  }
+
+  /**
+   * The command line options of the simplifier
+   */
+  static Options options() {
     Options options = new Options();
     options.addOption(
       OptionBuilder
@@ -55,6 +207,16 @@ public final class ShapefileSimplifier {
         .create()
     );
 
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("bounds")
+        .withDescription("Bounds of the grid as minX,minY,maxX,maxY, which must contain the input. " +
+          "Default is the bounds of the input. Layers simplified with the same bounds and level " +
+          "sizes share the cells probed by each lookup.")
+        .hasArg()
+        .create()
+    );
+
     options.addOption(
       OptionBuilder
         .withLongOpt("no-geometry-simplification")
@@ -69,8 +231,147 @@ public final class ShapefileSimplifier {
         .create()
     );
 
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("partitioned-water")
+        .withDescription("Triangularizes water separately for each top-level cell, in parallel with " +
+          "--threads, to bound memory use with --water-triangularization.")
+        .create()
+    );
+
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("voronoi-water")
+        .withDescription("With --water-triangularization, assigns water to the label of the nearest " +
+          "coastline vertex by a Voronoi diagram, instead of labeling triangles. Faster, with fewer " +
+          "intermediate geometries.")
+        .create()
+    );
+
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("threads")
+        .withDescription("Number of threads used to split and simplify cells. Default is 1.")
+        .hasArg()
+        .create()
+    );
+
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("depth-first")
+        .withDescription("Simplifies one top-level cell at a time, streaming features to the output, " +
+          "to bound memory use.")
+        .create()
+    );
+
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("spill-threshold")
+        .withDescription("Number of coordinates partitioned in memory before spilling to disk with " +
+          "--depth-first. Default is " + DefaultSpillThreshold + ".")
+        .hasArg()
+        .create()
+    );
+
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("checkpoint-dir")
+        .withDescription("Directory for checkpoints of water triangularization and each simplification " +
+          "round. A failed run started again with the same input and options resumes from its last " +
+          "checkpoint.")
+        .hasArg()
+        .create()
+    );
+
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("previous-original")
+        .withDescription("Original Shapefile of a previous simplification. With --previous-simplified, " +
+          "only the top-level cells with changed features are simplified again.")
+        .hasArg()
+        .create()
+    );
+
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("previous-simplified")
+        .withDescription("Simplified Shapefile of a previous simplification, whose unchanged cells " +
+          "are copied to the output. Must be a different file from the output.")
+        .hasArg()
+        .create()
+    );
+
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("index")
+        .withDescription("Binary lookup index to write alongside the simplified Shapefile, with packed " +
+          "cell ids, a label dictionary and packed coordinates. It is loaded by " +
+          "SimplifiedShapefileGeo.loadIndex without parsing the Shapefile.")
+        .hasArg()
+        .create()
+    );
+
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("no-shapefile")
+        .withDescription("With --index, writes only the index, and not the simplified Shapefile.")
+        .create()
+    );
+
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("report")
+        .withDescription("JSON file to write a report of the run to, with the time, feature and vertex " +
+          "counts, dropped geometries, topology fallbacks and peak heap use of each stage and round.")
+        .hasArg()
+        .create()
+    );
+
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("border-tolerance")
+        .withDescription("Distance in meters, for input in degrees, that borders between labels " +
+          "in mixed cells may move when simplified. Shared borders are simplified once, so " +
+          "adjacent labels keep meeting. Capped at a tenth of the size of each cell.")
+        .hasArg()
+        .create()
+    );
+
+    options.addOption(
+      OptionBuilder
+        .withLongOpt("snap-grid")
+        .withDescription("Spacing of a grid to snap output vertices to, in units of the input " +
+          "coordinates, dropping the repeated and collinear vertices this leaves. Polygons made " +
+          "invalid are repaired and reported as topology fallbacks, and parts narrower than the " +
+          "grid are removed.")
+        .hasArg()
+        .create()
+    );
+
     options.addOption("d", "debug", false, "Show debug output.");
     options.addOption("h", "help", false, "Show this message.");
+    return options;
+  }
+
+  /**
+   * The level sizes given by --level-sizes, or the default level sizes
+   */
+  static int[] levelSizes(CommandLine line) {
+    int [] levelSizes = new int[] {40, 2, 2, 2};
+    if (line.hasOption("level-sizes")) {
+      String[] strLevelSizes = line.getOptionValue("level-sizes").split(",");
+      levelSizes = new int[strLevelSizes.length];
+      for (int i = 0; i < levelSizes.length; ++i) {
+        levelSizes[i] = Integer.parseInt(strLevelSizes[i]);
+      }
+    }
+    return levelSizes;
+  }
+
+  public static void main(String[] args) throws IOException {
+    System.setProperty("logback.level", "info");
+    CommandLineParser parser = new GnuParser();
+    Options options = options();
 
     CommandLine line = null;
     try {
@@ -96,27 +397,116 @@ public final class ShapefileSimplifier {
       String labelAttribute = positionalArgs[2];
 
       // Parse Options
-      int [] levelSizes = new int[] {40, 2, 2, 2};
-      if (line.hasOption("level_sizes")) {
-        String[] strLevelSizes = line.getOptionValue("level-sizes").split(",");
-        levelSizes = new int[strLevelSizes.length];
-        for (int i = 0; i < levelSizes.length; ++i) {
-          levelSizes[i] = Integer.parseInt(strLevelSizes[i]);
+      int[] levelSizes = levelSizes(line);
+      Envelope bounds = null;
+      if (line.hasOption("bounds")) {
+        String[] strBounds = line.getOptionValue("bounds").split(",");
+        if (strBounds.length != 4) {
+          System.err.println("--bounds must be minX,minY,maxX,maxY");
+          showHelp(options);
+        }
+        double minX = Double.parseDouble(strBounds[0]);
+        double minY = Double.parseDouble(strBounds[1]);
+        double maxX = Double.parseDouble(strBounds[2]);
+        double maxY = Double.parseDouble(strBounds[3]);
+        if (!(minX < maxX && minY < maxY)) {
+          System.err.println("--bounds must have minX < maxX and minY < maxY");
+          showHelp(options);
         }
+        bounds = new Envelope(minX, maxX, minY, maxY);
       }
+
       boolean simplifySingleLabelCells = true;
       if (line.hasOption("no-geometry-simplification")) {
         simplifySingleLabelCells = false;
       }
 
+      int numThreads = 1;
+      if (line.hasOption("threads")) {
+        numThreads = Integer.parseInt(line.getOptionValue("threads"));
+      }
+
       boolean waterTriangularization = false;
       if (line.hasOption("water-triangularization")) {
         waterTriangularization = true;
       }
 
+      boolean partitionedWater = false;
+      if (line.hasOption("partitioned-water")) {
+        partitionedWater = true;
+      }
+
+      boolean voronoiWater = false;
+      if (line.hasOption("voronoi-water")) {
+        voronoiWater = true;
+      }
+
+      boolean depthFirst = false;
+      if (line.hasOption("depth-first")) {
+        depthFirst = true;
+      }
+
+      long spillThreshold = DefaultSpillThreshold;
+      if (line.hasOption("spill-threshold")) {
+        spillThreshold = Long.parseLong(line.getOptionValue("spill-threshold"));
+      }
+
+      String checkpointPath = null;
+      if (line.hasOption("checkpoint-dir")) {
+        checkpointPath = line.getOptionValue("checkpoint-dir");
+      }
+
+      String indexPath = null;
+      if (line.hasOption("index")) {
+        indexPath = line.getOptionValue("index");
+      }
+
+      boolean writeShapefile = true;
+      if (line.hasOption("no-shapefile")) {
+        if (indexPath == null) {
+          System.err.println("--no-shapefile requires --index");
+          showHelp(options);
+        }
+        writeShapefile = false;
+      }
+
+      BorderSimplifier borderSimplifier = null;
+      if (line.hasOption("border-tolerance")) {
+        borderSimplifier = BorderSimplifier.fromMeters(Double.parseDouble(line.getOptionValue("border-tolerance")));
+      }
+
+      GridSnapper snapper = null;
+      if (line.hasOption("snap-grid")) {
+        snapper = new GridSnapper(Double.parseDouble(line.getOptionValue("snap-grid")));
+      }
+
+      SimplificationReport report = null;
+      String reportPath = null;
+      if (line.hasOption("report")) {
+        reportPath = line.getOptionValue("report");
+        report = new SimplificationReport();
+      }
+
+      String previousPath = null;
+      String previousOutPath = null;
+      if (line.hasOption("previous-original") != line.hasOption("previous-simplified")) {
+        System.err.println("--previous-original and --previous-simplified must be given together");
+        showHelp(options);
+      } else if (line.hasOption("previous-original")) {
+        previousPath = line.getOptionValue("previous-original");
+        previousOutPath = line.getOptionValue("previous-simplified");
+        // The output is removed before the previous simplified features are read
+        if (FileSystems.getDefault().getPath(previousOutPath).toAbsolutePath().normalize().equals(
+          FileSystems.getDefault().getPath(outPath).toAbsolutePath().normalize()
+        )) {
+          System.err.println("--previous-simplified must differ from the output");
+          showHelp(options);
+        }
+      }
+
 
       String outPathPrefix = outPath.substring(0, outPath.length() - 3);
-      String[] exts = new String[]{"dbf", "fix", "shp", "shx", "png", "prj", "qix"};
+      String[] exts = writeShapefile ? new String[]{"dbf", "fix", "shp", "shx", "png", "prj", "qix"} : new String[0];
       FileSystem fileSys = FileSystems.getDefault();
       for (String ext: exts) {
         Path outFile = fileSys.getPath(outPathPrefix + ext);
@@ -131,36 +521,213 @@ public final class ShapefileSimplifier {
         }
       }
       // Set up the location reference (bounds, crs)
-      ShapefileDataStore readDataStore = ShapefileUtils.featureStore(path);
-      FeatureSource fs = readDataStore.getFeatureSource();
-      ReferencedEnvelope env = fs.getInfo().getBounds();
+      FeatureEntrySource source = openSource(path);
+      ReferencedEnvelope env = source.bounds();
+      if (bounds != null) {
+        if (!bounds.contains(env)) {
+          logger.error("--bounds {} do not contain the bounds of {}: {}", bounds, path, env);
+          System.exit(1);
+        }
+        env = new ReferencedEnvelope(bounds, env.getCoordinateReferenceSystem());
+      }
       CellLocationReference reference = new CellLocationReference(env, levelSizes);
+      if (indexPath != null && !reference.hasPackedIds()) {
+        logger.error("--index cannot hold level sizes {}, which have too many levels or cells", Arrays.toString(levelSizes));
+        System.exit(1);
+      }
       FeatureEntryFactory featureEntryFactory = new FeatureEntryFactory(reference, labelAttribute);
-      List<FeatureEntry> featureEntries = featureEntryFactory.featureEntries(ShapefileUtils.featureIterator(path));
-      Iterable<FeatureEntry> simpleFeatures;
-      if (waterTriangularization) {
-        logger.info("Triangularizing water");
-        List<FeatureEntry> weakFeatures = WaterDelaunayTriangulationSimplifier.simplify(
+      if (report != null) {
+        report.option("input", path);
+        report.option("output", outPath);
+        report.option("labelAttribute", labelAttribute);
+        report.option("levelSizes", Arrays.toString(levelSizes));
+        report.option("bounds", bounds == null ? null : bounds.toString());
+        report.option("threads", numThreads);
+        report.option("geometrySimplification", simplifySingleLabelCells);
+        report.option("waterTriangularization", waterTriangularization);
+        report.option("partitionedWater", partitionedWater);
+        report.option("voronoiWater", voronoiWater);
+        report.option("depthFirst", depthFirst);
+        report.option("incremental", previousPath != null);
+        report.option("borderTolerance", line.getOptionValue("border-tolerance"));
+        report.option("snapGrid", snapper == null ? null : snapper.gridSize());
+      }
+      SimplificationReport.Stage stage = null;
+      boolean simplifiedWhileWriting = false;
+      Iterable<FeatureEntry> simpleFeatures = null;
+      Path spillDirectory = null;
+      SimplificationCheckpoint checkpoint = null;
+      if (previousPath != null) {
+        stage = report == null ? null : report.startStage("simplify-incremental");
+        List<FeatureEntry> incrementalFeatures = simplifyIncrementally(
+          logger,
           reference,
           featureEntryFactory,
-          featureEntries
+          path,
+          source,
+          previousPath,
+          previousOutPath,
+          simplifySingleLabelCells,
+          waterTriangularization,
+          voronoiWater,
+          bounds != null,
+          numThreads
         );
-        featureEntries.addAll(weakFeatures);
+        endStage(stage, incrementalFeatures);
+        simpleFeatures = incrementalFeatures;
+        if (simpleFeatures != null && depthFirst) {
+          logger.warn("Ignoring --depth-first for an incremental simplification");
+        }
+        if (simpleFeatures != null && borderSimplifier != null) {
+          logger.warn("Ignoring --border-tolerance for an incremental simplification");
+        }
+        if (simpleFeatures != null && waterTriangularization && !partitionedWater) {
+          logger.warn("Labeling water of changed cells by partition, as with --partitioned-water");
+        }
+      }
+      if (simpleFeatures != null) {
+        logger.info("Simplified changed cells incrementally");
+      } else if (depthFirst) {
+        Iterable<FeatureEntry> featureEntries;
+        if (waterTriangularization) {
+          logger.warn("Triangularizing water requires all features in memory");
+          stage = report == null ? null : report.startStage("read");
+          List<FeatureEntry> allFeatureEntries = featureEntryFactory.featureEntries(source);
+          endStage(stage, allFeatureEntries);
+          logger.info("Triangularizing water");
+          stage = report == null ? null : report.startStage("water");
+          List<FeatureEntry> waterFeatures = simplifyWater(
+            reference,
+            featureEntryFactory,
+            allFeatureEntries,
+            partitionedWater,
+            voronoiWater,
+            numThreads,
+            null
+          );
+          endStage(stage, waterFeatures);
+          allFeatureEntries.addAll(waterFeatures);
+          featureEntries = allFeatureEntries;
+        } else {
+          featureEntries = featureEntryFactory.lazyFeatureEntries(source);
+        }
+        spillDirectory = Files.createTempDirectory("simplifier");
+        logger.info("Simplifying features depth-first");
+        simpleFeatures = LabeledGridSimplifier.simplifyDepthFirst(
+          reference,
+          featureEntries,
+          simplifySingleLabelCells,
+          numThreads,
+          spillDirectory.toFile(),
+          spillThreshold,
+          borderSimplifier
+        );
+        // Features are simplified as they are written, so simplifying is reported with writing
+        simplifiedWhileWriting = true;
+        if (report != null) {
+          stage = report.startStage("simplify-and-write");
+        }
+      } else {
+        if (checkpointPath != null) {
+          File inputFile = new File(path);
+          checkpoint = new SimplificationCheckpoint(
+            new File(checkpointPath),
+            inputFile.getAbsolutePath() + " " + inputFile.length() + " " + inputFile.lastModified() +
+              " " + labelAttribute + " " + reference.attributeName() + " " + env +
+              " " + simplifySingleLabelCells + " " + waterTriangularization + " " + partitionedWater +
+              " " + voronoiWater + " " + line.getOptionValue("border-tolerance")
+          );
+        }
+        stage = report == null ? null : report.startStage("read");
+        List<FeatureEntry> featureEntries = featureEntryFactory.featureEntries(source);
+        endStage(stage, featureEntries);
+        // Water is only needed until the first simplification round is checkpointed
+        if (waterTriangularization && (checkpoint == null || checkpoint.lastRound() < 0)) {
+          logger.info("Triangularizing water");
+          stage = report == null ? null : report.startStage("water");
+          List<FeatureEntry> weakFeatures = simplifyWater(
+            reference,
+            featureEntryFactory,
+            featureEntries,
+            partitionedWater,
+            voronoiWater,
+            numThreads,
+            checkpoint
+          );
+          endStage(stage, weakFeatures);
+          featureEntries.addAll(weakFeatures);
+        }
+        logger.info("Simplifying features");
+        stage = report == null ? null : report.startStage("simplify");
+        simpleFeatures = LabeledGridSimplifier.simplify(
+          reference,
+          featureEntries,
+          simplifySingleLabelCells,
+          new SimplificationOptions()
+            .numThreads(numThreads)
+            .checkpoint(checkpoint)
+            .report(report)
+            .borderSimplifier(borderSimplifier)
+        );
+        endStage(stage, simpleFeatures);
+      }
+      if (checkpointPath != null && checkpoint == null) {
+        logger.warn("Ignoring --checkpoint-dir, which is only supported for breadth-first simplification");
+      }
+      if (snapper != null) {
+        logger.info("Snapping features to a grid of {}", snapper.gridSize());
+        simpleFeatures = snapper.snapping(simpleFeatures);
+      }
+      if (report != null) {
+        if (!simplifiedWhileWriting) {
+          stage = report.startStage("write");
+        }
+        simpleFeatures = stage.countingFeatures(simpleFeatures);
+      }
+      SimplifiedIndexIO.Writer indexWriter = null;
+      if (indexPath != null) {
+        logger.info("Writing index to {}", indexPath);
+        indexWriter = new SimplifiedIndexIO.Writer(new File(indexPath), reference, labelAttribute);
+      }
+      if (writeShapefile) {
+        if (indexWriter != null) {
+          // Features are written to the index as they are written to the Shapefile
+          simpleFeatures = writingToIndex(indexWriter, simpleFeatures);
+        }
+        logger.info("Writing features to {}", outPath);
+        Map<String, Class<?>> newSchema = new HashMap<String, Class<?>>();
+        newSchema.put(labelAttribute, String.class);
+        newSchema.put(reference.attributeName(), reference.attributeType());
+        AbstractDataStore dataStore = ShapefileUtils.featureStore(source.schema(), outPath, newSchema);
+        ShapefileUtils.addFeatures(dataStore, simpleFeatures);
+        dataStore.dispose();
+        if (bounds != null) {
+          // Loading takes the grid from the Shapefile's bounds, which are otherwise its features'
+          ShapefileUtils.writeHeaderBounds(outPath, bounds);
+        }
+      } else {
+        for (FeatureEntry featureEntry: simpleFeatures) {
+          indexWriter.add(featureEntry);
+        }
+      }
+      if (indexWriter != null) {
+        indexWriter.close();
+        logger.info("Wrote {} features to index", indexWriter.numFeatures());
+      }
+      if (stage != null) {
+        stage.end();
+      }
+      source.close();
+      if (spillDirectory != null) {
+        Files.delete(spillDirectory);
+      }
+      if (checkpoint != null) {
+        checkpoint.clear();
+      }
+      if (report != null) {
+        logger.info("Writing report to {}", reportPath);
+        report.write(new File(reportPath));
       }
-      logger.info("Simplifying features");
-      simpleFeatures = LabeledGridSimplifier.simplify(
-        reference,
-        featureEntries,
-        simplifySingleLabelCells
-      );
-      logger.info("Writing features to {}", outPath);
-      Map<String, Class<?>> newSchema = new HashMap<String, Class<?>>();
-      newSchema.put(labelAttribute, String.class);
-      newSchema.put(reference.attributeName(), reference.attributeType());
-      AbstractDataStore dataStore = ShapefileUtils.featureStore(fs, outPath, newSchema);
-      ShapefileUtils.addFeatures(dataStore, simpleFeatures);
-      dataStore.dispose();
-      readDataStore.dispose();
     }
   }
 }
@@ -2,6 +2,7 @@
 
 package com.foursquare.geo.shapes;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import org.geotools.data.*;
 import org.geotools.data.shapefile.ShapefileDataStore;
@@ -21,9 +22,12 @@ import org.opengis.feature.type.Name;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 import java.util.*;
 
@@ -207,6 +211,22 @@ public final class ShapefileUtils {
     FeatureSource originalSource,
     String path,
     Map<String,Class<?>> attributeTypes
+  ) throws IOException {
+    return featureStore(originalSource.getSchema(), path, attributeTypes);
+  }
+
+  /**
+   * Creates a new Feature Store for writing features
+   * @param oldSchema the original schema, used for geometry descriptor information
+   * @param path the location where the store will be saved
+   * @param attributeTypes a map of attribute information (name, type) to create the schema
+   * @return an empty store for writing features
+   * @throws IOException if the file cannot be created
+   */
+  public static AbstractDataStore featureStore(
+    FeatureType oldSchema,
+    String path,
+    Map<String,Class<?>> attributeTypes
   ) throws IOException {
     // Create store
     DataStoreFactorySpi storeFactory = new ShapefileDataStoreFactory();
@@ -216,7 +236,6 @@ public final class ShapefileUtils {
     ShapefileDataStore saveStore = (ShapefileDataStore)storeFactory.createNewDataStore(createFlags);
     // Set flags and descriptors
     saveStore.setStringCharset(Charset.forName("UTF-8"));
-    FeatureType oldSchema = originalSource.getSchema();
     final List<AttributeDescriptor> descriptorList = new java.util.ArrayList<AttributeDescriptor>();
     descriptorList.add(oldSchema.getGeometryDescriptor());
     // Set attributes
@@ -274,4 +293,32 @@ public final class ShapefileUtils {
     transaction.commit();
     transaction.close();
   }
+
+  /**
+   * Overwrites the bounds in the header of a written Shapefile and of its .shx index,
+   * which are otherwise the bounds of its features
+   * @param path the path of the .shp file
+   * @param envelope the bounds to write
+   * @throws IOException if a header cannot be written
+   */
+  static void writeHeaderBounds(String path, Envelope envelope) throws IOException {
+    String pathPrefix = path.substring(0, path.length() - 3);
+    for (String ext: new String[] {"shp", "shx"}) {
+      File file = new File(pathPrefix + ext);
+      if (!file.exists()) {
+        continue;
+      }
+      ByteBuffer bounds = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+      bounds.putDouble(envelope.getMinX()).putDouble(envelope.getMinY());
+      bounds.putDouble(envelope.getMaxX()).putDouble(envelope.getMaxY());
+      bounds.flip();
+      RandomAccessFile out = new RandomAccessFile(file, "rw");
+      try {
+        // Xmin, Ymin, Xmax and Ymax follow the shape type in both headers
+        out.getChannel().write(bounds, 36);
+      } finally {
+        out.close();
+      }
+    }
+  }
 }
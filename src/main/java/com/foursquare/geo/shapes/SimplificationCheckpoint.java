@@ -0,0 +1,250 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the intermediate results of a simplification in a directory, so that
+ * a failed run can resume after its last completed stage. Each stage is written
+ * to a temporary file and moved into place once complete, so a stage is either
+ * fully present or absent. Checkpoints are tied to a key describing the run;
+ * stages from a run with a different key are discarded.
+ */
+class SimplificationCheckpoint {
+  static final Logger logger = LoggerFactory.getLogger(SimplificationCheckpoint.class);
+  static final String KeyFile = "checkpoint.key";
+  static final String WaterStage = "water";
+  static final String WaterFeaturesStage = "water-features";
+
+  private final File directory;
+
+  /**
+   * Opens a checkpoint directory, discarding stages of a different run
+   * @param directory the directory, which is created if it does not exist
+   * @param runKey a description of the run, such as its input and options
+   * @throws IOException if the directory cannot be used
+   */
+  public SimplificationCheckpoint(File directory, String runKey) throws IOException {
+    this.directory = directory;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create checkpoint directory " + directory);
+    }
+    File keyFile = new File(directory, KeyFile);
+    String previousKey = null;
+    if (keyFile.exists()) {
+      DataInputStream in = new DataInputStream(new FileInputStream(keyFile));
+      try {
+        previousKey = in.readUTF();
+      } finally {
+        in.close();
+      }
+    }
+    if (!runKey.equals(previousKey)) {
+      if (previousKey != null) {
+        logger.warn("Discarding checkpoint of a different run in {}", directory);
+      }
+      clear();
+      DataOutputStream out = new DataOutputStream(new FileOutputStream(keyFile));
+      try {
+        out.writeUTF(runKey);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private File stageFile(String stage) {
+    return new File(directory, stage + ".bin");
+  }
+
+  private static String roundStage(int round, boolean finished) {
+    return "round-" + round + (finished ? "-finished" : "-remaining");
+  }
+
+  private DataOutputStream startStage(File tempFile) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+  }
+
+  private void completeStage(String stage, File tempFile) throws IOException {
+    Files.move(tempFile.toPath(), stageFile(stage).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    logger.info("Checkpointed {} to {}", stage, directory);
+  }
+
+  /**
+   * Whether a stage was completed
+   * @param stage the stage name
+   * @return true if the stage can be read
+   */
+  public boolean hasStage(String stage) {
+    return stageFile(stage).exists();
+  }
+
+  /**
+   * Stores a geometry as a completed stage
+   * @param stage the stage name
+   * @param geometry the geometry
+   * @throws IOException if the stage cannot be written
+   */
+  public void writeGeometry(String stage, Geometry geometry) throws IOException {
+    File tempFile = File.createTempFile(stage, ".tmp", directory);
+    DataOutputStream out = startStage(tempFile);
+    try {
+      FeatureEntryIO.writeGeometry(out, geometry);
+    } finally {
+      out.close();
+    }
+    completeStage(stage, tempFile);
+  }
+
+  /**
+   * Reads the geometry of a completed stage
+   * @param stage the stage name
+   * @param reference the reference whose geometry factory is used
+   * @return the geometry
+   * @throws IOException if the stage cannot be read
+   */
+  public Geometry readGeometry(String stage, CellLocationReference reference) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stageFile(stage))));
+    try {
+      return FeatureEntryIO.readGeometry(in, reference.getGeometryFactory());
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Stores features as a completed stage
+   * @param stage the stage name
+   * @param featureEntries the features
+   * @throws IOException if the stage cannot be written
+   */
+  public void writeFeatures(String stage, List<FeatureEntry> featureEntries) throws IOException {
+    File tempFile = File.createTempFile(stage, ".tmp", directory);
+    DataOutputStream out = startStage(tempFile);
+    try {
+      for (FeatureEntry featureEntry: featureEntries) {
+        FeatureEntryIO.write(out, featureEntry);
+      }
+    } finally {
+      out.close();
+    }
+    completeStage(stage, tempFile);
+  }
+
+  /**
+   * Reads the features of a completed stage
+   * @param stage the stage name
+   * @param reference the reference of the features' locations
+   * @return the features, in the order they were written
+   * @throws IOException if the stage cannot be read
+   */
+  public List<FeatureEntry> readFeatures(String stage, CellLocationReference reference) throws IOException {
+    List<FeatureEntry> featureEntries = new ArrayList<FeatureEntry>();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stageFile(stage))));
+    try {
+      FeatureEntry featureEntry;
+      while ((featureEntry = FeatureEntryIO.read(in, reference)) != null) {
+        featureEntries.add(featureEntry);
+      }
+    } finally {
+      in.close();
+    }
+    return featureEntries;
+  }
+
+  /**
+   * Stores the result of a simplification round. The remaining features of the previous
+   * round are no longer needed, and are deleted.
+   * @param round the round, starting from 0
+   * @param finished the features finished in this round
+   * @param remaining the features to simplify in the next round
+   * @throws IOException if the round cannot be written
+   */
+  public void writeRound(int round, List<FeatureEntry> finished, List<FeatureEntry> remaining) throws IOException {
+    writeFeatures(roundStage(round, true), finished);
+    writeFeatures(roundStage(round, false), remaining);
+    if (round > 0) {
+      delete(stageFile(roundStage(round - 1, false)));
+    }
+  }
+
+  /**
+   * The last completed simplification round
+   * @return the round, or -1 if no round was completed
+   */
+  public int lastRound() {
+    int round = -1;
+    while (hasStage(roundStage(round + 1, true))) {
+      ++round;
+    }
+    // The finished features of a round are written before its remaining features
+    if (round >= 0 && !hasStage(roundStage(round, false))) {
+      --round;
+    }
+    return round;
+  }
+
+  /**
+   * Reads the features finished in all rounds up to and including a round
+   * @param round the round
+   * @param reference the reference of the features' locations
+   * @return the finished features, in round order
+   * @throws IOException if a round cannot be read
+   */
+  public List<FeatureEntry> readFinished(int round, CellLocationReference reference) throws IOException {
+    List<FeatureEntry> finished = new ArrayList<FeatureEntry>();
+    for (int idx = 0; idx <= round; ++idx) {
+      finished.addAll(readFeatures(roundStage(idx, true), reference));
+    }
+    return finished;
+  }
+
+  /**
+   * Reads the features that remained to simplify after a round
+   * @param round the round
+   * @param reference the reference of the features' locations
+   * @return the remaining features
+   * @throws IOException if the round cannot be read
+   */
+  public List<FeatureEntry> readRemaining(int round, CellLocationReference reference) throws IOException {
+    return readFeatures(roundStage(round, false), reference);
+  }
+
+  private void delete(File file) {
+    if (file.exists() && !file.delete()) {
+      logger.warn("Failed to delete {}", file);
+    }
+  }
+
+  /**
+   * Deletes all stages, for example once the run has completed
+   */
+  public void clear() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file: files) {
+      if (file.getName().endsWith(".bin") || file.getName().endsWith(".tmp") || file.getName().equals(KeyFile)) {
+        delete(file);
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+/**
+ * The settings of a simplification beyond its input: the number of threads, the
+ * checkpoint and report of its progress, how borders in mixed cells are simplified, and
+ * how water is labeled. Settings left unset keep their defaults: one thread, no
+ * checkpoint or report, borders kept in full, and water labeled by triangles.
+ */
+class SimplificationOptions {
+  private int numThreads = 1;
+  private SimplificationCheckpoint checkpoint;
+  private SimplificationReport report;
+  private BorderSimplifier borderSimplifier;
+  private boolean voronoiWater;
+
+  /**
+   * @param numThreads the number of threads to use. 1 simplifies on the calling thread.
+   */
+  public SimplificationOptions numThreads(int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be positive, but is " + numThreads);
+    }
+    this.numThreads = numThreads;
+    return this;
+  }
+
+  /**
+   * @param checkpoint the checkpoint to resume from and write to, or null
+   */
+  public SimplificationOptions checkpoint(SimplificationCheckpoint checkpoint) {
+    this.checkpoint = checkpoint;
+    return this;
+  }
+
+  /**
+   * @param report the report to record the timing and counts of each round in, or null
+   */
+  public SimplificationOptions report(SimplificationReport report) {
+    this.report = report;
+    return this;
+  }
+
+  /**
+   * @param borderSimplifier the simplifier of borders in mixed cells, or null to keep them in full
+   */
+  public SimplificationOptions borderSimplifier(BorderSimplifier borderSimplifier) {
+    this.borderSimplifier = borderSimplifier;
+    return this;
+  }
+
+  /**
+   * @param voronoiWater whether to assign water to the label of its nearest coastline vertex
+   */
+  public SimplificationOptions voronoiWater(boolean voronoiWater) {
+    this.voronoiWater = voronoiWater;
+    return this;
+  }
+
+  public int numThreads() {
+    return numThreads;
+  }
+
+  public SimplificationCheckpoint checkpoint() {
+    return checkpoint;
+  }
+
+  public SimplificationReport report() {
+    return report;
+  }
+
+  public BorderSimplifier borderSimplifier() {
+    return borderSimplifier;
+  }
+
+  public boolean voronoiWater() {
+    return voronoiWater;
+  }
+}
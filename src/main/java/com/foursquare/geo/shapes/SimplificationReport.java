@@ -0,0 +1,285 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A machine-readable record of a simplification run, written as JSON. Each stage,
+ * and each round of a breadth-first simplification, records its wall and CPU time,
+ * the features and vertices it produced, the geometries dropped as invalid and the
+ * topology failures worked around while it ran, and the peak heap use.
+ * Dropped geometries and topology fallbacks are counted process-wide, as they are
+ * found deep within static utilities, so stages running at once share their counts.
+ */
+class SimplificationReport {
+  private static final AtomicLong droppedGeometries = new AtomicLong();
+  private static final AtomicLong droppedVertices = new AtomicLong();
+  private static final AtomicLong topologyFallbacks = new AtomicLong();
+
+  /**
+   * Counts a geometry dropped as invalid
+   */
+  static void droppedGeometry(Geometry geometry) {
+    droppedGeometries.incrementAndGet();
+    droppedVertices.addAndGet(geometry.getNumPoints());
+  }
+
+  /**
+   * Counts an operation that failed with a topology error and was worked around,
+   * such as by keeping geometries separate rather than unioned
+   */
+  static void topologyFallback() {
+    topologyFallbacks.incrementAndGet();
+  }
+
+  private static long processCpuTime() {
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuTime();
+    }
+    return -1;
+  }
+
+  private static List<MemoryPoolMXBean> heapPools() {
+    List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        pools.add(pool);
+      }
+    }
+    return pools;
+  }
+
+  /**
+   * A timed stage of the run. Stages should not overlap, as each resets the peak heap use,
+   * but rounds may run within a stage, whose peak then includes theirs.
+   */
+  class Stage {
+    private final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+    private final boolean isRound;
+    private final long startNanos;
+    private final long startCpuNanos;
+    private final long startDroppedGeometries;
+    private final long startDroppedVertices;
+    private final long startTopologyFallbacks;
+    private long features;
+    private long vertices;
+
+    private Stage(String name, Integer round) {
+      fields.put("name", name);
+      isRound = round != null;
+      if (isRound) {
+        fields.put("round", round);
+      } else {
+        roundsPeakHeap = 0;
+      }
+      for (MemoryPoolMXBean pool: heapPools()) {
+        pool.resetPeakUsage();
+      }
+      startDroppedGeometries = droppedGeometries.get();
+      startDroppedVertices = droppedVertices.get();
+      startTopologyFallbacks = topologyFallbacks.get();
+      startCpuNanos = processCpuTime();
+      startNanos = System.nanoTime();
+    }
+
+    /**
+     * Counts features produced by the stage
+     */
+    public void countFeatures(Iterable<FeatureEntry> entries) {
+      for (FeatureEntry entry: entries) {
+        ++features;
+        vertices += entry.geometry.getNumPoints();
+      }
+    }
+
+    /**
+     * Wraps features produced lazily by the stage, counting them as they are read
+     */
+    public Iterable<FeatureEntry> countingFeatures(final Iterable<FeatureEntry> entries) {
+      return new Iterable<FeatureEntry>() {
+        @Override
+        public Iterator<FeatureEntry> iterator() {
+          final Iterator<FeatureEntry> iterator = entries.iterator();
+          return new Iterator<FeatureEntry>() {
+            @Override
+            public boolean hasNext() {
+              return iterator.hasNext();
+            }
+
+            @Override
+            public FeatureEntry next() {
+              FeatureEntry entry = iterator.next();
+              ++features;
+              vertices += entry.geometry.getNumPoints();
+              return entry;
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+      };
+    }
+
+    /**
+     * Records an additional value of the stage, such as a count of cells
+     */
+    public void put(String key, long value) {
+      fields.put(key, value);
+    }
+
+    public void end() {
+      long cpuNanos = processCpuTime();
+      fields.put("wallMillis", (System.nanoTime() - startNanos) / 1000000);
+      fields.put("cpuMillis", cpuNanos < 0 || startCpuNanos < 0 ? -1 : (cpuNanos - startCpuNanos) / 1000000);
+      fields.put("features", features);
+      fields.put("vertices", vertices);
+      fields.put("droppedGeometries", droppedGeometries.get() - startDroppedGeometries);
+      fields.put("droppedVertices", droppedVertices.get() - startDroppedVertices);
+      fields.put("topologyFallbacks", topologyFallbacks.get() - startTopologyFallbacks);
+      long peakHeap = 0;
+      for (MemoryPoolMXBean pool: heapPools()) {
+        peakHeap += pool.getPeakUsage().getUsed();
+      }
+      if (isRound) {
+        roundsPeakHeap = Math.max(roundsPeakHeap, peakHeap);
+      } else {
+        peakHeap = Math.max(peakHeap, roundsPeakHeap);
+      }
+      fields.put("peakHeapBytes", peakHeap);
+    }
+  }
+
+  private final Map<String, Object> options = new LinkedHashMap<String, Object>();
+  private final List<Stage> stages = Collections.synchronizedList(new ArrayList<Stage>());
+  private final List<Stage> rounds = Collections.synchronizedList(new ArrayList<Stage>());
+  private final long startNanos = System.nanoTime();
+  // The peak heap use of the rounds of the current stage
+  private long roundsPeakHeap;
+
+  /**
+   * Records an option of the run
+   */
+  public void option(String name, Object value) {
+    options.put(name, value);
+  }
+
+  public Stage startStage(String name) {
+    Stage stage = new Stage(name, null);
+    stages.add(stage);
+    return stage;
+  }
+
+  /**
+   * Starts a round of simplification, which should run within a stage
+   * @param name the name of the stage the round belongs to
+   * @param round the 0-based round, the level of the cells being split
+   */
+  public Stage startRound(String name, int round) {
+    Stage stage = new Stage(name, round);
+    rounds.add(stage);
+    return stage;
+  }
+
+  static void appendJson(StringBuilder json, Object value) {
+    if (value == null) {
+      json.append("null");
+    } else if ((value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) ||
+      (value instanceof Float && (((Float) value).isNaN() || ((Float) value).isInfinite()))) {
+      // JSON has no NaN or infinite numbers
+      json.append("null");
+    } else if (value instanceof Number || value instanceof Boolean) {
+      json.append(value);
+    } else {
+      String str = value.toString();
+      json.append('"');
+      for (int idx = 0; idx < str.length(); ++idx) {
+        char c = str.charAt(idx);
+        if (c == '"' || c == '\\') {
+          json.append('\\').append(c);
+        } else if (c < 0x20) {
+          json.append(String.format("\\u%04x", (int) c));
+        } else {
+          json.append(c);
+        }
+      }
+      json.append('"');
+    }
+  }
+
+  private static void appendObject(StringBuilder json, Map<String, Object> fields, String indent) {
+    json.append('{');
+    String separator = "\n";
+    for (Map.Entry<String, Object> field: fields.entrySet()) {
+      json.append(separator).append(indent).append("  ");
+      appendJson(json, field.getKey());
+      json.append(": ");
+      appendJson(json, field.getValue());
+      separator = ",\n";
+    }
+    json.append('\n').append(indent).append('}');
+  }
+
+  private static void appendStages(StringBuilder json, List<Stage> stages) {
+    json.append('[');
+    String separator = "\n";
+    synchronized (stages) {
+      for (Stage stage: stages) {
+        json.append(separator).append("    ");
+        appendObject(json, stage.fields, "    ");
+        separator = ",\n";
+      }
+    }
+    json.append("\n  ]");
+  }
+
+  /**
+   * The report as a JSON object
+   */
+  public String toJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n  \"wallMillis\": ").append((System.nanoTime() - startNanos) / 1000000);
+    json.append(",\n  \"droppedGeometries\": ").append(droppedGeometries.get());
+    json.append(",\n  \"droppedVertices\": ").append(droppedVertices.get());
+    json.append(",\n  \"topologyFallbacks\": ").append(topologyFallbacks.get());
+    json.append(",\n  \"options\": ");
+    appendObject(json, options, "  ");
+    json.append(",\n  \"stages\": ");
+    appendStages(json, stages);
+    json.append(",\n  \"rounds\": ");
+    appendStages(json, rounds);
+    json.append("\n}\n");
+    return json.toString();
+  }
+
+  public void write(File file) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    try {
+      writer.write(toJson());
+    } finally {
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,238 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.util.PolygonExtracter;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary lookup index of simplified features, written by the simplifier and loaded
+ * by {@link SimplifiedShapefileGeo#loadIndex} without the Shapefile round-trip, its
+ * attribute parsing, or the DBF limits on attribute values.
+ * The header holds the label attribute, the level sizes and the envelope of the
+ * {@link CellLocationReference}. Each feature record then holds the
+ * {@link CellLocation#packedId}, the id of its label in a dictionary, and its polygons
+ * as packed coordinates, with the closing coordinate of each ring left out. A label
+ * is written once, following the first record to use it, so the index can be written
+ * as features stream out of the simplifier. The coordinate reference system is not kept.
+ */
+class SimplifiedIndexIO {
+  static final int Magic = 0x53474958; // "SGIX"
+  static final int Version = 2;
+  /* Packed id marking the end of the feature records */
+  private static final long EndOfRecords = -1;
+
+  private SimplifiedIndexIO() {
+
+  }
+
+  /**
+   * Writes features to an index as they are added
+   */
+  static class Writer {
+    private final DataOutputStream out;
+    private final Map<Object, Integer> labelIds = new HashMap<Object, Integer>();
+    private int numFeatures;
+
+    /**
+     * Creates an index file and writes its header
+     * @param file the index file
+     * @param reference the reference of the features' locations
+     * @param labelAttribute the name of the label attribute
+     * @throws IOException if the file cannot be written
+     * @throws IllegalArgumentException if the locations of the reference cannot be packed
+     */
+    public Writer(File file, CellLocationReference reference, String labelAttribute) throws IOException {
+      if (!reference.hasPackedIds()) {
+        throw new IllegalArgumentException(
+          "Cannot index " + reference.attributeName() + ", which has too many levels or cells to pack"
+        );
+      }
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      out.writeInt(Magic);
+      out.writeInt(Version);
+      FeatureEntryIO.writeString(out, labelAttribute);
+      FeatureEntryIO.writeString(out, reference.attributeName());
+      Envelope envelope = reference.getEnvelope();
+      out.writeDouble(envelope.getMinX());
+      out.writeDouble(envelope.getMaxX());
+      out.writeDouble(envelope.getMinY());
+      out.writeDouble(envelope.getMaxY());
+    }
+
+    /**
+     * Writes the polygons of a feature. Features without polygons are skipped.
+     * @param featureEntry the feature
+     * @throws IOException if the feature cannot be written
+     */
+    @SuppressWarnings("unchecked")
+    public void add(FeatureEntry featureEntry) throws IOException {
+      List<Polygon> polygons = PolygonExtracter.getPolygons(featureEntry.geometry);
+      if (polygons.isEmpty()) {
+        return;
+      }
+      out.writeLong(featureEntry.location.packedId());
+      Integer labelId = labelIds.get(featureEntry.getLabel());
+      if (labelId == null) {
+        labelId = labelIds.size();
+        labelIds.put(featureEntry.getLabel(), labelId);
+        out.writeInt(labelId);
+        FeatureEntryIO.writeLabel(out, featureEntry.getLabel());
+      } else {
+        out.writeInt(labelId);
+      }
+      out.writeInt(polygons.size());
+      for (Polygon polygon: polygons) {
+        out.writeInt(polygon.getNumInteriorRing() + 1);
+        writeRing(out, polygon.getExteriorRing());
+        for (int idx = 0; idx < polygon.getNumInteriorRing(); ++idx) {
+          writeRing(out, polygon.getInteriorRingN(idx));
+        }
+      }
+      ++numFeatures;
+    }
+
+    /**
+     * The number of features written
+     */
+    public int numFeatures() {
+      return numFeatures;
+    }
+
+    public void close() throws IOException {
+      out.writeLong(EndOfRecords);
+      out.close();
+    }
+  }
+
+  private static void writeRing(DataOutput out, LineString ring) throws IOException {
+    Coordinate[] coords = ring.getCoordinates();
+    out.writeInt(coords.length - 1);
+    for (int idx = 0; idx < coords.length - 1; ++idx) {
+      out.writeDouble(coords[idx].x);
+      out.writeDouble(coords[idx].y);
+    }
+  }
+
+  private static LinearRing readRing(DataInput in, GeometryFactory geometryFactory) throws IOException {
+    int numCoords = in.readInt();
+    Coordinate[] coords = new Coordinate[numCoords + 1];
+    for (int idx = 0; idx < numCoords; ++idx) {
+      coords[idx] = new Coordinate(in.readDouble(), in.readDouble());
+    }
+    coords[numCoords] = new Coordinate(coords[0]);
+    return geometryFactory.createLinearRing(coords);
+  }
+
+  /**
+   * Reads the features of an index in the order they were written
+   */
+  static class Reader {
+    private final DataInputStream in;
+    private final CellLocationReference reference;
+    private final String labelAttribute;
+    private final List<Object> labels = new ArrayList<Object>();
+
+    /**
+     * Reads the header of an index
+     * @param input the index
+     * @throws IOException if the input is not an index of this version
+     */
+    public Reader(InputStream input) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(input));
+      if (in.readInt() != Magic) {
+        throw new IOException("Not a simplified index");
+      }
+      int version = in.readInt();
+      if (version != Version) {
+        throw new IOException("Unsupported simplified index version " + version);
+      }
+      labelAttribute = FeatureEntryIO.readString(in);
+      String attributeName = FeatureEntryIO.readString(in);
+      double minX = in.readDouble();
+      double maxX = in.readDouble();
+      double minY = in.readDouble();
+      double maxY = in.readDouble();
+      reference = CellLocationReference.fromAttributeName(
+        new ReferencedEnvelope(minX, maxX, minY, maxY, null),
+        attributeName
+      );
+      if (!reference.hasPackedIds()) {
+        throw new IOException("Unsupported levels " + attributeName + " in simplified index");
+      }
+    }
+
+    public CellLocationReference reference() {
+      return reference;
+    }
+
+    public String labelAttribute() {
+      return labelAttribute;
+    }
+
+    /**
+     * Reads the next feature
+     * @return the feature, or null after the last feature
+     * @throws IOException if the feature cannot be read
+     */
+    public FeatureEntry next() throws IOException {
+      long packedId = in.readLong();
+      if (packedId == EndOfRecords) {
+        return null;
+      }
+      CellLocation location = CellLocation.fromPackedId(reference, packedId);
+      int labelId = in.readInt();
+      if (labelId == labels.size()) {
+        labels.add(FeatureEntryIO.readLabel(in));
+      } else if (labelId < 0 || labelId > labels.size()) {
+        throw new IOException("Unexpected label id " + labelId);
+      }
+      GeometryFactory geometryFactory = reference.getGeometryFactory();
+      Polygon[] polygons = new Polygon[in.readInt()];
+      for (int idx = 0; idx < polygons.length; ++idx) {
+        LinearRing[] holes = new LinearRing[in.readInt() - 1];
+        LinearRing shell = readRing(in, geometryFactory);
+        for (int hole = 0; hole < holes.length; ++hole) {
+          holes[hole] = readRing(in, geometryFactory);
+        }
+        polygons[idx] = geometryFactory.createPolygon(shell, holes);
+      }
+      Geometry geometry = polygons.length == 1 ? polygons[0] : geometryFactory.createMultiPolygon(polygons);
+      return new FeatureEntry(
+        location,
+        new AbstractMap.SimpleImmutableEntry<String, Object>(labelAttribute, labels.get(labelId)),
+        false,
+        geometry
+      );
+    }
+
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
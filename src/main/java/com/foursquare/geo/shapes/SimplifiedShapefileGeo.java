@@ -5,19 +5,29 @@ package com.foursquare.geo.shapes;
 import com.foursquare.geo.shapes.indexing.CellLocation;
 import com.foursquare.geo.shapes.indexing.CellLocationReference;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.type.AttributeDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The counterpart to {@link com.foursquare.geo.shapes.ShapefileSimplifier}. Once a shapefile
@@ -26,32 +36,235 @@ import java.util.Map;
  */
 public class SimplifiedShapefileGeo {
 
+  static final Logger logger = LoggerFactory.getLogger(SimplifiedShapefileGeo.class);
+
   private SimplifiedShapefileGeo() {
 
   }
 
   static class IndexedShapefile extends BaseIndexedValues {
     private Map<CellLocation, IndexedValues> cells;
+    // Refined mixed cells, looked up in place of their cells, or null if not refining
+    private ConcurrentMap<CellLocation, IndexedValues> refinedCells;
     private CellLocationReference reference;
+    // Built when a coverage is first asked for, and shared with views of these values
+    private AtomicReference<Map<Object, LabelCoverage>> labelCoverages;
+    private LookupProfiler profiler;
+    private AdaptiveRefiner refiner;
     public IndexedShapefile(CellLocationReference reference, Map<CellLocation, IndexedValues> cells) {
       this.cells = cells;
       this.reference = reference;
+      this.labelCoverages = new AtomicReference<Map<Object, LabelCoverage>>();
+    }
+
+    private IndexedShapefile(
+      IndexedShapefile indexedShapefile,
+      ConcurrentMap<CellLocation, IndexedValues> refinedCells,
+      LookupProfiler profiler,
+      AdaptiveRefiner refiner
+    ) {
+      this.cells = indexedShapefile.cells;
+      this.refinedCells = refinedCells;
+      this.reference = indexedShapefile.reference;
+      this.labelCoverages = indexedShapefile.labelCoverages;
+      this.profiler = profiler;
+      this.refiner = refiner;
+    }
+
+    /**
+     * Builds the per-label posting lists of cells and merged envelopes
+     */
+    private static Map<Object, LabelCoverage> buildLabelCoverages(
+      CellLocationReference reference,
+      Map<CellLocation, IndexedValues> cells
+    ) {
+      Map<Object, List<CellLocation>> labelCells = new HashMap<Object, List<CellLocation>>();
+      Map<Object, Envelope> labelEnvelopes = new HashMap<Object, Envelope>();
+      for (Map.Entry<CellLocation, IndexedValues> cell: cells.entrySet()) {
+        CellLocation location = cell.getKey();
+        IndexedValues indexedValues = cell.getValue();
+        Map<Object, Envelope> cellLabelEnvelopes;
+        if (indexedValues instanceof MixedIndexedValues) {
+          cellLabelEnvelopes = ((MixedIndexedValues) indexedValues).labelEnvelopes();
+        } else if (indexedValues instanceof SingleIndexedValue) {
+          cellLabelEnvelopes = new HashMap<Object, Envelope>();
+          cellLabelEnvelopes.put(((SingleIndexedValue) indexedValues).label(), location.envelope());
+        } else {
+          continue;
+        }
+
+        for (Map.Entry<Object, Envelope> labelEnvelope: cellLabelEnvelopes.entrySet()) {
+          Object label = labelEnvelope.getKey();
+          if (label == null) {
+            continue;
+          }
+          if (!labelCells.containsKey(label)) {
+            labelCells.put(label, new ArrayList<CellLocation>());
+            labelEnvelopes.put(label, new Envelope());
+          }
+          labelCells.get(label).add(location);
+          labelEnvelopes.get(label).expandToInclude(labelEnvelope.getValue());
+        }
+      }
+
+      Map<Object, LabelCoverage> labelCoverages = new HashMap<Object, LabelCoverage>();
+      for (Map.Entry<Object, List<CellLocation>> entry: labelCells.entrySet()) {
+        labelCoverages.put(entry.getKey(), new LabelCoverage(
+          entry.getKey(),
+          entry.getValue(),
+          labelEnvelopes.get(entry.getKey()),
+          cells,
+          reference.getGeometryFactory()
+        ));
+      }
+      return labelCoverages;
     }
 
     @Override
     public Object labelForCoordinate(Coordinate coordinate) {
+      boolean profile = profiler != null && profiler.sample();
+      boolean refine = refiner != null && refiner.sample();
+      if (profile || refine) {
+        return sampledLabelForCoordinate(coordinate, profile, refine);
+      }
       return locationValues(coordinate).labelForCoordinate(coordinate);
     }
 
+    /**
+     * The values of a cell, refined if a refinement of it has been published
+     */
+    private IndexedValues cellValues(CellLocation location) {
+      IndexedValues indexedValues = cells.get(location);
+      if (refinedCells != null && indexedValues instanceof MixedIndexedValues) {
+        IndexedValues refined = refinedCells.get(location);
+        if (refined != null) {
+          return refined;
+        }
+      }
+      return indexedValues;
+    }
+
+    private Object sampledLabelForCoordinate(Coordinate coordinate, boolean profile, boolean refine) {
+      CellLocation location = CellLocation.fromCoordinate(reference, coordinate);
+      IndexedValues indexedValues = cellValues(location);
+      while (indexedValues == null && location.parent() != null) {
+        location = location.parent();
+        indexedValues = cellValues(location);
+      }
+      long startNanos = System.nanoTime();
+      Object label = indexedValues.labelForCoordinate(coordinate);
+      long nanos = System.nanoTime() - startNanos;
+      if (profile) {
+        profiler.record(location, !(indexedValues instanceof SingleIndexedValue), nanos);
+      }
+      if (refine && indexedValues instanceof MixedIndexedValues && !(indexedValues instanceof RefinedIndexedValues) &&
+        refiner.record(location, nanos)) {
+        scheduleRefinement(location, (MixedIndexedValues) indexedValues);
+      }
+      return label;
+    }
+
+    private void scheduleRefinement(final CellLocation location, final MixedIndexedValues cellValues) {
+      try {
+        refiner.executor().execute(new Runnable() {
+          @Override
+          public void run() {
+            refineCell(location, cellValues);
+          }
+        });
+      } catch (RejectedExecutionException ree) {
+        logger.warn("Not refining cell {}: {}", location, ree.getMessage());
+        refiner.finished(location, false);
+      }
+    }
+
+    private void refineCell(CellLocation location, MixedIndexedValues cellValues) {
+      boolean replaced = false;
+      try {
+        RefinedIndexedValues refined = RefinedIndexedValues.refine(location, cellValues, refiner.gridSize());
+        if (refinedCells.putIfAbsent(location, refined) == null) {
+          replaced = true;
+          logger.debug("Refined cell {} into {} sub-cells, {} without geometry",
+            location, refiner.gridSize() * refiner.gridSize(), refined.numSingleSubCells());
+        }
+      } catch (RuntimeException re) {
+        logger.warn("Not refining cell {}: {}", location, re.getMessage());
+      } finally {
+        refiner.finished(location, replaced);
+      }
+    }
+
+    @Override
+    IndexedValues profiled(LookupProfiler profiler) {
+      return new IndexedShapefile(this, refinedCells, profiler, refiner);
+    }
+
+    @Override
+    IndexedValues refining(AdaptiveRefiner refiner) {
+      // Refinements are not shared with these values
+      return new IndexedShapefile(
+        this,
+        new ConcurrentHashMap<CellLocation, IndexedValues>(),
+        profiler,
+        refiner
+      );
+    }
+
+    @Override
+    CellLocationReference cellReference() {
+      return reference;
+    }
+
+    @Override
+    public LabelDistance labelDistanceForCoordinate(Coordinate coordinate) {
+      CellLocation location = CellLocation.fromCoordinate(reference, coordinate);
+      while (location != null) {
+        IndexedValues indexedValues = cellValues(location);
+        if (indexedValues instanceof MixedIndexedValues) {
+          return ((MixedIndexedValues) indexedValues).labelDistanceForCoordinate(coordinate, location.envelope());
+        } else if (indexedValues != null) {
+          // A single-label cell has no boundaries closer than its edges
+          return new LabelDistance(
+            indexedValues.labelForCoordinate(coordinate),
+            BoundarySegmentIndex.distanceToEdge(location.envelope(), coordinate),
+            false
+          );
+        }
+        location = location.parent();
+      }
+      return new LabelDistance(null, 0, false);
+    }
+
+    @Override
+    public LabelCoverage labelCoverage(Object label) {
+      Map<Object, LabelCoverage> coverages = labelCoverages.get();
+      if (coverages == null) {
+        // Most values are never asked for coverages. Racing builds are harmless, and the first wins.
+        labelCoverages.compareAndSet(null, buildLabelCoverages(reference, cells));
+        coverages = labelCoverages.get();
+      }
+      return coverages.get(label);
+    }
+
     @Override
     public List<FeatureEntry> colocatedFeatures(Coordinate coordinate) {
       return locationValues(coordinate).colocatedFeatures(coordinate);
     }
 
     private IndexedValues locationValues(Coordinate coordinate) {
+      if (coordinate instanceof ProbedCoordinate && ((ProbedCoordinate) coordinate).probes(reference)) {
+        ProbedCoordinate probe = (ProbedCoordinate) coordinate;
+        for (int idx = 0; idx < probe.numLocations(); ++idx) {
+          IndexedValues indexedValues = cellValues(probe.location(idx));
+          if (indexedValues != null) {
+            return indexedValues;
+          }
+        }
+        return null;
+      }
       CellLocation location = CellLocation.fromCoordinate(reference, coordinate);
       while (location != null) {
-        IndexedValues indexedValues = cells.get(location);
+        IndexedValues indexedValues = cellValues(location);
         if (indexedValues != null) {
           return indexedValues;
         }
@@ -61,29 +274,34 @@ public class SimplifiedShapefileGeo {
     }
   }
 
-  static class ShapeIndexedValues extends BaseIndexedValues {
-    private List<FeatureEntry> featureEntries;
-    public ShapeIndexedValues() {
-      this.featureEntries = new ArrayList<FeatureEntry>();
-    }
+  /**
+   * The features of a cell with more than one label, however they are stored
+   */
+  abstract static class MixedIndexedValues extends BaseIndexedValues {
+    private volatile BoundarySegmentIndex boundarySegmentIndex;
 
-    public void add(FeatureEntry featureEntry) {
-      featureEntries.add(featureEntry);
-    }
+    abstract List<FeatureEntry> featureEntries();
 
-    public IndexedValues simplified() {
-      if (featureEntries.isEmpty()) {
-        return SingleIndexedValue.NO_VALUE;
-      } else if (featureEntries.size() == 1) {
-        return new SingleIndexedValue(featureEntries.get(0).getLabel());
-      } else {
-        return this;
+    /**
+     * The merged envelope of the features of each label
+     */
+    Map<Object, Envelope> labelEnvelopes() {
+      Map<Object, Envelope> labelEnvelopes = new HashMap<Object, Envelope>();
+      for (FeatureEntry featureEntry: featureEntries()) {
+        Envelope envelope = labelEnvelopes.get(featureEntry.getLabel());
+        if (envelope == null) {
+          envelope = new Envelope();
+          labelEnvelopes.put(featureEntry.getLabel(), envelope);
+        }
+        envelope.expandToInclude(featureEntry.geometry.getEnvelopeInternal());
       }
+      return labelEnvelopes;
     }
+
     @Override
     public Object labelForCoordinate(Coordinate coordinate) {
       Geometry coordGeom = ShapefileUtils.GEOMETRY_FACTORY.createPoint(coordinate);
-      for (FeatureEntry entry: featureEntries) {
+      for (FeatureEntry entry: featureEntries()) {
         if (entry.geometry.covers(coordGeom)) {
           return entry.getLabel();
         }
@@ -91,10 +309,59 @@ public class SimplifiedShapefileGeo {
       return null;
     }
 
+    /**
+     * The label and the distance to the nearest boundary within the cell. When the
+     * cell edge is closer than any boundary, the edge distance is a lower bound.
+     * @param coordinate the query point
+     * @param cellEnvelope the envelope of the cell holding these features
+     * @return the label and distance
+     */
+    LabelDistance labelDistanceForCoordinate(Coordinate coordinate, Envelope cellEnvelope) {
+      BoundarySegmentIndex segmentIndex = boundarySegmentIndex;
+      if (segmentIndex == null) {
+        // Built lazily, as most cells are never asked for distances. Racing builds are harmless.
+        segmentIndex = new BoundarySegmentIndex(featureEntries(), cellEnvelope);
+        boundarySegmentIndex = segmentIndex;
+      }
+      double edgeDistance = BoundarySegmentIndex.distanceToEdge(cellEnvelope, coordinate);
+      double boundaryDistance = segmentIndex.distance(coordinate, edgeDistance);
+      return new LabelDistance(
+        labelForCoordinate(coordinate),
+        Math.min(boundaryDistance, edgeDistance),
+        boundaryDistance <= edgeDistance
+      );
+    }
+
     @Override
     public List<FeatureEntry> colocatedFeatures(Coordinate coordinate) {
+      return featureEntries();
+    }
+  }
+
+  static class ShapeIndexedValues extends MixedIndexedValues {
+    private List<FeatureEntry> featureEntries;
+    public ShapeIndexedValues() {
+      this.featureEntries = new ArrayList<FeatureEntry>();
+    }
+
+    public void add(FeatureEntry featureEntry) {
+      featureEntries.add(featureEntry);
+    }
+
+    @Override
+    List<FeatureEntry> featureEntries() {
       return featureEntries;
     }
+
+    public IndexedValues simplified() {
+      if (featureEntries.isEmpty()) {
+        return SingleIndexedValue.NO_VALUE;
+      } else if (featureEntries.size() == 1) {
+        return new SingleIndexedValue(featureEntries.get(0).getLabel());
+      } else {
+        return this;
+      }
+    }
   }
 
   static class SingleIndexedValue extends BaseIndexedValues {
@@ -108,6 +375,13 @@ public class SimplifiedShapefileGeo {
       return value;
     }
 
+    /**
+     * The label of every coordinate in the cell
+     */
+    Object label() {
+      return value;
+    }
+
     @Override
     public List<FeatureEntry> colocatedFeatures(Coordinate coordinate) {
       return Collections.emptyList();
@@ -133,6 +407,28 @@ public class SimplifiedShapefileGeo {
      URL file,
      String labelAttribute,
      boolean simplifySingleLabelCells
+  ) throws IOException {
+    return load(file, labelAttribute, simplifySingleLabelCells, false);
+  }
+
+  /**
+   * Loads a simplified Shapefile
+   * @param file see {@link #load(URL, String, boolean)}
+   * @param labelAttribute see {@link #load(URL, String, boolean)}
+   * @param simplifySingleLabelCells see {@link #load(URL, String, boolean)}
+   * @param storeArcs when true, the features of each mixed cell are stored as arcs shared
+   *                  by the features on either side, which takes less memory but rebuilds
+   *                  geometries when they are asked for. When false, the geometries are kept,
+   *                  as by {@link #load(URL, String, boolean)}.
+   * @return an representation of the Shapefile that allows testing the labelAttribute value
+   * at a certain point.
+   * @throws IOException if the file cannot be loaded
+   */
+  public static IndexedValues load(
+     URL file,
+     String labelAttribute,
+     boolean simplifySingleLabelCells,
+     boolean storeArcs
   ) throws IOException {
     ShapefileDataStore dataStore = ShapefileUtils.featureStore(file);
     SimpleFeatureSource featureSource = dataStore.getFeatureSource();
@@ -169,17 +465,198 @@ public class SimplifiedShapefileGeo {
       cellMap.get(featureEntry.location).add(featureEntry);
     }
     dataStore.dispose();
+    return indexedValues(reference, cellMap, simplifySingleLabelCells, storeArcs);
+  }
+
+  /**
+   * Loads a simplified Shapefile on the local file system by memory-mapping it, decoding
+   * only the label and cell location attributes and skipping GeoTools features. Text
+   * attributes are decoded as UTF-8, and only character and numeric attributes are typed,
+   * so labels of other attribute types are read as text.
+   * @param shpFile the .shp file, next to its .dbf file
+   * @param labelAttribute see {@link #load(URL, String, boolean)}
+   * @param simplifySingleLabelCells see {@link #load(URL, String, boolean)}
+   * @param storeArcs see {@link #load(URL, String, boolean, boolean)}
+   * @return an representation of the Shapefile that allows testing the labelAttribute value
+   * at a certain point.
+   * @throws IOException if the file cannot be loaded
+   */
+  public static IndexedValues loadMapped(
+    File shpFile,
+    String labelAttribute,
+    boolean simplifySingleLabelCells,
+    boolean storeArcs
+  ) throws IOException {
+    MappedShapefileReader reader = new MappedShapefileReader(shpFile, Charset.forName("UTF-8"));
+    int labelField = reader.fieldIndex(labelAttribute);
+    if (labelField < 0) {
+      throw new IOException("Schema has no attribute named \"" + labelAttribute + "\"");
+    }
+
+    CellLocationReference reference = null;
+    int locationField = -1;
+    for (String fieldName: reader.fieldNames()) {
+      if (fieldName.startsWith(CellLocationReference.AttributePrefix)) {
+        reference = CellLocationReference.fromAttributeName(
+          new ReferencedEnvelope(reader.bounds(), null),
+          fieldName
+        );
+        locationField = reader.fieldIndex(fieldName);
+      }
+    }
+
+    if (reference == null) {
+      throw new IOException("Schema has no attribute starting with \"" + CellLocationReference.AttributePrefix + "\"");
+    }
+
+    FeatureEntryFactory featureEntryFactory = new FeatureEntryFactory(
+      reference,
+      labelAttribute
+    );
+
+    // Features of a cell are written together, so locations are parsed once per cell
+    Map<Object, CellLocation> locations = new HashMap<Object, CellLocation>();
+    Map<CellLocation, ShapeIndexedValues> cellMap = new HashMap<CellLocation, ShapeIndexedValues>();
+    while (reader.next()) {
+      Object locationValue = reader.value(locationField);
+      CellLocation location = locations.get(locationValue);
+      if (location == null) {
+        location = locationValue == null ?
+          new CellLocation(reference) :
+          CellLocation.fromAttributeValue(reference, locationValue);
+        locations.put(locationValue, location);
+      }
+      FeatureEntry featureEntry = new FeatureEntry(
+        location,
+        featureEntryFactory.labelEntry(reader.value(labelField)),
+        false,
+        reader.geometry()
+      );
+      if (cellMap.get(featureEntry.location) == null) {
+        cellMap.put(featureEntry.location, new ShapeIndexedValues());
+      }
+      cellMap.get(featureEntry.location).add(featureEntry);
+    }
+    return indexedValues(reference, cellMap, simplifySingleLabelCells, storeArcs);
+  }
+
+  /**
+   * Profiles the lookups of loaded values, to find the cells that lookups hit most
+   * and spend most time in
+   * @param indexedValues values returned by {@link #load} or {@link #loadIndex}, optionally
+   *                      with filters applied
+   * @param profiler the profiler to record samples in
+   * @return a view of the values whose lookups are sampled by the profiler. The original
+   * values are not profiled.
+   */
+  public static IndexedValues profiled(IndexedValues indexedValues, LookupProfiler profiler) {
+    return BaseIndexedValues.profiled(indexedValues, profiler);
+  }
+
+  /**
+   * Splits the mixed cells of loaded values that lookups spend most time in into finer
+   * sub-cells, in the background while lookups run
+   * @param indexedValues values returned by {@link #load} or {@link #loadIndex}, optionally
+   *                      with filters applied
+   * @param refiner the refiner deciding which cells to split
+   * @return a view of the values whose cells are refined. The original values are not refined.
+   */
+  public static IndexedValues refining(IndexedValues indexedValues, AdaptiveRefiner refiner) {
+    return BaseIndexedValues.refining(indexedValues, refiner);
+  }
+
+  /**
+   * Loads several simplified Shapefiles as layers looked up together. Layers simplified
+   * with the same --bounds and level sizes share the cells probed by each lookup.
+   * @param files the locations of the files, as for {@link #load}
+   * @param labelAttributes the attribute to return for each file
+   * @param simplifySingleLabelCells see {@link #load}
+   * @return the layers, in the order of the files
+   * @throws IOException if a file cannot be loaded
+   */
+  public static MultiLayerIndex loadLayers(
+    List<URL> files,
+    List<String> labelAttributes,
+    boolean simplifySingleLabelCells
+  ) throws IOException {
+    if (files.size() != labelAttributes.size()) {
+      throw new IllegalArgumentException(
+        "Got " + files.size() + " files but " + labelAttributes.size() + " label attributes"
+      );
+    }
+    List<IndexedValues> layers = new ArrayList<IndexedValues>(files.size());
+    for (int idx = 0; idx < files.size(); ++idx) {
+      layers.add(load(files.get(idx), labelAttributes.get(idx), simplifySingleLabelCells));
+    }
+    return new MultiLayerIndex(layers);
+  }
+
+  /**
+   * Loads a binary index written by {@link com.foursquare.geo.shapes.ShapefileSimplifier} with
+   * --index, which is faster to load than the simplified Shapefile
+   * @param file the location of the index. Can be a resource on the classpath.
+   * @param simplifySingleLabelCells see {@link #load(URL, String, boolean)}
+   * @return an representation of the index that allows testing the label value at a certain point.
+   * @throws IOException if the index cannot be loaded
+   */
+  public static IndexedValues loadIndex(
+    URL file,
+    boolean simplifySingleLabelCells
+  ) throws IOException {
+    return loadIndex(file, simplifySingleLabelCells, false);
+  }
+
+  /**
+   * Loads a binary index written by {@link com.foursquare.geo.shapes.ShapefileSimplifier} with
+   * --index
+   * @param file see {@link #loadIndex(URL, boolean)}
+   * @param simplifySingleLabelCells see {@link #load(URL, String, boolean)}
+   * @param storeArcs see {@link #load(URL, String, boolean, boolean)}
+   * @return an representation of the index that allows testing the label value at a certain point.
+   * @throws IOException if the index cannot be loaded
+   */
+  public static IndexedValues loadIndex(
+    URL file,
+    boolean simplifySingleLabelCells,
+    boolean storeArcs
+  ) throws IOException {
+    SimplifiedIndexIO.Reader reader = new SimplifiedIndexIO.Reader(file.openStream());
+    Map<CellLocation, ShapeIndexedValues> cellMap = new HashMap<CellLocation, ShapeIndexedValues>();
+    try {
+      for (FeatureEntry featureEntry = reader.next(); featureEntry != null; featureEntry = reader.next()) {
+        if (cellMap.get(featureEntry.location) == null) {
+          cellMap.put(featureEntry.location, new ShapeIndexedValues());
+        }
+        cellMap.get(featureEntry.location).add(featureEntry);
+      }
+    } finally {
+      reader.close();
+    }
+    return indexedValues(reader.reference(), cellMap, simplifySingleLabelCells, storeArcs);
+  }
 
-    IndexedValues indexedValues;
-    if (simplifySingleLabelCells) {
-      Map<CellLocation, IndexedValues> simpleCellMap = new HashMap<CellLocation, IndexedValues>();
-      for (Map.Entry<CellLocation, ShapeIndexedValues> entry: cellMap.entrySet()) {
-        simpleCellMap.put(entry.getKey(), entry.getValue().simplified());
+  private static IndexedValues indexedValues(
+    CellLocationReference reference,
+    Map<CellLocation, ShapeIndexedValues> cellMap,
+    boolean simplifySingleLabelCells,
+    boolean storeArcs
+  ) {
+    Map<CellLocation, IndexedValues> simpleCellMap = new HashMap<CellLocation, IndexedValues>();
+    for (Map.Entry<CellLocation, ShapeIndexedValues> entry: cellMap.entrySet()) {
+      IndexedValues cellValues = simplifySingleLabelCells ? entry.getValue().simplified() : entry.getValue();
+      if (storeArcs && cellValues instanceof ShapeIndexedValues) {
+        // Store the borders of each cell once, as arcs shared by the features on either side
+        ArcIndexedValues arcValues = ArcIndexedValues.fromFeatures(((ShapeIndexedValues) cellValues).featureEntries());
+        if (arcValues != null) {
+          cellValues = arcValues;
+        }
       }
-      indexedValues = new IndexedShapefile(reference, simpleCellMap);
-    } else {
-      indexedValues = new IndexedShapefile(reference, Collections.<CellLocation, IndexedValues>unmodifiableMap(cellMap));
+      simpleCellMap.put(entry.getKey(), cellValues);
     }
+    IndexedValues indexedValues = new IndexedShapefile(
+      reference,
+      Collections.<CellLocation, IndexedValues>unmodifiableMap(simpleCellMap)
+    );
     // Apply a basic bounding box filter to handle out-of-bounds
     return indexedValues.with(
       new LabelFilters.BoundingBoxFilter(reference.getEnvelope())
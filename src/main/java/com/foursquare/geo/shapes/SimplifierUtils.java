@@ -2,6 +2,7 @@
 
 package com.foursquare.geo.shapes;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.TopologyException;
@@ -10,15 +11,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 class SimplifierUtils {
   static final Logger logger = LoggerFactory.getLogger(SimplifierUtils.class);
   static final int ImpossiblyLowPoints = 2;
   static final int SuspiciouslyLowPoints = 10;
   static final double AreaThreshold = 0.0000001;
+  /* Number of geometries of a label unioned at once, before partitioning */
+  static final int PartitionedUnionSize = 1024;
 
   private SimplifierUtils() {
 
@@ -27,16 +34,96 @@ class SimplifierUtils {
   public static boolean isValidGeometry(Geometry geometry) {
     int points = geometry.getNumPoints();
     if (points <= ImpossiblyLowPoints || (points <= SuspiciouslyLowPoints && geometry.getArea() < AreaThreshold)) {
-      logger.info("Dropping geometry {}", geometry);
+      SimplificationReport.droppedGeometry(geometry);
+      logger.debug("Dropping geometry {}", geometry);
       return false;
     } else {
       return true;
     }
   }
 
+  /**
+   * Unions a large number of geometries by splitting them at the median of their
+   * envelope centres, along the longer axis of their extent, and unioning the two
+   * halves separately. Halves are unioned in parallel when run in a pool.
+   */
+  private static class PartitionedUnion extends RecursiveTask<Geometry> {
+    private final GeometryFactory geometryFactory;
+    private final List<Geometry> geometries;
+    private final boolean parallel;
+
+    public PartitionedUnion(GeometryFactory geometryFactory, List<Geometry> geometries, boolean parallel) {
+      this.geometryFactory = geometryFactory;
+      this.geometries = geometries;
+      this.parallel = parallel;
+    }
+
+    @Override
+    protected Geometry compute() {
+      if (geometries.size() <= PartitionedUnionSize) {
+        return geometryFactory.buildGeometry(geometries).union();
+      }
+      Envelope extent = new Envelope();
+      for (Geometry geometry: geometries) {
+        extent.expandToInclude(geometry.getEnvelopeInternal());
+      }
+      final boolean byX = extent.getWidth() >= extent.getHeight();
+      List<Geometry> sorted = new ArrayList<Geometry>(geometries);
+      Collections.sort(sorted, new Comparator<Geometry>() {
+        @Override
+        public int compare(Geometry a, Geometry b) {
+          Envelope aEnvelope = a.getEnvelopeInternal();
+          Envelope bEnvelope = b.getEnvelopeInternal();
+          if (byX) {
+            return Double.compare(aEnvelope.getMinX() + aEnvelope.getMaxX(), bEnvelope.getMinX() + bEnvelope.getMaxX());
+          } else {
+            return Double.compare(aEnvelope.getMinY() + aEnvelope.getMaxY(), bEnvelope.getMinY() + bEnvelope.getMaxY());
+          }
+        }
+      });
+      int mid = sorted.size() / 2;
+      PartitionedUnion left = new PartitionedUnion(geometryFactory, sorted.subList(0, mid), parallel);
+      PartitionedUnion right = new PartitionedUnion(geometryFactory, sorted.subList(mid, sorted.size()), parallel);
+      if (parallel) {
+        invokeAll(left, right);
+        return left.join().union(right.join());
+      } else {
+        return left.compute().union(right.compute());
+      }
+    }
+  }
+
+  private static Geometry union(ForkJoinPool pool, GeometryFactory geometryFactory, List<Geometry> geoms) {
+    if (geoms.size() <= PartitionedUnionSize) {
+      return geometryFactory.buildGeometry(geoms).union();
+    } else if (pool == null) {
+      return new PartitionedUnion(geometryFactory, geoms, false).compute();
+    } else {
+      return ParallelMapper.invoke(pool, new PartitionedUnion(geometryFactory, geoms, true));
+    }
+  }
+
   public static List<ImmutablePair<Object, Geometry>> unionByLabel(
     GeometryFactory geometryFactory,
     List<ImmutablePair<Object, Geometry>> labeledFeatures
+  ) {
+    return unionByLabel(geometryFactory, labeledFeatures, null);
+  }
+
+  /**
+   * Unions geometries with the same label. Labels are unioned concurrently. Geometries
+   * that form a coverage are dissolved, and others are unioned by overlay, in spatial
+   * partitions for labels with many geometries. When a label's
+   * geometries cannot be unioned, they are returned separately.
+   * @param geometryFactory the factory for unioned geometries
+   * @param labeledFeatures the labeled geometries
+   * @param pool the pool to union on, or null to union on the calling thread
+   * @return the unioned geometries
+   */
+  static List<ImmutablePair<Object, Geometry>> unionByLabel(
+    final GeometryFactory geometryFactory,
+    List<ImmutablePair<Object, Geometry>> labeledFeatures,
+    final ForkJoinPool pool
   ) {
     // Group the geometries by label, and add them to the list.
     HashMap<Object, List<Geometry>> singleLabelGeometries = new HashMap<Object, List<Geometry>>();
@@ -53,44 +140,67 @@ class SimplifierUtils {
       }
     }
 
+    List<Map.Entry<Object, List<Geometry>>> labelGroups =
+      new ArrayList<Map.Entry<Object, List<Geometry>>>(singleLabelGeometries.entrySet());
+    List<List<ImmutablePair<Object, Geometry>>> unionedGroups =
+      new ParallelMapper<Map.Entry<Object, List<Geometry>>, List<ImmutablePair<Object, Geometry>>>() {
+        @Override
+        List<ImmutablePair<Object, Geometry>> apply(Map.Entry<Object, List<Geometry>> entry) {
+          return unionLabel(geometryFactory, entry.getKey(), entry.getValue(), pool);
+        }
+      }.map(pool, labelGroups);
+
+    List<ImmutablePair<Object, Geometry>> unionedGeoms = new ArrayList<ImmutablePair<Object, Geometry>>();
+    for (List<ImmutablePair<Object, Geometry>> unionedGroup: unionedGroups) {
+      unionedGeoms.addAll(unionedGroup);
+    }
+    return unionedGeoms;
+  }
+
+  private static List<ImmutablePair<Object, Geometry>> unionLabel(
+    GeometryFactory geometryFactory,
+    Object label,
+    List<Geometry> geoms,
+    ForkJoinPool pool
+  ) {
     List<ImmutablePair<Object, Geometry>> unionedGeoms = new ArrayList<ImmutablePair<Object, Geometry>>();
-    // A list of coordinates can be converted to a lineString, which can create a geometry.
-    for (Map.Entry<Object, List<Geometry>> entry: singleLabelGeometries.entrySet()) {
-      Geometry unionedGeom = null;
-      Object label = entry.getKey();
-      List<Geometry> geoms = entry.getValue();
-      int numGeoms = geoms.size();
-
-      if (label == null) {
-        logger.warn("Skipping null label group containing {} features", geoms.size());
-        continue;
+    Geometry unionedGeom = null;
+    int numGeoms = geoms.size();
+
+    if (label == null) {
+      logger.warn("Skipping null label group containing {} features", geoms.size());
+      return unionedGeoms;
+    }
+    boolean unionError = false;
+    try {
+      if (numGeoms == 0) {
+        throw new IllegalArgumentException("unexpected 0 geometries for label " + label);
+      } else if (numGeoms == 1) {
+        unionedGeom = geoms.get(0);
+      } else {
+        unionedGeom = CoverageDissolver.dissolve(geometryFactory, geoms);
       }
-      boolean unionError = false;
-      try {
-        if (numGeoms == 0) {
-          throw new IllegalArgumentException("unexpected 0 geometries for label " + label);
-        } else if (numGeoms == 1) {
-          unionedGeom = geoms.get(0);
-        } else if (numGeoms == 2) {
+      if (unionedGeom == null) {
+        logger.debug("Geometries for label {} are not a coverage, unioning by overlay", label);
+        if (numGeoms == 2) {
           unionedGeom = geoms.get(0).union(geoms.get(1));
         } else {
-
-          unionedGeom = geometryFactory.buildGeometry(geoms).union();
-          //parallelUnion(entry.getValue(), false);
+          unionedGeom = union(pool, geometryFactory, geoms);
         }
-
-        unionedGeoms.add(ImmutablePair.of(label, unionedGeom));
-      } catch (TopologyException te) {
-        unionError = true;
-      } catch (IllegalArgumentException ae) {
-        unionError = true;
       }
 
-      if (unionError) {
-        logger.info("Could not union geometries for label: {} Adding separate geometries.", label);
-        for (Geometry geom: geoms) {
-          unionedGeoms.add(ImmutablePair.of(label, geom));
-        }
+      unionedGeoms.add(ImmutablePair.of(label, unionedGeom));
+    } catch (TopologyException te) {
+      unionError = true;
+    } catch (IllegalArgumentException ae) {
+      unionError = true;
+    }
+
+    if (unionError) {
+      SimplificationReport.topologyFallback();
+      logger.info("Could not union geometries for label: {} Adding separate geometries.", label);
+      for (Geometry geom: geoms) {
+        unionedGeoms.add(ImmutablePair.of(label, geom));
       }
     }
     return unionedGeoms;
@@ -2,27 +2,36 @@
 
 package com.foursquare.geo.shapes;
 
+import com.foursquare.geo.shapes.indexing.CellLocation;
 import com.foursquare.geo.shapes.indexing.CellLocationReference;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.index.strtree.STRtree;
 import com.vividsolutions.jts.triangulate.DelaunayTriangulationBuilder;
+import com.vividsolutions.jts.triangulate.VoronoiDiagramBuilder;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 public class WaterDelaunayTriangulationSimplifier {
   static final Logger logger = LoggerFactory.getLogger(WaterDelaunayTriangulationSimplifier.class);
+  /* Fraction of a top-level cell's width and height by which land around it is triangulated with it */
+  static final double PartitionMargin = 0.5;
+  /* Each of the 6 pairs of a triangle's 4 coordinates labels at most 4 points */
+  static final int MaxLabeledPoints = 24;
 
   static class LabeledWaterFeature {
     public final Geometry geometry;
@@ -50,46 +59,36 @@ public class WaterDelaunayTriangulationSimplifier {
     return triangles;
   }
 
-  private static Set<Object> labelSet(List<FeatureEntry> featureEntries) {
-    if (featureEntries == null || featureEntries.isEmpty()) {
-      return Collections.emptySet();
-    }
-    HashSet<Object> labels = new HashSet<Object>();
-    for (FeatureEntry featureEntry: featureEntries) {
-      labels.add(featureEntry.getLabel());
-    }
-    return labels;
+  private static boolean contains(int[] values, int length, int value) {
+    return indexOf(values, length, value) != length;
   }
 
-  private static <E> E containsAny(Set<E> set, Collection<E> other) {
-    if (set.isEmpty() || other.isEmpty()) {
-      return null;
-    }
-    for (E elem: other) {
-      if (set.contains(elem)) {
-        return elem;
+  /**
+   * The index of the first occurrence of a value, or length if there is none
+   */
+  private static int indexOf(int[] values, int length, int value) {
+    for (int idx = 0; idx < length; ++idx) {
+      if (values[idx] == value) {
+        return idx;
       }
     }
-    return null;
+    return length;
   }
 
-  private static <E> E head(Collection<E> c) {
-    Iterator<E> it = c.iterator();
-    if (it.hasNext()) {
-      return it.next();
-    }
-    return null;
-  }
-
-
   private static List<LabeledWaterFeature> labelTriangles(
     GeometryFactory geometryFactory,
-    Map<Coordinate, List<FeatureEntry>> coordToFeat,
+    CoordinateFeatureIndex coordIndex,
     List<Geometry> triangles
   ) {
+    LandEdgeIndex edgeIndex = new LandEdgeIndex(coordIndex);
     List<LabeledWaterFeature> waterFeatures = new ArrayList<LabeledWaterFeature>();
     int totalTriangles = triangles.size();
     logger.debug("Total triangles {}", totalTriangles);
+    // Buffers reused across triangles, so that labeling allocates little besides its output
+    int[] slots = new int[4];
+    int[] seenFeatures = new int[16];
+    int[] pointLabels = new int[MaxLabeledPoints];
+    Coordinate[] points = new Coordinate[MaxLabeledPoints];
     for(Geometry triangle: triangles) {
       Coordinate[] coords = triangle.getCoordinates();
       if (coords.length != 4) {
@@ -97,24 +96,16 @@ public class WaterDelaunayTriangulationSimplifier {
           "Expected 4 coords per triangle, but " + triangle + " has " + coords.length
         );
       }
-      // Generate label sets for each coordinate
-      List<Set<Object>> coordLabels = new ArrayList<Set<Object>>();
-      for (Coordinate coord: coords) {
-        coordLabels.add(labelSet(coordToFeat.get(coord)));
-      }
-
-      Set<Object> commonLabels = new HashSet<Object>();
-      commonLabels.addAll(coordLabels.get(0));
-      for (Set<Object> coordLabel: coordLabels) {
-        commonLabels.retainAll(coordLabel);
+      // Find the label lists of each coordinate
+      for (int i = 0; i < coords.length; ++i) {
+        slots[i] = coordIndex.find(coords[i]);
       }
 
-
-      Object commonLabel = head(commonLabels);
-      if (commonLabel != null) {
+      int commonLabel = coordIndex.commonLabel(slots);
+      if (commonLabel != CoordinateFeatureIndex.NoEntry) {
         /* If the intersection of sets is non-empty, the triangle
          * can be classified with a single label. Any one will do. */
-        waterFeatures.add(new LabeledWaterFeature(triangle, commonLabel, false));
+        waterFeatures.add(new LabeledWaterFeature(triangle, coordIndex.label(commonLabel), false));
       } else {
         /* Not all points can agree on a single label.  In this case we can create
            one of two shapes: a trapezoid with a triangle hat:
@@ -135,81 +126,86 @@ public class WaterDelaunayTriangulationSimplifier {
          */
 
         // first, check if triangle overlaps with any land. if so, skip.
-        boolean overlaps = false;
-        Set<Geometry> touchingGeometries = new HashSet<Geometry>();
-        for(Coordinate coord: coords) {
-          if (overlaps) {
-            break;
-          }
-          List<FeatureEntry> feats = coordToFeat.get(coord);
-          if (feats == null) {
-            continue;
-          }
-          for (FeatureEntry feat: feats) {
-            if (touchingGeometries.add(feat.geometry)) {
-              if (feat.geometry.overlaps(triangle)) {
-                overlaps = true;
-                break;
-              }
+        int numSeen = 0;
+        for (int i = 0; i < slots.length; ++i) {
+          for (int entry = coordIndex.firstFeature(slots[i]);
+               entry != CoordinateFeatureIndex.NoEntry;
+               entry = coordIndex.nextFeature(entry)) {
+            int featureId = coordIndex.featureId(entry);
+            if (contains(seenFeatures, numSeen, featureId)) {
+              continue;
+            }
+            if (numSeen == seenFeatures.length) {
+              seenFeatures = Arrays.copyOf(seenFeatures, numSeen * 2);
             }
+            seenFeatures[numSeen++] = featureId;
           }
         }
-        if (overlaps) {
+        if (edgeIndex.overlapsAny(seenFeatures, numSeen, triangle)) {
           continue;
         }
 
         // Compare the coordinates to each other. For each pair, is there a common label they agree on?
-        List<ImmutablePair<Object, Coordinate>> labeledCoords = new ArrayList<ImmutablePair<Object, Coordinate>>();
+        int numPoints = 0;
         for (int i = 0; i < coords.length; ++i) {
           for (int j = i + 1; j < coords.length; ++j) {
             Coordinate iCoord = coords[i];
             Coordinate jCoord = coords[j];
-            Object aCommonLabel = containsAny(coordLabels.get(i), coordLabels.get(j));
-            if (aCommonLabel != null) {
+            int aCommonLabel = coordIndex.commonLabel(slots[i], slots[j]);
+            if (aCommonLabel != CoordinateFeatureIndex.NoEntry) {
               // If two coords share a common label, add those coords to that label
-              labeledCoords.add(ImmutablePair.of(aCommonLabel, iCoord));
-              labeledCoords.add(ImmutablePair.of(aCommonLabel, jCoord));
+              pointLabels[numPoints] = aCommonLabel;
+              points[numPoints++] = iCoord;
+              pointLabels[numPoints] = aCommonLabel;
+              points[numPoints++] = jCoord;
             } else {
               // TODO(johng) pick most popular, instead of head.
-              Object iLabel = head(coordLabels.get(i));
-              Object jLabel = head(coordLabels.get(j));
-              if (iLabel != null && jLabel != null) {
+              int iLabel = coordIndex.anyLabel(slots[i]);
+              int jLabel = coordIndex.anyLabel(slots[j]);
+              if (iLabel != CoordinateFeatureIndex.NoEntry && jLabel != CoordinateFeatureIndex.NoEntry) {
                 Coordinate coordMid = new Coordinate(
                   (iCoord.x + jCoord.x) / 2,
                   (iCoord.y + jCoord.y) / 2
                 );
-                labeledCoords.add(ImmutablePair.of(iLabel, iCoord));
-                labeledCoords.add(ImmutablePair.of(iLabel, coordMid));
-                labeledCoords.add(ImmutablePair.of(jLabel, jCoord));
-                labeledCoords.add(ImmutablePair.of(jLabel, coordMid));
+                pointLabels[numPoints] = iLabel;
+                points[numPoints++] = iCoord;
+                pointLabels[numPoints] = iLabel;
+                points[numPoints++] = coordMid;
+                pointLabels[numPoints] = jLabel;
+                points[numPoints++] = jCoord;
+                pointLabels[numPoints] = jLabel;
+                points[numPoints++] = coordMid;
               }
             }
           }
         }
 
-        // Group the coordinates by label, and add them to the list.
-        HashMap<Object, List<Coordinate>> singleLabelCoords = new HashMap<Object, List<Coordinate>>();
-        for (ImmutablePair<Object, Coordinate> labeledCoord: labeledCoords) {
-          List<Coordinate> coordList = singleLabelCoords.get(labeledCoord.getLeft());
-          if (coordList == null) {
-            coordList = new ArrayList<Coordinate>();
-            singleLabelCoords.put(labeledCoord.getLeft(), coordList);
+        // Group the coordinates by label, in order of each label's first coordinate
+        for (int i = 0; i < numPoints; ++i) {
+          int label = pointLabels[i];
+          if (indexOf(pointLabels, i, label) != i) {
+            continue;
+          }
+          int numCoords = 0;
+          for (int j = i; j < numPoints; ++j) {
+            if (pointLabels[j] == label) {
+              ++numCoords;
+            }
           }
-          coordList.add(labeledCoord.getRight());
-        }
-
-        // A list of coordinates can be converted to a lineString, which can create a geometry.
-        for (Map.Entry<Object, List<Coordinate>> entry: singleLabelCoords.entrySet()) {
-          int numCoords = entry.getValue().size();
           if (numCoords >= 3) {
+            Coordinate[] labelCoords = new Coordinate[numCoords];
+            for (int j = i, k = 0; j < numPoints; ++j) {
+              if (pointLabels[j] == label) {
+                labelCoords[k++] = points[j];
+              }
+            }
+            // A list of coordinates can be converted to a lineString, which can create a geometry.
             // convexHull is used because the trapezoid can potentially become a bowtie.
-            Geometry labelGeom = geometryFactory.createLineString(
-              entry.getValue().toArray(new Coordinate[numCoords])
-            ).convexHull();
+            Geometry labelGeom = geometryFactory.createLineString(labelCoords).convexHull();
             if (SimplifierUtils.isValidGeometry(labelGeom)) {
               waterFeatures.add(new LabeledWaterFeature(
                 labelGeom,
-                entry.getKey(),
+                coordIndex.label(label),
                 true
               ));
             }
@@ -223,7 +219,8 @@ public class WaterDelaunayTriangulationSimplifier {
   private static List<FeatureEntry> unionTrianglesByLabel(
     GeometryFactory geometryFactory,
     FeatureEntryFactory featureEntryFactory,
-    List<LabeledWaterFeature> labeledTriangles
+    List<LabeledWaterFeature> labeledTriangles,
+    ForkJoinPool pool
   ) {
     // Convert the labeled triangles to label -> geom pairs
     List<ImmutablePair<Object, Geometry>> labeledGeoms = new ArrayList<ImmutablePair<Object, Geometry>>();
@@ -233,7 +230,7 @@ public class WaterDelaunayTriangulationSimplifier {
 
     // Group/Union by label
     List<ImmutablePair<Object, Geometry>> unionedGeoms =
-      SimplifierUtils.unionByLabel(geometryFactory, labeledGeoms);
+      SimplifierUtils.unionByLabel(geometryFactory, labeledGeoms, pool);
 
     // Convert to feature entries
     List<FeatureEntry> combinedTriangles = new ArrayList<FeatureEntry>();
@@ -259,57 +256,470 @@ public class WaterDelaunayTriangulationSimplifier {
     FeatureEntryFactory featureEntryFactory,
     Iterable<FeatureEntry> features
   ) {
+    return simplify(reference, featureEntryFactory, features, reference.getEnvelope(), new SimplificationOptions());
+  }
+
+  /**
+   * Simplify the set of features, only triangulating the water within an extent.
+   * Land outside of the extent is ignored.
+   * @param reference the location reference (bounding box, etc)
+   * @param featureEntryFactory  a factory instance for creating more features
+   * @param features the input set of features
+   * @param extent the extent of the water to triangulate
+   * @return a set of simplified features
+   */
+  public static List<FeatureEntry> simplify(
+    CellLocationReference reference,
+    FeatureEntryFactory featureEntryFactory,
+    Iterable<FeatureEntry> features,
+    Envelope extent
+  ) {
+    return simplify(reference, featureEntryFactory, features, extent, new SimplificationOptions());
+  }
+
+  /**
+   * Simplify the set of features with the given options, checkpointing the water geometry and
+   * the labeled water features. Completed stages are read from the checkpoint rather than
+   * computed again. With Voronoi water, water is assigned to labels by a Voronoi diagram of
+   * the coastline vertices rather than by labeling triangles.
+   * @param reference the location reference (bounding box, etc)
+   * @param featureEntryFactory  a factory instance for creating more features
+   * @param features the input set of features
+   * @param extent the extent of the water to label
+   * @param options the number of threads, checkpoint and whether to label water by Voronoi cells
+   * @return a set of simplified features
+   */
+  static List<FeatureEntry> simplify(
+    CellLocationReference reference,
+    FeatureEntryFactory featureEntryFactory,
+    Iterable<FeatureEntry> features,
+    Envelope extent,
+    SimplificationOptions options
+  ) {
+    int numThreads = options.numThreads();
+    SimplificationCheckpoint checkpoint = options.checkpoint();
+    ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+    try {
+      if (checkpoint != null && checkpoint.hasStage(SimplificationCheckpoint.WaterFeaturesStage)) {
+        logger.info("Reading labeled water from checkpoint");
+        return checkpoint.readFeatures(SimplificationCheckpoint.WaterFeaturesStage, reference);
+      }
+      List<FeatureEntry> unionedLabeledWater = simplifyWater(
+        reference,
+        featureEntryFactory,
+        features,
+        extent,
+        options.voronoiWater(),
+        pool,
+        checkpoint
+      );
+      if (checkpoint != null) {
+        checkpoint.writeFeatures(SimplificationCheckpoint.WaterFeaturesStage, unionedLabeledWater);
+      }
+      return unionedLabeledWater;
+    } catch (IOException ioe) {
+      throw new RuntimeException("Failed to checkpoint water", ioe);
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  private static List<FeatureEntry> simplifyWater(
+    CellLocationReference reference,
+    FeatureEntryFactory featureEntryFactory,
+    Iterable<FeatureEntry> features,
+    Envelope extent,
+    boolean voronoi,
+    ForkJoinPool pool,
+    SimplificationCheckpoint checkpoint
+  ) throws IOException {
     GeometryFactory geometryFactory = reference.getGeometryFactory();
-    HashMap<Coordinate, List<FeatureEntry>> coordToFeat = new HashMap<Coordinate, List<FeatureEntry>>();
+    CoordinateFeatureIndex coordIndex = new CoordinateFeatureIndex();
     ArrayList<Geometry> allLand = new ArrayList<Geometry>();
     for (FeatureEntry feature: features) {
-      if (feature.getLabel() == null) {
+      if (feature.getLabel() == null || !extent.intersects(feature.geometry.getEnvelopeInternal())) {
         continue;
       }
 
       allLand.add(feature.geometry);
-      for(Coordinate coord: feature.geometry.getCoordinates()) {
-        List<FeatureEntry> entries = coordToFeat.get(coord);
-        if (entries == null) {
-          entries = new ArrayList<FeatureEntry>();
-          coordToFeat.put(coord, entries);
-        }
-        entries.add(feature);
+      coordIndex.add(feature);
+    }
+    Geometry water;
+    if (checkpoint != null && checkpoint.hasStage(SimplificationCheckpoint.WaterStage)) {
+      logger.info("Reading water from checkpoint");
+      water = checkpoint.readGeometry(SimplificationCheckpoint.WaterStage, reference);
+    } else {
+      logger.info("Perfoming union of all land");
+      Geometry land = geometryFactory.buildGeometry(allLand).union();
+
+      logger.info("Building water from land negative");
+      water = geometryFactory.toGeometry(extent).difference(land);
+      land = null; // GC-able
+      if (checkpoint != null) {
+        checkpoint.writeGeometry(SimplificationCheckpoint.WaterStage, water);
       }
     }
-    long start = System.currentTimeMillis();
-    logger.info("Perfoming union of all land");
-    Geometry land = geometryFactory.buildGeometry(allLand).union();
+    allLand = null; // GC-able
+    logger.info(voronoi ? "Assigning water to Voronoi cells" : "Triangularizing and labeling water");
+    List<LabeledWaterFeature> labeledTriangles = labelWater(geometryFactory, coordIndex, water, extent, voronoi);
+    water = null; // GC-able
+    logger.info("Unioning same-labeled triangles");
+    List<FeatureEntry> unionedLabeledWater = unionTrianglesByLabel(
+      geometryFactory,
+      featureEntryFactory,
+      labeledTriangles,
+      pool
+    );
+    return unionedLabeledWater;
+  }
 
-    logger.info("Building water from land negative");
-    Geometry water = geometryFactory.toGeometry(reference.getEnvelope()).difference(land);
-    land = null; // GC-able
+  private static List<LabeledWaterFeature> labelWater(
+    GeometryFactory geometryFactory,
+    CoordinateFeatureIndex coordIndex,
+    Geometry water,
+    Envelope extent,
+    boolean voronoi
+  ) {
+    if (voronoi) {
+      return labelVoronoiCells(geometryFactory, coordIndex, water, extent);
+    }
     List<Geometry> validSubGeometries = new ArrayList<Geometry>(water.getNumGeometries());
 
-    logger.info("Filtering non-valid water features");
+    logger.debug("Filtering non-valid water features");
     for (int i = 0; i < water.getNumGeometries(); ++i) {
       Geometry geometry = water.getGeometryN(i);
       if (SimplifierUtils.isValidGeometry(geometry)) {
         validSubGeometries.add(geometry);
       }
     }
-    water = null; // GC-able
 
-    logger.info("Triangularizing water");
+    logger.debug("Triangularizing water");
     List<Geometry> waterTriangles = new ArrayList<Geometry>();
     for (Geometry validWaterGeometry: validSubGeometries) {
       waterTriangles.addAll(triangularize(geometryFactory, validWaterGeometry));
     }
     validSubGeometries = null; // GC-able
-    logger.info("Labeling triangles");
-    List<LabeledWaterFeature> labeledTriangles = labelTriangles(geometryFactory, coordToFeat, waterTriangles);
-    waterTriangles = null; // GC-able
-    logger.info("Unioning same-labeled triangles");
-    List<FeatureEntry> unionedLabeledWater = unionTrianglesByLabel(
-      geometryFactory,
-      featureEntryFactory,
-      labeledTriangles
-    );
-    return unionedLabeledWater;
+    logger.debug("Labeling triangles");
+    return labelTriangles(geometryFactory, coordIndex, waterTriangles);
+  }
+
+  /**
+   * Assigns water to the label of its nearest coastline vertex. The cells of a Voronoi
+   * diagram of the labeled vertices of the water are dissolved by label, and intersected
+   * with the water, giving one geometry per label rather than many triangles.
+   */
+  @SuppressWarnings("unchecked")
+  private static List<LabeledWaterFeature> labelVoronoiCells(
+    GeometryFactory geometryFactory,
+    CoordinateFeatureIndex coordIndex,
+    Geometry water,
+    Envelope extent
+  ) {
+    List<Coordinate> sites = new ArrayList<Coordinate>();
+    for (Coordinate coord: water.getCoordinates()) {
+      if (coordIndex.find(coord) != CoordinateFeatureIndex.NoEntry) {
+        sites.add(coord);
+      }
+    }
+    if (sites.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    logger.debug("Building Voronoi diagram of {} coastline vertices", sites.size());
+    VoronoiDiagramBuilder vdb = new VoronoiDiagramBuilder();
+    vdb.setSites(sites);
+    sites = null; // GC-able
+    // Cells are taken unclipped, as the builder's own clipping is a full overlay
+    List<Geometry> voronoiCells = vdb.getSubdivision().getVoronoiCellPolygons(geometryFactory);
+
+    // Group the cells, clipped to the extent, by the label of their site
+    RectangleClipper extentClipper = new RectangleClipper(extent, geometryFactory);
+    Map<Object, List<Geometry>> labelCells = new LinkedHashMap<Object, List<Geometry>>();
+    for (Geometry cell: voronoiCells) {
+      int slot = coordIndex.find((Coordinate) cell.getUserData());
+      Geometry clipped = extentClipper.clip(cell);
+      if (clipped == null) {
+        try {
+          clipped = geometryFactory.toGeometry(extent).intersection(cell);
+        } catch (TopologyException te) {
+          SimplificationReport.topologyFallback();
+          logger.warn("Failed to clip Voronoi cell: " + te.getMessage());
+          continue;
+        }
+      }
+      if (clipped.isEmpty()) {
+        continue;
+      }
+      Object label = coordIndex.label(coordIndex.anyLabel(slot));
+      List<Geometry> cells = labelCells.get(label);
+      if (cells == null) {
+        cells = new ArrayList<Geometry>();
+        labelCells.put(label, cells);
+      }
+      cells.add(clipped);
+    }
+    voronoiCells = null; // GC-able
+
+    logger.debug("Dissolving Voronoi cells of {} labels", labelCells.size());
+    List<LabeledWaterFeature> waterFeatures = new ArrayList<LabeledWaterFeature>(labelCells.size());
+    for (Map.Entry<Object, List<Geometry>> entry: labelCells.entrySet()) {
+      try {
+        Geometry region = CoverageDissolver.dissolve(geometryFactory, entry.getValue());
+        if (region == null) {
+          region = geometryFactory.buildGeometry(entry.getValue()).union();
+        }
+        Geometry labelWater = region.intersection(water);
+        if (!labelWater.isEmpty()) {
+          waterFeatures.add(new LabeledWaterFeature(labelWater, entry.getKey(), false));
+        }
+      } catch (TopologyException te) {
+        SimplificationReport.topologyFallback();
+        logger.warn("Failed to assign water to label " + entry.getKey() + ": " + te.getMessage());
+      }
+    }
+    return waterFeatures;
+  }
+
+  /**
+   * Simplify the set of features, triangulating the water of each top-level cell separately
+   * and in parallel, rather than the water of the whole envelope at once. Land is clipped to
+   * each cell grown by a margin, so that triangles near the cell edge are shaped by the land
+   * beyond it. The labeled water of each cell is clipped back to the cell, and stitched to its
+   * neighbors by a union by label.
+   * @param reference the location reference (bounding box, etc)
+   * @param featureEntryFactory  a factory instance for creating more features
+   * @param features the input set of features
+   * @param options the number of threads, checkpoint and whether to label water by Voronoi cells
+   * @return a set of simplified features
+   */
+  static List<FeatureEntry> simplifyPartitioned(
+    CellLocationReference reference,
+    FeatureEntryFactory featureEntryFactory,
+    Iterable<FeatureEntry> features,
+    SimplificationOptions options
+  ) {
+    int numThreads = options.numThreads();
+    SimplificationCheckpoint checkpoint = options.checkpoint();
+    ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+    try {
+      if (checkpoint != null && checkpoint.hasStage(SimplificationCheckpoint.WaterFeaturesStage)) {
+        logger.info("Reading labeled water from checkpoint");
+        return checkpoint.readFeatures(SimplificationCheckpoint.WaterFeaturesStage, reference);
+      }
+      List<FeatureEntry> unionedLabeledWater = simplifyWaterByCell(
+        reference,
+        featureEntryFactory,
+        features,
+        topLevelCells(reference),
+        options.voronoiWater(),
+        pool
+      );
+      if (checkpoint != null) {
+        checkpoint.writeFeatures(SimplificationCheckpoint.WaterFeaturesStage, unionedLabeledWater);
+      }
+      return unionedLabeledWater;
+    } catch (IOException ioe) {
+      throw new RuntimeException("Failed to checkpoint water", ioe);
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Simplify the set of features, labeling only the water of some top-level cells as
+   * {@link #simplifyPartitioned} does
+   * @param reference the location reference (bounding box, etc)
+   * @param featureEntryFactory  a factory instance for creating more features
+   * @param features the input set of features
+   * @param cells the top-level cells whose water is labeled
+   * @param options the number of threads and whether to label water by Voronoi cells.
+   *                The checkpoint is not used.
+   * @return a set of simplified features
+   */
+  static List<FeatureEntry> simplifyCells(
+    CellLocationReference reference,
+    FeatureEntryFactory featureEntryFactory,
+    Iterable<FeatureEntry> features,
+    Collection<CellLocation> cells,
+    SimplificationOptions options
+  ) {
+    int numThreads = options.numThreads();
+    ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+    try {
+      return simplifyWaterByCell(
+        reference,
+        featureEntryFactory,
+        features,
+        new ArrayList<CellLocation>(cells),
+        options.voronoiWater(),
+        pool
+      );
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  private static List<CellLocation> topLevelCells(CellLocationReference reference) {
+    CellLocation root = new CellLocation(reference);
+    int levelSize = reference.getLevelSize(0);
+    List<CellLocation> cells = new ArrayList<CellLocation>(levelSize * levelSize);
+    for (int longIdx = 0; longIdx < levelSize; ++longIdx) {
+      for (int latIdx = 0; latIdx < levelSize; ++latIdx) {
+        cells.add(root.child(longIdx, latIdx));
+      }
+    }
+    return cells;
+  }
+
+  private static List<FeatureEntry> simplifyWaterByCell(
+    final CellLocationReference reference,
+    FeatureEntryFactory featureEntryFactory,
+    Iterable<FeatureEntry> features,
+    List<CellLocation> cells,
+    final boolean voronoi,
+    final ForkJoinPool pool
+  ) {
+    final GeometryFactory geometryFactory = reference.getGeometryFactory();
+    final STRtree landIndex = new STRtree();
+    for (FeatureEntry feature: features) {
+      if (feature.getLabel() != null) {
+        landIndex.insert(feature.geometry.getEnvelopeInternal(), feature);
+      }
+    }
+    // Build before querying concurrently
+    landIndex.build();
+
+    final double marginX = PartitionMargin * reference.getCellWidth(1);
+    final double marginY = PartitionMargin * reference.getCellHeight(1);
+
+    logger.info("Labeling water of {} top-level cells", cells.size());
+    List<List<ImmutablePair<Object, Geometry>>> cellWater = new ParallelMapper<
+      CellLocation,
+      List<ImmutablePair<Object, Geometry>>
+    >() {
+      @Override
+      @SuppressWarnings("unchecked")
+      List<ImmutablePair<Object, Geometry>> apply(CellLocation cell) {
+        Envelope cellEnvelope = cell.envelope();
+        Envelope extent = new Envelope(cellEnvelope);
+        extent.expandBy(marginX, marginY);
+        extent = extent.intersection(reference.getEnvelope());
+        return labelCellWater(
+          geometryFactory,
+          (List<FeatureEntry>) landIndex.query(extent),
+          cellEnvelope,
+          extent,
+          voronoi,
+          pool
+        );
+      }
+    }.map(pool, cells);
+
+    List<LabeledWaterFeature> labeledWater = new ArrayList<LabeledWaterFeature>();
+    for (List<ImmutablePair<Object, Geometry>> labeledGeoms: cellWater) {
+      for (ImmutablePair<Object, Geometry> labeledGeom: labeledGeoms) {
+        labeledWater.add(new LabeledWaterFeature(labeledGeom.getRight(), labeledGeom.getLeft(), false));
+      }
+    }
+    cellWater = null; // GC-able
+    logger.info("Stitching labeled water of top-level cells");
+    return unionTrianglesByLabel(geometryFactory, featureEntryFactory, labeledWater, pool);
+  }
+
+  /**
+   * Labels the water of a single top-level cell
+   * @param land the land features that may intersect the extent
+   * @param cellEnvelope the envelope of the cell, to which the water is clipped
+   * @param extent the envelope of the cell grown by the margin
+   * @param voronoi whether to assign water to the label of its nearest coastline vertex
+   * @return the water of the cell, unioned by label
+   */
+  private static List<ImmutablePair<Object, Geometry>> labelCellWater(
+    GeometryFactory geometryFactory,
+    List<FeatureEntry> land,
+    Envelope cellEnvelope,
+    Envelope extent,
+    boolean voronoi,
+    ForkJoinPool pool
+  ) {
+    Geometry extentGeometry = geometryFactory.toGeometry(extent);
+    RectangleClipper extentClipper = new RectangleClipper(extent, geometryFactory);
+    CoordinateFeatureIndex coordIndex = new CoordinateFeatureIndex();
+    List<Geometry> clippedLand = new ArrayList<Geometry>(land.size());
+    for (FeatureEntry feature: land) {
+      Geometry clipped = extentClipper.clip(feature.geometry);
+      if (clipped == null) {
+        try {
+          clipped = extentGeometry.intersection(feature.geometry);
+        } catch (TopologyException te) {
+          SimplificationReport.topologyFallback();
+          logger.warn("Failed to clip land to water partition: " + feature);
+          clipped = feature.geometry;
+        }
+      }
+      if (clipped.isEmpty()) {
+        continue;
+      }
+      clippedLand.add(clipped);
+      // Points added on the edge of the extent are also on the boundary of the land
+      coordIndex.add(feature, clipped);
+    }
+
+    Geometry water;
+    try {
+      water = extentGeometry.difference(geometryFactory.buildGeometry(clippedLand).union());
+    } catch (TopologyException te) {
+      SimplificationReport.topologyFallback();
+      logger.warn("Failed to build water of partition " + extent + ", retrying with repaired land: " + te.getMessage());
+      // Buffering by zero repairs the self-intersections that usually cause the failure
+      List<Geometry> repairedLand = new ArrayList<Geometry>(clippedLand.size());
+      for (Geometry geometry: clippedLand) {
+        repairedLand.add(geometry.buffer(0));
+      }
+      try {
+        water = extentGeometry.difference(geometryFactory.buildGeometry(repairedLand).union().buffer(0));
+      } catch (TopologyException rte) {
+        // Leaving the partition without water would leave a hole in the output
+        throw new RuntimeException("Failed to build water of partition " + extent, rte);
+      }
+    }
+    clippedLand = null; // GC-able
+    List<LabeledWaterFeature> labeledTriangles = labelWater(geometryFactory, coordIndex, water, extent, voronoi);
+    water = null; // GC-able
+
+    List<ImmutablePair<Object, Geometry>> labeledGeoms = new ArrayList<ImmutablePair<Object, Geometry>>();
+    for (LabeledWaterFeature entry : labeledTriangles) {
+      labeledGeoms.add(ImmutablePair.of(entry.label, entry.geometry));
+    }
+    // Clip the water of the margin away, leaving it to the neighboring cells
+    RectangleClipper cellClipper = new RectangleClipper(cellEnvelope, geometryFactory);
+    List<ImmutablePair<Object, Geometry>> cellWater = new ArrayList<ImmutablePair<Object, Geometry>>();
+    for (ImmutablePair<Object, Geometry> labeledGeom: SimplifierUtils.unionByLabel(geometryFactory, labeledGeoms, pool)) {
+      Geometry clipped = cellClipper.clip(labeledGeom.getRight());
+      if (clipped == null) {
+        try {
+          clipped = geometryFactory.toGeometry(cellEnvelope).intersection(labeledGeom.getRight());
+        } catch (TopologyException te) {
+          SimplificationReport.topologyFallback();
+          logger.warn("Failed to clip water of label " + labeledGeom.getLeft() + " to " + cellEnvelope +
+            ", retrying with repaired water");
+          try {
+            clipped = geometryFactory.toGeometry(cellEnvelope).intersection(labeledGeom.getRight().buffer(0));
+          } catch (TopologyException rte) {
+            throw new RuntimeException("Failed to clip water of label " + labeledGeom.getLeft() + " to " + cellEnvelope, rte);
+          }
+        }
+      }
+      if (!clipped.isEmpty()) {
+        cellWater.add(ImmutablePair.of(labeledGeom.getLeft(), clipped));
+      }
+    }
+    return cellWater;
   }
 }
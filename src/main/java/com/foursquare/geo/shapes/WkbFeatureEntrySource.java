@@ -0,0 +1,247 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.SchemaException;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.type.FeatureType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads labeled features from a flat binary file, decoding each record straight into
+ * a {@link FeatureEntry} without GeoTools features or attribute maps. After a header,
+ * each record is a length-prefixed WKB geometry, as written by
+ * {@link FeatureEntryIO#writeGeometry}, followed by its label, up to the end of the file.
+ * A label is a type byte followed by a string as written by {@link DataOutput#writeUTF},
+ * an int, a long, or a double; no other types are read. The file has no bounds or coordinate reference system, so the bounds
+ * are found by reading the file once.
+ */
+class WkbFeatureEntrySource implements FeatureEntrySource {
+  static final int Magic = 0x5347574b; // "SGWK"
+  static final int Version = 1;
+  static final String GeometryAttribute = "the_geom";
+  private static final byte NullLabel = 0;
+  private static final byte StringLabel = 1;
+  private static final byte IntegerLabel = 2;
+  private static final byte LongLabel = 3;
+  private static final byte DoubleLabel = 4;
+
+  private final File file;
+  private ReferencedEnvelope bounds;
+
+  /**
+   * Writes labeled features to a file in the format read by {@link WkbFeatureEntrySource}
+   */
+  static class Writer {
+    private final DataOutputStream out;
+
+    public Writer(File file) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      out.writeInt(Magic);
+      out.writeInt(Version);
+    }
+
+    /**
+     * Writes a feature
+     * @param label the label, which must be null, a String, Integer, Long, or Double
+     * @param geometry the geometry
+     * @throws IOException if the feature cannot be written
+     * @throws IllegalArgumentException if the label is of another type
+     */
+    public void add(Object label, Geometry geometry) throws IOException {
+      FeatureEntryIO.writeGeometry(out, geometry);
+      writeLabel(out, label);
+    }
+
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads records of the file one at a time, closing the file after the last record
+   */
+  private static class RecordIterator implements Iterator<FeatureEntry> {
+    private final FeatureEntryFactory featureEntryFactory;
+    private DataInputStream in;
+    private FeatureEntry next;
+
+    public RecordIterator(File file, FeatureEntryFactory featureEntryFactory) throws IOException {
+      this.featureEntryFactory = featureEntryFactory;
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != Magic) {
+        in.close();
+        throw new IOException(file + " is not a WKB feature file");
+      }
+      int version = in.readInt();
+      if (version != Version) {
+        in.close();
+        throw new IOException(file + " has unsupported version " + version);
+      }
+    }
+
+    /**
+     * Reads the geometry of the next record, which must be followed by {@link #readLabel}
+     * @return the geometry, or null after the last record
+     */
+    public Geometry readGeometry() throws IOException {
+      in.mark(1);
+      if (in.read() < 0) {
+        close();
+        return null;
+      }
+      in.reset();
+      return FeatureEntryIO.readGeometry(in, ShapefileUtils.GEOMETRY_FACTORY);
+    }
+
+    public Object readLabel() throws IOException {
+      return WkbFeatureEntrySource.readLabel(in);
+    }
+
+    public void close() throws IOException {
+      if (in != null) {
+        in.close();
+        in = null;
+      }
+    }
+
+    private FeatureEntry read() throws IOException {
+      Geometry geometry = readGeometry();
+      if (geometry == null) {
+        return null;
+      }
+      return featureEntryFactory.featureEntry(readLabel(), false, geometry);
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null && in != null) {
+        try {
+          next = read();
+        } catch (IOException ioe) {
+          throw new RuntimeException("Failed to read feature", ioe);
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public FeatureEntry next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      FeatureEntry featureEntry = next;
+      next = null;
+      return featureEntry;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static void writeLabel(DataOutput out, Object label) throws IOException {
+    if (label == null) {
+      out.writeByte(NullLabel);
+    } else if (label instanceof String) {
+      out.writeByte(StringLabel);
+      out.writeUTF((String) label);
+    } else if (label instanceof Integer) {
+      out.writeByte(IntegerLabel);
+      out.writeInt((Integer) label);
+    } else if (label instanceof Long) {
+      out.writeByte(LongLabel);
+      out.writeLong((Long) label);
+    } else if (label instanceof Double) {
+      out.writeByte(DoubleLabel);
+      out.writeDouble((Double) label);
+    } else {
+      throw new IllegalArgumentException("Cannot write label of " + label.getClass());
+    }
+  }
+
+  private static Object readLabel(DataInput in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case NullLabel:
+        return null;
+      case StringLabel:
+        return in.readUTF();
+      case IntegerLabel:
+        return in.readInt();
+      case LongLabel:
+        return in.readLong();
+      case DoubleLabel:
+        return in.readDouble();
+      default:
+        throw new IOException("Unexpected label type " + type);
+    }
+  }
+
+  public WkbFeatureEntrySource(File file) {
+    this.file = file;
+  }
+
+  @Override
+  public ReferencedEnvelope bounds() throws IOException {
+    if (bounds == null) {
+      Envelope envelope = new Envelope();
+      RecordIterator records = new RecordIterator(file, null);
+      try {
+        for (Geometry geometry = records.readGeometry(); geometry != null; geometry = records.readGeometry()) {
+          envelope.expandToInclude(geometry.getEnvelopeInternal());
+          records.readLabel();
+        }
+      } finally {
+        records.close();
+      }
+      bounds = new ReferencedEnvelope(envelope, null);
+    }
+    return bounds;
+  }
+
+  @Override
+  public FeatureType schema() throws IOException {
+    String name = file.getName().replaceFirst("\\.[^.]*$", "");
+    try {
+      return DataUtilities.createType(name, GeometryAttribute + ":MultiPolygon");
+    } catch (SchemaException se) {
+      throw new IOException("Cannot create schema for " + file, se);
+    }
+  }
+
+  @Override
+  public Iterable<FeatureEntry> featureEntries(final FeatureEntryFactory featureEntryFactory) {
+    return new Iterable<FeatureEntry>() {
+      @Override
+      public Iterator<FeatureEntry> iterator() {
+        try {
+          return new RecordIterator(file, featureEntryFactory);
+        } catch (IOException ioe) {
+          throw new RuntimeException("Failed to open " + file, ioe);
+        }
+      }
+    };
+  }
+
+  @Override
+  public void close() {
+
+  }
+}
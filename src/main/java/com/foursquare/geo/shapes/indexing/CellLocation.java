@@ -14,8 +14,15 @@ import java.util.Arrays;
  * The index represents the path to a node in a Quadtree-like structure,
  * but is suitable for representing a quadtree-like structure in a Map,
  * using CellLocation as a key.
+ * CellLocations are ordered depth-first: a parent sorts before its
+ * children, which sort by longitudinal, then latitudinal, index.
  */
-public class CellLocation {
+public class CellLocation implements Comparable<CellLocation> {
+  /* Low bits of a packed id holding the level */
+  private static final int PackedLevelBits = 4;
+  private static final long PackedLevelMask = (1L << PackedLevelBits) - 1;
+  /* Packed values stay below this, so that no packed id is -1 */
+  private static final long PackedValueLimit = 1L << (Long.SIZE - PackedLevelBits);
   private final int[] locationIndices;
   public final CellLocationReference reference;
 
@@ -85,6 +92,33 @@ public class CellLocation {
     return new CellLocation(reference, locationIndices);
   }
 
+  /**
+   * Deserializes a location from its {@link #packedId}
+   * @param reference the location reference
+   * @param packedId the packed id
+   * @return the location
+   */
+  public static CellLocation fromPackedId(CellLocationReference reference, long packedId) {
+    checkPackedIds(reference);
+    int level = (int) (packedId & PackedLevelMask);
+    if (level > reference.numLevels()) {
+      throw new IllegalArgumentException(packedId + " has unexpected level " + level);
+    }
+    int[] locationIndices = new int[level * 2];
+    long value = packedId >>> PackedLevelBits;
+    for (int idx = level - 1; idx >= 0; --idx) {
+      int levelSize = reference.getLevelSize(idx);
+      locationIndices[idx * 2 + 1] = (int) (value % levelSize);
+      value /= levelSize;
+      locationIndices[idx * 2] = (int) (value % levelSize);
+      value /= levelSize;
+    }
+    if (value != 0) {
+      throw new IllegalArgumentException(packedId + " has unexpected bits above level " + level);
+    }
+    return new CellLocation(reference, locationIndices);
+  }
+
   /**
    * Returns the most precise index containing the coordinate within the parameters
    * of the reference
@@ -117,6 +151,33 @@ public class CellLocation {
     return new CellLocation(reference, locationIndices);
   }
 
+  /**
+   * Whether every location of a reference has a distinct packed id: the level fits
+   * the low bits, and the indices of the deepest level fit the bits above it
+   */
+  static boolean fitsPackedIds(int[] levelSizes) {
+    if (levelSizes.length > PackedLevelMask) {
+      return false;
+    }
+    long numCells = 1;
+    for (int levelSize: levelSizes) {
+      long numChildren = (long) levelSize * levelSize;
+      if (numCells > (PackedValueLimit - 1) / numChildren) {
+        return false;
+      }
+      numCells *= numChildren;
+    }
+    return true;
+  }
+
+  private static void checkPackedIds(CellLocationReference reference) {
+    if (!reference.hasPackedIds()) {
+      throw new IllegalArgumentException(
+        "Locations of " + reference.attributeName() + " have too many levels or cells to pack"
+      );
+    }
+  }
+
   @Override
   public int hashCode() {
     return reference.hashCode() + Arrays.hashCode(locationIndices);
@@ -134,6 +195,24 @@ public class CellLocation {
     }
   }
 
+  /**
+   * Orders locations depth-first within a reference. Locations of different references
+   * are ordered by their references first, so the order is consistent with equals.
+   */
+  @Override
+  public int compareTo(CellLocation other) {
+    if (reference != other.reference && !reference.equals(other.reference)) {
+      return CellLocationReference.compare(reference, other.reference);
+    }
+    int commonLength = Math.min(locationIndices.length, other.locationIndices.length);
+    for (int idx = 0; idx < commonLength; ++idx) {
+      if (locationIndices[idx] != other.locationIndices[idx]) {
+        return locationIndices[idx] < other.locationIndices[idx] ? -1 : 1;
+      }
+    }
+    return locationIndices.length - other.locationIndices.length;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder(3 * locationIndices.length);
@@ -166,17 +245,13 @@ public class CellLocation {
     Envelope worldEnvelope = reference.getEnvelope();
     double minX = worldEnvelope.getMinX();
     double minY = worldEnvelope.getMinY();
-    double width = worldEnvelope.getWidth();
-    double height = worldEnvelope.getHeight();
-    int[] levelSizes = reference.getLevelSizes();
-    int m = 1;
-    for (int idx = 0; idx < locationIndices.length / 2; ++idx) {
-      m *= levelSizes[idx];
-      minX += (width / m) * locationIndices[idx * 2];
-      minY += (height / m) * locationIndices[idx * 2 + 1];
+    int level = locationIndices.length / 2;
+    for (int idx = 0; idx < level; ++idx) {
+      minX += reference.getCellWidth(idx + 1) * locationIndices[idx * 2];
+      minY += reference.getCellHeight(idx + 1) * locationIndices[idx * 2 + 1];
     }
-    double maxX = minX + (width / m);
-    double maxY = minY + (height / m);
+    double maxX = minX + reference.getCellWidth(level);
+    double maxY = minY + reference.getCellHeight(level);
     return new ReferencedEnvelope(
       minX,
       maxX,
@@ -213,6 +288,24 @@ public class CellLocation {
     return sb.toString();
   }
 
+  /**
+   * A compact serialization of the index location, as a number. The indices are
+   * packed in mixed radix of the level sizes, above the level in the low bits.
+   * The reference is not part of the serialization.
+   * @return the packed id
+   * @throws IllegalArgumentException if the reference has too many levels or cells to pack
+   * @see CellLocationReference#hasPackedIds
+   */
+  public long packedId() {
+    checkPackedIds(reference);
+    long value = 0;
+    for (int idx = 0; idx < locationIndices.length; idx += 2) {
+      int levelSize = reference.getLevelSize(idx / 2);
+      value = (value * levelSize + locationIndices[idx]) * levelSize + locationIndices[idx + 1];
+    }
+    return (value << PackedLevelBits) | level();
+  }
+
   /**
    * The parent
    * @return parent location, or null if this is the root location
@@ -224,6 +317,18 @@ public class CellLocation {
     return new CellLocation(reference, Arrays.copyOf(locationIndices, locationIndices.length - 2));
   }
 
+  /**
+   * The ancestor at a level, which is this location at its own level
+   * @param level the level, no greater than this location's level
+   * @return the ancestor location
+   */
+  public CellLocation ancestor(int level) {
+    if (level > level()) {
+      throw new IllegalArgumentException("Location " + this + " has no ancestor at level " + level);
+    }
+    return new CellLocation(reference, Arrays.copyOf(locationIndices, 2 * level));
+  }
+
   /**
    * A child
    * @param longIdx  the x (longitudinal)-index of the entry
@@ -21,6 +21,9 @@ public class CellLocationReference {
   private final int[] levelSizes;
   private final int hashCodeValue;
   private final GeometryFactory geometryFactory;
+  private final double[] cellWidths;
+  private final double[] cellHeights;
+  private final boolean hasPackedIds;
   /**
    * The prefix used for identifying indexing attributes in a schema
    */
@@ -40,6 +43,17 @@ public class CellLocationReference {
     this.envelope = envelope;
     this.levelSizes = levelSizes.clone();
     this.hashCodeValue = envelope.hashCode() + Arrays.hashCode(this.levelSizes);
+    this.cellWidths = new double[levelSizes.length + 1];
+    this.cellHeights = new double[levelSizes.length + 1];
+    int m = 1;
+    for (int level = 0; level <= levelSizes.length; ++level) {
+      if (level > 0) {
+        m *= levelSizes[level - 1];
+      }
+      cellWidths[level] = envelope.getWidth() / m;
+      cellHeights[level] = envelope.getHeight() / m;
+    }
+    hasPackedIds = CellLocation.fitsPackedIds(this.levelSizes);
     geometryFactory = new GeometryFactory(
       new PrecisionModel(PrecisionModel.FLOATING_SINGLE)
     );
@@ -106,6 +120,24 @@ public class CellLocationReference {
     return levelSizes[level];
   }
 
+  /**
+   * The width of the cells at the given level
+   * @param level the level, where 0 is the whole envelope
+   * @return the cell width
+   */
+  public double getCellWidth(int level) {
+    return cellWidths[level];
+  }
+
+  /**
+   * The height of the cells at the given level
+   * @param level the level, where 0 is the whole envelope
+   * @return the cell height
+   */
+  public double getCellHeight(int level) {
+    return cellHeights[level];
+  }
+
   /**
    * The bounding envelope for this reference
    * @return the envelope
@@ -114,6 +146,16 @@ public class CellLocationReference {
     return envelope;
   }
 
+  /**
+   * Whether the locations of this reference can be serialized with
+   * {@link com.foursquare.geo.shapes.indexing.CellLocation#packedId}, which holds
+   * up to 15 levels and fewer than 2^60 cells at the deepest level
+   * @return true if every location has a distinct packed id
+   */
+  public boolean hasPackedIds() {
+    return hasPackedIds;
+  }
+
   @Override
   public int hashCode() {
     return hashCodeValue;
@@ -131,6 +173,33 @@ public class CellLocationReference {
     }
   }
 
+  /**
+   * An arbitrary but fixed order of references, consistent with equals
+   */
+  static int compare(CellLocationReference a, CellLocationReference b) {
+    double[] aBounds = { a.envelope.getMinX(), a.envelope.getMinY(), a.envelope.getMaxX(), a.envelope.getMaxY() };
+    double[] bBounds = { b.envelope.getMinX(), b.envelope.getMinY(), b.envelope.getMaxX(), b.envelope.getMaxY() };
+    for (int idx = 0; idx < aBounds.length; ++idx) {
+      int order = Double.compare(aBounds[idx], bBounds[idx]);
+      if (order != 0) {
+        return order;
+      }
+    }
+    int commonLength = Math.min(a.levelSizes.length, b.levelSizes.length);
+    for (int idx = 0; idx < commonLength; ++idx) {
+      if (a.levelSizes[idx] != b.levelSizes[idx]) {
+        return a.levelSizes[idx] < b.levelSizes[idx] ? -1 : 1;
+      }
+    }
+    if (a.levelSizes.length != b.levelSizes.length) {
+      return a.levelSizes.length - b.levelSizes.length;
+    }
+    // Only the coordinate reference systems differ
+    return String.valueOf(a.envelope.getCoordinateReferenceSystem()).compareTo(
+      String.valueOf(b.envelope.getCoordinateReferenceSystem())
+    );
+  }
+
   /**
    * A serialization of the attribute name for use in a Shapefile
    * @return the name
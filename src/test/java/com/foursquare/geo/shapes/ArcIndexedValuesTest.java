@@ -0,0 +1,83 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.List;
+
+public class ArcIndexedValuesTest {
+  static final CellLocationReference Reference = new CellLocationReference(
+    new ReferencedEnvelope(0, 10, 0, 10, null),
+    new int[] { 1 }
+  );
+  static final GeometryFactory Factory = ShapefileUtils.GEOMETRY_FACTORY;
+
+  /* A and B share a jagged border, and C fills a hole in B */
+  static final String[][] Features = {
+    { "A", "POLYGON ((0 0, 0 10, 5 10, 4 7, 6 5, 4 3, 5 0, 0 0))" },
+    { "B", "MULTIPOLYGON (((5 0, 4 3, 6 5, 4 7, 5 10, 10 10, 10 0, 5 0), (7 2, 9 2, 9 4, 7 4, 7 2)))" },
+    { "C", "POLYGON ((7 2, 7 4, 9 4, 9 2, 7 2))" }
+  };
+
+  private SimplifiedShapefileGeo.ShapeIndexedValues shapeValues() throws ParseException {
+    CellLocation cell = new CellLocation(Reference).child(0, 0);
+    WKTReader reader = new WKTReader(Factory);
+    SimplifiedShapefileGeo.ShapeIndexedValues shapeValues = new SimplifiedShapefileGeo.ShapeIndexedValues();
+    for (String[] feature: Features) {
+      shapeValues.add(new FeatureEntry(
+        cell,
+        new AbstractMap.SimpleImmutableEntry<String, Object>("label", feature[0]),
+        false,
+        reader.read(feature[1])
+      ));
+    }
+    return shapeValues;
+  }
+
+  @Test
+  public void testSharedArcs() throws ParseException {
+    SimplifiedShapefileGeo.ShapeIndexedValues shapeValues = shapeValues();
+    ArcIndexedValues arcValues = ArcIndexedValues.fromFeatures(shapeValues.featureEntries());
+    // The A|B border, the rest of A, the rest of B, and the C|B ring
+    Assert.assertEquals(4, arcValues.numArcs());
+    Assert.assertEquals("shared borders stored once", 5 + 3 + 5 + 5, arcValues.numCoordinates());
+
+    List<FeatureEntry> rebuilt = arcValues.featureEntries();
+    Assert.assertEquals(3, rebuilt.size());
+    for (int idx = 0; idx < rebuilt.size(); ++idx) {
+      Geometry original = shapeValues.featureEntries().get(idx).geometry;
+      Assert.assertEquals(Features[idx][0], rebuilt.get(idx).getLabel());
+      Assert.assertEquals(original.getGeometryType(), rebuilt.get(idx).geometry.getGeometryType());
+      Assert.assertTrue(original.equalsTopo(rebuilt.get(idx).geometry));
+    }
+    Assert.assertSame("rebuilt once", rebuilt, arcValues.colocatedFeatures(new Coordinate(1, 1)));
+  }
+
+  @Test
+  public void testLabelForCoordinate() throws ParseException {
+    SimplifiedShapefileGeo.ShapeIndexedValues shapeValues = shapeValues();
+    ArcIndexedValues arcValues = ArcIndexedValues.fromFeatures(shapeValues.featureEntries());
+    // Includes points on borders, at vertices, and on the cell's edges
+    for (double x = 0; x <= 10; x += 0.5) {
+      for (double y = 0; y <= 10; y += 0.5) {
+        Coordinate coordinate = new Coordinate(x, y);
+        Assert.assertEquals(
+          coordinate.toString(),
+          shapeValues.labelForCoordinate(coordinate),
+          arcValues.labelForCoordinate(coordinate)
+        );
+      }
+    }
+  }
+}
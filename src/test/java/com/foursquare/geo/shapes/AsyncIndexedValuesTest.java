@@ -0,0 +1,277 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+public class AsyncIndexedValuesTest {
+  static final CellLocationReference Reference = new CellLocationReference(
+    new ReferencedEnvelope(0, 100, 0, 100, DefaultGeographicCRS.WGS84),
+    new int[] { 4 }
+  );
+
+  /* Labels each coordinate by the integer part of its x, or null when x is negative */
+  static final IndexedValues FloorValues = new BaseIndexedValues() {
+    @Override
+    public List<FeatureEntry> colocatedFeatures(Coordinate coordinate) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public Object labelForCoordinate(Coordinate coordinate) {
+      if (coordinate.x < 0) {
+        return null;
+      }
+      if (Double.isNaN(coordinate.x)) {
+        throw new IllegalArgumentException("NaN");
+      }
+      return (int) coordinate.x;
+    }
+  };
+
+  private static List<Coordinate> coordinates(int count) {
+    List<Coordinate> coordinates = new ArrayList<Coordinate>();
+    for (int idx = 0; idx < count; ++idx) {
+      coordinates.add(new Coordinate((idx * 37) % 100 + 0.5, (idx * 11) % 100 + 0.5));
+    }
+    return coordinates;
+  }
+
+  @Test
+  public void testFutures() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      AsyncIndexedValues values = new AsyncIndexedValues(FloorValues, Reference, executor, 8);
+      List<Coordinate> coordinates = coordinates(100);
+      List<CompletableFuture<Object>> futures = new ArrayList<CompletableFuture<Object>>();
+      for (Coordinate coordinate: coordinates) {
+        futures.add(values.labelForCoordinate(coordinate));
+      }
+      for (int idx = 0; idx < coordinates.size(); ++idx) {
+        Assert.assertEquals((int) coordinates.get(idx).x, futures.get(idx).get(5, TimeUnit.SECONDS));
+      }
+      Assert.assertNull(values.labelForCoordinate(new Coordinate(-1, 0)).get(5, TimeUnit.SECONDS));
+      Assert.assertTrue(values.labelForCoordinate(new Coordinate(Double.NaN, 0))
+        .handle(new BiFunction<Object, Throwable, Boolean>() {
+          @Override
+          public Boolean apply(Object label, Throwable throwable) {
+            return throwable != null;
+          }
+        }).get(5, TimeUnit.SECONDS));
+
+      List<Object> labels = values.labelsForCoordinates(coordinates).get(5, TimeUnit.SECONDS);
+      Assert.assertEquals(coordinates.size(), labels.size());
+      for (int idx = 0; idx < coordinates.size(); ++idx) {
+        Assert.assertEquals((int) coordinates.get(idx).x, labels.get(idx));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testProcessorBackpressure() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final int batchSize = 4;
+      final List<Coordinate> coordinates = coordinates(50);
+      final List<Long> sourceRequests = new ArrayList<Long>();
+      LabelFlow.Processor<Coordinate, AsyncIndexedValues.LabeledCoordinate> processor =
+        new AsyncIndexedValues(FloorValues, Reference, executor, batchSize).processor();
+
+      // A source that emits synchronously on request, and records how many were requested
+      processor.onSubscribe(new LabelFlow.Subscription() {
+        private int next = 0;
+
+        @Override
+        public synchronized void request(long n) {
+          sourceRequests.add(n);
+          for (long count = 0; count < n && next < coordinates.size(); ++count) {
+            processor.onNext(coordinates.get(next++));
+          }
+          if (next == coordinates.size()) {
+            processor.onComplete();
+          }
+        }
+
+        @Override
+        public void cancel() {
+
+        }
+      });
+
+      final List<AsyncIndexedValues.LabeledCoordinate> received =
+        Collections.synchronizedList(new ArrayList<AsyncIndexedValues.LabeledCoordinate>());
+      final CountDownLatch done = new CountDownLatch(1);
+      final Throwable[] error = new Throwable[1];
+      processor.subscribe(new LabelFlow.Subscriber<AsyncIndexedValues.LabeledCoordinate>() {
+        private LabelFlow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(LabelFlow.Subscription subscription) {
+          this.subscription = subscription;
+          subscription.request(3);
+        }
+
+        @Override
+        public void onNext(AsyncIndexedValues.LabeledCoordinate item) {
+          received.add(item);
+          if (received.size() % 3 == 0) {
+            subscription.request(3);
+          }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+          error[0] = throwable;
+          done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+          done.countDown();
+        }
+      });
+
+      Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+      Assert.assertNull(error[0]);
+      Assert.assertEquals(coordinates.size(), received.size());
+      for (int idx = 0; idx < coordinates.size(); ++idx) {
+        Assert.assertSame(coordinates.get(idx), received.get(idx).coordinate);
+        Assert.assertEquals((int) coordinates.get(idx).x, received.get(idx).label);
+      }
+      for (long n: sourceRequests) {
+        Assert.assertTrue("Requested " + n, n <= 2 * batchSize);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testSortsByCellOfValues() {
+    final List<Coordinate> looked = new ArrayList<Coordinate>();
+    IndexedValues cellValues = new BaseIndexedValues() {
+      @Override
+      public List<FeatureEntry> colocatedFeatures(Coordinate coordinate) {
+        return Collections.emptyList();
+      }
+
+      @Override
+      public Object labelForCoordinate(Coordinate coordinate) {
+        looked.add(coordinate);
+        return null;
+      }
+
+      @Override
+      CellLocationReference cellReference() {
+        return Reference;
+      }
+    };
+    AsyncIndexedValues values = new AsyncIndexedValues(cellValues, Executors.newSingleThreadExecutor());
+    Coordinate far = new Coordinate(90, 90);
+    Coordinate near = new Coordinate(10, 10);
+    values.labels(Arrays.asList(far, near));
+    Assert.assertEquals(Arrays.asList(near, far), looked);
+  }
+
+  @Test
+  public void testRejectingExecutor() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    final LabelFlow.Processor<Coordinate, AsyncIndexedValues.LabeledCoordinate> processor =
+      new AsyncIndexedValues(FloorValues, executor).processor();
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    processor.subscribe(new LabelFlow.Subscriber<AsyncIndexedValues.LabeledCoordinate>() {
+      @Override
+      public void onSubscribe(LabelFlow.Subscription subscription) {
+        subscription.request(1);
+      }
+
+      @Override
+      public void onNext(AsyncIndexedValues.LabeledCoordinate item) {
+
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        errors.add(throwable);
+      }
+
+      @Override
+      public void onComplete() {
+
+      }
+    });
+    Assert.assertEquals(1, errors.size());
+    Assert.assertTrue(errors.get(0) instanceof RejectedExecutionException);
+
+    // A source subscribing after the rejection is cancelled
+    final boolean[] cancelled = new boolean[1];
+    processor.onSubscribe(new LabelFlow.Subscription() {
+      @Override
+      public void request(long n) {
+
+      }
+
+      @Override
+      public void cancel() {
+        cancelled[0] = true;
+      }
+    });
+    Assert.assertTrue(cancelled[0]);
+    Assert.assertEquals("errors once", 1, errors.size());
+  }
+
+  @Test
+  public void testSingleSubscriber() {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    LabelFlow.Processor<Coordinate, AsyncIndexedValues.LabeledCoordinate> processor =
+      new AsyncIndexedValues(FloorValues, executor).processor();
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    LabelFlow.Subscriber<AsyncIndexedValues.LabeledCoordinate> subscriber =
+      new LabelFlow.Subscriber<AsyncIndexedValues.LabeledCoordinate>() {
+        @Override
+        public void onSubscribe(LabelFlow.Subscription subscription) {
+
+        }
+
+        @Override
+        public void onNext(AsyncIndexedValues.LabeledCoordinate item) {
+
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+          errors.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+
+        }
+      };
+    processor.subscribe(subscriber);
+    processor.subscribe(subscriber);
+    Assert.assertEquals(1, errors.size());
+    Assert.assertTrue(errors.get(0) instanceof IllegalStateException);
+    executor.shutdown();
+  }
+}
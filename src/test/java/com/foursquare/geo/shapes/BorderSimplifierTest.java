@@ -0,0 +1,134 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BorderSimplifierTest {
+  static final CellLocationReference Reference = new CellLocationReference(
+    new ReferencedEnvelope(0, 10, 0, 10, null),
+    new int[] { 1 }
+  );
+  static final GeometryFactory Factory = ShapefileUtils.GEOMETRY_FACTORY;
+
+  /**
+   * The part of the cell left or right of a border running from bottom to top,
+   * wiggling slightly about x = 5
+   */
+  private static Geometry side(boolean left, int numWiggles) {
+    List<Coordinate> coords = new ArrayList<Coordinate>();
+    for (int idx = 0; idx <= numWiggles; ++idx) {
+      double x = idx == 0 || idx == numWiggles ? 5 : 5 + (idx % 2 == 0 ? 0.01 : -0.01);
+      coords.add(new Coordinate(x, 10.0 * idx / numWiggles));
+    }
+    if (left) {
+      coords.add(new Coordinate(0, 10));
+      coords.add(new Coordinate(0, 0));
+    } else {
+      coords.add(new Coordinate(10, 10));
+      coords.add(new Coordinate(10, 0));
+    }
+    coords.add(new Coordinate(coords.get(0)));
+    return Factory.createPolygon(Factory.createLinearRing(coords.toArray(new Coordinate[coords.size()])), null);
+  }
+
+  @Test
+  public void testSharedBorder() {
+    CellLocation cell = new CellLocation(Reference).child(0, 0);
+    List<ImmutablePair<Object, Geometry>> labeledGeoms = new ArrayList<ImmutablePair<Object, Geometry>>();
+    labeledGeoms.add(ImmutablePair.of((Object) "A", side(true, 100)));
+    labeledGeoms.add(ImmutablePair.of((Object) "B", side(false, 100)));
+
+    BorderSimplifier simplifier = new BorderSimplifier(0.1);
+    Assert.assertEquals(0.1, simplifier.tolerance(cell), 0);
+    List<ImmutablePair<Object, Geometry>> simplified = simplifier.simplify(Factory, cell, labeledGeoms);
+    Assert.assertEquals(2, simplified.size());
+    Geometry a = null;
+    Geometry b = null;
+    for (ImmutablePair<Object, Geometry> labeledGeom: simplified) {
+      if ("A".equals(labeledGeom.getLeft())) {
+        a = labeledGeom.getRight();
+      } else {
+        b = labeledGeom.getRight();
+      }
+    }
+    Assert.assertTrue("fewer points", a.getNumPoints() + b.getNumPoints() < 20);
+    Assert.assertEquals("no gap", 100, a.union(b).getArea(), 0.0000001);
+    Assert.assertEquals("no overlap", 0, a.intersection(b).getArea(), 0.0000001);
+    Assert.assertEquals(50, a.getArea(), 0.2);
+    Assert.assertTrue("cell corner kept", a.covers(Factory.createPoint(new Coordinate(0, 0))));
+  }
+
+  @Test
+  public void testUncoveredCellEdge() {
+    CellLocation cell = new CellLocation(Reference).child(0, 0);
+    // A's coast runs just inside the left edge of the cell, leaving uncovered water between them
+    List<Coordinate> coords = new ArrayList<Coordinate>();
+    coords.add(new Coordinate(0, 2));
+    coords.add(new Coordinate(0, 0));
+    Coordinate[] border = side(true, 100).getCoordinates();
+    for (int idx = 0; idx < border.length - 1; ++idx) {
+      if (border[idx].x != 0) {
+        coords.add(border[idx]);
+      }
+    }
+    coords.add(new Coordinate(0, 10));
+    coords.add(new Coordinate(0, 8));
+    for (int idx = 1; idx < 12; ++idx) {
+      coords.add(new Coordinate(idx % 2 == 0 ? 0.04 : 0.06, 8 - 0.5 * idx));
+    }
+    coords.add(new Coordinate(0, 2));
+    Geometry a = Factory.createPolygon(Factory.createLinearRing(coords.toArray(new Coordinate[coords.size()])), null);
+    Assert.assertTrue(a.isValid());
+    List<ImmutablePair<Object, Geometry>> labeledGeoms = new ArrayList<ImmutablePair<Object, Geometry>>();
+    labeledGeoms.add(ImmutablePair.of((Object) "A", a));
+    labeledGeoms.add(ImmutablePair.of((Object) "B", side(false, 100)));
+
+    List<ImmutablePair<Object, Geometry>> simplified = new BorderSimplifier(0.1).simplify(Factory, cell, labeledGeoms);
+    Assert.assertNotSame("borders are simplified", labeledGeoms, simplified);
+    for (ImmutablePair<Object, Geometry> labeledGeom: simplified) {
+      Assert.assertFalse(
+        "water is kept uncovered",
+        labeledGeom.getRight().covers(Factory.createPoint(new Coordinate(0.01, 5)))
+      );
+    }
+  }
+
+  @Test
+  public void testKeepsGeometryCollection() {
+    CellLocation cell = new CellLocation(Reference).child(0, 0);
+    Geometry line = Factory.createLineString(new Coordinate[] { new Coordinate(6, 1), new Coordinate(9, 1) });
+    List<ImmutablePair<Object, Geometry>> labeledGeoms = new ArrayList<ImmutablePair<Object, Geometry>>();
+    labeledGeoms.add(ImmutablePair.of((Object) "A", side(true, 100)));
+    labeledGeoms.add(ImmutablePair.of((Object) "B", (Geometry) Factory.createGeometryCollection(
+      new Geometry[] { side(false, 100), line }
+    )));
+    Assert.assertSame(labeledGeoms, new BorderSimplifier(0.1).simplify(Factory, cell, labeledGeoms));
+  }
+
+  @Test
+  public void testKeepsOverlappingLabels() {
+    CellLocation cell = new CellLocation(Reference).child(0, 0);
+    List<ImmutablePair<Object, Geometry>> labeledGeoms = new ArrayList<ImmutablePair<Object, Geometry>>();
+    labeledGeoms.add(ImmutablePair.of((Object) "A", side(true, 100)));
+    labeledGeoms.add(ImmutablePair.of((Object) "B", side(true, 100).buffer(1)));
+    Assert.assertSame(labeledGeoms, new BorderSimplifier(0.1).simplify(Factory, cell, labeledGeoms));
+  }
+
+  @Test
+  public void testToleranceCappedByCell() {
+    CellLocation cell = new CellLocation(Reference).child(0, 0);
+    Assert.assertEquals(1, BorderSimplifier.fromMeters(1000000).tolerance(cell), 0.0000001);
+  }
+}
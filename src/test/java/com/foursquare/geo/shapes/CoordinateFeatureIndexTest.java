@@ -0,0 +1,63 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+
+public class CoordinateFeatureIndexTest {
+  static final CoordinateReferenceSystem CRS = DefaultGeographicCRS.WGS84;
+  static final ReferencedEnvelope DefaultEnv = new ReferencedEnvelope(0, 100, 0, 100, CRS);
+  static final CellLocationReference DefaultReference = new CellLocationReference(DefaultEnv, new int[] { 2 });
+  static final FeatureEntryFactory DefaultFactory = new FeatureEntryFactory(DefaultReference, "label");
+
+  @Test
+  public void testSharedVertices() {
+    GeometryFactory factory = DefaultReference.getGeometryFactory();
+    CoordinateFeatureIndex index = new CoordinateFeatureIndex();
+    // Squares in a checkerboard of two labels, with more vertices than the initial capacity
+    for (int x = 0; x < 40; ++x) {
+      for (int y = 0; y < 40; ++y) {
+        index.add(DefaultFactory.featureEntry(
+          (x + y) % 2 == 0 ? "black" : "white",
+          false,
+          factory.toGeometry(new Envelope(x, x + 1, y, y + 1))
+        ));
+      }
+    }
+    Assert.assertEquals("distinct vertices", 41 * 41, index.size());
+    Assert.assertEquals("missing vertex", CoordinateFeatureIndex.NoEntry, index.find(new Coordinate(0.5, 0.5)));
+
+    int corner = index.find(new Coordinate(0, 0));
+    int edge = index.find(new Coordinate(1, 0));
+    int inner = index.find(new Coordinate(1, 1));
+    int numFeatures = 0;
+    for (int entry = index.firstFeature(inner); entry != CoordinateFeatureIndex.NoEntry; entry = index.nextFeature(entry)) {
+      ++numFeatures;
+    }
+    Assert.assertEquals("features of an inner vertex", 4, numFeatures);
+    int numLabels = 0;
+    for (int entry = index.firstLabel(inner); entry != CoordinateFeatureIndex.NoEntry; entry = index.nextLabel(entry)) {
+      ++numLabels;
+    }
+    Assert.assertEquals("distinct labels of an inner vertex", 2, numLabels);
+
+    Assert.assertEquals("black", index.label(index.anyLabel(corner)));
+    Assert.assertEquals("black", index.label(index.commonLabel(corner, edge)));
+    Assert.assertEquals(
+      "no label common to a vertex and a missing one",
+      CoordinateFeatureIndex.NoEntry,
+      index.commonLabel(new int[] { corner, inner, CoordinateFeatureIndex.NoEntry })
+    );
+    Assert.assertEquals("black", index.label(index.commonLabel(new int[] { corner, edge, inner })));
+  }
+}
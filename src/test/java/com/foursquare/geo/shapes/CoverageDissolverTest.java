@@ -0,0 +1,75 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class CoverageDissolverTest {
+  static final GeometryFactory Factory = new GeometryFactory();
+
+  private static Geometry box(double minX, double maxX, double minY, double maxY) {
+    return Factory.toGeometry(new Envelope(minX, maxX, minY, maxY));
+  }
+
+  private static Geometry triangle(double x0, double y0, double x1, double y1, double x2, double y2) {
+    return Factory.createPolygon(Factory.createLinearRing(new Coordinate[] {
+      new Coordinate(x0, y0),
+      new Coordinate(x1, y1),
+      new Coordinate(x2, y2),
+      new Coordinate(x0, y0)
+    }), null);
+  }
+
+  private static void assertDissolves(String message, List<Geometry> geometries) {
+    Geometry dissolved = CoverageDissolver.dissolve(Factory, geometries);
+    Assert.assertNotNull(message, dissolved);
+    Assert.assertTrue(message + " is valid", dissolved.isValid());
+    Assert.assertTrue(message + " matches union", dissolved.equalsTopo(Factory.buildGeometry(geometries).union()));
+  }
+
+  @Test
+  public void testDissolveCoverage() {
+    // A ring of squares around a lake, and a square touching it at a corner
+    List<Geometry> squares = new ArrayList<Geometry>();
+    for (int x = 0; x < 3; ++x) {
+      for (int y = 0; y < 3; ++y) {
+        if (x != 1 || y != 1) {
+          squares.add(box(x, x + 1, y, y + 1));
+        }
+      }
+    }
+    squares.add(box(3, 4, 3, 4));
+    assertDissolves("squares", squares);
+    Geometry dissolved = CoverageDissolver.dissolve(Factory, squares);
+    Assert.assertEquals("polygons", 2, dissolved.getNumGeometries());
+    Assert.assertEquals("area", 9, dissolved.getArea(), 0.00000001);
+
+    // A rectangle beside two squares, whose shared vertex lies on its edge
+    assertDissolves("T-junction", Arrays.asList(box(0, 1, 0, 2), box(1, 2, 0, 1), box(1, 2, 1, 2)));
+
+    // A lake touching the shore at a vertex
+    assertDissolves("pinched lake", Arrays.asList(
+      box(0, 1, 0, 3), box(1, 2, 0, 1), box(2, 3, 0, 3), box(1, 2, 2, 3),
+      triangle(1, 1, 2, 1, 1.5, 2),
+      triangle(1, 1, 1.5, 2, 1, 2)
+    ));
+  }
+
+  @Test
+  public void testRejectOverlap() {
+    Assert.assertNull("overlapping", CoverageDissolver.dissolve(Factory, Arrays.asList(box(0, 2, 0, 2), box(1, 3, 1, 3))));
+    Assert.assertNull("nested", CoverageDissolver.dissolve(Factory, Arrays.asList(box(0, 3, 0, 3), box(1, 2, 1, 2))));
+    Assert.assertNull("duplicate", CoverageDissolver.dissolve(Factory, Arrays.asList(box(0, 1, 0, 1), box(0, 1, 0, 1))));
+  }
+}
@@ -0,0 +1,54 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.vividsolutions.jts.algorithm.RayCrossingCounter;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Location;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class CrossingKernelTest {
+  private static int expectedLocation(Coordinate[] ring, Coordinate point) {
+    return RayCrossingCounter.locatePointInRing(point, ring);
+  }
+
+  private static int kernelLocation(double[] coords, int numCoords, Coordinate point) {
+    int crossings = CrossingKernel.crossings(coords, 0, numCoords, point.x, point.y);
+    if (crossings == CrossingKernel.OnBoundary) {
+      return Location.BOUNDARY;
+    }
+    return crossings % 2 == 1 ? Location.INTERIOR : Location.EXTERIOR;
+  }
+
+  @Test
+  public void testMatchesRayCrossingCounter() {
+    Random random = new Random(46);
+    for (int trial = 0; trial < 200; ++trial) {
+      // A star-shaped ring on a coarse grid, so points often fall on vertices and edges
+      int numVertices = 3 + random.nextInt(20);
+      Coordinate[] ring = new Coordinate[numVertices + 1];
+      double[] coords = new double[ring.length * 2];
+      for (int idx = 0; idx < numVertices; ++idx) {
+        double angle = 2 * Math.PI * idx / numVertices;
+        double radius = 1 + random.nextInt(8);
+        ring[idx] = new Coordinate(Math.rint(radius * Math.cos(angle)), Math.rint(radius * Math.sin(angle)));
+      }
+      ring[numVertices] = new Coordinate(ring[0]);
+      for (int idx = 0; idx < ring.length; ++idx) {
+        coords[idx * 2] = ring[idx].x;
+        coords[idx * 2 + 1] = ring[idx].y;
+      }
+      for (double x = -9; x <= 9; x += 0.5) {
+        for (double y = -9; y <= 9; y += 0.5) {
+          Coordinate point = new Coordinate(x, y);
+          Assert.assertEquals(point.toString(), expectedLocation(ring, point), kernelLocation(coords, ring.length, point));
+        }
+      }
+      Coordinate offGrid = new Coordinate(random.nextDouble() * 18 - 9, random.nextDouble() * 18 - 9);
+      Assert.assertEquals(expectedLocation(ring, offGrid), kernelLocation(coords, ring.length, offGrid));
+    }
+  }
+}
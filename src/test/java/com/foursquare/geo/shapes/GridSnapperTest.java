@@ -0,0 +1,45 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygon;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GridSnapperTest {
+  private static Polygon polygon(double... coords) {
+    Coordinate[] ring = new Coordinate[coords.length / 2];
+    for (int idx = 0; idx < ring.length; ++idx) {
+      ring[idx] = new Coordinate(coords[idx * 2], coords[idx * 2 + 1]);
+    }
+    return ShapefileUtils.GEOMETRY_FACTORY.createPolygon(
+      ShapefileUtils.GEOMETRY_FACTORY.createLinearRing(ring),
+      null
+    );
+  }
+
+  @Test
+  public void testSnapSharedEdge() {
+    GridSnapper snapper = new GridSnapper(0.01);
+    // Two squares sharing an edge at x = 1.0004, with nearly collinear vertices along it
+    Geometry left = snapper.snap(polygon(0, 0, 0, 1, 1.0004, 1, 1.0001, 0.5, 1.0004, 0, 0, 0));
+    Geometry right = snapper.snap(polygon(1.0004, 0, 1.0001, 0.5, 1.0004, 1, 2, 1, 2, 0, 1.0004, 0));
+    Assert.assertTrue(left.isValid());
+    Assert.assertEquals("collinear vertex dropped", 5, left.getNumPoints());
+    Assert.assertEquals("collinear vertex dropped", 5, right.getNumPoints());
+    Assert.assertEquals(1, left.getArea(), 0.0000001);
+    Assert.assertEquals("no gap or overlap", 2, left.union(right).getArea(), 0.0000001);
+    for (Coordinate coord: left.getCoordinates()) {
+      Assert.assertEquals(Math.round(coord.x * 100) / 100.0, coord.x, 0.0000001);
+    }
+  }
+
+  @Test
+  public void testSnapCollapsed() {
+    GridSnapper snapper = new GridSnapper(0.01);
+    Geometry sliver = snapper.snap(polygon(0, 0, 0, 1, 0.001, 1, 0.001, 0, 0, 0));
+    Assert.assertTrue(sliver.isEmpty());
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+
+public class IncrementalSimplifierTest {
+  static final CoordinateReferenceSystem CRS = DefaultGeographicCRS.WGS84;
+  static final ReferencedEnvelope DefaultEnv = new ReferencedEnvelope(0, 10, 0, 10, CRS);
+  static final CellLocationReference DefaultReference = new CellLocationReference(
+    DefaultEnv,
+    new int[] { 4, 2, 2 }
+  );
+  static final FeatureEntryFactory DefaultFactory = new FeatureEntryFactory(DefaultReference, "label");
+
+  private Geometry triangle(double x0, double y0, double x1, double y1, double x2, double y2) {
+    return DefaultReference.getGeometryFactory().createPolygon(
+      DefaultReference.getGeometryFactory().createLinearRing(new Coordinate[] {
+        new Coordinate(x0, y0),
+        new Coordinate(x1, y1),
+        new Coordinate(x2, y2),
+        new Coordinate(x0, y0)
+      }),
+      null
+    );
+  }
+
+  /* Two triangles splitting the envelope along its diagonal, and a small island */
+  private List<FeatureEntry> features(Geometry island) {
+    List<FeatureEntry> features = new ArrayList<FeatureEntry>();
+    features.add(DefaultFactory.featureEntry("A", false, triangle(0, 0, 10, 10, 0, 10)));
+    features.add(DefaultFactory.featureEntry("B", false, triangle(0, 0, 10, 0, 10, 10)));
+    features.add(DefaultFactory.featureEntry("C", false, island));
+    return features;
+  }
+
+  private static List<String> describe(Iterable<FeatureEntry> features) {
+    List<String> descriptions = new ArrayList<String>();
+    for (FeatureEntry feature: features) {
+      descriptions.add(feature.location + " " + feature.getLabel() + " " + feature.geometry.getArea());
+    }
+    Collections.sort(descriptions);
+    return descriptions;
+  }
+
+  @Test
+  public void testMovedFeatureChangesCells() {
+    List<FeatureEntry> previousFeatures = features(triangle(7, 9, 8, 9, 7, 9.5));
+    List<FeatureEntry> features = features(triangle(1, 8, 2, 8, 1, 8.5));
+    CellLocation root = new CellLocation(DefaultReference);
+    Assert.assertEquals(
+      "cells of the old and new island",
+      Arrays.asList(root.child(0, 3), root.child(2, 3), root.child(3, 3)),
+      new ArrayList<CellLocation>(IncrementalSimplifier.changedTopLevelCells(
+        DefaultReference,
+        previousFeatures,
+        features
+      ))
+    );
+    Assert.assertTrue("unchanged features", IncrementalSimplifier.changedTopLevelCells(
+      DefaultReference,
+      previousFeatures,
+      features(triangle(7, 9, 8, 9, 7, 9.5))
+    ).isEmpty());
+  }
+
+  @Test
+  public void testNeighbourCells() {
+    CellLocation root = new CellLocation(DefaultReference);
+    Assert.assertEquals(
+      new TreeSet<CellLocation>(Arrays.asList(root.child(0, 2), root.child(0, 3), root.child(1, 2), root.child(1, 3))),
+      IncrementalSimplifier.withNeighbourCells(DefaultReference, new TreeSet<CellLocation>(Arrays.asList(root.child(0, 3))))
+    );
+    Assert.assertEquals(
+      "the three by three cells around it",
+      9,
+      IncrementalSimplifier.withNeighbourCells(DefaultReference, new TreeSet<CellLocation>(Arrays.asList(root.child(1, 1)))).size()
+    );
+  }
+
+  @Test
+  public void testIncrementalSimplifyMatches() {
+    List<FeatureEntry> previousFeatures = features(triangle(7, 9, 8, 9, 7, 9.5));
+    List<FeatureEntry> features = features(triangle(1, 8, 2, 8, 1, 8.5));
+    Iterable<FeatureEntry> previousSimplified = LabeledGridSimplifier.simplify(
+      DefaultReference,
+      previousFeatures,
+      true
+    );
+    Iterable<FeatureEntry> incremental = IncrementalSimplifier.simplify(
+      DefaultReference,
+      DefaultFactory,
+      previousFeatures,
+      features,
+      previousSimplified,
+      true,
+      false,
+      false,
+      2
+    );
+    Assert.assertEquals(
+      "same features as a full simplification",
+      describe(LabeledGridSimplifier.simplify(DefaultReference, features, true)),
+      describe(incremental)
+    );
+  }
+}
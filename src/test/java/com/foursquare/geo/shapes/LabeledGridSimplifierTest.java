@@ -0,0 +1,178 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+public class LabeledGridSimplifierTest {
+  @Rule
+  public TemporaryFolder spillFolder = new TemporaryFolder();
+
+  static final CoordinateReferenceSystem CRS = DefaultGeographicCRS.WGS84;
+  static final double HighPrecisionDelta = 0.00000001;
+  static final ReferencedEnvelope DefaultEnv = new ReferencedEnvelope(0, 10, 0, 10, CRS);
+  static final CellLocationReference DefaultReference = new CellLocationReference(
+    DefaultEnv,
+    new int[] { 4, 2, 2 }
+  );
+  static final FeatureEntryFactory DefaultFactory = new FeatureEntryFactory(DefaultReference, "label");
+
+  private Geometry triangle(double x0, double y0, double x1, double y1, double x2, double y2) {
+    return DefaultReference.getGeometryFactory().createPolygon(
+      DefaultReference.getGeometryFactory().createLinearRing(new Coordinate[] {
+        new Coordinate(x0, y0),
+        new Coordinate(x1, y1),
+        new Coordinate(x2, y2),
+        new Coordinate(x0, y0)
+      }),
+      null
+    );
+  }
+
+  /* Two triangles splitting the envelope along its diagonal, and a small island on A:
+    -----------10
+    |       * /|
+    |        / |
+    |   A   /  |
+    Y      /   |
+    |     /  B |
+    |    /     |
+    |   /      |
+    | /        |
+    0-----X-----
+   */
+  private List<FeatureEntry> features() {
+    List<FeatureEntry> features = new ArrayList<FeatureEntry>();
+    features.add(DefaultFactory.featureEntry("A", false, triangle(0, 0, 10, 10, 0, 10)));
+    features.add(DefaultFactory.featureEntry("B", false, triangle(0, 0, 10, 0, 10, 10)));
+    features.add(DefaultFactory.featureEntry("C", false, triangle(7, 9, 8, 9, 7, 9.5)));
+    return features;
+  }
+
+  private static double labelArea(Iterable<FeatureEntry> features, Object label) {
+    double area = 0;
+    for (FeatureEntry feature: features) {
+      if (label.equals(feature.getLabel())) {
+        area += feature.geometry.getArea();
+      }
+    }
+    return area;
+  }
+
+  @Test
+  public void testSimplifyKeepsArea() {
+    Iterable<FeatureEntry> simplified = LabeledGridSimplifier.simplify(DefaultReference, features(), true);
+    Assert.assertEquals("area of A", 50, labelArea(simplified, "A"), HighPrecisionDelta);
+    Assert.assertEquals("area of B", 50, labelArea(simplified, "B"), HighPrecisionDelta);
+    Assert.assertEquals("area of C", 0.25, labelArea(simplified, "C"), HighPrecisionDelta);
+  }
+
+  @Test
+  public void testParallelSimplifyIsDeterministic() {
+    List<FeatureEntry> sequential = new ArrayList<FeatureEntry>();
+    for (FeatureEntry feature: LabeledGridSimplifier.simplify(DefaultReference, features(), true, 1)) {
+      sequential.add(feature);
+    }
+    for (int attempt = 0; attempt < 4; ++attempt) {
+      List<FeatureEntry> parallel = new ArrayList<FeatureEntry>();
+      for (FeatureEntry feature: LabeledGridSimplifier.simplify(DefaultReference, features(), true, 4)) {
+        parallel.add(feature);
+      }
+      Assert.assertEquals("same number of features", sequential.size(), parallel.size());
+      for (int idx = 0; idx < sequential.size(); ++idx) {
+        Assert.assertEquals("same location", sequential.get(idx).location, parallel.get(idx).location);
+        Assert.assertEquals("same label", sequential.get(idx).getLabel(), parallel.get(idx).getLabel());
+        Assert.assertTrue(
+          "same geometry",
+          sequential.get(idx).geometry.equalsExact(parallel.get(idx).geometry)
+        );
+      }
+    }
+  }
+
+  private static List<String> describe(Iterable<FeatureEntry> features) {
+    List<String> descriptions = new ArrayList<String>();
+    for (FeatureEntry feature: features) {
+      descriptions.add(feature.location + " " + feature.getLabel() + " " + feature.geometry.getArea());
+    }
+    Collections.sort(descriptions);
+    return descriptions;
+  }
+
+  @Test
+  public void testDepthFirstSimplifyMatches() throws IOException {
+    Iterable<FeatureEntry> breadthFirst = LabeledGridSimplifier.simplify(DefaultReference, features(), true);
+    // A threshold of one coordinate spills every feature to disk
+    Iterable<FeatureEntry> depthFirst = LabeledGridSimplifier.simplifyDepthFirst(
+      DefaultReference,
+      features(),
+      true,
+      2,
+      spillFolder.getRoot(),
+      1
+    );
+    Assert.assertEquals("same features", describe(breadthFirst), describe(depthFirst));
+    Assert.assertEquals("spill files are removed", 0, spillFolder.getRoot().list().length);
+  }
+
+  @Test
+  public void testResumeFromCheckpoint() throws IOException {
+    File directory = spillFolder.newFolder("checkpoint");
+    SimplificationCheckpoint checkpoint = new SimplificationCheckpoint(directory, "run");
+    Iterable<FeatureEntry> simplified = LabeledGridSimplifier.simplify(
+      DefaultReference,
+      features(),
+      true,
+      new SimplificationOptions().checkpoint(checkpoint)
+    );
+    Assert.assertEquals("last round", DefaultReference.numLevels() - 1, checkpoint.lastRound());
+
+    // Resuming the same run reads every round back, without the input features
+    Iterable<FeatureEntry> resumed = LabeledGridSimplifier.simplify(
+      DefaultReference,
+      Collections.<FeatureEntry>emptyList(),
+      true,
+      new SimplificationOptions().checkpoint(new SimplificationCheckpoint(directory, "run"))
+    );
+    Assert.assertEquals("same features", describe(simplified), describe(resumed));
+
+    Assert.assertEquals("other runs start over", -1, new SimplificationCheckpoint(directory, "other run").lastRound());
+  }
+
+  @Test
+  public void testReportRounds() {
+    SimplificationReport report = new SimplificationReport();
+    SimplificationReport.Stage stage = report.startStage("simplify");
+    Iterable<FeatureEntry> simplified = LabeledGridSimplifier.simplify(
+      DefaultReference,
+      features(),
+      true,
+      new SimplificationOptions().report(report)
+    );
+    stage.countFeatures(simplified);
+    stage.end();
+    String json = report.toJson();
+    for (int round = 0; round < DefaultReference.numLevels(); ++round) {
+      Assert.assertTrue("reports round " + round, json.contains("\"round\": " + round + ","));
+    }
+    Assert.assertTrue("reports cells carried over", json.contains("\"cellsCarriedOver\": "));
+    Assert.assertTrue("reports peak heap", json.contains("\"peakHeapBytes\": "));
+  }
+}
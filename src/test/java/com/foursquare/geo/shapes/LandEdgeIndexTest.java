@@ -0,0 +1,69 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+
+public class LandEdgeIndexTest {
+  static final CoordinateReferenceSystem CRS = DefaultGeographicCRS.WGS84;
+  static final ReferencedEnvelope DefaultEnv = new ReferencedEnvelope(0, 100, 0, 100, CRS);
+  static final CellLocationReference DefaultReference = new CellLocationReference(DefaultEnv, new int[] { 2 });
+  static final FeatureEntryFactory DefaultFactory = new FeatureEntryFactory(DefaultReference, "label");
+  static final GeometryFactory Factory = DefaultReference.getGeometryFactory();
+
+  private static Geometry triangle(double x0, double y0, double x1, double y1, double x2, double y2) {
+    return Factory.createPolygon(Factory.createLinearRing(new Coordinate[] {
+      new Coordinate(x0, y0),
+      new Coordinate(x1, y1),
+      new Coordinate(x2, y2),
+      new Coordinate(x0, y0)
+    }), null);
+  }
+
+  @Test
+  public void testOverlapsAsGeometry() {
+    // A lake in a square of land, and an island
+    Geometry land = Factory.toGeometry(new Envelope(0, 10, 0, 10)).difference(
+      Factory.toGeometry(new Envelope(4, 6, 4, 6))
+    );
+    Geometry island = Factory.toGeometry(new Envelope(20, 21, 0, 1));
+    CoordinateFeatureIndex coordIndex = new CoordinateFeatureIndex();
+    coordIndex.add(DefaultFactory.featureEntry("A", false, land));
+    coordIndex.add(DefaultFactory.featureEntry("B", false, island));
+    LandEdgeIndex edgeIndex = new LandEdgeIndex(coordIndex);
+    Geometry[] triangles = new Geometry[] {
+      triangle(10, 0, 10, 10, 15, 5), // Touching the coast
+      triangle(8, 2, 12, 2, 12, 6), // Across the coast
+      triangle(1, 1, 3, 1, 1, 3), // Inland
+      triangle(4, 4, 6, 4, 6, 6), // In the lake, along its shore
+      triangle(4, 4, 8, 4, 4, 8), // Across the lake
+      triangle(18, -1, 24, -1, 18, 5), // Around the island
+      triangle(6, 4, 20, 0, 20, 1) // From the lake to the island
+    };
+    for (Geometry triangle: triangles) {
+      for (int featureId = 0; featureId < coordIndex.numFeatures(); ++featureId) {
+        Assert.assertEquals(
+          "overlaps " + triangle + " with feature " + featureId,
+          coordIndex.feature(featureId).geometry.overlaps(triangle),
+          edgeIndex.overlapsAny(new int[] { featureId }, 1, triangle)
+        );
+      }
+      Assert.assertEquals(
+        "overlaps any of " + triangle,
+        land.overlaps(triangle) || island.overlaps(triangle),
+        edgeIndex.overlapsAny(new int[] { 0, 1 }, 2, triangle)
+      );
+    }
+  }
+}
@@ -0,0 +1,200 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+public class MappedShapefileReaderTest {
+  @Rule
+  public TemporaryFolder shapefileFolder = new TemporaryFolder();
+
+  static final CellLocationReference Reference = new CellLocationReference(
+    new ReferencedEnvelope(0, 10, 0, 10, null),
+    new int[] { 2, 2 }
+  );
+  static final int LabelLength = 8;
+  static final int LocationLength = 16;
+
+  /* A clockwise shell with a counter-clockwise hole, and a second clockwise shell */
+  static final double[][] ShellWithHole = {
+    { 0, 0, 0, 4, 4, 4, 4, 0, 0, 0 },
+    { 1, 1, 2, 1, 2, 2, 1, 2, 1, 1 },
+    { 5, 0, 5, 1, 6, 1, 6, 0, 5, 0 }
+  };
+  static final double[][] LeftRectangle = {
+    { 0, 0, 0, 5, 2, 5, 2, 0, 0, 0 }
+  };
+  static final double[][] RightRectangle = {
+    { 2, 0, 2, 5, 5, 5, 5, 0, 2, 0 }
+  };
+  static final double[][] UpperRectangle = {
+    { 5, 5, 5, 10, 10, 10, 10, 5, 5, 5 }
+  };
+
+  private static void write(File file, ByteBuffer buffer) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(buffer.array(), 0, buffer.position());
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void putText(ByteBuffer buffer, String text, int length) {
+    byte[] bytes = text.getBytes(Charset.forName("UTF-8"));
+    for (int idx = 0; idx < length; ++idx) {
+      buffer.put(idx < bytes.length ? bytes[idx] : (byte) ' ');
+    }
+  }
+
+  /**
+   * Writes a polygon Shapefile with a character label attribute and a cell location attribute
+   */
+  private File writeShapefile(String[] labels, String[] locations, boolean[] deleted, double[][][] records)
+    throws IOException {
+    ByteBuffer shp = ByteBuffer.allocate(4096);
+    shp.order(ByteOrder.BIG_ENDIAN).putInt(MappedShapefileReader.ShpFileCode);
+    shp.position(32);
+    shp.order(ByteOrder.LITTLE_ENDIAN).putInt(MappedShapefileReader.PolygonShape);
+    shp.putDouble(0).putDouble(0).putDouble(10).putDouble(10);
+    shp.position(MappedShapefileReader.ShpHeaderLength);
+    for (int record = 0; record < records.length; ++record) {
+      double[][] rings = records[record];
+      int numPoints = 0;
+      for (double[] ring: rings) {
+        numPoints += ring.length / 2;
+      }
+      int contentLength = 44 + 4 * rings.length + 16 * numPoints;
+      shp.order(ByteOrder.BIG_ENDIAN).putInt(record + 1).putInt(contentLength / 2);
+      shp.order(ByteOrder.LITTLE_ENDIAN).putInt(MappedShapefileReader.PolygonShape);
+      shp.putDouble(0).putDouble(0).putDouble(10).putDouble(10);
+      shp.putInt(rings.length).putInt(numPoints);
+      int partStart = 0;
+      for (double[] ring: rings) {
+        shp.putInt(partStart);
+        partStart += ring.length / 2;
+      }
+      for (double[] ring: rings) {
+        for (double value: ring) {
+          shp.putDouble(value);
+        }
+      }
+    }
+    File shpFile = shapefileFolder.newFile("simplified.shp");
+    write(shpFile, shp);
+
+    ByteBuffer dbf = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+    int headerLength = 32 + 2 * MappedShapefileReader.DbfFieldDescriptorLength + 1;
+    dbf.put((byte) 3).put(new byte[3]).putInt(records.length);
+    dbf.putShort((short) headerLength).putShort((short) (1 + LabelLength + LocationLength));
+    dbf.position(32);
+    String[] names = { "label", Reference.attributeName() };
+    int[] lengths = { LabelLength, LocationLength };
+    for (int field = 0; field < names.length; ++field) {
+      int start = dbf.position();
+      dbf.put(names[field].getBytes(Charset.forName("UTF-8")));
+      dbf.position(start + 11);
+      dbf.put((byte) 'C');
+      dbf.position(start + 16);
+      dbf.put((byte) lengths[field]);
+      dbf.position(start + MappedShapefileReader.DbfFieldDescriptorLength);
+    }
+    dbf.put(MappedShapefileReader.DbfHeaderTerminator);
+    for (int record = 0; record < records.length; ++record) {
+      dbf.put(deleted[record] ? MappedShapefileReader.DbfDeletedFlag : (byte) ' ');
+      putText(dbf, labels[record], LabelLength);
+      putText(dbf, locations[record], LocationLength);
+    }
+    write(new File(shapefileFolder.getRoot(), "simplified.dbf"), dbf);
+    return shpFile;
+  }
+
+  @Test
+  public void testReadRecords() throws IOException {
+    File shpFile = writeShapefile(
+      new String[] { "A", "B", "C" },
+      new String[] { "", "", "" },
+      new boolean[] { false, true, false },
+      new double[][][] { ShellWithHole, LeftRectangle, UpperRectangle }
+    );
+    MappedShapefileReader reader = new MappedShapefileReader(shpFile, Charset.forName("UTF-8"));
+    Assert.assertEquals(10, reader.bounds().getMaxX(), 0);
+    int labelField = reader.fieldIndex("label");
+    Assert.assertEquals(0, labelField);
+    Assert.assertEquals(-1, reader.fieldIndex("missing"));
+
+    Assert.assertTrue(reader.next());
+    Assert.assertEquals("A", reader.value(labelField));
+    MultiPolygon polygons = (MultiPolygon) reader.geometry();
+    Assert.assertEquals("shells", 2, polygons.getNumGeometries());
+    Assert.assertEquals("holes", 1, ((Polygon) polygons.getGeometryN(0)).getNumInteriorRing());
+    Assert.assertEquals(16 - 1 + 1, polygons.getArea(), 0);
+
+    Assert.assertTrue("deleted record is skipped", reader.next());
+    Assert.assertEquals("C", reader.value(labelField));
+    Assert.assertFalse(reader.next());
+  }
+
+  @Test
+  public void testRingPredicates() {
+    double[] shell = ShellWithHole[0];
+    double[] hole = ShellWithHole[1];
+    Assert.assertEquals("clockwise", -32, MappedShapefileReader.signedArea(shell), 0);
+    Assert.assertEquals("counter-clockwise", 2, MappedShapefileReader.signedArea(hole), 0);
+    Assert.assertEquals("inside", 1, MappedShapefileReader.locateInRing(1, 1, shell));
+    Assert.assertEquals("on edge", 0, MappedShapefileReader.locateInRing(0, 2, shell));
+    Assert.assertEquals("on vertex", 0, MappedShapefileReader.locateInRing(4, 4, shell));
+    Assert.assertEquals("outside", -1, MappedShapefileReader.locateInRing(5, 2, shell));
+    Assert.assertEquals("outside level with a vertex", -1, MappedShapefileReader.locateInRing(-1, 4, shell));
+  }
+
+  @Test
+  public void testLoadMapped() throws IOException {
+    CellLocation root = new CellLocation(Reference);
+    String mixedCell = root.child(0, 0).attributeValue().toString();
+    String singleCell = root.child(1, 1).attributeValue().toString();
+    File shpFile = writeShapefile(
+      new String[] { "A", "B", "C" },
+      new String[] { mixedCell, mixedCell, singleCell },
+      new boolean[] { false, false, false },
+      new double[][][] { LeftRectangle, RightRectangle, UpperRectangle }
+    );
+    IndexedValues indexedValues = SimplifiedShapefileGeo.loadMapped(shpFile, "label", true, false);
+    Assert.assertEquals("A", indexedValues.labelForCoordinate(new Coordinate(1, 1)));
+    Assert.assertEquals("B", indexedValues.labelForCoordinate(new Coordinate(3, 1)));
+    Assert.assertEquals("C", indexedValues.labelForCoordinate(new Coordinate(7, 7)));
+    Assert.assertEquals("features of mixed cell", 2, indexedValues.colocatedFeatures(new Coordinate(1, 1)).size());
+  }
+
+  @Test
+  public void testWriteHeaderBounds() throws IOException {
+    File shpFile = writeShapefile(
+      new String[] { "A" },
+      new String[] { "" },
+      new boolean[] { false },
+      new double[][][] { LeftRectangle }
+    );
+    ShapefileUtils.writeHeaderBounds(shpFile.getPath(), new Envelope(-10, 20, -5, 15));
+    MappedShapefileReader reader = new MappedShapefileReader(shpFile, Charset.forName("UTF-8"));
+    Assert.assertEquals(new Envelope(-10, 20, -5, 15), reader.bounds());
+    Assert.assertTrue("records are kept", reader.next());
+    Assert.assertEquals(10, reader.geometry().getArea(), 0);
+  }
+}
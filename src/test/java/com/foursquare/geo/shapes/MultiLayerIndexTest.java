@@ -0,0 +1,103 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MultiLayerIndexTest {
+  static final ReferencedEnvelope Env = new ReferencedEnvelope(0, 10, 0, 10, DefaultGeographicCRS.WGS84);
+
+  private static Geometry rectangle(CellLocationReference reference, double minX, double maxX, double minY, double maxY) {
+    return reference.getGeometryFactory().toGeometry(
+      new ReferencedEnvelope(minX, maxX, minY, maxY, DefaultGeographicCRS.WGS84)
+    );
+  }
+
+  /* A layer of a mixed cell in the lower left, split at x = split, and single-label cells elsewhere */
+  private static IndexedValues layer(CellLocationReference reference, String prefix, double split) {
+    CellLocation root = new CellLocation(reference);
+    CellLocation mixedCell = root.child(0, 0);
+    SimplifiedShapefileGeo.ShapeIndexedValues mixedValues = new SimplifiedShapefileGeo.ShapeIndexedValues();
+    mixedValues.add(new FeatureEntry(
+      mixedCell,
+      new AbstractMap.SimpleImmutableEntry<String, Object>("label", prefix + "A"),
+      false,
+      rectangle(reference, 0, split, 0, 5)
+    ));
+    mixedValues.add(new FeatureEntry(
+      mixedCell,
+      new AbstractMap.SimpleImmutableEntry<String, Object>("label", prefix + "B"),
+      false,
+      rectangle(reference, split, 5, 0, 5)
+    ));
+    Map<CellLocation, IndexedValues> cells = new HashMap<CellLocation, IndexedValues>();
+    cells.put(mixedCell, mixedValues);
+    cells.put(root.child(1, 0), new SimplifiedShapefileGeo.SingleIndexedValue(prefix + "C"));
+    cells.put(root.child(0, 1), new SimplifiedShapefileGeo.SingleIndexedValue(prefix + "D"));
+    cells.put(root.child(1, 1), SimplifiedShapefileGeo.SingleIndexedValue.NO_VALUE);
+    return new SimplifiedShapefileGeo.IndexedShapefile(reference, cells)
+      .with(new LabelFilters.BoundingBoxFilter(reference.getEnvelope()));
+  }
+
+  @Test
+  public void testLabelsMatchLayers() {
+    CellLocationReference reference = new CellLocationReference(Env, new int[] { 2 });
+    // Equal to the first, but a separate instance, as when loaded from another file
+    CellLocationReference sameReference = new CellLocationReference(Env, new int[] { 2 });
+    CellLocationReference otherReference = new CellLocationReference(Env, new int[] { 2, 2 });
+    // A layer not indexed by cell
+    SimplifiedShapefileGeo.ShapeIndexedValues unindexed = new SimplifiedShapefileGeo.ShapeIndexedValues();
+    unindexed.add(new FeatureEntry(
+      new CellLocation(reference),
+      new AbstractMap.SimpleImmutableEntry<String, Object>("label", "A"),
+      false,
+      rectangle(reference, 0, 5, 0, 5)
+    ));
+    MultiLayerIndex index = new MultiLayerIndex(Arrays.asList(
+      layer(reference, "tz", 2),
+      layer(sameReference, "country", 3).with(new LabelFilters.DefaultLabelFilter("none")),
+      layer(otherReference, "region", 4),
+      unindexed
+    ));
+    Assert.assertEquals(2, index.numProbes());
+
+    for (double x = -1; x <= 11; x += 0.5) {
+      for (double y = -1; y <= 11; y += 0.5) {
+        Coordinate coordinate = new Coordinate(x, y);
+        Object[] labels = index.labelsForCoordinate(coordinate);
+        Assert.assertEquals(index.layers().size(), labels.length);
+        for (int layer = 0; layer < labels.length; ++layer) {
+          Assert.assertEquals(
+            coordinate + " in layer " + layer,
+            index.layers().get(layer).labelForCoordinate(coordinate),
+            labels[layer]
+          );
+        }
+      }
+    }
+    Assert.assertArrayEquals(
+      new Object[] { "tzA", "countryA", "regionA", "A" },
+      index.labelsForCoordinate(new Coordinate(1, 1))
+    );
+    Assert.assertArrayEquals(
+      new Object[] { "tzD", "countryD", "regionD", null },
+      index.labelsForCoordinate(new Coordinate(1, 7))
+    );
+    Assert.assertArrayEquals(
+      new Object[] { null, "none", null, null },
+      index.labelsForCoordinate(new Coordinate(7, 7))
+    );
+  }
+}
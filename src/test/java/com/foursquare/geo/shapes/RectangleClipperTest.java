@@ -0,0 +1,71 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class RectangleClipperTest {
+  static final double HighPrecisionDelta = 0.00000001;
+  static final GeometryFactory Factory = new GeometryFactory();
+
+  private static LinearRing ring(double... xys) {
+    Coordinate[] coords = new Coordinate[xys.length / 2 + 1];
+    for (int idx = 0; idx < xys.length / 2; ++idx) {
+      coords[idx] = new Coordinate(xys[idx * 2], xys[idx * 2 + 1]);
+    }
+    coords[coords.length - 1] = new Coordinate(coords[0]);
+    return Factory.createLinearRing(coords);
+  }
+
+  private static void assertClipsLikeIntersection(Geometry geometry, Envelope rectangle) {
+    Geometry clipped = new RectangleClipper(rectangle, Factory).clip(geometry);
+    Geometry expected = Factory.toGeometry(rectangle).intersection(geometry);
+    Assert.assertNotNull("clipped", clipped);
+    Assert.assertTrue("valid", clipped.isValid());
+    Assert.assertEquals("area", expected.getArea(), clipped.getArea(), HighPrecisionDelta);
+    Assert.assertEquals("same shape", 0, clipped.symDifference(expected).getArea(), HighPrecisionDelta);
+  }
+
+  /* A U-shape, with a rectangle crossing both of its arms */
+  @Test
+  public void testClipSplitsPolygon() {
+    Polygon u = Factory.createPolygon(ring(0, 0, 10, 0, 10, 10, 7, 10, 7, 3, 3, 3, 3, 10, 0, 10), null);
+    Envelope rectangle = new Envelope(-1, 11, 5, 8);
+    Geometry clipped = new RectangleClipper(rectangle, Factory).clip(u);
+    Assert.assertEquals("two pieces", 2, clipped.getNumGeometries());
+    assertClipsLikeIntersection(u, rectangle);
+  }
+
+  @Test
+  public void testClipKeepsHoles() {
+    Polygon square = Factory.createPolygon(
+      ring(0, 0, 10, 0, 10, 10, 0, 10),
+      new LinearRing[] { ring(4, 4, 4, 6, 6, 6, 6, 4), ring(1, 1, 1, 3, 3, 3, 3, 1) }
+    );
+    assertClipsLikeIntersection(square, new Envelope(2, 8, 2, 8));
+    assertClipsLikeIntersection(square, new Envelope(3, 7, 3, 7));
+    assertClipsLikeIntersection(square, new Envelope(5, 12, 5, 12));
+  }
+
+  @Test
+  public void testClipCoveredAndDisjoint() {
+    Polygon triangle = Factory.createPolygon(ring(0, 0, 10, 0, 0, 10), null);
+    Geometry covered = new RectangleClipper(new Envelope(1, 2, 1, 2), Factory).clip(triangle);
+    Assert.assertEquals("covered rectangle", 1, covered.getArea(), HighPrecisionDelta);
+    Assert.assertTrue("disjoint", new RectangleClipper(new Envelope(8, 9, 8, 9), Factory).clip(triangle).isEmpty());
+    Assert.assertSame("within", triangle, new RectangleClipper(new Envelope(-1, 11, -1, 11), Factory).clip(triangle));
+    assertClipsLikeIntersection(triangle, new Envelope(0, 5, 0, 5));
+    Assert.assertNull("lines are not clipped", new RectangleClipper(new Envelope(0, 5, 0, 5), Factory).clip(
+      triangle.getBoundary()
+    ));
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+public class RefinedIndexedValuesTest {
+  static final CellLocationReference Reference = new CellLocationReference(
+    new ReferencedEnvelope(0, 10, 0, 10, DefaultGeographicCRS.WGS84),
+    new int[] { 2 }
+  );
+  static final Executor DirectExecutor = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private static Geometry polygon(double... xys) {
+    Coordinate[] coords = new Coordinate[xys.length / 2 + 1];
+    for (int idx = 0; idx < xys.length / 2; ++idx) {
+      coords[idx] = new Coordinate(xys[idx * 2], xys[idx * 2 + 1]);
+    }
+    coords[coords.length - 1] = new Coordinate(coords[0]);
+    GeometryFactory factory = Reference.getGeometryFactory();
+    return factory.createPolygon(factory.createLinearRing(coords), null);
+  }
+
+  private static FeatureEntry featureEntry(CellLocation location, Object label, Geometry geometry) {
+    return new FeatureEntry(
+      location,
+      new AbstractMap.SimpleImmutableEntry<String, Object>("label", label),
+      false,
+      geometry
+    );
+  }
+
+  /* A cell split along its diagonal into A and B, with a hole of no label in B */
+  private static SimplifiedShapefileGeo.ShapeIndexedValues mixedCell(CellLocation location) {
+    SimplifiedShapefileGeo.ShapeIndexedValues cellValues = new SimplifiedShapefileGeo.ShapeIndexedValues();
+    cellValues.add(featureEntry(location, "A", polygon(0, 0, 5, 0, 0, 5)));
+    cellValues.add(featureEntry(location, "B", polygon(5, 0, 5, 5, 0, 5).difference(polygon(4, 3, 4.5, 3, 4.5, 4, 4, 4))));
+    return cellValues;
+  }
+
+  @Test
+  public void testRefineMatchesCell() {
+    CellLocation location = new CellLocation(Reference).child(0, 0);
+    SimplifiedShapefileGeo.ShapeIndexedValues cellValues = mixedCell(location);
+    RefinedIndexedValues refined = RefinedIndexedValues.refine(location, cellValues, 4);
+
+    // Sub-cells that neither the diagonal nor the hole reach hold only a label,
+    // three on each side, less the two the hole reaches
+    Assert.assertEquals(3 + 3 - 2, refined.numSingleSubCells());
+    for (double x = 0; x <= 5; x += 0.125) {
+      for (double y = 0; y <= 5; y += 0.125) {
+        Coordinate coordinate = new Coordinate(x, y);
+        Assert.assertEquals(coordinate.toString(), cellValues.labelForCoordinate(coordinate), refined.labelForCoordinate(coordinate));
+      }
+    }
+    Assert.assertEquals(cellValues.featureEntries(), refined.featureEntries());
+  }
+
+  @Test
+  public void testFeatureTouchingSubCellCorner() {
+    CellLocation location = new CellLocation(Reference).child(0, 0);
+    SimplifiedShapefileGeo.ShapeIndexedValues cellValues = new SimplifiedShapefileGeo.ShapeIndexedValues();
+    // The lower left part touches the upper right sub-cell only at its corner
+    cellValues.add(featureEntry(location, "A", polygon(0, 0, 2.5, 0, 2.5, 2.5, 0, 2.5).union(polygon(3, 3, 4, 3, 4, 4, 3, 4))));
+    cellValues.add(featureEntry(location, "B", polygon(4.5, 0, 5, 0, 5, 1, 4.5, 1)));
+    RefinedIndexedValues refined = RefinedIndexedValues.refine(location, cellValues, 2);
+
+    for (double x = 0; x <= 5; x += 0.25) {
+      for (double y = 0; y <= 5; y += 0.25) {
+        Coordinate coordinate = new Coordinate(x, y);
+        Assert.assertEquals(coordinate.toString(), cellValues.labelForCoordinate(coordinate), refined.labelForCoordinate(coordinate));
+      }
+    }
+    Assert.assertEquals("A", refined.labelForCoordinate(new Coordinate(2.5, 2.5)));
+  }
+
+  @Test
+  public void testRefiningReplacesHotCell() {
+    CellLocation root = new CellLocation(Reference);
+    CellLocation mixedLocation = root.child(0, 0);
+    Map<CellLocation, IndexedValues> cells = new HashMap<CellLocation, IndexedValues>();
+    cells.put(mixedLocation, mixedCell(mixedLocation));
+    cells.put(root.child(1, 1), new SimplifiedShapefileGeo.SingleIndexedValue("C"));
+    IndexedValues indexedValues = new SimplifiedShapefileGeo.IndexedShapefile(Reference, cells);
+
+    AdaptiveRefiner refiner = new AdaptiveRefiner(DirectExecutor, 1, 0, 4, 1);
+    IndexedValues refining = SimplifiedShapefileGeo.refining(
+      indexedValues.with(new LabelFilters.DefaultLabelFilter("D")),
+      refiner
+    );
+    Assert.assertEquals("single cells are not refined", "C", refining.labelForCoordinate(new Coordinate(7, 7)));
+    Assert.assertEquals(0, refiner.refinedCells());
+    Assert.assertEquals("A", refining.labelForCoordinate(new Coordinate(1, 1)));
+    Assert.assertEquals(1, refiner.refinedCells());
+
+    // Coordinates on the cell's upper edges resolve to the missing cells above it
+    for (double x = 0; x < 5; x += 0.25) {
+      for (double y = 0; y < 5; y += 0.25) {
+        Coordinate coordinate = new Coordinate(x, y);
+        Object expected = indexedValues.labelForCoordinate(coordinate);
+        Assert.assertEquals(coordinate.toString(), expected == null ? "D" : expected, refining.labelForCoordinate(coordinate));
+      }
+    }
+    Assert.assertEquals("refined once", 1, refiner.refinedCells());
+    Assert.assertNotNull("coverage is kept", refining.labelCoverage("A"));
+  }
+
+  @Test
+  public void testRefinerReservesCells() {
+    CellLocation root = new CellLocation(Reference);
+    AdaptiveRefiner refiner = new AdaptiveRefiner(DirectExecutor, 1, 0, 4, 1);
+    Assert.assertTrue(refiner.record(root.child(0, 0), 1));
+    Assert.assertFalse("already splitting", refiner.record(root.child(0, 0), 1));
+    Assert.assertFalse("no cells left", refiner.record(root.child(1, 0), 1));
+
+    // A failed split frees the cell and its reservation
+    refiner.finished(root.child(0, 0), false);
+    Assert.assertEquals(0, refiner.refinedCells());
+    Assert.assertTrue(refiner.record(root.child(1, 0), 1));
+    refiner.finished(root.child(1, 0), true);
+    Assert.assertEquals(1, refiner.refinedCells());
+    Assert.assertFalse("no cells left", refiner.record(root.child(0, 0), 1));
+  }
+}
@@ -0,0 +1,31 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.ParseException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShapefileSimplifierTest {
+  private static CommandLine parse(String... args) throws ParseException {
+    return new GnuParser().parse(ShapefileSimplifier.options(), args);
+  }
+
+  @Test
+  public void testLevelSizes() throws ParseException {
+    CommandLine line = parse("--level-sizes", "10,4,2", "original.shp", "simplified.shp", "label");
+    Assert.assertArrayEquals(new int[] { 10, 4, 2 }, ShapefileSimplifier.levelSizes(line));
+    Assert.assertArrayEquals(
+      new String[] { "original.shp", "simplified.shp", "label" },
+      line.getArgs()
+    );
+  }
+
+  @Test
+  public void testDefaultLevelSizes() throws ParseException {
+    CommandLine line = parse("original.shp", "simplified.shp", "label");
+    Assert.assertArrayEquals(new int[] { 40, 2, 2, 2 }, ShapefileSimplifier.levelSizes(line));
+  }
+}
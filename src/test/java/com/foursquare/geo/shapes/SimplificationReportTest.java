@@ -0,0 +1,26 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SimplificationReportTest {
+  private static String json(Object value) {
+    StringBuilder json = new StringBuilder();
+    SimplificationReport.appendJson(json, value);
+    return json.toString();
+  }
+
+  @Test
+  public void testAppendJson() {
+    Assert.assertEquals("1.5", json(1.5));
+    Assert.assertEquals("7", json(7L));
+    Assert.assertEquals("true", json(true));
+    Assert.assertEquals("\"a \\\"b\\\"\"", json("a \"b\""));
+    Assert.assertEquals("null", json(null));
+    Assert.assertEquals("null", json(Double.NaN));
+    Assert.assertEquals("null", json(Double.POSITIVE_INFINITY));
+    Assert.assertEquals("null", json(Float.NEGATIVE_INFINITY));
+  }
+}
@@ -0,0 +1,235 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class SimplifiedShapefileGeoTest {
+  @Rule
+  public TemporaryFolder indexFolder = new TemporaryFolder();
+
+  static final CoordinateReferenceSystem CRS = DefaultGeographicCRS.WGS84;
+  static final double HighPrecisionDelta = 0.00000001;
+  static final ReferencedEnvelope DefaultEnv = new ReferencedEnvelope(0, 10, 0, 10, CRS);
+  static final CellLocationReference DefaultReference = new CellLocationReference(
+    DefaultEnv,
+    new int[] { 2, 2 }
+  );
+  static final String LabelAttribute = "label";
+
+  private Geometry rectangle(double minX, double maxX, double minY, double maxY) {
+    return DefaultReference.getGeometryFactory().toGeometry(
+      new ReferencedEnvelope(minX, maxX, minY, maxY, CRS)
+    );
+  }
+
+  private FeatureEntry featureEntry(CellLocation location, Object label, Geometry geometry) {
+    return new FeatureEntry(
+      location,
+      new AbstractMap.SimpleImmutableEntry<String, Object>(LabelAttribute, label),
+      false,
+      geometry
+    );
+  }
+
+  /* Layout of the index:
+    -----------10
+    |     |    |
+    |     | C  |
+    |     |    |
+    ------------
+    |  |  |    |
+    |A |B |    |
+    |  |  |    |
+    0-----5-----
+   */
+  private IndexedValues buildIndex() {
+    CellLocation root = new CellLocation(DefaultReference);
+    CellLocation mixedCell = root.child(0, 0);
+    CellLocation singleCell = root.child(1, 1);
+    SimplifiedShapefileGeo.ShapeIndexedValues mixedValues = new SimplifiedShapefileGeo.ShapeIndexedValues();
+    mixedValues.add(featureEntry(mixedCell, "A", rectangle(0, 2, 0, 5)));
+    mixedValues.add(featureEntry(mixedCell, "B", rectangle(2, 5, 0, 5)));
+    SimplifiedShapefileGeo.ShapeIndexedValues singleValues = new SimplifiedShapefileGeo.ShapeIndexedValues();
+    singleValues.add(featureEntry(singleCell, "C", singleCell.envelopeGeometry()));
+
+    Map<CellLocation, IndexedValues> cells = new HashMap<CellLocation, IndexedValues>();
+    cells.put(mixedCell, mixedValues.simplified());
+    cells.put(singleCell, singleValues.simplified());
+    return new SimplifiedShapefileGeo.IndexedShapefile(DefaultReference, cells);
+  }
+
+  @Test
+  public void testLabelDistanceMixedCell() {
+    IndexedValues indexedValues = buildIndex();
+
+    LabelDistance nearBorder = indexedValues.labelDistanceForCoordinate(new Coordinate(1.5, 2.5));
+    Assert.assertEquals("label is resolved", "A", nearBorder.label);
+    Assert.assertTrue("border within cell is exact", nearBorder.exact);
+    Assert.assertEquals("distance to A|B border", 0.5, nearBorder.distance, HighPrecisionDelta);
+
+    LabelDistance otherSide = indexedValues.labelDistanceForCoordinate(new Coordinate(3, 1.5));
+    Assert.assertEquals("label is resolved", "B", otherSide.label);
+    Assert.assertTrue("border within cell is exact", otherSide.exact);
+    Assert.assertEquals("distance to A|B border", 1, otherSide.distance, HighPrecisionDelta);
+  }
+
+  @Test
+  public void testLabelDistanceIgnoresCellEdges() {
+    IndexedValues indexedValues = buildIndex();
+
+    LabelDistance nearEdge = indexedValues.labelDistanceForCoordinate(new Coordinate(0.25, 2.5));
+    Assert.assertEquals("label is resolved", "A", nearEdge.label);
+    Assert.assertFalse("cell edge is not a boundary", nearEdge.exact);
+    Assert.assertEquals("cell edge is a lower bound", 0.25, nearEdge.distance, HighPrecisionDelta);
+  }
+
+  @Test
+  public void testLabelDistanceSingleLabelCell() {
+    IndexedValues indexedValues = buildIndex();
+
+    LabelDistance single = indexedValues.labelDistanceForCoordinate(new Coordinate(7, 8));
+    Assert.assertEquals("label is resolved", "C", single.label);
+    Assert.assertFalse("single label cell is a lower bound", single.exact);
+    Assert.assertEquals("distance to cell edge", 2, single.distance, HighPrecisionDelta);
+  }
+
+  @Test
+  public void testLabelDistanceFiltered() {
+    IndexedValues indexedValues = buildIndex().with(new LabelFilters.DefaultLabelFilter("D"));
+
+    LabelDistance filtered = indexedValues.labelDistanceForCoordinate(new Coordinate(1.5, 2.5));
+    Assert.assertEquals("filter keeps found label", "A", filtered.label);
+    Assert.assertEquals("filter keeps distance", 0.5, filtered.distance, HighPrecisionDelta);
+  }
+
+  @Test
+  public void testLabelCoverage() {
+    IndexedValues indexedValues = buildIndex().with(new LabelFilters.DefaultLabelFilter("D"));
+    CellLocation root = new CellLocation(DefaultReference);
+
+    LabelCoverage partial = indexedValues.labelCoverage("A");
+    Assert.assertEquals("mixed cell is posted", Arrays.asList(root.child(0, 0)), partial.getCells());
+    Assert.assertEquals("envelope of the feature", new Envelope(0, 2, 0, 5), partial.getEnvelope());
+    Assert.assertEquals("geometry of the feature", 10, partial.geometry().getArea(), HighPrecisionDelta);
+
+    LabelCoverage single = indexedValues.labelCoverage("C");
+    Assert.assertEquals("single cell is posted", Arrays.asList(root.child(1, 1)), single.getCells());
+    Assert.assertEquals("envelope of the cell", new Envelope(5, 10, 5, 10), single.getEnvelope());
+    Assert.assertEquals("geometry of the cell", 25, single.geometry().getArea(), HighPrecisionDelta);
+
+    Assert.assertNull("missing label has no coverage", indexedValues.labelCoverage("D"));
+  }
+
+  @Test
+  public void testProfiled() {
+    LookupProfiler profiler = new LookupProfiler(1);
+    IndexedValues indexedValues = SimplifiedShapefileGeo.profiled(
+      buildIndex().with(new LabelFilters.DefaultLabelFilter("D")),
+      profiler
+    );
+    CellLocation root = new CellLocation(DefaultReference);
+
+    for (int idx = 0; idx < 3; ++idx) {
+      Assert.assertEquals("B", indexedValues.labelForCoordinate(new Coordinate(3, 1)));
+    }
+    Assert.assertEquals("C", indexedValues.labelForCoordinate(new Coordinate(7, 7)));
+
+    List<LookupProfiler.CellProfile> profiles = profiler.cellProfiles();
+    Map<CellLocation, LookupProfiler.CellProfile> profileByCell = new HashMap<CellLocation, LookupProfiler.CellProfile>();
+    for (LookupProfiler.CellProfile profile: profiles) {
+      profileByCell.put(profile.location, profile);
+    }
+    Assert.assertEquals("hits of mixed cell", 3, profileByCell.get(root.child(0, 0)).hits);
+    Assert.assertTrue("mixed cell", profileByCell.get(root.child(0, 0)).mixed);
+    Assert.assertEquals("hits of single cell", 1, profileByCell.get(root.child(1, 1)).hits);
+    Assert.assertFalse("single cell", profileByCell.get(root.child(1, 1)).mixed);
+    for (int idx = 1; idx < profiles.size(); ++idx) {
+      Assert.assertTrue("most costly first", profiles.get(idx - 1).nanos >= profiles.get(idx).nanos);
+    }
+
+    String geoJson = profiler.toGeoJson();
+    Assert.assertTrue(geoJson.startsWith("{\"type\": \"FeatureCollection\""));
+    Assert.assertTrue(geoJson.contains("[[[5.0, 5.0], [10.0, 5.0], [10.0, 10.0], [5.0, 10.0], [5.0, 5.0]]]"));
+    Assert.assertTrue(profiler.toJson().contains("\"sampleInterval\": 1"));
+
+    profiler.reset();
+    Assert.assertTrue(profiler.cellProfiles().isEmpty());
+    Assert.assertEquals("original values are not profiled", "B", buildIndex().labelForCoordinate(new Coordinate(3, 1)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testProfiledRequiresCells() {
+    SimplifiedShapefileGeo.profiled(new SimplifiedShapefileGeo.SingleIndexedValue("A"), new LookupProfiler());
+  }
+
+  @Test
+  public void testLoadIndex() throws IOException {
+    CellLocation root = new CellLocation(DefaultReference);
+    CellLocation mixedCell = root.child(0, 0);
+    CellLocation singleCell = root.child(1, 1);
+    File file = indexFolder.newFile("simplified.idx");
+    SimplifiedIndexIO.Writer writer = new SimplifiedIndexIO.Writer(file, DefaultReference, LabelAttribute);
+    writer.add(featureEntry(mixedCell, "A", rectangle(0, 2, 0, 5)));
+    writer.add(featureEntry(mixedCell, "B", rectangle(2, 5, 0, 5)));
+    writer.add(featureEntry(singleCell, "C", singleCell.envelopeGeometry()));
+    writer.close();
+    Assert.assertEquals("features written", 3, writer.numFeatures());
+
+    IndexedValues indexedValues = SimplifiedShapefileGeo.loadIndex(file.toURI().toURL(), true);
+    Assert.assertEquals("A", indexedValues.labelForCoordinate(new Coordinate(1, 1)));
+    Assert.assertEquals("B", indexedValues.labelForCoordinate(new Coordinate(3, 1)));
+    Assert.assertEquals("C", indexedValues.labelForCoordinate(new Coordinate(7, 7)));
+    Assert.assertNull("out of bounds", indexedValues.labelForCoordinate(new Coordinate(11, 1)));
+    Assert.assertEquals("features of mixed cell", 2, indexedValues.colocatedFeatures(new Coordinate(1, 1)).size());
+  }
+
+  @Test
+  public void testLoadIndexLongLabel() throws IOException {
+    CellLocation singleCell = new CellLocation(DefaultReference).child(1, 1);
+    StringBuilder label = new StringBuilder();
+    while (label.length() < 0x10000) {
+      label.append("\u00e9label");
+    }
+    File file = indexFolder.newFile("simplified.idx");
+    SimplifiedIndexIO.Writer writer = new SimplifiedIndexIO.Writer(file, DefaultReference, LabelAttribute);
+    writer.add(featureEntry(singleCell, label.toString(), singleCell.envelopeGeometry()));
+    writer.close();
+
+    IndexedValues indexedValues = SimplifiedShapefileGeo.loadIndex(file.toURI().toURL(), true);
+    Assert.assertEquals(label.toString(), indexedValues.labelForCoordinate(new Coordinate(7, 7)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIndexRejectsUnsupportedLabel() throws IOException {
+    CellLocation singleCell = new CellLocation(DefaultReference).child(1, 1);
+    File file = indexFolder.newFile("simplified.idx");
+    SimplifiedIndexIO.Writer writer = new SimplifiedIndexIO.Writer(file, DefaultReference, LabelAttribute);
+    try {
+      writer.add(featureEntry(singleCell, Arrays.asList("C"), singleCell.envelopeGeometry()));
+    } finally {
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+
+public class SimplifierUtilsTest {
+  static final double HighPrecisionDelta = 0.00000001;
+  static final GeometryFactory Factory = new GeometryFactory();
+
+  /* A grid of unit squares labeled by row parity, enough to be unioned in partitions */
+  private static List<ImmutablePair<Object, Geometry>> squares() {
+    List<ImmutablePair<Object, Geometry>> squares = new ArrayList<ImmutablePair<Object, Geometry>>();
+    for (int x = 0; x < 80; ++x) {
+      for (int y = 0; y < 60; ++y) {
+        Object label = y < 30 ? "south" : "north";
+        squares.add(ImmutablePair.of(label, Factory.toGeometry(new Envelope(x, x + 1, y, y + 1))));
+      }
+    }
+    return squares;
+  }
+
+  @Test
+  public void testPartitionedUnionByLabel() {
+    List<ImmutablePair<Object, Geometry>> sequential = SimplifierUtils.unionByLabel(Factory, squares());
+    ForkJoinPool pool = new ForkJoinPool(4);
+    List<ImmutablePair<Object, Geometry>> parallel;
+    try {
+      parallel = SimplifierUtils.unionByLabel(Factory, squares(), pool);
+    } finally {
+      pool.shutdown();
+    }
+    Assert.assertEquals("one geometry per label", 2, sequential.size());
+    Assert.assertEquals("same labels in the same order", sequential.get(0).getLeft(), parallel.get(0).getLeft());
+    for (int idx = 0; idx < sequential.size(); ++idx) {
+      Geometry unioned = sequential.get(idx).getRight();
+      Assert.assertEquals("a single polygon", 1, unioned.getNumGeometries());
+      Assert.assertEquals("area", 2400, unioned.getArea(), HighPrecisionDelta);
+      Assert.assertTrue("same union in parallel", unioned.equalsTopo(parallel.get(idx).getRight()));
+    }
+  }
+}
@@ -0,0 +1,181 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+
+import com.foursquare.geo.shapes.indexing.CellLocation;
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.densify.Densifier;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.util.PolygonExtracter;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class WaterDelaunayTriangulationSimplifierTest {
+  static final CoordinateReferenceSystem CRS = DefaultGeographicCRS.WGS84;
+  static final ReferencedEnvelope DefaultEnv = new ReferencedEnvelope(0, 10, 0, 10, CRS);
+  static final CellLocationReference DefaultReference = new CellLocationReference(
+    DefaultEnv,
+    new int[] { 4, 2 }
+  );
+  static final FeatureEntryFactory DefaultFactory = new FeatureEntryFactory(DefaultReference, "label");
+
+  /* Land from an edge of the envelope to a coast with a vertex every half unit, wobbling about coastX */
+  private static Geometry coast(double edgeX, double coastX) {
+    GeometryFactory factory = DefaultReference.getGeometryFactory();
+    List<Coordinate> coords = new ArrayList<Coordinate>();
+    coords.add(new Coordinate(edgeX, 0));
+    for (int idx = 0; idx <= 20; ++idx) {
+      coords.add(new Coordinate(coastX + (idx % 2 == 0 ? 0 : 0.2), idx * 0.5));
+    }
+    coords.add(new Coordinate(edgeX, 10));
+    coords.add(new Coordinate(edgeX, 0));
+    return factory.createPolygon(factory.createLinearRing(coords.toArray(new Coordinate[coords.size()])), null);
+  }
+
+  /* Two coasts across a strait, with an island in it */
+  private static List<FeatureEntry> features() {
+    List<FeatureEntry> features = new ArrayList<FeatureEntry>();
+    features.add(DefaultFactory.featureEntry("A", false, coast(0, 4)));
+    features.add(DefaultFactory.featureEntry("B", false, coast(10, 6)));
+    features.add(DefaultFactory.featureEntry(
+      "C",
+      false,
+      Densifier.densify(DefaultReference.getGeometryFactory().toGeometry(new Envelope(4.9, 5.1, 3, 7)), 0.5)
+    ));
+    return features;
+  }
+
+  private static Geometry polygons(Geometry geometry) {
+    return geometry.getFactory().buildGeometry(PolygonExtracter.getPolygons(geometry));
+  }
+
+  private static Map<Object, Geometry> waterByLabel(List<FeatureEntry> water) {
+    Map<Object, Geometry> waterByLabel = new HashMap<Object, Geometry>();
+    for (FeatureEntry feature: water) {
+      Assert.assertTrue("weak label", feature.isWeakLabel());
+      Assert.assertNull("one feature per label", waterByLabel.put(feature.getLabel(), polygons(feature.geometry)));
+    }
+    return waterByLabel;
+  }
+
+  @Test
+  public void testPartitionedWaterMatches() {
+    List<FeatureEntry> features = features();
+    GeometryFactory factory = DefaultReference.getGeometryFactory();
+    List<Geometry> land = new ArrayList<Geometry>();
+    for (FeatureEntry feature: features) {
+      land.add(feature.geometry);
+    }
+    // Triangles between vertices of the same land feature may cover the land, where water labels do not matter
+    Geometry openWater = factory.toGeometry(DefaultEnv).difference(factory.buildGeometry(land).union());
+    Map<Object, Geometry> water = waterByLabel(WaterDelaunayTriangulationSimplifier.simplify(
+      DefaultReference,
+      DefaultFactory,
+      features
+    ));
+    Map<Object, Geometry> partitionedWater = waterByLabel(WaterDelaunayTriangulationSimplifier.simplifyPartitioned(
+      DefaultReference,
+      DefaultFactory,
+      features,
+      new SimplificationOptions().numThreads(4)
+    ));
+    Assert.assertEquals("same labels", water.keySet(), partitionedWater.keySet());
+    for (Map.Entry<Object, Geometry> entry: water.entrySet()) {
+      Geometry expected = polygons(entry.getValue().intersection(openWater));
+      Geometry partitioned = polygons(partitionedWater.get(entry.getKey()).intersection(openWater));
+      Assert.assertEquals("area of " + entry.getKey(), expected.getArea(), partitioned.getArea(), 0.01);
+      Assert.assertEquals("shape of " + entry.getKey(), 0, expected.symDifference(partitioned).getArea(), 0.01);
+    }
+  }
+
+  @Test
+  public void testVoronoiWater() {
+    List<FeatureEntry> features = features();
+    GeometryFactory factory = DefaultReference.getGeometryFactory();
+    List<Geometry> land = new ArrayList<Geometry>();
+    for (FeatureEntry feature: features) {
+      land.add(feature.geometry);
+    }
+    Geometry openWater = factory.toGeometry(DefaultEnv).difference(factory.buildGeometry(land).union());
+    Map<Object, Geometry> water = waterByLabel(WaterDelaunayTriangulationSimplifier.simplify(
+      DefaultReference,
+      DefaultFactory,
+      features,
+      DefaultEnv,
+      new SimplificationOptions().voronoiWater(true)
+    ));
+    Assert.assertEquals("same labels", waterByLabel(WaterDelaunayTriangulationSimplifier.simplify(
+      DefaultReference,
+      DefaultFactory,
+      features
+    )).keySet(), water.keySet());
+    double area = 0;
+    for (Map.Entry<Object, Geometry> entry: water.entrySet()) {
+      Assert.assertEquals("within the water", 0, entry.getValue().difference(openWater).getArea(), 0.0000001);
+      area += entry.getValue().getArea();
+    }
+    Assert.assertEquals("all water is labeled", openWater.getArea(), area, 0.0000001);
+    // The strait west of the island is nearer to the west coast than the island
+    Assert.assertTrue("nearest label", water.get("A").contains(factory.createPoint(new Coordinate(4.45, 1))));
+    Assert.assertTrue("nearest label", water.get("C").contains(factory.createPoint(new Coordinate(4.85, 5))));
+
+    Map<Object, Geometry> partitionedWater = waterByLabel(WaterDelaunayTriangulationSimplifier.simplifyPartitioned(
+      DefaultReference,
+      DefaultFactory,
+      features,
+      new SimplificationOptions().numThreads(4).voronoiWater(true)
+    ));
+    for (Map.Entry<Object, Geometry> entry: water.entrySet()) {
+      Assert.assertEquals(
+        "partitioned shape of " + entry.getKey(),
+        0,
+        entry.getValue().symDifference(partitionedWater.get(entry.getKey())).getArea(),
+        0.01
+      );
+    }
+  }
+
+  @Test
+  public void testCellWaterMatchesPartitioned() {
+    List<FeatureEntry> features = features();
+    GeometryFactory factory = DefaultReference.getGeometryFactory();
+    CellLocation root = new CellLocation(DefaultReference);
+    List<CellLocation> cells = new ArrayList<CellLocation>();
+    for (int latIdx = 0; latIdx < DefaultReference.getLevelSize(0); ++latIdx) {
+      cells.add(root.child(1, latIdx));
+    }
+    Geometry column = factory.toGeometry(new Envelope(2.5, 5, 0, 10));
+    Map<Object, Geometry> partitionedWater = waterByLabel(WaterDelaunayTriangulationSimplifier.simplifyPartitioned(
+      DefaultReference,
+      DefaultFactory,
+      features,
+      new SimplificationOptions()
+    ));
+    Map<Object, Geometry> cellWater = waterByLabel(WaterDelaunayTriangulationSimplifier.simplifyCells(
+      DefaultReference,
+      DefaultFactory,
+      features,
+      cells,
+      new SimplificationOptions().numThreads(2)
+    ));
+    Assert.assertTrue("water of the west coast", cellWater.containsKey("A"));
+    for (Map.Entry<Object, Geometry> entry: cellWater.entrySet()) {
+      Assert.assertEquals("within the cells", 0, entry.getValue().difference(column).getArea(), 0.0000001);
+      Geometry expected = partitionedWater.get(entry.getKey()).intersection(column);
+      Assert.assertEquals("shape of " + entry.getKey(), 0, expected.symDifference(entry.getValue()).getArea(), 0.01);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2015 Foursquare Labs Inc. All Rights Reserved.
+
+package com.foursquare.geo.shapes;
+
+import com.foursquare.geo.shapes.indexing.CellLocationReference;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+public class WkbFeatureEntrySourceTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  static final CellLocationReference DefaultReference = new CellLocationReference(
+    new ReferencedEnvelope(0, 10, 0, 10, DefaultGeographicCRS.WGS84),
+    new int[] { 2, 2 }
+  );
+
+  private Geometry rectangle(double minX, double maxX, double minY, double maxY) {
+    return DefaultReference.getGeometryFactory().toGeometry(new Envelope(minX, maxX, minY, maxY));
+  }
+
+  @Test
+  public void testReadRecords() throws IOException {
+    File file = folder.newFile("features.wkb");
+    WkbFeatureEntrySource.Writer writer = new WkbFeatureEntrySource.Writer(file);
+    writer.add("A", rectangle(1, 2, 3, 4));
+    writer.add(7, rectangle(-1, 0.5, 2, 9));
+    writer.close();
+
+    WkbFeatureEntrySource source = new WkbFeatureEntrySource(file);
+    Assert.assertEquals("bounds", new Envelope(-1, 2, 2, 9), new Envelope(source.bounds()));
+
+    FeatureEntryFactory featureEntryFactory = new FeatureEntryFactory(DefaultReference, "label");
+    List<FeatureEntry> featureEntries = featureEntryFactory.featureEntries(source);
+    Assert.assertEquals("features", 2, featureEntries.size());
+    Assert.assertEquals("label", "A", featureEntries.get(0).getLabel());
+    Assert.assertEquals("label type is kept", 7, featureEntries.get(1).getLabel());
+    Assert.assertTrue("geometry", rectangle(1, 2, 3, 4).equalsExact(featureEntries.get(0).geometry));
+    Assert.assertEquals("label attribute", "label", featureEntries.get(0).getLabelEntry().getKey());
+
+    Assert.assertEquals("features are read again", 2, featureEntryFactory.featureEntries(source).size());
+  }
+
+  @Test(expected = IOException.class)
+  public void testRejectsUndocumentedLabelType() throws IOException {
+    File file = folder.newFile("features.wkb");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+    out.writeInt(WkbFeatureEntrySource.Magic);
+    out.writeInt(WkbFeatureEntrySource.Version);
+    FeatureEntryIO.writeGeometry(out, rectangle(1, 2, 3, 4));
+    out.writeByte(5);
+    out.writeInt(0);
+    out.close();
+
+    new WkbFeatureEntrySource(file).bounds();
+  }
+}
@@ -10,6 +10,8 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import java.util.Arrays;
+
 
 public class CellLocationTest {
   static final CoordinateReferenceSystem CRS = DefaultGeographicCRS.WGS84;
@@ -138,6 +140,13 @@ public class CellLocationTest {
       "Identical location paths with different references must not be equal",
       bottomLeft1.equals(bottomLeft3)
     );
+
+    Assert.assertEquals("Equal locations are ordered together", 0, bottomLeft1.compareTo(bottomLeft2));
+    Assert.assertTrue(
+      "Identical location paths with different references are ordered by reference",
+      bottomLeft1.compareTo(bottomLeft3) != 0 &&
+        Integer.signum(bottomLeft1.compareTo(bottomLeft3)) == -Integer.signum(bottomLeft3.compareTo(bottomLeft1))
+    );
   }
 
   @Test
@@ -255,4 +264,60 @@ public class CellLocationTest {
       CellLocation.fromCoordinate(simpleReference, new Coordinate(DefaultEnvMaxX * 2, DefaultEnvMaxY * 2))
     );
   }
+
+  @Test
+  public void testPackedId() {
+    CellLocationReference reference = new CellLocationReference(DefaultEnv, new int[] { 40, 2, 3 });
+    CellLocation root = new CellLocation(reference);
+    CellLocation[] locations = new CellLocation[] {
+      root,
+      root.child(39, 0),
+      root.child(0, 39).child(1, 0),
+      root.child(17, 23).child(0, 1).child(2, 1)
+    };
+    for (CellLocation location: locations) {
+      Assert.assertEquals("round trip " + location, location, CellLocation.fromPackedId(reference, location.packedId()));
+    }
+    Assert.assertTrue("level is packed", root.child(0, 0).packedId() != root.child(0, 0).child(0, 0).packedId());
+  }
+
+  @Test
+  public void testPackedIdCapacity() {
+    Assert.assertTrue(new CellLocationReference(DefaultEnv, new int[] { 40, 2, 2, 2 }).hasPackedIds());
+    int[] maxLevels = new int[15];
+    Arrays.fill(maxLevels, 2);
+    Assert.assertTrue(new CellLocationReference(DefaultEnv, maxLevels).hasPackedIds());
+    int[] manyLevels = new int[16];
+    Arrays.fill(manyLevels, 2);
+    Assert.assertFalse("level overflows", new CellLocationReference(DefaultEnv, manyLevels).hasPackedIds());
+    Assert.assertTrue(new CellLocationReference(DefaultEnv, new int[] { 1 << 15, (1 << 15) - 1 }).hasPackedIds());
+    CellLocationReference manyCells = new CellLocationReference(DefaultEnv, new int[] { 1 << 15, 1 << 15 });
+    Assert.assertFalse("indices overflow", manyCells.hasPackedIds());
+    try {
+      new CellLocation(manyCells).packedId();
+      Assert.fail("packed a location that does not fit");
+    } catch (IllegalArgumentException iae) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testPackedIdLeftoverBits() {
+    CellLocationReference reference = new CellLocationReference(DefaultEnv, new int[] { 2, 2 });
+    CellLocation location = new CellLocation(reference).child(1, 1).child(0, 1);
+    Assert.assertEquals(location, CellLocation.fromPackedId(reference, location.packedId()));
+    long[] corruptIds = {
+      location.packedId() + (16L << 4),
+      new CellLocation(reference).packedId() | (1L << 4),
+      -1
+    };
+    for (long packedId: corruptIds) {
+      try {
+        CellLocation.fromPackedId(reference, packedId);
+        Assert.fail("decoded " + packedId);
+      } catch (IllegalArgumentException iae) {
+        // expected
+      }
+    }
+  }
 }